@@ -0,0 +1,47 @@
+package osm.map.worldwind.gl.fire;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One simulation step of a fire held at a steady particle count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class FireBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int particles;
+
+	Fire fire;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		fire = new Fire(5, 5, 3, particles);
+		fire.setSeed(42); // the same particles in every fork
+		fire.setMaxParticles(particles);
+		fire.fastForward(fire.getSettleTime(), 0.2f);
+	}
+
+	@Benchmark
+	public int update() {
+		fire.update(0.2f);
+		return fire.getParticleCount();
+	}
+
+}
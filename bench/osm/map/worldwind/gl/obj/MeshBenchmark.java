@@ -0,0 +1,76 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The passes ObjLoader makes over a parsed model: bounds, centering, face sorting and building the
+ * triangulated batches the display list is compiled from.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class MeshBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	public int vertices;
+
+	ObjLoader loader;
+	List<ObjLoader.Face> unsorted;
+	List<ObjLoader.Face> sorting;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		loader = new ObjLoader(new SyntheticModel(vertices, 8).getPath(), false, false);
+		unsorted = new ArrayList<>(loader.faces);
+		Collections.shuffle(unsorted, new Random(42));
+	}
+
+	@Setup(Level.Invocation)
+	public void shuffled() {
+		sorting = new ArrayList<>(unsorted);
+	}
+
+	@Benchmark
+	public float bounds() {
+		loader.calculateBounds();
+		return loader.getMaxDimension();
+	}
+
+	@Benchmark
+	public float center() {
+		loader.centerit();
+		return loader.getMaxDimension();
+	}
+
+	@Benchmark
+	public List<ObjLoader.Face> sortFaces() {
+		Collections.sort(sorting);
+		return sorting;
+	}
+
+	@Benchmark
+	public List<MeshBatch> displayListInput() {
+		return loader.buildMeshBatches();
+	}
+
+}
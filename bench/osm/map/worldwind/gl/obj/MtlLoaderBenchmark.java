@@ -0,0 +1,46 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MTL parsing of the bundled f550 materials (read from the classpath) and of a synthetic library with many
+ * materials (read from disk).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class MtlLoaderBenchmark {
+
+	SyntheticModel model;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		model = new SyntheticModel(100, 500);
+	}
+
+	@Benchmark
+	public MtlLoader bundled() {
+		return new MtlLoader("/models/f550", "f550.mtl");
+	}
+
+	@Benchmark
+	public MtlLoader synthetic() {
+		return new MtlLoader(model.dir.getAbsolutePath(), "model.mtl");
+	}
+
+}
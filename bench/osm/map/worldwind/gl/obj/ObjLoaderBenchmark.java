@@ -0,0 +1,63 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * OBJ parsing throughput on models from ObjGenerator. Next to models/s the bytes and faces counters are reported as
+ * bytes/s and faces/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class ObjLoaderBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	public int vertices;
+
+	SyntheticModel model;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+
+		public long bytes;
+		public long faces;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			faces = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		model = new SyntheticModel(vertices, 8);
+	}
+
+	@Benchmark
+	public ObjLoader parse(Throughput throughput) {
+		ObjLoader loader = new ObjLoader(model.getPath(), false, false);
+		throughput.bytes += model.getBytes();
+		throughput.faces += loader.getPolygonCount();
+		return loader;
+	}
+
+}
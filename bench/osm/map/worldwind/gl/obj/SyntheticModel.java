@@ -0,0 +1,36 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A generated model in a temporary directory, deleted on exit: a mix of triangles, quads and hexagons with
+ * texture coordinates, normals and untextured materials.
+ */
+class SyntheticModel {
+
+	final File dir;
+	final ObjGenerator.Stats stats;
+
+	SyntheticModel(long vertices, int materials) throws IOException {
+		dir = Files.createTempDirectory("bench").toFile();
+		dir.deleteOnExit();
+		ObjGenerator generator = new ObjGenerator();
+		generator.setVertexCount(vertices);
+		generator.setFaceMix(0.4, 0.1, 6);
+		generator.setMaterials(materials, (int) Math.max(1, vertices / materials));
+		stats = generator.write(dir, "model");
+		stats.obj.deleteOnExit();
+		stats.mtl.deleteOnExit();
+	}
+
+	long getBytes() {
+		return stats.bytes;
+	}
+
+	String getPath() {
+		return stats.obj.getAbsolutePath();
+	}
+
+}
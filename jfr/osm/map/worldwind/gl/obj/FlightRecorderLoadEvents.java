@@ -0,0 +1,58 @@
+package osm.map.worldwind.gl.obj;
+
+/**
+ * Reports LoadMetrics as ModelLoadPhaseEvents and ModelLoadEvents.
+ */
+class FlightRecorderLoadEvents implements LoadEvents {
+
+	@Override
+	public Object beginPhase() {
+		ModelLoadPhaseEvent event = new ModelLoadPhaseEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endPhase(Object phaseEvent, LoadMetrics metrics, LoadMetrics.Phase phase) {
+		ModelLoadPhaseEvent event = (ModelLoadPhaseEvent) phaseEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			LoadMetrics snapshot = metrics.snapshot();
+			event.model = snapshot.getModel();
+			event.phase = phase.name();
+			event.bytes = snapshot.getBytes();
+			event.vertices = snapshot.getVertices();
+			event.faces = snapshot.getFaces();
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object beginLoad() {
+		ModelLoadEvent event = new ModelLoadEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void commitLoad(Object loadEvent, LoadMetrics metrics) {
+		ModelLoadEvent event = (ModelLoadEvent) loadEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			LoadMetrics snapshot = metrics.snapshot();
+			event.model = snapshot.getModel();
+			event.bytes = snapshot.getBytes();
+			event.vertices = snapshot.getVertices();
+			event.faces = snapshot.getFaces();
+			event.materials = snapshot.getMaterials();
+			event.textures = snapshot.getTextures();
+			event.readTime = snapshot.getNanos(LoadMetrics.Phase.READ);
+			event.parseTime = snapshot.getNanos(LoadMetrics.Phase.PARSE);
+			event.materialTime = snapshot.getNanos(LoadMetrics.Phase.MATERIALS);
+			event.sortTime = snapshot.getNanos(LoadMetrics.Phase.SORT);
+			event.textureDecodeTime = snapshot.getNanos(LoadMetrics.Phase.TEXTURE_DECODE);
+			event.commit();
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package osm.map.worldwind.gl.obj;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event spanning the read of a model file and its textures, with the time of each phase.
+ */
+@Name("osm.map.worldwind.ModelLoad")
+@Label("Model Load")
+@Category({"World Wind", "Models"})
+@Description("Reading and parsing an OBJ model and decoding its textures")
+class ModelLoadEvent extends jdk.jfr.Event {
+
+	@Label("Model")
+	String model;
+
+	@Label("Model Size")
+	@DataAmount
+	long bytes;
+
+	@Label("Vertices")
+	int vertices;
+
+	@Label("Faces")
+	int faces;
+
+	@Label("Materials")
+	int materials;
+
+	@Label("Textures")
+	int textures;
+
+	@Label("Read Time")
+	@Timespan
+	long readTime;
+
+	@Label("Parse Time")
+	@Timespan
+	long parseTime;
+
+	@Label("Material Time")
+	@Timespan
+	long materialTime;
+
+	@Label("Sort Time")
+	@Timespan
+	long sortTime;
+
+	@Label("Texture Decode Time")
+	@Timespan
+	long textureDecodeTime;
+
+}
@@ -0,0 +1,34 @@
+package osm.map.worldwind.gl.obj;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning one phase of loading a model, see LoadMetrics.Phase.
+ */
+@Name("osm.map.worldwind.ModelLoadPhase")
+@Label("Model Load Phase")
+@Category({"World Wind", "Models"})
+@Description("One phase of loading an OBJ model")
+class ModelLoadPhaseEvent extends jdk.jfr.Event {
+
+	@Label("Model")
+	String model;
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Model Size")
+	@DataAmount
+	long bytes;
+
+	@Label("Vertices")
+	int vertices;
+
+	@Label("Faces")
+	int faces;
+
+}
@@ -0,0 +1,223 @@
+package osm.map.worldwind.gl;
+
+import java.util.Arrays;
+
+/**
+ * The motion of the objects of a TrackStore between their timestamped samples. Each moving object has a
+ * segment from a start to an end state; every frame, the state at the render time is interpolated along it,
+ * or extrapolated past its end: the position along the great circle through both positions, the altitude
+ * linearly, and the attitude by slerp of the quaternions of the azimuth, elevation and roll rotations that
+ * GLRenderable.draw applies.
+ *
+ * The segments are kept in flat arrays per component and evaluated in one branch-free loop over the moving
+ * objects, with the great circle and slerp angles of each segment computed once when it starts. Used by the
+ * rendering thread only.
+ */
+class DeadReckoning {
+
+	// per slot: the segment times, positions as unit vectors, altitudes, attitude quaternions (w, x, y, z)
+	// and the great circle and slerp angles
+	private final double[] t0, t1;
+	private final double[] p0, p1;
+	private final double[] alt0, alt1;
+	private final double[] q0, q1;
+	private final double[] positionAngle, attitudeAngle;
+	private final boolean[] hasSample; // t1 and the end state hold the latest sample
+	private final double[] current; // the state last evaluated, or of the latest sample, TrackStore.STATE_SIZE per slot
+
+	private final int[] active; // the moving slots
+	private final int[] activeIndex; // where a slot is in active, or -1
+	private int activeCount;
+
+	DeadReckoning(int capacity) {
+		t0 = new double[capacity];
+		t1 = new double[capacity];
+		p0 = new double[3 * capacity];
+		p1 = new double[3 * capacity];
+		alt0 = new double[capacity];
+		alt1 = new double[capacity];
+		q0 = new double[4 * capacity];
+		q1 = new double[4 * capacity];
+		positionAngle = new double[capacity];
+		attitudeAngle = new double[capacity];
+		hasSample = new boolean[capacity];
+		current = new double[TrackStore.STATE_SIZE * capacity];
+		active = new int[capacity];
+		activeIndex = new int[capacity];
+		Arrays.fill(activeIndex, -1);
+	}
+
+	/**
+	 * Forgets the samples of a slot, e.g. after an update without a time or when it gets another object.
+	 */
+	void reset(int slot) {
+		stop(slot);
+		hasSample[slot] = false;
+	}
+
+	/**
+	 * Adds a sample. The new segment starts at the state shown at the render time if the object is moving and
+	 * the sample lies ahead of it, so the object does not jump, and otherwise at the previous sample.
+	 *
+	 * @return false if the sample is not newer than the latest one
+	 */
+	boolean addSample(int slot, double time, double[] state, double renderTime) {
+		if (!hasSample[slot]) {
+			setEnd(slot, time, state);
+			System.arraycopy(state, 0, current, TrackStore.STATE_SIZE * slot, TrackStore.STATE_SIZE);
+			hasSample[slot] = true;
+			return true;
+		}
+		if (time <= t1[slot]) {
+			return false;
+		}
+		if (activeIndex[slot] >= 0 && renderTime < time && renderTime > t0[slot]) {
+			int c = TrackStore.STATE_SIZE * slot;
+			t0[slot] = renderTime;
+			toUnit(current[c], current[c + 1], p0, 3 * slot);
+			alt0[slot] = current[c + 2];
+			toQuaternion(current[c + 3], current[c + 4], current[c + 5], q0, 4 * slot);
+		} else {
+			t0[slot] = t1[slot];
+			System.arraycopy(p1, 3 * slot, p0, 3 * slot, 3);
+			alt0[slot] = alt1[slot];
+			System.arraycopy(q1, 4 * slot, q0, 4 * slot, 4);
+		}
+		setEnd(slot, time, state);
+
+		int p = 3 * slot;
+		double dot = p0[p] * p1[p] + p0[p + 1] * p1[p + 1] + p0[p + 2] * p1[p + 2];
+		positionAngle[slot] = Math.acos(Math.max(-1, Math.min(1, dot)));
+		int q = 4 * slot;
+		dot = q0[q] * q1[q] + q0[q + 1] * q1[q + 1] + q0[q + 2] * q1[q + 2] + q0[q + 3] * q1[q + 3];
+		if (dot < 0) { // the shorter way round
+			for (int i = 0; i < 4; i++) {
+				q1[q + i] = -q1[q + i];
+			}
+			dot = -dot;
+		}
+		attitudeAngle[slot] = Math.acos(Math.min(1, dot));
+		if (activeIndex[slot] < 0) {
+			activeIndex[slot] = activeCount;
+			active[activeCount++] = slot;
+		}
+		return true;
+	}
+
+	private void setEnd(int slot, double time, double[] state) {
+		t1[slot] = time;
+		toUnit(state[0], state[1], p1, 3 * slot);
+		alt1[slot] = state[2];
+		toQuaternion(state[3], state[4], state[5], q1, 4 * slot);
+	}
+
+	/**
+	 * Evaluates every moving object at the render time, extrapolating at most maxExtrapolation past the end of
+	 * its segment.
+	 *
+	 * @return the number of objects evaluated
+	 */
+	int evaluate(double renderTime, double maxExtrapolation) {
+		int n = activeCount;
+		for (int i = 0; i < n; i++) {
+			int slot = active[i];
+			double duration = t1[slot] - t0[slot];
+			double f = Math.max(0, Math.min(renderTime, t1[slot] + maxExtrapolation) - t0[slot]) / duration;
+
+			int p = 3 * slot;
+			double angle = positionAngle[slot];
+			double sin = Math.sin(angle);
+			double w0 = sin > 1e-12 ? Math.sin((1 - f) * angle) / sin : 1 - f;
+			double w1 = sin > 1e-12 ? Math.sin(f * angle) / sin : f;
+			double x = w0 * p0[p] + w1 * p1[p];
+			double y = w0 * p0[p + 1] + w1 * p1[p + 1];
+			double z = w0 * p0[p + 2] + w1 * p1[p + 2];
+
+			int q = 4 * slot;
+			angle = attitudeAngle[slot];
+			sin = Math.sin(angle);
+			w0 = sin > 1e-12 ? Math.sin((1 - f) * angle) / sin : 1 - f;
+			w1 = sin > 1e-12 ? Math.sin(f * angle) / sin : f;
+			double qw = w0 * q0[q] + w1 * q1[q];
+			double qx = w0 * q0[q + 1] + w1 * q1[q + 1];
+			double qy = w0 * q0[q + 2] + w1 * q1[q + 2];
+			double qz = w0 * q0[q + 3] + w1 * q1[q + 3];
+			double norm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+			qw /= norm;
+			qx /= norm;
+			qy /= norm;
+			qz /= norm;
+
+			int c = TrackStore.STATE_SIZE * slot;
+			current[c] = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+			current[c + 1] = Math.toDegrees(Math.atan2(y, x));
+			current[c + 2] = alt0[slot] + f * (alt1[slot] - alt0[slot]);
+			// GLRenderable.draw rotates by -azimuth about z, then elevation about x, then roll about y
+			current[c + 3] = -Math.toDegrees(Math.atan2(-2 * (qx * qy - qw * qz), 1 - 2 * (qx * qx + qz * qz)));
+			current[c + 4] = Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, 2 * (qy * qz + qw * qx)))));
+			current[c + 5] = Math.toDegrees(Math.atan2(-2 * (qx * qz - qw * qy), 1 - 2 * (qx * qx + qy * qy)));
+		}
+		return n;
+	}
+
+	/**
+	 * Stops the objects whose extrapolation ran out at the render time.
+	 */
+	void expire(double renderTime, double maxExtrapolation) {
+		for (int i = activeCount - 1; i >= 0; i--) {
+			int slot = active[i];
+			if (renderTime >= t1[slot] + maxExtrapolation) {
+				stop(slot);
+			}
+		}
+	}
+
+	private void stop(int slot) {
+		int i = activeIndex[slot];
+		if (i >= 0) {
+			int last = active[--activeCount];
+			active[i] = last;
+			activeIndex[last] = i;
+			activeIndex[slot] = -1;
+		}
+	}
+
+	boolean isActive(int slot) {
+		return activeIndex[slot] >= 0;
+	}
+
+	int getActiveCount() {
+		return activeCount;
+	}
+
+	int getActive(int i) {
+		return active[i];
+	}
+
+	/**
+	 * @return the state of each slot as of the last evaluation or sample, TrackStore.STATE_SIZE values per slot
+	 */
+	double[] getStates() {
+		return current;
+	}
+
+	private static void toUnit(double latitude, double longitude, double[] v, int offset) {
+		double lat = Math.toRadians(latitude), lon = Math.toRadians(longitude);
+		v[offset] = Math.cos(lat) * Math.cos(lon);
+		v[offset + 1] = Math.cos(lat) * Math.sin(lon);
+		v[offset + 2] = Math.sin(lat);
+	}
+
+	// the rotation -azimuth about z, then elevation about x, then roll about y
+	static void toQuaternion(double azimuth, double elevation, double roll, double[] q, int offset) {
+		double a = Math.toRadians(-azimuth) / 2, b = Math.toRadians(elevation) / 2, c = Math.toRadians(roll) / 2;
+		double ca = Math.cos(a), sa = Math.sin(a), cb = Math.cos(b), sb = Math.sin(b), cc = Math.cos(c), sc = Math.sin(c);
+		// (ca, 0, 0, sa) * (cb, sb, 0, 0) = (ca cb, ca sb, sa sb, sa cb), then * (cc, 0, sc, 0)
+		double w = ca * cb, x = ca * sb, y = sa * sb, z = sa * cb;
+		q[offset] = w * cc - y * sc;
+		q[offset + 1] = x * cc - z * sc;
+		q[offset + 2] = w * sc + y * cc;
+		q[offset + 3] = z * cc + x * sc;
+	}
+
+}
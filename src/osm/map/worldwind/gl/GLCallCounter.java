@@ -0,0 +1,98 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.render.DrawContext;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL4bc;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.TraceGL4bc;
+
+/**
+ * Counts the GL calls made through a GL, for RenderStats. It is JOGL's tracing pipeline with the tracing
+ * turned into counting: every GL function call is forwarded to the GL it wraps and counted once. Installed
+ * in the GLContext of a DrawContext, it counts every call made through dc.getGL() until it is uninstalled, so
+ * the counts follow the code rather than being kept by hand. Calls replayed from display lists are issued by
+ * the GL, not through it, and are not counted.
+ *
+ * The pipeline formats the arguments of each call, which costs far more than the call itself, so renderers
+ * only install a counter while RenderStats.setCountGLCalls is on, and do not time the frames they count.
+ */
+public final class GLCallCounter extends TraceGL4bc {
+
+	private static final PrintStream NOWHERE = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+	});
+
+	private final GL4bc gl;
+	private GLContext context; // while installed
+	private long calls;
+
+	private GLCallCounter(GL4bc gl) {
+		super(gl, NOWHERE);
+		this.gl = gl;
+	}
+
+	/**
+	 * Counts the calls made through a GL.
+	 *
+	 * @param gl
+	 * @return the counter, to be used instead of gl, or null if gl is not a desktop GL
+	 */
+	public static GLCallCounter wrap(GL gl) {
+		return gl instanceof GL4bc ? new GLCallCounter((GL4bc) gl) : null;
+	}
+
+	/**
+	 * Counts the calls made through the GL of the draw context, until uninstall.
+	 *
+	 * @param dc
+	 * @return the counter, or null if a counter is installed already or the GL cannot be counted
+	 */
+	public static GLCallCounter install(DrawContext dc) {
+		GLContext context = dc.getGLContext();
+		if (context == null || context.getGL() instanceof GLCallCounter) {
+			return null;
+		}
+		GLCallCounter counter = wrap(context.getGL());
+		if (counter != null) {
+			counter.context = context;
+			context.setGL(counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Puts back the GL the counter was installed over.
+	 *
+	 * @return the calls counted
+	 */
+	public long uninstall() {
+		if (context != null && context.getGL() == this) {
+			context.setGL(gl);
+		}
+		context = null;
+		return calls;
+	}
+
+	public long getCalls() {
+		return calls;
+	}
+
+	// called once at the start of every GL function
+	@Override
+	protected void printIndent() {
+		calls++;
+	}
+
+	@Override
+	protected void print(String s) {
+	}
+
+	@Override
+	protected void println(String s) {
+	}
+
+}
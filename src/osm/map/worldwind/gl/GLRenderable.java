@@ -7,6 +7,7 @@ import gov.nasa.worldwind.drag.DragContext;
 import gov.nasa.worldwind.drag.Draggable;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.geom.Matrix;
 import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.geom.Vec4;
 import gov.nasa.worldwind.globes.Globe;
@@ -21,21 +22,29 @@ import gov.nasa.worldwind.render.Renderable;
 import java.awt.Color;
 import java.awt.Point;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.media.opengl.GL2;
 
 public abstract class GLRenderable implements Renderable, PreRenderable, Highlightable, Movable, Movable2, Draggable {
 
 	protected Layer pickLayer;
 
-	protected Position position;
-	protected double azimuth = 0.0;
-	protected double roll = 0.0;
-	protected double elevation = 0.0;
+	// volatile as feed threads set them while the rendering thread draws, see also TrackStore
+	protected volatile Position position;
+	protected volatile double azimuth = 0.0;
+	protected volatile double roll = 0.0;
+	protected volatile double elevation = 0.0;
 	protected double renderDistance = 2*500000; //do not draw if object is this far from eye
 	protected boolean keepConstantSize = true;
 	protected double size = 200;
 	protected boolean clamp = false;
+	protected TerrainElevationCache elevationCache; // null: sampled from the drawn terrain
+	protected OcclusionCuller occlusionCuller;
 	protected boolean useLighting = true;
 	protected boolean visible = true;
 	protected Vec4 lightSource1 = new Vec4(1.0, 0, 1.0);
@@ -43,9 +52,13 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 	protected Vec4 lightSource3 = new Vec4(0.0,1.0,1.0);
 	protected double eyeDistance;
 	protected double eyeDistanceOffset = 0;
+	protected double screenSize = 0; // approximate on-screen extent in pixels, as of the last draw
 	boolean drawnOnce = false;
 	protected boolean dragEnabled = false;
 	protected DragContext dragContext;
+	protected RenderStats renderStats; // the stats of the frame being drawn, null unless RenderStats is enabled
+	protected boolean batchDraw = false;
+	private Object stateKey; // cached by getStateKey
 
 	protected PickSupport pickSupport = new PickSupport();
 	private boolean highlighted;
@@ -61,11 +74,51 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 		this.clamp = true;
 	}
 
+	public OcclusionCuller getOcclusionCuller() {
+		return occlusionCuller;
+	}
+
+	/**
+	 * Sets the culler that skips this object while occluders hide it, null by default.
+	 *
+	 * @param occlusionCuller
+	 */
+	public void setOcclusionCuller(OcclusionCuller occlusionCuller) {
+		this.occlusionCuller = occlusionCuller;
+	}
+
+	public boolean isClamped() {
+		return clamp;
+	}
+
+	public TerrainElevationCache getElevationCache() {
+		return elevationCache;
+	}
+
+	/**
+	 * Sets the cache the terrain elevation of a clamped object is read through, e.g. the shared
+	 * TerrainElevationCache.getDefault(). With null, the default, the terrain is sampled every frame from the
+	 * drawn terrain geometry.
+	 *
+	 * @param elevationCache
+	 */
+	public void setElevationCache(TerrainElevationCache elevationCache) {
+		this.elevationCache = elevationCache;
+	}
+
 	@Override
 	public void render(DrawContext dc) {
 		if (!this.visible) {
 			return;
 		}
+		OcclusionCuller culler = this.occlusionCuller;
+		if (culler != null && culler.isOccluded(dc, this)) {
+			RenderStats stats = RenderStats.get(dc, dc.getCurrentLayer());
+			if (stats != null) {
+				stats.add(RenderStats.Counter.OCCLUDED, 1);
+			}
+			return;
+		}
 
 		dc.addOrderedRenderable(new OrderedGLRenderable());
 	}
@@ -75,14 +128,27 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 	}
 
 	public void myRender(DrawContext dc) {
+		RenderStats stats = RenderStats.get(dc, this.pickLayer);
+		this.renderStats = stats;
+		if (stats != null) {
+			stats.add(RenderStats.Counter.CONSIDERED, 1);
+		}
 
 		updateEyeDistance(dc);
 
 		// If far away, don't render it
 		if (eyeDistance > renderDistance) {
+			if (stats != null) {
+				stats.add(RenderStats.Counter.CULLED, 1);
+			}
+			culled(dc);
 			return;
 		}
 
+		boolean timed = stats != null && !RenderStats.isCountGLCalls();
+		GLCallCounter counter = stats != null && !timed ? GLCallCounter.install(dc) : null;
+		long t0 = timed ? System.nanoTime() : 0;
+		long t1 = t0, t2 = t0;
 		try {
 			if (dc.isPickingMode()) {
 				if (dc.getCurrentLayer() != null) {
@@ -90,6 +156,9 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 				}
 			}
 			beginDraw(dc);
+			if (timed) {
+				t1 = t2 = System.nanoTime();
+			}
 			if (dc.isPickingMode()) {
 				GL2 gl = dc.getGL().getGL2();
 				Color pickColor = dc.getUniquePickColor();
@@ -97,24 +166,159 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 				gl.glColor3ub((byte) pickColor.getRed(), (byte) pickColor.getGreen(), (byte) pickColor.getBlue());
 			}
 			draw(dc);
+			if (timed) {
+				t2 = System.nanoTime();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
 			endDraw(dc);
+			if (timed) {
+				stats.add(RenderStats.Counter.BEGIN_NANOS, t1 - t0);
+				stats.add(RenderStats.Counter.DRAW_NANOS, t2 - t1);
+				stats.add(RenderStats.Counter.END_NANOS, System.nanoTime() - t2);
+			}
+			if (counter != null) {
+				stats.add(RenderStats.Counter.GL_CALLS, counter.uninstall());
+			}
+			this.renderStats = null;
+		}
+	}
+
+	/**
+	 * Draws this object and the batchable GLRenderables of the same layer queued right after it. The run is
+	 * grouped by getStateKey; the shared GL state of each group is set up once, and each object only pushes
+	 * its own transform. The back to front order is kept within each group, but not across groups.
+	 *
+	 * @param dc
+	 */
+	protected void drawBatched(DrawContext dc) {
+		List<GLRenderable> run = new ArrayList<>();
+		run.add(this);
+		OrderedRenderable next = dc.peekOrderedRenderables();
+		while (next instanceof OrderedGLRenderable) {
+			GLRenderable r = ((OrderedGLRenderable) next).getRenderable();
+			if (!r.batchDraw || !r.visible || r.pickLayer != this.pickLayer) {
+				break;
+			}
+			run.add(r);
+			dc.pollOrderedRenderables();
+			next = dc.peekOrderedRenderables();
+		}
+
+		Map<Object, List<GLRenderable>> groups = new LinkedHashMap<>();
+		for (GLRenderable r : run) {
+			Object key = r.getStateKey();
+			List<GLRenderable> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(key, group);
+			}
+			group.add(r);
+		}
+
+		RenderStats stats = RenderStats.get(dc, this.pickLayer);
+		boolean timed = stats != null && !RenderStats.isCountGLCalls();
+		GLCallCounter counter = stats != null && !timed ? GLCallCounter.install(dc) : null;
+		try {
+			for (List<GLRenderable> group : groups.values()) {
+				drawGroup(dc, group, stats, timed);
+			}
+		} finally {
+			if (counter != null) {
+				stats.add(RenderStats.Counter.GL_CALLS, counter.uninstall());
+			}
+		}
+	}
+
+	private void drawGroup(DrawContext dc, List<GLRenderable> group, RenderStats stats, boolean timed) {
+		GLRenderable first = group.get(0);
+		long t0 = timed ? System.nanoTime() : 0;
+		first.beginState(dc);
+		if (timed) {
+			stats.add(RenderStats.Counter.BEGIN_NANOS, System.nanoTime() - t0);
+		}
+		try {
+			for (GLRenderable r : group) {
+				r.drawInBatch(dc, stats, timed);
+			}
+		} finally {
+			long t1 = timed ? System.nanoTime() : 0;
+			first.endState(dc);
+			if (timed) {
+				stats.add(RenderStats.Counter.END_NANOS, System.nanoTime() - t1);
+			}
+		}
+	}
+
+	// myRender inside state shared with the rest of the batch
+	private void drawInBatch(DrawContext dc, RenderStats stats, boolean timed) {
+		this.renderStats = stats;
+		if (stats != null) {
+			stats.add(RenderStats.Counter.CONSIDERED, 1);
+		}
+		updateEyeDistance(dc);
+		if (eyeDistance > renderDistance) {
+			if (stats != null) {
+				stats.add(RenderStats.Counter.CULLED, 1);
+			}
+			culled(dc);
+			this.renderStats = null;
+			return;
+		}
+		long t0 = timed ? System.nanoTime() : 0;
+		GL2 gl = dc.getGL().getGL2();
+		gl.glMatrixMode(GL2.GL_MODELVIEW);
+		gl.glPushMatrix();
+		try {
+			draw(dc);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			gl.glMatrixMode(GL2.GL_MODELVIEW);
+			gl.glPopMatrix();
+			if (timed) {
+				stats.add(RenderStats.Counter.DRAW_NANOS, System.nanoTime() - t0);
+			}
+			this.renderStats = null;
 		}
 	}
 
+	/**
+	 * Objects drawn in a batch share the GL state set up by beginState of the first object with an equal key.
+	 * The key covers everything beginState depends on; subclasses add what their drawGL depends on through
+	 * getBatchKey. It is computed once per object; whatever changes what it covers must call
+	 * invalidateStateKey.
+	 *
+	 * @return
+	 */
+	protected Object getStateKey() {
+		Object key = stateKey;
+		if (key == null) {
+			key = stateKey = Arrays.asList(getClass(), useLighting, lightSource1, lightSource2, lightSource3,
+				getBatchKey());
+		}
+		return key;
+	}
+
+	protected void invalidateStateKey() {
+		this.stateKey = null;
+	}
+
+	/**
+	 * @return what else objects must have in common to be drawn in one group, e.g. the model, or null
+	 */
+	protected Object getBatchKey() {
+		return null;
+	}
+
 	protected void draw(DrawContext dc) {
 //		long t0 = System.currentTimeMillis();
 		GL2 gl = dc.getGL().getGL2();
 
-		Vec4 loc;
-		if (clamp) {
-			loc = dc.computeTerrainPoint(position.latitude, position.longitude, 0);
-		} else {
-			loc = dc.getGlobe().computePointFromPosition(position, position.elevation * dc.getVerticalExaggeration());
-		}
+		Vec4 loc = this.computeLocation(dc);
 		double localSize = this.computeSize(dc, loc);
+		this.screenSize = this.computeScreenSize(dc, loc, localSize);
 
 		if (dc.getView().getFrustumInModelCoordinates().contains(loc)) {
 			dc.getView().pushReferenceCenter(dc, loc);
@@ -124,8 +328,16 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 			gl.glRotated(elevation, 1, 0, 0);
 			gl.glRotated(roll, 0, 1, 0);
 			gl.glScaled(localSize, localSize, localSize);
+			if (renderStats != null) {
+				renderStats.add(RenderStats.Counter.DRAWN, 1);
+			}
 			drawGL(dc);
 			dc.getView().popReferenceCenter(dc);
+		} else {
+			if (renderStats != null) {
+				renderStats.add(RenderStats.Counter.CULLED, 1);
+			}
+			culled(dc);
 		}
 //		long t1 = System.currentTimeMillis();
 //		System.out.println("draw gl " + new Date() + " dt = " + (t1-t0)/1000.0);
@@ -133,8 +345,113 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 
 	protected abstract void drawGL(DrawContext dc);
 
+	/**
+	 * @return the model coordinates of the point the object is drawn at
+	 */
+	public Vec4 computeLocation(DrawContext dc) {
+		if (clamp) {
+			TerrainElevationCache cache = elevationCache;
+			if (cache != null) {
+				return cache.computeTerrainPoint(dc, position.latitude, position.longitude);
+			}
+			return dc.computeTerrainPoint(position.latitude, position.longitude, 0);
+		}
+		return dc.getGlobe().computePointFromPosition(position, position.elevation * dc.getVerticalExaggeration());
+	}
+
+	/**
+	 * @return the transform from the coordinates drawGL draws in to model coordinates
+	 */
+	public Matrix computeModelTransform(DrawContext dc) {
+		Vec4 loc = computeLocation(dc);
+		return Matrix.fromTranslation(loc).multiply(computeOrientation(computeSize(dc, loc)));
+	}
+
+	/**
+	 * @return triangles approximating what drawGL draws from inside, x, y, z per vertex in its coordinates, at
+	 * most maxTriangles of them, for an OcclusionCuller; null if the object hides nothing
+	 */
+	public float[] getOccluderTriangles(DrawContext dc, int maxTriangles) {
+		return null;
+	}
+
+	/**
+	 * The rotations and scaling draw applies at the location before drawGL; subclasses append the transforms
+	 * their drawGL applies.
+	 *
+	 * @param localSize
+	 * @return
+	 */
+	public Matrix computeOrientation(double localSize) {
+		return Matrix.fromAxisAngle(position.getLongitude(), 0, 1, 0)
+			.multiply(Matrix.fromAxisAngle(position.getLatitude().multiply(-1), 1, 0, 0))
+			.multiply(Matrix.fromAxisAngle(Angle.fromDegrees(-azimuth), 0, 0, 1))
+			.multiply(Matrix.fromAxisAngle(Angle.fromDegrees(elevation), 1, 0, 0))
+			.multiply(Matrix.fromAxisAngle(Angle.fromDegrees(roll), 0, 1, 0))
+			.multiply(Matrix.fromScale(localSize));
+	}
+
+	/**
+	 * Called instead of drawGL when the object is beyond the render distance or outside the view frustum.
+	 *
+	 * @param dc
+	 */
+	protected void culled(DrawContext dc) {
+	}
+
+	/**
+	 * The largest dimension of the geometry drawn by drawGL, in model units (before the size scaling is applied).
+	 *
+	 * @return
+	 */
+	protected double getModelExtent() {
+		return 1;
+	}
+
+	protected double computeScreenSize(DrawContext dc, Vec4 loc, double localSize) {
+		if (loc == null) {
+			return 0;
+		}
+		double pixelSize = dc.getView().computePixelSizeAtDistance(loc.distanceTo3(dc.getView().getEyePoint()));
+		if (pixelSize <= 0) {
+			return Double.MAX_VALUE;
+		}
+		return localSize * getModelExtent() / pixelSize;
+	}
+
+	/**
+	 * @return the directions towards the lights beginState switches on, for subclasses that light in a shader
+	 * so that they are lit like the fixed-function objects
+	 */
+	protected Vec4[] getLightDirections() {
+		return new Vec4[]{lightSource1};
+	}
+
+	/**
+	 * @return whether beginState sets up fixed-function lighting, false for subclasses that light in a shader
+	 */
+	protected boolean isFixedFunctionLighting() {
+		return useLighting;
+	}
+
 	// puts opengl in the correct state for this layer
 	protected void beginDraw(DrawContext dc) {
+		beginState(dc);
+		GL2 gl = dc.getGL().getGL2();
+		gl.glMatrixMode(GL2.GL_MODELVIEW);
+		gl.glPushMatrix();
+	}
+
+	// resets opengl state
+	protected void endDraw(DrawContext dc) {
+		GL2 gl = dc.getGL().getGL2();
+		gl.glMatrixMode(GL2.GL_MODELVIEW);
+		gl.glPopMatrix();
+		endState(dc);
+	}
+
+	// the state shared by all objects of a batch, see drawBatched
+	protected void beginState(DrawContext dc) {
 		GL2 gl = dc.getGL().getGL2();
 		gl.glPushAttrib(
 			GL2.GL_TEXTURE_BIT
@@ -148,18 +465,18 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 			| GL2.GL_TRANSFORM_BIT
 			| GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
 
-		if (useLighting && !dc.isPickingMode()) {
+		if (isFixedFunctionLighting() && !dc.isPickingMode()) {
 			gl.glEnable(GL2.GL_CULL_FACE);
 			gl.glEnable(GL2.GL_SMOOTH);
 			gl.glEnable(GL2.GL_LIGHTING);
 			gl.glLightModeli(GL2.GL_LIGHT_MODEL_LOCAL_VIEWER, GL2.GL_TRUE);
 			gl.glLightModeli(GL2.GL_LIGHT_MODEL_TWO_SIDE, GL2.GL_FALSE);
 
-			gl.glEnable(GL2.GL_LIGHT0);
+			gl.glEnable(GL2.GL_LIGHT0); // lights 1 and 2 are positioned but off, see getLightDirections
 
 			Vec4 vec1 = lightSource1.normalize3();
 			Vec4 vec2 = lightSource2.normalize3();
-			Vec4 vec3 = lightSource2.normalize3();
+			Vec4 vec3 = lightSource3.normalize3();
 			float[] params1 = new float[]{(float) vec1.x, (float) vec1.y, (float) vec1.z, 0f};
 			float[] params2 = new float[]{(float) vec2.x, (float) vec2.y, (float) vec2.z, 0f};
 			float[] params3 = new float[]{(float) vec3.x, (float) vec3.y, (float) vec3.z, 0f};
@@ -173,16 +490,10 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 		}
 
 		gl.glEnable(GL2.GL_NORMALIZE);
-		gl.glMatrixMode(GL2.GL_MODELVIEW);
-		gl.glPushMatrix();
 	}
 
-	// resets opengl state
-	protected void endDraw(DrawContext dc) {
-		GL2 gl = dc.getGL().getGL2();
-		gl.glMatrixMode(GL2.GL_MODELVIEW);
-		gl.glPopMatrix();
-		gl.glPopAttrib();
+	protected void endState(DrawContext dc) {
+		dc.getGL().getGL2().glPopAttrib();
 	}
 
 	protected double computeSize(DrawContext dc, Vec4 loc) {
@@ -204,6 +515,10 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 	protected final Vec4 computeTerrainPoint(DrawContext dc, Angle lat, Angle lon) {
 		Vec4 p = dc.getSurfaceGeometry().getSurfacePoint(lat, lon);
 		if (p == null) {
+			TerrainElevationCache cache = elevationCache;
+			if (cache != null) {
+				return cache.computeTerrainPoint(dc, lat, lon);
+			}
 			p = dc.getGlobe().computePointFromPosition(lat, lon,
 				dc.getGlobe().getElevation(lat, lon) * dc.getVerticalExaggeration());
 		}
@@ -234,6 +549,20 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 		this.pcl.firePropertyChange(POSITION, this.position, this.position = position);
 	}
 
+	/**
+	 * Sets the position and attitude together, from the rendering thread, see TrackStore.
+	 */
+	void applyState(Position position, double azimuth, double elevation, double roll, boolean notify) {
+		Position old = this.position;
+		this.position = position;
+		this.azimuth = azimuth;
+		this.elevation = elevation;
+		this.roll = roll;
+		if (notify) {
+			this.pcl.firePropertyChange(POSITION, old, position);
+		}
+	}
+
 	public double getAzimuth() {
 		return azimuth;
 	}
@@ -266,10 +595,33 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 		this.visible = visible;
 	}
 
+	public double getScreenSize() {
+		return screenSize;
+	}
+
+	public double getRenderDistance() {
+		return renderDistance;
+	}
+
 	public void setRenderDistance(double renderDistance) {
 		this.renderDistance = renderDistance;
 	}
 
+	public boolean isBatchDraw() {
+		return batchDraw;
+	}
+
+	/**
+	 * Draws this object together with the other batch drawn GLRenderables of its layer, see drawBatched.
+	 * Only for subclasses that leave beginDraw and endDraw alone and whose drawGL restores any state it
+	 * does not share with the other objects of its group.
+	 *
+	 * @param batchDraw
+	 */
+	public void setBatchDraw(boolean batchDraw) {
+		this.batchDraw = batchDraw;
+	}
+
 	@Override
 	public boolean isDragEnabled() {
 		return dragEnabled;
@@ -296,7 +648,10 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 				Position currentPosition = dragContext.getView().computePositionFromScreenPoint(pt.x, pt.y);
 				if (currentPosition != null) {
 					double alt = this.getPosition().getAltitude();
-					double terrainAlt = dragContext.getGlobe().getElevation(currentPosition.latitude, currentPosition.longitude);
+					TerrainElevationCache cache = elevationCache;
+					double terrainAlt = cache != null
+						? cache.getElevation(dragContext.getGlobe(), currentPosition.latitude, currentPosition.longitude)
+						: dragContext.getGlobe().getElevation(currentPosition.latitude, currentPosition.longitude);
 					if (alt <= 0) {
 						alt = terrainAlt;
 					}
@@ -329,8 +684,15 @@ public abstract class GLRenderable implements Renderable, PreRenderable, Highlig
 
 		@Override
 		public void render(DrawContext dc) {
+			if (batchDraw) {
+				GLRenderable.this.drawBatched(dc);
+			} else {
+				GLRenderable.this.myRender(dc);
+			}
+		}
 
-			GLRenderable.this.myRender(dc);
+		GLRenderable getRenderable() {
+			return GLRenderable.this;
 		}
 
 	}
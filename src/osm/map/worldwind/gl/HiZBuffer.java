@@ -0,0 +1,297 @@
+package osm.map.worldwind.gl;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A small software depth buffer for occlusion culling, with a hierarchical-Z pyramid over it. Occluder
+ * triangles are rasterized at pixel centers, storing the reciprocal of the view depth (1/w), which
+ * interpolates linearly on screen and keeps its relative precision at any distance; 0 means no occluder.
+ * Each pyramid level keeps the farthest, i.e. smallest, value of the 2x2 texels below it, so a box is
+ * occluded if it is farther than every texel it covers at a level where it spans a few texels.
+ *
+ * Rasterization runs over horizontal bands of the buffer, in parallel on the fork/join pool when there is
+ * enough work, with plain float arrays and incremental edge functions in the inner loop.
+ */
+class HiZBuffer {
+
+	private static final int PARALLEL_TRIANGLES = 2048; // triangles from which bands are rasterized in parallel
+	private static final int BAND_ROWS = 16;
+	private static final int TEST_TEXELS = 4; // the largest extent of a box in texels of the level it is tested at
+
+	private int width, height;
+	private float[][] levels = new float[0][]; // level 0 is the buffer itself
+	private int[] levelWidths = new int[0], levelHeights = new int[0];
+	private float[] triangles = new float[0]; // x, y in pixels and 1/w per vertex, 9 per triangle
+	private int triangleCount;
+
+	/**
+	 * Clears the buffer and resizes it if needed.
+	 */
+	void clear(int width, int height) {
+		if (width != this.width || height != this.height) {
+			this.width = width;
+			this.height = height;
+			int count = 1;
+			for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+				count++;
+			}
+			levels = new float[count][];
+			levelWidths = new int[count];
+			levelHeights = new int[count];
+			for (int l = 0, w = width, h = height; l < count; l++, w = (w + 1) / 2, h = (h + 1) / 2) {
+				levels[l] = new float[w * h];
+				levelWidths[l] = w;
+				levelHeights[l] = h;
+			}
+		}
+		Arrays.fill(levels[0], 0);
+		triangleCount = 0;
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Adds the triangles of a mesh to be rasterized by render.
+	 *
+	 * @param vertices x, y, z per vertex, three vertices per triangle, in model coordinates
+	 * @param count the number of triangles
+	 * @param m the transform from model to clip coordinates, row major
+	 */
+	void addTriangles(float[] vertices, int count, double[] m) {
+		double[] clip = new double[12]; // x, y, z, w of the three vertices
+		double[] clipped = new double[16]; // of up to four after clipping at the near plane
+		for (int t = 0; t < count; t++) {
+			int inside = 0;
+			for (int v = 0; v < 3; v++) {
+				int i = 9 * t + 3 * v;
+				double x = vertices[i], y = vertices[i + 1], z = vertices[i + 2];
+				for (int r = 0; r < 4; r++) {
+					clip[4 * v + r] = m[4 * r] * x + m[4 * r + 1] * y + m[4 * r + 2] * z + m[4 * r + 3];
+				}
+				if (clip[4 * v + 3] > NEAR) {
+					inside++;
+				}
+			}
+			if (inside == 3) {
+				addClipTriangle(clip, 0, 4, 8);
+			} else if (inside > 0) {
+				int n = clipNear(clip, clipped);
+				for (int k = 2; k < n; k++) {
+					addClipTriangle(clipped, 0, 4 * (k - 1), 4 * k);
+				}
+			}
+		}
+	}
+
+	private static final double NEAR = 1e-3; // the w triangles are clipped at
+
+	// Sutherland-Hodgman at w = NEAR, returns the number of vertices
+	private static int clipNear(double[] in, double[] out) {
+		int n = 0;
+		for (int v = 0; v < 3; v++) {
+			int a = 4 * v, b = 4 * ((v + 1) % 3);
+			boolean aIn = in[a + 3] > NEAR, bIn = in[b + 3] > NEAR;
+			if (aIn) {
+				System.arraycopy(in, a, out, 4 * n++, 4);
+			}
+			if (aIn != bIn) {
+				double f = (NEAR - in[a + 3]) / (in[b + 3] - in[a + 3]);
+				for (int r = 0; r < 4; r++) {
+					out[4 * n + r] = in[a + r] + f * (in[b + r] - in[a + r]);
+				}
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private void addClipTriangle(double[] clip, int a, int b, int c) {
+		if (9 * (triangleCount + 1) > triangles.length) {
+			triangles = Arrays.copyOf(triangles, Math.max(9 * 64, 2 * triangles.length));
+		}
+		int o = 9 * triangleCount++;
+		toScreen(clip, a, o);
+		toScreen(clip, b, o + 3);
+		toScreen(clip, c, o + 6);
+	}
+
+	private void toScreen(double[] clip, int v, int o) {
+		double invW = 1 / clip[v + 3];
+		triangles[o] = (float) ((clip[v] * invW * 0.5 + 0.5) * width);
+		triangles[o + 1] = (float) ((clip[v + 1] * invW * 0.5 + 0.5) * height);
+		triangles[o + 2] = (float) invW;
+	}
+
+	/**
+	 * Rasterizes the triangles added since clear and builds the pyramid.
+	 */
+	void render() {
+		int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+		if (triangleCount >= PARALLEL_TRIANGLES && ForkJoinPool.getCommonPoolParallelism() > 1) {
+			ForkJoinPool.commonPool().invoke(new Bands(0, bands));
+		} else {
+			rasterize(0, height);
+		}
+		buildPyramid();
+	}
+
+	// rasterizes the bands [first, last), halving them down to single bands
+	private class Bands extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int first, last;
+
+		Bands(int first, int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first == 1) {
+				rasterize(first * BAND_ROWS, Math.min(height, last * BAND_ROWS));
+			} else {
+				int middle = (first + last) >>> 1;
+				invokeAll(new Bands(first, middle), new Bands(middle, last));
+			}
+		}
+	}
+
+	// rasterizes every triangle into the rows [y0, y1), keeping the nearest, i.e. largest, 1/w per pixel
+	private void rasterize(int y0, int y1) {
+		float[] depth = levels[0];
+		for (int t = 0; t < triangleCount; t++) {
+			int o = 9 * t;
+			float ax = triangles[o], ay = triangles[o + 1], az = triangles[o + 2];
+			float bx = triangles[o + 3], by = triangles[o + 4], bz = triangles[o + 5];
+			float cx = triangles[o + 6], cy = triangles[o + 7], cz = triangles[o + 8];
+			float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+			if (area == 0 || Float.isNaN(area)) {
+				continue;
+			}
+			// the pixels whose centers may be covered
+			int minX = Math.max(0, (int) Math.ceil(Math.min(ax, Math.min(bx, cx)) - 0.5f));
+			int maxX = Math.min(width - 1, (int) Math.floor(Math.max(ax, Math.max(bx, cx)) - 0.5f));
+			int minY = Math.max(y0, (int) Math.ceil(Math.min(ay, Math.min(by, cy)) - 0.5f));
+			int maxY = Math.min(y1 - 1, (int) Math.floor(Math.max(ay, Math.max(by, cy)) - 0.5f));
+			if (minX > maxX || minY > maxY) {
+				continue;
+			}
+			// edge functions, positive inside whichever way the triangle winds
+			float sign = area > 0 ? 1 : -1;
+			float inv = 1 / Math.abs(area);
+			float e0dx = sign * (by - cy), e0dy = sign * (cx - bx);
+			float e1dx = sign * (cy - ay), e1dy = sign * (ax - cx);
+			float e2dx = sign * (ay - by), e2dy = sign * (bx - ax);
+			float px = minX + 0.5f, py = minY + 0.5f;
+			float e0 = sign * ((cx - bx) * (py - by) - (cy - by) * (px - bx));
+			float e1 = sign * ((ax - cx) * (py - cy) - (ay - cy) * (px - cx));
+			float e2 = sign * ((bx - ax) * (py - ay) - (by - ay) * (px - ax));
+			// 1/w along a row and down the rows, from the barycentric weights e0, e1, e2 over the area
+			float zdx = (e0dx * az + e1dx * bz + e2dx * cz) * inv;
+			float zdy = (e0dy * az + e1dy * bz + e2dy * cz) * inv;
+			float z = (e0 * az + e1 * bz + e2 * cz) * inv;
+			for (int y = minY; y <= maxY; y++) {
+				float f0 = e0, f1 = e1, f2 = e2, fz = z;
+				int row = y * width;
+				for (int x = minX; x <= maxX; x++) {
+					if (f0 >= 0 && f1 >= 0 && f2 >= 0 && fz > depth[row + x]) {
+						depth[row + x] = fz;
+					}
+					f0 += e0dx;
+					f1 += e1dx;
+					f2 += e2dx;
+					fz += zdx;
+				}
+				e0 += e0dy;
+				e1 += e1dy;
+				e2 += e2dy;
+				z += zdy;
+			}
+		}
+	}
+
+	private void buildPyramid() {
+		for (int l = 1; l < levels.length; l++) {
+			float[] below = levels[l - 1], level = levels[l];
+			int bw = levelWidths[l - 1], bh = levelHeights[l - 1], w = levelWidths[l], h = levelHeights[l];
+			for (int y = 0; y < h; y++) {
+				int y0 = 2 * y, y1 = Math.min(2 * y + 1, bh - 1);
+				for (int x = 0; x < w; x++) {
+					int x0 = 2 * x, x1 = Math.min(2 * x + 1, bw - 1);
+					level[y * w + x] = Math.min(Math.min(below[y0 * bw + x0], below[y0 * bw + x1]),
+						Math.min(below[y1 * bw + x0], below[y1 * bw + x1]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param minX the screen rectangle of a box, in pixels
+	 * @param nearestInvW 1/w of the point of the box nearest to the eye
+	 * @return whether occluders are nearer than the box everywhere in the rectangle
+	 */
+	boolean isOccluded(float minX, float minY, float maxX, float maxY, float nearestInvW) {
+		int x0 = Math.max(0, (int) Math.floor(minX)), x1 = Math.min(width - 1, (int) Math.floor(maxX));
+		int y0 = Math.max(0, (int) Math.floor(minY)), y1 = Math.min(height - 1, (int) Math.floor(maxY));
+		if (x0 > x1 || y0 > y1) {
+			return false; // off screen, left to frustum culling
+		}
+		int l = 0;
+		while (l < levels.length - 1 && Math.max((x1 >> l) - (x0 >> l), (y1 >> l) - (y0 >> l)) >= TEST_TEXELS) {
+			l++;
+		}
+		float[] level = levels[l];
+		int w = levelWidths[l];
+		for (int y = y0 >> l; y <= y1 >> l; y++) {
+			for (int x = x0 >> l; x <= x1 >> l; x++) {
+				if (level[y * w + x] <= nearestInvW) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the axis aligned box of the given corners is occluded, with m the transform from the
+	 * coordinates of the corners to clip coordinates, row major
+	 */
+	boolean isOccluded(double[] m, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		float sx0 = Float.MAX_VALUE, sy0 = Float.MAX_VALUE, sx1 = -Float.MAX_VALUE, sy1 = -Float.MAX_VALUE;
+		double nearestW = Double.MAX_VALUE;
+		for (int corner = 0; corner < 8; corner++) {
+			double x = (corner & 1) == 0 ? minX : maxX;
+			double y = (corner & 2) == 0 ? minY : maxY;
+			double z = (corner & 4) == 0 ? minZ : maxZ;
+			double cw = m[12] * x + m[13] * y + m[14] * z + m[15];
+			if (cw <= NEAR) {
+				return false; // reaches the eye
+			}
+			double cx = m[0] * x + m[1] * y + m[2] * z + m[3];
+			double cy = m[4] * x + m[5] * y + m[6] * z + m[7];
+			float px = (float) ((cx / cw * 0.5 + 0.5) * width);
+			float py = (float) ((cy / cw * 0.5 + 0.5) * height);
+			sx0 = Math.min(sx0, px);
+			sy0 = Math.min(sy0, py);
+			sx1 = Math.max(sx1, px);
+			sy1 = Math.max(sy1, py);
+			nearestW = Math.min(nearestW, cw);
+		}
+		return isOccluded(sx0, sy0, sx1, sy1, (float) (1 / nearestW));
+	}
+
+	int getTriangleCount() {
+		return triangleCount;
+	}
+
+}
@@ -0,0 +1,176 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.geom.Matrix;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.PreRenderable;
+import gov.nasa.worldwind.render.Renderable;
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Skips GLRenderables hidden behind large models, e.g. vehicles behind buildings, before they are queued as
+ * ordered renderables. Each frame, the occluders are drawn into a small HiZBuffer, a few hundred of the
+ * largest triangles of each (see GLRenderable.getOccluderTriangles), and the objects using this culler are
+ * tested against it with a box around them (see GLRenderable.setOcclusionCuller).
+ *
+ * Only true triangles of the occluders are drawn, so nothing visible is culled except through gaps smaller
+ * than a pixel of the buffer. Add the culler to a layer drawn before the culled objects; it draws the buffer
+ * in preRender.
+ */
+public class OcclusionCuller implements Renderable, PreRenderable {
+
+	private final List<GLRenderable> occluders = new CopyOnWriteArrayList<>();
+	private final HiZBuffer buffer = new HiZBuffer();
+	private double[] viewProjection = new double[16];
+	private long frameTimeStamp = -1; // of the frame the buffer was drawn for
+	private boolean enabled = true;
+	private int resolution = 256; // buffer width in pixels
+	private int maxOccluderTriangles = 512;
+	private long tested, occluded; // in the last frame
+	private long lastTested, lastOccluded;
+	private long rasterNanos;
+
+	public void addOccluder(GLRenderable occluder) {
+		occluders.add(occluder);
+	}
+
+	public void removeOccluder(GLRenderable occluder) {
+		occluders.remove(occluder);
+	}
+
+	public List<GLRenderable> getOccluders() {
+		return occluders;
+	}
+
+	@Override
+	public void preRender(DrawContext dc) {
+		if (!enabled || dc.isPickingMode() && frameTimeStamp == dc.getFrameTimeStamp()) {
+			return;
+		}
+		long t0 = System.nanoTime();
+		Rectangle viewport = dc.getView().getViewport();
+		int height = Math.max(1, (int) Math.round((double) resolution * viewport.height / Math.max(1, viewport.width)));
+		buffer.clear(resolution, height);
+		Matrix vp = dc.getView().getProjectionMatrix().multiply(dc.getView().getModelviewMatrix());
+		viewProjection = toArray(vp, viewProjection);
+		double[] m = new double[16];
+		for (GLRenderable occluder : occluders) {
+			if (!occluder.isVisible()) {
+				continue;
+			}
+			float[] triangles = occluder.getOccluderTriangles(dc, maxOccluderTriangles);
+			if (triangles != null) {
+				buffer.addTriangles(triangles, triangles.length / 9, toArray(vp.multiply(occluder.computeModelTransform(dc)), m));
+			}
+		}
+		buffer.render();
+		frameTimeStamp = dc.getFrameTimeStamp();
+		lastTested = tested;
+		lastOccluded = occluded;
+		tested = occluded = 0;
+		rasterNanos = System.nanoTime() - t0;
+	}
+
+	@Override
+	public void render(DrawContext dc) {
+	}
+
+	/**
+	 * @return whether the object is hidden behind the occluders in this frame; false if the buffer was not
+	 * drawn for this frame
+	 */
+	public boolean isOccluded(DrawContext dc, GLRenderable object) {
+		if (!enabled || frameTimeStamp != dc.getFrameTimeStamp() || occluders.contains(object)) {
+			return false;
+		}
+		Vec4 loc = object.computeLocation(dc);
+		if (loc == null) {
+			return false;
+		}
+		// the model may extend its extent in any direction from the location
+		double r = object.computeSize(dc, loc) * object.getModelExtent() * Math.sqrt(3);
+		tested++;
+		boolean hidden = buffer.isOccluded(viewProjection, loc.x - r, loc.y - r, loc.z - r, loc.x + r, loc.y + r, loc.z + r);
+		if (hidden) {
+			occluded++;
+		}
+		return hidden;
+	}
+
+	private static double[] toArray(Matrix m, double[] a) {
+		a[0] = m.m11;
+		a[1] = m.m12;
+		a[2] = m.m13;
+		a[3] = m.m14;
+		a[4] = m.m21;
+		a[5] = m.m22;
+		a[6] = m.m23;
+		a[7] = m.m24;
+		a[8] = m.m31;
+		a[9] = m.m32;
+		a[10] = m.m33;
+		a[11] = m.m34;
+		a[12] = m.m41;
+		a[13] = m.m42;
+		a[14] = m.m43;
+		a[15] = m.m44;
+		return a;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Sets the width of the depth buffer in pixels, 256 by default; its height follows the viewport.
+	 *
+	 * @param resolution
+	 */
+	public void setResolution(int resolution) {
+		this.resolution = Math.max(8, resolution);
+	}
+
+	public int getMaxOccluderTriangles() {
+		return maxOccluderTriangles;
+	}
+
+	/**
+	 * Sets how many of its largest triangles each occluder draws, 512 by default.
+	 *
+	 * @param maxOccluderTriangles
+	 */
+	public void setMaxOccluderTriangles(int maxOccluderTriangles) {
+		this.maxOccluderTriangles = maxOccluderTriangles;
+	}
+
+	/**
+	 * @return the objects tested and found occluded in the last complete frame
+	 */
+	public long[] getLastFrameCounts() {
+		return new long[]{lastTested, lastOccluded};
+	}
+
+	/**
+	 * @return the time drawing the buffer took in the last frame, in nanoseconds
+	 */
+	public long getRasterNanos() {
+		return rasterNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Occlusion: %d occluders, %d triangles, %d of %d objects occluded, %.2f ms",
+			occluders.size(), buffer.getTriangleCount(), lastOccluded, lastTested, rasterNanos / 1e6);
+	}
+
+}
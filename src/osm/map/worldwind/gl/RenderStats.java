@@ -0,0 +1,252 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.layers.Layer;
+import gov.nasa.worldwind.render.DrawContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per-frame render statistics of GLRenderables, per layer and in total. GLRenderable.myRender and the
+ * drawGL implementations report into the stats of the frame being drawn; completed frames are kept in a
+ * rolling window from which averages and percentiles are read.
+ *
+ * Collection is off by default. While it is off get returns null and the renderers skip all reporting, so
+ * the cost is a single volatile read per object. Picking passes are never counted.
+ *
+ * GL calls are counted instead of the begin, draw and end times, see setCountGLCalls.
+ *
+ * The stats are written by the rendering thread only and can be read from any thread.
+ */
+public class RenderStats {
+
+	public enum Counter {
+		CONSIDERED, // objects whose myRender was called
+		CULLED, // objects beyond the render distance or outside the frustum
+		OCCLUDED, // objects an OcclusionCuller skipped before they were queued
+		DRAWN, // objects whose drawGL was called
+		TRIANGLES, // triangles submitted, including particle quads
+		PARTICLES, // particles submitted
+		GL_CALLS, // GL calls issued, counted by a GLCallCounter while enabled; not those replayed from display lists
+		TEXTURE_BINDS, // texture binds, including those replayed from display lists
+		BEGIN_NANOS, // time spent in beginDraw
+		DRAW_NANOS, // time spent in draw
+		END_NANOS // time spent in endDraw
+	}
+
+	private static final int COUNTERS = Counter.values().length;
+	private static volatile boolean enabled = false;
+	private static volatile boolean countGLCalls = false;
+	private static volatile int window = 120;
+	private static final RenderStats total = new RenderStats("Total");
+	private static final Map<Layer, RenderStats> layers = new WeakHashMap<>();
+
+	private final String name;
+	private long[] current = new long[COUNTERS];
+	private long[][] history = new long[window][];
+	private int frames; // completed frames in the history, at most the window
+	private int next; // where the next completed frame goes
+	private long frameTimeStamp = -1;
+
+	private RenderStats(String name) {
+		this.name = name;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		RenderStats.enabled = enabled;
+	}
+
+	public static boolean isCountGLCalls() {
+		return countGLCalls;
+	}
+
+	/**
+	 * Counts the GL calls of the renderers instead of timing them, off by default. The calls are counted
+	 * through a GLCallCounter, which formats the arguments of every call as JOGL's tracing pipeline does, so
+	 * the times would mostly measure the counting: while GL calls are counted, the begin, draw and end times
+	 * are not recorded, and GL_CALLS is not counted while they are.
+	 *
+	 * @param countGLCalls
+	 */
+	public static void setCountGLCalls(boolean countGLCalls) {
+		RenderStats.countGLCalls = countGLCalls;
+	}
+
+	/**
+	 * Sets the number of frames the averages and percentiles are computed over. Clears the history.
+	 */
+	public static void setWindow(int frames) {
+		window = Math.max(1, frames);
+		synchronized (total) {
+			total.reset();
+			for (RenderStats stats : getLayerStats()) {
+				stats.reset();
+			}
+		}
+	}
+
+	/**
+	 * @return the stats to report the current frame of the layer into, or null when collection is disabled
+	 * or the frame is a picking pass
+	 */
+	public static RenderStats get(DrawContext dc, Layer layer) {
+		if (!enabled || dc.isPickingMode()) {
+			return null;
+		}
+		long timeStamp = dc.getFrameTimeStamp();
+		synchronized (total) {
+			if (timeStamp != total.frameTimeStamp) {
+				total.endFrame(timeStamp);
+				for (RenderStats stats : layers.values()) {
+					stats.endFrame(timeStamp);
+				}
+			}
+			if (layer == null) {
+				return total;
+			}
+			RenderStats stats = layers.get(layer);
+			if (stats == null) {
+				stats = new RenderStats(layer.getName());
+				stats.frameTimeStamp = timeStamp;
+				layers.put(layer, stats);
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * @return the stats summed over all layers
+	 */
+	public static RenderStats getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the stats of the layer, or null if nothing was reported for it yet
+	 */
+	public static RenderStats getLayer(Layer layer) {
+		synchronized (total) {
+			return layers.get(layer);
+		}
+	}
+
+	public static List<RenderStats> getLayerStats() {
+		synchronized (total) {
+			return new ArrayList<>(layers.values());
+		}
+	}
+
+	public void add(Counter counter, long value) {
+		current[counter.ordinal()] += value;
+		if (this != total) {
+			total.current[counter.ordinal()] += value;
+		}
+	}
+
+	private void endFrame(long timeStamp) {
+		if (frameTimeStamp >= 0) {
+			if (history.length != window) {
+				reset();
+			}
+			history[next] = current;
+			next = (next + 1) % history.length;
+			frames = Math.min(frames + 1, history.length);
+			current = new long[COUNTERS];
+		}
+		frameTimeStamp = timeStamp;
+	}
+
+	private void reset() {
+		current = new long[COUNTERS];
+		history = new long[window][];
+		frames = 0;
+		next = 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the value of the counter in the last completed frame
+	 */
+	public long getLastFrame(Counter counter) {
+		synchronized (total) {
+			if (frames == 0) {
+				return 0;
+			}
+			return history[(next + history.length - 1) % history.length][counter.ordinal()];
+		}
+	}
+
+	public double getAverage(Counter counter) {
+		synchronized (total) {
+			if (frames == 0) {
+				return 0;
+			}
+			long sum = 0;
+			for (int i = 0; i < frames; i++) {
+				sum += history[i][counter.ordinal()];
+			}
+			return (double) sum / frames;
+		}
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value of the counter the given percentage of frames in the window did not exceed
+	 */
+	public long getPercentile(Counter counter, double percentile) {
+		long[] values;
+		synchronized (total) {
+			if (frames == 0) {
+				return 0;
+			}
+			values = new long[frames];
+			for (int i = 0; i < frames; i++) {
+				values[i] = history[i][counter.ordinal()];
+			}
+		}
+		Arrays.sort(values);
+		int index = (int) Math.ceil(percentile / 100 * values.length) - 1;
+		return values[Math.max(0, Math.min(values.length - 1, index))];
+	}
+
+	public int getFrameCount() {
+		synchronized (total) {
+			return frames;
+		}
+	}
+
+	/**
+	 * @return one line per counter with the last frame, average, median and 95th and 99th percentiles
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder(name).append(" (").append(getFrameCount()).append(" frames)\n");
+		for (Counter counter : Counter.values()) {
+			boolean nanos = counter.name().endsWith("_NANOS");
+			double scale = nanos ? 1e-6 : 1;
+			sb.append(String.format("%-14s %10.2f %10.2f %10.2f %10.2f %10.2f%s%n",
+				counter.name().toLowerCase(),
+				getLastFrame(counter) * scale,
+				getAverage(counter) * scale,
+				getPercentile(counter, 50) * scale,
+				getPercentile(counter, 95) * scale,
+				getPercentile(counter, 99) * scale,
+				nanos ? " ms" : ""));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+
+}
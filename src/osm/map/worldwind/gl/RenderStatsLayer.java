@@ -0,0 +1,88 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.layers.AbstractLayer;
+import gov.nasa.worldwind.render.AnnotationAttributes;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.ScreenAnnotation;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+/**
+ * Shows RenderStats as a screen overlay: the total and, optionally, one block per layer. Creating the layer
+ * does not enable collection; drawing it does, from its first frame on, and disabling it disables collection.
+ */
+public class RenderStatsLayer extends AbstractLayer {
+
+	private final ScreenAnnotation annotation;
+	private boolean showLayers = true;
+	private long refreshMillis = 500;
+	private long lastRefresh;
+
+	public RenderStatsLayer() {
+		this.setName("Render Statistics");
+		this.setPickEnabled(false);
+		AnnotationAttributes attrs = new AnnotationAttributes();
+		attrs.setFont(Font.decode("Monospaced-PLAIN-12"));
+		attrs.setTextColor(Color.WHITE);
+		attrs.setBackgroundColor(new Color(0, 0, 0, 160));
+		attrs.setBorderColor(Color.GRAY);
+		attrs.setInsets(new Insets(6, 6, 6, 6));
+		attrs.setAdjustWidthToText(AVKey.SIZE_FIT_TEXT);
+		attrs.setTextAlign(AVKey.LEFT);
+		attrs.setLeader(AVKey.SHAPE_NONE);
+		attrs.setDrawOffset(new Point(0, 0));
+		this.annotation = new ScreenAnnotation("", new Point(10, 10), attrs);
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		super.setEnabled(enabled);
+		if (!enabled) {
+			RenderStats.setEnabled(false);
+		}
+	}
+
+	@Override
+	protected void doRender(DrawContext dc) {
+		if (!RenderStats.isEnabled()) {
+			RenderStats.setEnabled(true); // counted from the next frame on
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastRefresh >= refreshMillis) {
+			StringBuilder sb = new StringBuilder(String.format("%-14s %10s %10s %10s %10s %10s%n",
+				"", "last", "avg", "p50", "p95", "p99"));
+			sb.append(RenderStats.getTotal().getSummary());
+			if (showLayers) {
+				for (RenderStats stats : RenderStats.getLayerStats()) {
+					sb.append('\n').append(stats.getSummary());
+				}
+			}
+			annotation.setText(sb.toString());
+			lastRefresh = now;
+		}
+		// annotations are centered horizontally on their screen point, keep this one in the bottom left corner
+		Rectangle bounds = annotation.getBounds(dc);
+		if (bounds != null) {
+			annotation.setScreenPoint(new Point(10 + bounds.width / 2, 10));
+		}
+		annotation.render(dc);
+	}
+
+	public void setShowLayers(boolean showLayers) {
+		this.showLayers = showLayers;
+	}
+
+	public void setRefreshMillis(long refreshMillis) {
+		this.refreshMillis = refreshMillis;
+	}
+
+	@Override
+	public String toString() {
+		return this.getName();
+	}
+
+}
@@ -0,0 +1,328 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.ElevationModel;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.render.DrawContext;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Terrain elevations of ground clamped objects, shared by those given it so that objects standing still, or
+ * many objects on the same spot, do not sample the terrain every frame. Opt-in, see
+ * GLRenderable.setElevationCache, as the elevations come from the elevation model rather than from the
+ * terrain as drawn, which may be coarser, so objects may float above or sink into the drawn terrain.
+ *
+ * Locations are quantized to a grid, 1e-5 degrees (about a meter) by default, and the elevation of a cell is
+ * read from the globe at the target resolution together with the resolution the elevation model actually
+ * had, which is coarser while its tiles are still loading. Such provisional elevations are read again once
+ * the elevation model reports new tiles, or after the retry interval if it does not, e.g. inside a compound
+ * model; elevations at the target resolution are kept until the elevation model expires its data or the
+ * cache is invalidated. Changing the globe or its elevation model invalidates the cache too.
+ *
+ * Misses of a batch lookup are read with one getElevations call per 1 degree cell. Entries are evicted least
+ * recently used beyond the capacity. Thread safe, though normally used by the rendering thread.
+ */
+public class TerrainElevationCache {
+
+	private static final TerrainElevationCache defaultCache = new TerrainElevationCache();
+
+	private static class Entry {
+
+		double elevation;
+		double resolution; // achieved, in radians
+		long time; // when it was read
+		int tileGeneration; // of the elevation model when it was read
+	}
+
+	private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, TerrainElevationCache.Entry> eldest) {
+			return size() > capacity;
+		}
+	};
+	private int capacity = 100000;
+	private double quantization = 1e-5; // degrees
+	private double resolution = 10; // target, meters
+	private long retryInterval = 1000; // milliseconds
+	private Globe globe;
+	private ElevationModel model;
+	private volatile int tileGeneration;
+	private final PropertyChangeListener tileListener = new PropertyChangeListener() {
+		@Override
+		public void propertyChange(PropertyChangeEvent evt) {
+			if (AVKey.ELEVATION_MODEL.equals(evt.getPropertyName())) {
+				tileGeneration++;
+			}
+		}
+	};
+	private long hits, misses, reads;
+	private final List<LatLon> missed = new ArrayList<>();
+	private double[] buffer = new double[64];
+
+	/**
+	 * @return a cache to share among GLRenderables, see GLRenderable.setElevationCache
+	 */
+	public static TerrainElevationCache getDefault() {
+		return defaultCache;
+	}
+
+	/**
+	 * @return the elevation of the terrain at a location, in meters, without vertical exaggeration
+	 */
+	public synchronized double getElevation(Globe globe, Angle latitude, Angle longitude) {
+		sync(globe);
+		long key = key(latitude.degrees, longitude.degrees);
+		Entry entry = entries.get(key);
+		if (isValid(entry, System.currentTimeMillis())) {
+			hits++;
+			return entry.elevation;
+		}
+		misses++;
+		LatLon center = center(key);
+		missed.clear();
+		missed.add(center);
+		int generation = tileGeneration;
+		double achieved = read(missed, center.latitude.degrees, center.latitude.degrees, center.longitude.degrees,
+			center.longitude.degrees);
+		return store(key, entry, buffer[0], achieved, generation).elevation;
+	}
+
+	/**
+	 * Looks up the elevations of many locations, reading the missing ones in batches.
+	 *
+	 * @param globe
+	 * @param locations
+	 * @param elevations receives the elevation of each location in meters, or null to only fill the cache
+	 */
+	public synchronized void getElevations(Globe globe, List<? extends LatLon> locations, double[] elevations) {
+		sync(globe);
+		long now = System.currentTimeMillis();
+		int n = locations.size();
+		long[] keys = new long[n];
+		long[] missing = new long[n]; // the 1 degree cell and the index of each miss
+		int missCount = 0;
+		for (int i = 0; i < n; i++) {
+			LatLon location = locations.get(i);
+			keys[i] = key(location.latitude.degrees, location.longitude.degrees);
+			Entry entry = entries.get(keys[i]);
+			if (isValid(entry, now)) {
+				hits++;
+				if (elevations != null) {
+					elevations[i] = entry.elevation;
+				}
+			} else {
+				misses++;
+				long cell = (long) (Math.floor(location.latitude.degrees) + 90) * 361
+					+ (long) (Math.floor(location.longitude.degrees) + 180);
+				missing[missCount++] = cell << 32 | i;
+			}
+		}
+		Arrays.sort(missing, 0, missCount);
+
+		for (int start = 0; start < missCount;) {
+			long cell = missing[start] >>> 32;
+			int end = start;
+			missed.clear();
+			double minLat = 90, maxLat = -90, minLon = 180, maxLon = -180;
+			while (end < missCount && missing[end] >>> 32 == cell) {
+				int i = (int) missing[end++];
+				LatLon center = center(keys[i]);
+				missed.add(center);
+				minLat = Math.min(minLat, center.latitude.degrees);
+				maxLat = Math.max(maxLat, center.latitude.degrees);
+				minLon = Math.min(minLon, center.longitude.degrees);
+				maxLon = Math.max(maxLon, center.longitude.degrees);
+			}
+			int generation = tileGeneration;
+			double achieved = read(missed, minLat, maxLat, minLon, maxLon);
+			for (int j = start; j < end; j++) {
+				int i = (int) missing[j];
+				Entry entry = store(keys[i], entries.get(keys[i]), buffer[j - start], achieved, generation);
+				if (elevations != null) {
+					elevations[i] = entry.elevation;
+				}
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * @return the model coordinates of the terrain at a location, with the vertical exaggeration of the frame
+	 */
+	public Vec4 computeTerrainPoint(DrawContext dc, Angle latitude, Angle longitude) {
+		double elevation = getElevation(dc.getGlobe(), latitude, longitude);
+		return dc.getGlobe().computePointFromPosition(latitude, longitude, elevation * dc.getVerticalExaggeration());
+	}
+
+	/**
+	 * Drops every elevation, e.g. after replacing terrain data the elevation model does not report.
+	 */
+	public synchronized void invalidate() {
+		entries.clear();
+	}
+
+	// the globe or its elevation model changed: the elevations are of another terrain
+	private void sync(Globe globe) {
+		if (globe != this.globe || globe.getElevationModel() != model) {
+			if (model != null) {
+				model.removePropertyChangeListener(tileListener);
+			}
+			this.globe = globe;
+			model = globe.getElevationModel();
+			if (model != null) {
+				model.addPropertyChangeListener(tileListener);
+			}
+			entries.clear();
+		}
+	}
+
+	private boolean isValid(Entry entry, long now) {
+		if (entry == null) {
+			return false;
+		}
+		if (model != null && model.getExpiryTime() > entry.time && model.getExpiryTime() <= now) {
+			return false;
+		}
+		if (entry.resolution <= targetResolution() * 1.01) {
+			return true;
+		}
+		return entry.tileGeneration == tileGeneration && now - entry.time < retryInterval;
+	}
+
+	// reads the elevations of locations within the bounds into buffer, returns the resolution achieved
+	private double read(List<LatLon> locations, double minLat, double maxLat, double minLon, double maxLon) {
+		if (buffer.length < locations.size()) {
+			buffer = new double[Math.max(locations.size(), 2 * buffer.length)];
+		}
+		Arrays.fill(buffer, 0, locations.size(), 0);
+		Sector sector = Sector.fromDegrees(Math.max(-90, minLat - quantization), Math.min(90, maxLat + quantization),
+			Math.max(-180, minLon - quantization), Math.min(180, maxLon + quantization));
+		reads++;
+		return globe.getElevations(sector, locations, targetResolution(), buffer);
+	}
+
+	private Entry store(long key, Entry entry, double elevation, double achieved, int generation) {
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+		entry.elevation = elevation;
+		entry.resolution = achieved;
+		entry.time = System.currentTimeMillis();
+		entry.tileGeneration = generation;
+		return entry;
+	}
+
+	private double targetResolution() {
+		return resolution / globe.getRadius();
+	}
+
+	private long key(double latitude, double longitude) {
+		long lat = Math.round((latitude + 90) / quantization);
+		long lon = Math.round((longitude + 180) / quantization);
+		return lat << 32 | lon;
+	}
+
+	private LatLon center(long key) {
+		return LatLon.fromDegrees((key >>> 32) * quantization - 90, (key & 0xffffffffL) * quantization - 180);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of getElevations calls on the globe
+	 */
+	public synchronized long getReads() {
+		return reads;
+	}
+
+	/**
+	 * @return the share of lookups answered from the cache, 0 before any
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+	}
+
+	public synchronized void resetStats() {
+		hits = misses = reads = 0;
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public synchronized double getQuantization() {
+		return quantization;
+	}
+
+	/**
+	 * Sets the size of the grid cells in degrees. Invalidates the cache.
+	 *
+	 * @param quantization
+	 */
+	public synchronized void setQuantization(double quantization) {
+		this.quantization = quantization;
+		entries.clear();
+	}
+
+	public synchronized double getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Sets the terrain resolution to read elevations at, in meters, 10 by default. Invalidates the cache.
+	 *
+	 * @param resolution
+	 */
+	public synchronized void setResolution(double resolution) {
+		this.resolution = resolution;
+		entries.clear();
+	}
+
+	public synchronized long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/**
+	 * Sets how long a provisional elevation is kept, in milliseconds, if the elevation model reports no new
+	 * tiles.
+	 *
+	 * @param retryInterval
+	 */
+	public synchronized void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Terrain elevations: %d cached, %d hits, %d misses (%.1f%% hit), %d reads",
+			entries.size(), hits, misses, 100 * getHitRate(), reads);
+	}
+
+}
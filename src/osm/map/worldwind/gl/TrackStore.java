@@ -0,0 +1,490 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.layers.Layer;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.PreRenderable;
+import gov.nasa.worldwind.render.Renderable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Takes position and attitude updates of many GLRenderables from feed threads and applies them in the
+ * rendering thread once per frame, instead of each update going through setPosition.
+ *
+ * Every registered object has a slot holding its latest state behind a sequence number (a seqlock): writers
+ * bump it to odd, write the state and bump it to even again, and the renderer retries a read that saw an odd
+ * or changed sequence number. Updates of different objects never contend, and neither side takes a lock.
+ * A dirty bit per slot lets publish visit only the objects that changed since the last frame, so any number
+ * of updates to an object between two frames costs one state change and at most one POSITION event.
+ *
+ * Slots are reused once their object is unregistered. Each slot counts its generations, and the slot numbers
+ * handed out carry the generation, so updates still in flight for an unregistered object, by id or by slot,
+ * are dropped rather than applied to the next object in the slot.
+ *
+ * Updates may carry a time. Objects updated with times move smoothly between them instead of jumping: each
+ * frame is drawn as of the current time minus the latency, interpolating between the samples around it, or
+ * extrapolating for at most maxExtrapolation past the latest one, see DeadReckoning. A latency of about one
+ * feed interval keeps objects interpolating; a latency of 0 shows them extrapolated to the present.
+ *
+ * Add the store to the layer of the objects, before them, and it publishes in preRender, then reads the
+ * terrain under the clamped objects that moved in one batch, see TerrainElevationCache. Feed updates ask that
+ * layer for a redraw at most once per frame, and so does publish while objects are moving.
+ */
+public class TrackStore implements Renderable, PreRenderable {
+
+	public static final int STATE_SIZE = 6; // latitude, longitude (degrees), altitude (meters), azimuth, elevation, roll (degrees)
+	private static final int STRIDE = 8; // the sequence number, the state and the time, a cache line per slot
+	private static final long NO_TIME = Long.MIN_VALUE;
+	private static final long EMPTY = Long.MIN_VALUE + 1; // the time of a slot not written since it was freed
+
+	private final int capacity;
+	private final AtomicLongArray slots;
+	private final AtomicLongArray dirty;
+	private final AtomicReferenceArray<GLRenderable> renderables;
+	private final AtomicIntegerArray generations; // of each slot, changed while holding its sequence number odd
+	private final int slotBits; // the low bits of a slot number are the slot, the rest its generation
+	private final Map<Object, Integer> ids = new ConcurrentHashMap<>(); // slot numbers
+	private final Deque<Integer> freeSlots = new ArrayDeque<>();
+	private int used; // slots handed out so far, guarded by this
+	private final AtomicBoolean redrawPending = new AtomicBoolean();
+	private final LongAdder updates = new LongAdder();
+	private volatile Layer layer;
+	private volatile boolean notifying = true;
+	private volatile boolean redrawOnUpdate = true;
+	private volatile long latency = 0;
+	private volatile long maxExtrapolation = 2000;
+
+	// used by the rendering thread only
+	private final DeadReckoning motion;
+	private final GLRenderable[] owners; // whose samples motion holds, per slot
+	private final boolean[] sampled; // got a sample in the current publish
+	private final int[] changed; // the slots that did
+	private int changedCount;
+	private final Map<TerrainElevationCache, List<LatLon>> clampedByCache = new IdentityHashMap<>();
+
+	/**
+	 * @param capacity the largest number of objects registered at a time
+	 */
+	public TrackStore(int capacity) {
+		this.capacity = capacity;
+		slots = new AtomicLongArray(capacity * STRIDE);
+		dirty = new AtomicLongArray((capacity + 63) / 64);
+		renderables = new AtomicReferenceArray<>(capacity);
+		generations = new AtomicIntegerArray(capacity);
+		slotBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1));
+		motion = new DeadReckoning(capacity);
+		owners = new GLRenderable[capacity];
+		sampled = new boolean[capacity];
+		changed = new int[capacity];
+	}
+
+	/**
+	 * Registers an object under an id, or replaces the object registered under it.
+	 *
+	 * @param id
+	 * @param renderable
+	 * @return the slot number of the object, for the updates by slot, valid until it is unregistered
+	 */
+	public synchronized int register(Object id, GLRenderable renderable) {
+		Integer number = ids.get(id);
+		if (number == null) {
+			int slot;
+			if (!freeSlots.isEmpty()) {
+				slot = freeSlots.pop();
+			} else if (used < capacity) {
+				slot = used++;
+			} else {
+				throw new IllegalStateException("TrackStore full, capacity " + capacity);
+			}
+			number = generations.get(slot) << slotBits | slot;
+		}
+		renderables.set(number & slotMask(), renderable);
+		ids.put(id, number);
+		return number;
+	}
+
+	/**
+	 * Stops updating the object registered under an id. Updates of it still in flight are dropped, and so are
+	 * later updates by its slot number.
+	 *
+	 * @param id
+	 */
+	public synchronized void unregister(Object id) {
+		Integer number = ids.remove(id);
+		if (number != null) {
+			int slot = number & slotMask();
+			int base = slot * STRIDE;
+			long sequence = lock(base);
+			generations.set(slot, (generations.get(slot) + 1) & (-1 >>> slotBits + 1));
+			slots.set(base + 7, EMPTY);
+			slots.set(base, sequence + 2);
+			renderables.set(slot, null);
+			freeSlots.push(slot);
+		}
+	}
+
+	private int slotMask() {
+		return (1 << slotBits) - 1;
+	}
+
+	/**
+	 * @return the slot number of the object registered under an id, or -1
+	 */
+	public int getSlot(Object id) {
+		Integer slot = ids.get(id);
+		return slot != null ? slot : -1;
+	}
+
+	/**
+	 * Updates the object registered under an id, which then stops moving. May be called from any thread.
+	 *
+	 * @return false if no object is registered under the id
+	 */
+	public boolean update(Object id, double latitude, double longitude, double altitude, double azimuth,
+		double elevation, double roll) {
+		return update(id, NO_TIME, latitude, longitude, altitude, azimuth, elevation, roll);
+	}
+
+	/**
+	 * Adds a sample of the object registered under an id. May be called from any thread.
+	 *
+	 * @param time when the object was in the state, in milliseconds since the epoch
+	 * @return false if no object is registered under the id
+	 */
+	public boolean update(Object id, long time, double latitude, double longitude, double altitude, double azimuth,
+		double elevation, double roll) {
+		Integer slot = ids.get(id);
+		return slot != null && update(slot.intValue(), time, latitude, longitude, altitude, azimuth, elevation, roll);
+	}
+
+	/**
+	 * Updates the object in a slot, which then stops moving. May be called from any thread.
+	 *
+	 * @param slot the slot number register returned
+	 * @return false if the object was unregistered
+	 */
+	public boolean update(int slot, double latitude, double longitude, double altitude, double azimuth,
+		double elevation, double roll) {
+		return update(slot, NO_TIME, latitude, longitude, altitude, azimuth, elevation, roll);
+	}
+
+	/**
+	 * Adds a sample of the object in a slot. May be called from any thread.
+	 *
+	 * @param slot the slot number register returned
+	 * @param time when the object was in the state, in milliseconds since the epoch
+	 * @return false if the object was unregistered
+	 */
+	public boolean update(int slot, long time, double latitude, double longitude, double altitude, double azimuth,
+		double elevation, double roll) {
+		if (!write(slot, time, latitude, longitude, altitude, azimuth, elevation, roll)) {
+			return false;
+		}
+		updates.increment();
+		requestRedraw();
+		return true;
+	}
+
+	/**
+	 * Updates the objects in a batch of slots. May be called from any thread. Updates of unregistered objects
+	 * are dropped.
+	 *
+	 * @param slots the slot number of each update
+	 * @param states STATE_SIZE values per update, in the order of the slots
+	 * @param count the number of updates
+	 */
+	public void update(int[] slots, double[] states, int count) {
+		update(slots, null, states, count);
+	}
+
+	/**
+	 * Adds samples of the objects in a batch of slots. May be called from any thread. Updates of unregistered
+	 * objects are dropped.
+	 *
+	 * @param slots the slot number of each update
+	 * @param times the time of each update in milliseconds since the epoch, or null for updates without
+	 * @param states STATE_SIZE values per update, in the order of the slots
+	 * @param count the number of updates
+	 */
+	public void update(int[] slots, long[] times, double[] states, int count) {
+		int written = 0;
+		for (int i = 0; i < count; i++) {
+			int s = STATE_SIZE * i;
+			if (write(slots[i], times != null ? times[i] : NO_TIME, states[s], states[s + 1], states[s + 2],
+				states[s + 3], states[s + 4], states[s + 5])) {
+				written++;
+			}
+		}
+		if (written > 0) {
+			updates.add(written);
+			requestRedraw();
+		}
+	}
+
+	// false if the slot number is of an earlier generation of the slot
+	private boolean write(int number, long time, double latitude, double longitude, double altitude, double azimuth,
+		double elevation, double roll) {
+		int slot = number & slotMask();
+		int base = slot * STRIDE;
+		long sequence = lock(base);
+		if (generations.get(slot) != number >>> slotBits) {
+			slots.set(base, sequence); // unchanged
+			return false;
+		}
+		slots.set(base + 1, Double.doubleToRawLongBits(latitude));
+		slots.set(base + 2, Double.doubleToRawLongBits(longitude));
+		slots.set(base + 3, Double.doubleToRawLongBits(altitude));
+		slots.set(base + 4, Double.doubleToRawLongBits(azimuth));
+		slots.set(base + 5, Double.doubleToRawLongBits(elevation));
+		slots.set(base + 6, Double.doubleToRawLongBits(roll));
+		slots.set(base + 7, time);
+		slots.set(base, sequence + 2);
+
+		int word = slot >>> 6;
+		long bit = 1L << slot;
+		long bits;
+		do {
+			bits = dirty.get(word);
+		} while ((bits & bit) == 0 && !dirty.compareAndSet(word, bits, bits | bit));
+		return true;
+	}
+
+	// makes the sequence number of the slot at base odd, returns it as it was
+	private long lock(int base) {
+		long sequence;
+		do {
+			sequence = slots.get(base);
+		} while ((sequence & 1) != 0 || !slots.compareAndSet(base, sequence, sequence + 1));
+		return sequence;
+	}
+
+	private void requestRedraw() {
+		Layer l = layer;
+		if (redrawOnUpdate && l != null && redrawPending.compareAndSet(false, true)) {
+			l.firePropertyChange(AVKey.LAYER, null, l);
+		}
+	}
+
+	/**
+	 * Applies the latest state of every object updated since the last call, and moves the objects with
+	 * timestamped samples to where they are as of now. Must be called in the rendering thread, which preRender
+	 * does.
+	 *
+	 * @return the number of objects updated or moved
+	 */
+	public int publish() {
+		return publish(System.currentTimeMillis());
+	}
+
+	/**
+	 * Like publish, as of the given time in milliseconds since the epoch, e.g. to replay a recorded feed.
+	 */
+	public int publish(long now) {
+		redrawPending.set(false);
+		double renderTime = now - latency;
+		double extrapolation = maxExtrapolation;
+		int published = 0;
+		changedCount = 0;
+		double[] state = new double[STATE_SIZE];
+		for (int word = 0; word < dirty.length(); word++) {
+			if (dirty.get(word) == 0) {
+				continue;
+			}
+			long bits = dirty.getAndSet(word, 0);
+			while (bits != 0) {
+				int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				// the state and the object of one generation of the slot
+				int generation = generations.get(slot);
+				long time = read(slot, state);
+				GLRenderable renderable = renderables.get(slot);
+				if (time == EMPTY || renderable == null || generations.get(slot) != generation) {
+					continue;
+				}
+				if (owners[slot] != renderable) {
+					motion.reset(slot);
+					owners[slot] = renderable;
+				}
+				if (time == NO_TIME) {
+					motion.reset(slot);
+				} else if (!motion.addSample(slot, time, state, renderTime)) {
+					continue; // older than the latest sample
+				}
+				sampled[slot] = true;
+				changed[changedCount++] = slot;
+				renderable.applyState(Position.fromDegrees(state[0], state[1], state[2]), state[3], state[4],
+					state[5], false);
+				published++;
+			}
+		}
+
+		int moving = motion.evaluate(renderTime, extrapolation);
+		double[] states = motion.getStates();
+		for (int i = 0; i < moving; i++) {
+			int slot = motion.getActive(i);
+			int s = STATE_SIZE * slot;
+			owners[slot].applyState(Position.fromDegrees(states[s], states[s + 1], states[s + 2]), states[s + 3],
+				states[s + 4], states[s + 5], false);
+			if (!sampled[slot]) {
+				published++;
+			}
+		}
+		motion.expire(renderTime, extrapolation);
+		for (int i = 0; i < changedCount; i++) {
+			int slot = changed[i];
+			sampled[slot] = false;
+			if (notifying) {
+				GLRenderable r = owners[slot];
+				r.getPropertyChangeSupport().firePropertyChange(GLRenderable.POSITION, null, r.getPosition());
+			}
+		}
+
+		Layer l = layer;
+		if (motion.getActiveCount() > 0 && redrawOnUpdate && l != null && redrawPending.compareAndSet(false, true)) {
+			l.firePropertyChange(AVKey.LAYER, null, l); // keep the moving objects moving
+		}
+		return published;
+	}
+
+	// the consistent state of a slot, and its time
+	private long read(int slot, double[] state) {
+		int base = slot * STRIDE;
+		long before, after, time;
+		do {
+			before = slots.get(base);
+			for (int i = 0; i < STATE_SIZE; i++) {
+				state[i] = Double.longBitsToDouble(slots.get(base + 1 + i));
+			}
+			time = slots.get(base + 7);
+			after = slots.get(base);
+		} while ((before & 1) != 0 || before != after);
+		return time;
+	}
+
+	@Override
+	public void preRender(DrawContext dc) {
+		if (dc.getCurrentLayer() != null) {
+			this.layer = dc.getCurrentLayer();
+		}
+		if (!dc.isPickingMode()) {
+			publish();
+			prefetchElevations(dc);
+		}
+	}
+
+	// reads the terrain under the clamped objects that moved in one batch per cache, before they are drawn
+	private void prefetchElevations(DrawContext dc) {
+		for (int i = 0; i < changedCount; i++) {
+			if (!motion.isActive(changed[i])) {
+				addClamped(owners[changed[i]]);
+			}
+		}
+		for (int i = 0; i < motion.getActiveCount(); i++) {
+			addClamped(owners[motion.getActive(i)]);
+		}
+		for (Map.Entry<TerrainElevationCache, List<LatLon>> entry : clampedByCache.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				entry.getKey().getElevations(dc.getGlobe(), entry.getValue(), null);
+				entry.getValue().clear();
+			}
+		}
+	}
+
+	private void addClamped(GLRenderable renderable) {
+		TerrainElevationCache cache = renderable.getElevationCache();
+		if (renderable.isClamped() && cache != null) {
+			List<LatLon> list = clampedByCache.get(cache);
+			if (list == null) {
+				list = new ArrayList<>();
+				clampedByCache.put(cache, list);
+			}
+			list.add(renderable.getPosition());
+		}
+	}
+
+	@Override
+	public void render(DrawContext dc) {
+	}
+
+	/**
+	 * @return the number of updates taken so far
+	 */
+	public long getUpdateCount() {
+		return updates.sum();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isNotifying() {
+		return notifying;
+	}
+
+	/**
+	 * Fires a POSITION property change per updated object when publishing, as setPosition does, but at most
+	 * once per object per frame. On by default.
+	 *
+	 * @param notifying
+	 */
+	public void setNotifying(boolean notifying) {
+		this.notifying = notifying;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Sets how far behind the current time objects with timestamped samples are drawn, in milliseconds. About
+	 * one feed interval plus the feed delay keeps them between two samples, at the cost of showing them that
+	 * much in the past. 0 by default.
+	 *
+	 * @param latency
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getMaxExtrapolation() {
+		return maxExtrapolation;
+	}
+
+	/**
+	 * Sets how long past its latest sample an object keeps moving, in milliseconds, 2000 by default. It then
+	 * stops until the next sample.
+	 *
+	 * @param maxExtrapolation
+	 */
+	public void setMaxExtrapolation(long maxExtrapolation) {
+		this.maxExtrapolation = maxExtrapolation;
+	}
+
+	public boolean isRedrawOnUpdate() {
+		return redrawOnUpdate;
+	}
+
+	/**
+	 * Asks the layer for a redraw on the first update after each frame. On by default; turn it off when the
+	 * application redraws at a fixed rate anyway.
+	 *
+	 * @param redrawOnUpdate
+	 */
+	public void setRedrawOnUpdate(boolean redrawOnUpdate) {
+		this.redrawOnUpdate = redrawOnUpdate;
+	}
+
+}
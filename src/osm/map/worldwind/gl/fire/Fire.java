@@ -1,12 +1,11 @@
 package osm.map.worldwind.gl.fire;
 
-import com.jogamp.opengl.util.texture.Texture;
-import com.jogamp.opengl.util.texture.TextureIO;
-import gov.nasa.worldwind.util.OGLUtil;
+import gov.nasa.worldwind.render.DrawContext;
 import java.awt.Color;
-import java.util.ArrayList;
-import javax.media.opengl.GL;
-import javax.media.opengl.GL2;
+import osm.map.worldwind.gl.particle.Emitter;
+import osm.map.worldwind.gl.particle.EmitterShape;
+import osm.map.worldwind.gl.particle.ParticleEffect;
+import osm.map.worldwind.gl.particle.ParticleEffects;
 
 public class Fire {
     
@@ -15,9 +14,19 @@ public class Fire {
     float lifespan;
     int genRate;
     Color color = Color.RED;
-    Texture texture;
+    float spawnScale = 1f; // fraction of genRate actually spawned, lowered by level of detail
+    int maxParticles = Integer.MAX_VALUE;
     
-    private ArrayList<Spark> particles;
+    // share of the global ParticleBudget, maintained by the budget; unlimited until the fire is first
+    // activated, so a fire drawn without a FireRenderable is not starved by the fires that are
+    static final long NEVER_ACTIVE = -2;
+    float priority = 1f;
+    double importance = 1;
+    long activeFrame = NEVER_ACTIVE;
+    int budgetShare = Integer.MAX_VALUE;
+    
+    private final ParticleEffect effect = new ParticleEffect();
+    private Emitter flames;
     
     public Fire(float radius,  float height, float lifespan, int genRate) {
         this.radius = radius;
@@ -25,113 +34,138 @@ public class Fire {
         this.lifespan = lifespan;
         this.genRate = genRate;
         
-        this.particles = new ArrayList<Spark>();
-        
-        try {
-            this.texture = TextureIO.newTexture(getClass().getResource("/osm/map/worldwind/gl/fire/smoke3.png"), false, ".png");
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this.flames = ParticleEffects.fire(radius, height, lifespan, genRate, color);
+        this.effect.addEmitter(this.flames);
         
-        this.spawnParticles(1);
+        ParticleBudget.getInstance().register(this);
+        this.effect.spawn(1);
     }
     
-    public void draw(GL2 gl) {
-        gl.glEnable(GL.GL_BLEND);
-        OGLUtil.applyBlending(gl, false);
-        gl.glDisable(GL2.GL_LIGHTING);
-        gl.glPushAttrib(GL2.GL_ENABLE_BIT);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP);
-        gl.glEnable(GL.GL_TEXTURE_2D);        
-        
-        for (Spark p : this.particles) {
-            gl.glPushMatrix();
-            gl.glColor4fv(p.getColor(), 0);
-            gl.glTranslatef(p.getPos()[0], p.getPos()[1], p.getPos()[2]);            
-            gl.glRotatef(p.roty, 0f, 1f, 0f);
-            this.texture.bind(gl);
-            gl.glBegin(GL.GL_TRIANGLES);
-            gl.glTexCoord2f(0, 0);
-            gl.glVertex3f(-p.size/2f, 0f, 0f);
-            gl.glTexCoord2f(0, 1);
-            gl.glVertex3f(0, p.size, 0f);
-            gl.glTexCoord2f(1, 0);
-            gl.glVertex3f(p.size/2, 0f, 0f);
-            gl.glTexCoord2f(0, 0);
-            gl.glVertex3f(0f, 0f, -p.size/2f);
-            gl.glTexCoord2f(0, 1);
-            gl.glVertex3f(0, p.size, 0f);
-            gl.glTexCoord2f(1, 0);
-            gl.glVertex3f(0, 0f, p.size/2);
-            gl.glEnd();
-            gl.glPopMatrix();
-        }
-        
-        gl.glDisable(GL.GL_TEXTURE_2D);
-        gl.glPopAttrib();
-        gl.glEnable(GL2.GL_LIGHTING);
+    /**
+     * Releases the particles and removes the fire from the global particle budget.
+     */
+    public void dispose() {
+        ParticleBudget.getInstance().unregister(this);
+        this.effect.clear();
+    }
+    
+    public void draw(DrawContext dc) {
+        long t0 = System.nanoTime();
+        this.effect.draw(dc);
+        ParticleBudget.getInstance().reportTime(System.nanoTime() - t0);
     }
     
     public void update(float dt) {
-        float g[] = new float[] {(float) Math.random()*10-5f, 0, (float) Math.random()*10-5f };
-        ArrayList<Spark> dead = new ArrayList<Spark>();
-        for (Spark p : this.particles) {
-            if (p.isAlive()) {
-                p.move(dt, g);
-                float d = p.getAge()/p.getLifeTime();
-                if (d <= .9f || p.getPos()[1] < this.height*20) {
-                    p.setColor(1, d);
-                    p.setColor(3, 1-d);
-                }
-                else
-                    p.setColor(new float[] {.1f, .1f, .1f, .1f});
-            }
-            else {
-                dead.add(p);
-            }  
-        }
-        this.particles.removeAll(dead);
-        dead.clear();
-        this.spawnParticles(dt);
+        long t0 = System.nanoTime();
+        this.effect.setSpawnScale(this.spawnScale);
+        this.effect.setCapacity(this.getCapacity());
+        this.effect.update(dt);
+        ParticleBudget.getInstance().reportTime(System.nanoTime() - t0);
     }
     
-    private void spawnParticles(float dt) {
-        float n = dt*this.genRate;
-        float decimal = (int) n - n;
-        n = (int) n;
-        if (Math.random() < decimal)
-            n+=1;
-        
-        for (int i=0; i<n; i++) {
-            float r = (float) Math.sqrt(Math.random())*radius;
-            float angle = (float) (Math.random()*Math.PI*2f);
-            Spark p = new Spark( new float[]{(float) Math.cos(angle) * r, 0, (float) Math.sin(angle) * r},
-                        new float[]{(float) Math.random()*2-1f, (float) Math.random() * height*6, (float) Math.random()*2-1f},
-                        (float) Math.random()*height*lifespan+1f);
-            p.setColor(new float[] { color.getRed() / 256f, color.getGreen() / 256f, color.getBlue() / 256f, .3f});
-            this.particles.add( p );
+    /**
+     * Advances the simulation by the given amount of simulation time in steps of at most step, e.g. to
+     * bring a fire that was suspended while off screen back to a settled state.
+     */
+    public void fastForward(float time, float step) {
+        time = Math.min(time, this.getSettleTime());
+        while (time > 0) {
+            float dt = Math.min(step, time);
+            this.update(dt);
+            time -= dt;
         }
     }
     
+    /**
+     * @return the simulation time after which every particle alive now has been replaced, i.e. the
+     * longest possible particle lifetime
+     */
+    public float getSettleTime() {
+        return this.effect.getSettleTime();
+    }
+    
+    /**
+     * The effect the flames are simulated in. Emitters added to it, e.g. ParticleEffects.smoke or sparks,
+     * share the fire's simulation, draw call and particle budget.
+     */
+    public ParticleEffect getEffect() {
+        return this.effect;
+    }
+    
     public void setRadius(float radius) {
         this.radius = radius;
+        this.flames.setShape(new EmitterShape.Disc(radius));
     }
     
     public void setHeight(float height) {
         this.height = height;
+        this.flames.setVelocity(new float[]{-1, 0, -1}, new float[]{1, height * 6, 1});
+        this.flames.setLife(1, height * this.lifespan + 1);
     }
     
     public void setLifeSpan(float lifespan) {
         this.lifespan = lifespan;
+        this.flames.setLife(1, this.height * lifespan + 1);
     }
     
     public void setGenRate(int genRate) {
         this.genRate = genRate;
+        this.flames.setRate(genRate);
     }
     
     public void setColor(Color color) {
         this.color = color;
+        this.flames.getType().setColor(ParticleEffects.fireColor(color));
+    }
+    
+    public void setSpawnScale(float spawnScale) {
+        this.spawnScale = spawnScale;
+    }
+    
+    /**
+     * Restarts the fire from its first particles with random numbers of the given seed, so that the same
+     * updates simulate the same fire, e.g. in benchmarks.
+     */
+    public void setSeed(long seed) {
+        this.effect.clear();
+        this.effect.setSeed(seed);
+        this.effect.spawn(1);
+    }
+    
+    public void setMaxParticles(int maxParticles) {
+        this.maxParticles = maxParticles;
+    }
+    
+    public void setPriority(float priority) {
+        this.priority = priority;
+    }
+    
+    public float getPriority() {
+        return this.priority;
+    }
+    
+    double getWeight() {
+        return this.priority * this.importance;
+    }
+    
+    /**
+     * @return the number of live particles allowed, the lower of the level of detail limit and the share
+     * of the global budget
+     */
+    public int getCapacity() {
+        return Math.min(this.maxParticles, this.budgetShare);
+    }
+    
+    public int getBudgetShare() {
+        return this.budgetShare;
+    }
+    
+    public int getParticleCount() {
+        return this.effect.getParticleCount();
+    }
+    
+    public float getExtent() {
+        return Math.max(this.effect.getExtent(), 2*this.radius);
     }
     
 }
@@ -4,15 +4,31 @@ import gov.nasa.worldwind.geom.*;
 import gov.nasa.worldwind.render.*;
 
 import java.awt.*;
-import javax.media.opengl.GL2;
+import java.util.ArrayList;
+import java.util.List;
 import osm.map.worldwind.gl.GLRenderable;
+import osm.map.worldwind.gl.RenderStats;
+import osm.map.worldwind.gl.particle.Emitter;
+import osm.map.worldwind.gl.particle.ParticleEffect;
 
 public class FireRenderable extends GLRenderable {
 
     Fire fire;
     float radius, height, lifespan;
     int genRate;
+    float priority = 1f;
+    List<Emitter> emitters = new ArrayList<Emitter>();
     boolean initialized = false;
+    
+    // level of detail: the fire runs at its full rate once it covers fullDetailPixels on screen, scales
+    // down linearly below that and is suspended entirely below minDetailPixels or when culled
+    double fullDetailPixels = 150;
+    double minDetailPixels = 3;
+    long minTickMillis = 30;
+    long maxTickMillis = 250;
+    int maxParticles = 2000;
+    double detail = 1;
+    boolean suspended = false;
 
     public FireRenderable(Position position, float radius, float height, float lifespan, int genRate, double size) {
         super(position);
@@ -30,22 +46,133 @@ public class FireRenderable extends GLRenderable {
     
     long previousTimeStamp = System.currentTimeMillis();
     protected void drawGL(DrawContext dc) {
-        GL2 gl = dc.getGL().getGL2();
         if (!initialized) {
             if (fire != null) {
                 fire.setGenRate(0);
+                fire.dispose();
             }
             fire = new Fire(radius, height, lifespan, genRate);
+            fire.setPriority(priority);
+            for (Emitter e : emitters) {
+                fire.getEffect().addEmitter(e);
+            }
             initialized = true;
         }
-        fire.draw(gl);
+        this.updateDetail();
+        ParticleBudget.getInstance().activate(fire, dc.getFrameTimeStamp(), detail > 0 ? screenSize : 0);
+        if (detail <= 0) {
+            this.suspended = true;
+            return;
+        }
         long current = System.currentTimeMillis();
-        if (current - previousTimeStamp > 30) {
-            fire.update(0.2f);
-            this.previousTimeStamp = current;
+        if (!dc.isPickingMode()) {
+            if (suspended) {
+                this.resume(current);
+            }
+            long tick = this.getTickMillis();
+            if (current - previousTimeStamp > tick) {
+                // keep the apparent speed of the fire independent of the tick rate
+                fire.update(0.2f * tick / minTickMillis);
+                this.previousTimeStamp = current;
+            }
+        }
+        fire.draw(dc);
+        if (this.renderStats != null) {
+            ParticleEffect effect = fire.getEffect();
+            this.renderStats.add(RenderStats.Counter.PARTICLES, effect.getDrawnParticles());
+            this.renderStats.add(RenderStats.Counter.TRIANGLES, 2 * effect.getDrawnParticles());
+            this.renderStats.add(RenderStats.Counter.TEXTURE_BINDS, effect.getDrawCalls());
         }
     }
     
+    @Override
+    protected void culled(DrawContext dc) {
+        this.suspended = true;
+    }
+    
+    @Override
+    protected double getModelExtent() {
+        return fire != null ? fire.getExtent() : 2*radius;
+    }
+    
+    private void updateDetail() {
+        double d = (screenSize - minDetailPixels) / (fullDetailPixels - minDetailPixels);
+        this.detail = Math.max(0, Math.min(1, d));
+        fire.setSpawnScale((float) detail);
+        fire.setMaxParticles(this.getActiveMaxParticles());
+    }
+    
+    // catch up on the time spent off screen, at most one particle lifetime, so the fire does not
+    // restart from nothing when it comes back into view
+    private void resume(long current) {
+        float missed = 0.2f * (current - previousTimeStamp) / minTickMillis;
+        fire.fastForward(missed, 0.2f * maxTickMillis / minTickMillis);
+        this.previousTimeStamp = current;
+        this.suspended = false;
+    }
+    
+    public double getDetail() {
+        return detail;
+    }
+    
+    public boolean isSuspended() {
+        return suspended;
+    }
+    
+    public long getTickMillis() {
+        return minTickMillis + Math.round((maxTickMillis - minTickMillis) * (1 - detail));
+    }
+    
+    public double getActiveGenRate() {
+        return genRate * detail;
+    }
+    
+    public int getActiveMaxParticles() {
+        return (int) Math.max(1, Math.round(maxParticles * detail));
+    }
+    
+    /**
+     * Adds an emitter, e.g. ParticleEffects.smoke or sparks, to be simulated and drawn with the flames.
+     */
+    public void addEmitter(Emitter emitter) {
+        emitters.add(emitter);
+        if (fire != null) {
+            fire.getEffect().addEmitter(emitter);
+        }
+    }
+    
+    public int getBudgetShare() {
+        return fire != null ? fire.getBudgetShare() : 0;
+    }
+    
+    /**
+     * Relative weight of this fire when the global ParticleBudget is shared out.
+     */
+    public void setPriority(float priority) {
+        this.priority = priority;
+        if (fire != null) {
+            fire.setPriority(priority);
+        }
+    }
+    
+    public int getParticleCount() {
+        return fire != null ? fire.getParticleCount() : 0;
+    }
+    
+    public void setDetailPixels(double minDetailPixels, double fullDetailPixels) {
+        this.minDetailPixels = minDetailPixels;
+        this.fullDetailPixels = fullDetailPixels;
+    }
+    
+    public void setTickMillis(long minTickMillis, long maxTickMillis) {
+        this.minTickMillis = minTickMillis;
+        this.maxTickMillis = maxTickMillis;
+    }
+    
+    public void setMaxParticles(int maxParticles) {
+        this.maxParticles = maxParticles;
+    }
+    
     public void setRadius(double radius) {
         fire.setRadius((float)radius);
     }
@@ -59,6 +186,7 @@ public class FireRenderable extends GLRenderable {
     }
     
     public void setGenRate(int genRate) {
+        this.genRate = genRate;
         fire.setGenRate(genRate);
     }
     
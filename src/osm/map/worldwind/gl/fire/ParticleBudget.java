@@ -0,0 +1,157 @@
+package osm.map.worldwind.gl.fire;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Process wide particle budget that every Fire registers with. Once per frame the global particle budget
+ * is split between the fires drawn in the previous frame in proportion to priority * importance, where
+ * importance is the on-screen size reported by the fire's renderable. The time the fires spend updating
+ * and drawing is measured against a per frame time budget; when it is exceeded all shares are scaled
+ * down, and they recover gradually once the frame time is back under budget.
+ */
+public class ParticleBudget {
+
+    private static final ParticleBudget instance = new ParticleBudget();
+
+    public static ParticleBudget getInstance() {
+        return instance;
+    }
+
+    private final Map<Fire, Boolean> fires = new WeakHashMap<Fire, Boolean>();
+    private int maxParticles = 20000;
+    private long maxFrameNanos = 4000000;
+    private double minLoad = 0.05;
+    private double recoveryRate = 0.02;
+
+    private long frame = -1;
+    private long previousFrame = -1;
+    private double load = 1;
+    private long frameNanos;
+    private long lastFrameNanos;
+    private int allocated;
+    private int activeCount;
+
+    ParticleBudget() {
+    }
+
+    public synchronized void register(Fire fire) {
+        this.fires.put(fire, Boolean.TRUE);
+    }
+
+    public synchronized void unregister(Fire fire) {
+        this.fires.remove(fire);
+    }
+
+    /**
+     * Marks the fire as drawn in the given frame with the given importance (typically its size on screen in
+     * pixels), starting a new allocation round if this is the first report of the frame.
+     */
+    public synchronized void activate(Fire fire, long frameTimeStamp, double importance) {
+        this.beginFrame(frameTimeStamp);
+        if (fire.activeFrame != this.previousFrame && fire.activeFrame != this.frame) {
+            // not part of this round's allocation, hand out a provisional share until the next one
+            fire.budgetShare = (int) (this.maxParticles * this.load / (this.activeCount + 1));
+        }
+        fire.activeFrame = frameTimeStamp;
+        fire.importance = importance;
+    }
+
+    public synchronized void reportTime(long nanos) {
+        this.frameNanos += nanos;
+    }
+
+    private void beginFrame(long frameTimeStamp) {
+        if (frameTimeStamp == this.frame) {
+            return;
+        }
+        this.previousFrame = this.frame;
+        this.frame = frameTimeStamp;
+        this.lastFrameNanos = this.frameNanos;
+        this.frameNanos = 0;
+
+        // back off in proportion to the overrun, recover additively
+        if (this.lastFrameNanos > this.maxFrameNanos) {
+            this.load = Math.max(this.minLoad, this.load * 0.9 * this.maxFrameNanos / this.lastFrameNanos);
+        } else {
+            this.load = Math.min(1, this.load + this.recoveryRate);
+        }
+        this.allocate();
+    }
+
+    private void allocate() {
+        List<Fire> active = new ArrayList<Fire>(this.fires.size());
+        double total = 0;
+        for (Fire fire : this.fires.keySet()) {
+            if (fire.activeFrame == this.previousFrame || fire.activeFrame == this.frame) {
+                active.add(fire);
+                total += fire.getWeight();
+            } else if (fire.activeFrame != Fire.NEVER_ACTIVE) {
+                fire.budgetShare = 0;
+            }
+        }
+        int budget = (int) (this.maxParticles * this.load);
+        this.activeCount = active.size();
+        this.allocated = 0;
+        for (Fire fire : active) {
+            int share = total > 0 ? (int) (budget * fire.getWeight() / total) : budget / active.size();
+            fire.budgetShare = share;
+            this.allocated += share;
+        }
+    }
+
+    public synchronized int getParticleCount() {
+        int count = 0;
+        for (Fire fire : this.fires.keySet()) {
+            count += fire.getParticleCount();
+        }
+        return count;
+    }
+
+    public synchronized int getFireCount() {
+        return this.fires.size();
+    }
+
+    public synchronized int getAllocated() {
+        return this.allocated;
+    }
+
+    /**
+     * @return the fraction of the particle budget currently handed out, below 1 while recovering from
+     * frames that exceeded the time budget
+     */
+    public synchronized double getLoad() {
+        return this.load;
+    }
+
+    public synchronized long getLastFrameNanos() {
+        return this.lastFrameNanos;
+    }
+
+    public synchronized int getMaxParticles() {
+        return this.maxParticles;
+    }
+
+    public synchronized void setMaxParticles(int maxParticles) {
+        this.maxParticles = maxParticles;
+    }
+
+    public synchronized long getMaxFrameNanos() {
+        return this.maxFrameNanos;
+    }
+
+    public synchronized void setMaxFrameNanos(long maxFrameNanos) {
+        this.maxFrameNanos = maxFrameNanos;
+    }
+
+    public synchronized void setMinLoad(double minLoad) {
+        this.minLoad = minLoad;
+    }
+
+    public synchronized void setRecoveryRate(double recoveryRate) {
+        this.recoveryRate = recoveryRate;
+    }
+
+}
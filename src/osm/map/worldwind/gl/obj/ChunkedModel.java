@@ -0,0 +1,645 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.geom.Matrix;
+import gov.nasa.worldwind.geom.Sphere;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.layers.Layer;
+import gov.nasa.worldwind.render.DrawContext;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLProfile;
+import osm.map.worldwind.gl.RenderStats;
+import osm.map.worldwind.gl.obj.MtlLoader.Material;
+
+/**
+ * A model split into an octree of chunks by ChunkedModelBuilder, streamed from disk as the view needs it.
+ * Each frame the tree is walked from the root: nodes outside the frustum are skipped, and a node is refined
+ * into its children when its geometric error projects to more than maxScreenError pixels and all its
+ * visible children are ready, otherwise it is drawn itself. Missing chunks are requested from a prioritized
+ * loader queue, largest screen error first, and the children of nodes close to refinement are prefetched.
+ *
+ * Decoded chunks are kept in an LRU cache bounded by maxResidentBytes and their GPU copies in an LRU bounded
+ * by maxGpuBytes, so memory use does not depend on the size of the model. Nodes drawn in the current frame
+ * are never evicted. Textures are shared by all chunks and not part of the budgets.
+ */
+public class ChunkedModel {
+
+	private static final Logger logger = Logger.getLogger(ChunkedModel.class.getName());
+	private static final Map<String, ChunkedModel> models = new HashMap<>();
+	private static final int MAX_PENDING = 64;
+	private static final int STALE_FRAMES = 30; // requests not touched for longer are dropped
+
+	private static volatile long maxResidentBytes = 256L << 20;
+	private static volatile long maxGpuBytes = 512L << 20;
+	private static volatile double maxScreenError = 2;
+	private static volatile double prefetchFactor = 2;
+	private static volatile int maxUploadsPerFrame = 4;
+
+	private static final ThreadPoolExecutor loader = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+		new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ChunkedModel loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	static {
+		loader.allowCoreThreadTimeOut(true);
+	}
+
+	private final File directory;
+	private final String basePath;
+	private final List<MtlLoader> mtlLoaders = new ArrayList<>();
+	private final Map<String, Material> materials = new HashMap<>();
+	private final List<Node> nodes = new ArrayList<>();
+	private Node root;
+
+	// decoded chunks, least recently used first
+	private final LinkedHashMap<Node, List<MeshBatch>> resident = new LinkedHashMap<>(16, 0.75f, true);
+	private long residentBytes;
+	private final Set<Node> pending = new HashSet<>();
+	private final Map<String, TextureData> textureData = new HashMap<>();
+	private volatile GLProfile glProfile;
+	private volatile Layer layer; // notified when a chunk arrives, to redraw
+
+	// GL thread only
+	private final LinkedHashMap<Node, Chunk> gpu = new LinkedHashMap<>(16, 0.75f, true);
+	private long gpuBytes;
+	private final Map<String, Texture> textures = new HashMap<>();
+	private GLContext context;
+	private volatile long frame;
+	private long frameTimeStamp = -1;
+	private int uploads;
+
+	static class Node {
+
+		final int id;
+		final Node parent;
+		final int level;
+		final float error; // model units, 0 for leaves
+		final int triangles;
+		final float[] min, max;
+		final Vec4 center;
+		final double radius;
+		final List<Node> children = new ArrayList<>();
+		volatile long lastUsed = -1;
+
+		Node(int id, Node parent, int level, float error, int triangles, float[] min, float[] max) {
+			this.id = id;
+			this.parent = parent;
+			this.level = level;
+			this.error = error;
+			this.triangles = triangles;
+			this.min = min;
+			this.max = max;
+			this.center = new Vec4((min[0] + max[0]) / 2, (min[1] + max[1]) / 2, (min[2] + max[2]) / 2);
+			double dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+			this.radius = Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
+		}
+	}
+
+	// the GPU copy of a chunk, a display list or a ShaderMesh
+	private static class Chunk {
+
+		int list;
+		int listTextureBinds, triangles;
+		ShaderMesh mesh;
+		long bytes;
+	}
+
+	private class Load implements Runnable, Comparable<Load> {
+
+		final Node node;
+		final double priority;
+
+		Load(Node node, double priority) {
+			this.node = node;
+			this.priority = priority;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (frame - node.lastUsed > STALE_FRAMES) {
+					return;
+				}
+				List<MeshBatch> batches = read(node);
+				decodeTextures(batches);
+				long bytes = 0;
+				for (MeshBatch batch : batches) {
+					bytes += batch.getByteCount();
+				}
+				synchronized (resident) {
+					List<MeshBatch> old = resident.put(node, batches);
+					if (old != null) {
+						for (MeshBatch batch : old) {
+							bytes -= batch.getByteCount();
+						}
+					}
+					residentBytes += bytes;
+					evictResident();
+				}
+				Layer l = layer;
+				if (l != null) {
+					l.firePropertyChange(AVKey.LAYER, null, l);
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Could not load chunk " + node.id + " of " + directory, e);
+			} finally {
+				synchronized (pending) {
+					pending.remove(node);
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(Load other) {
+			return Double.compare(other.priority, priority);
+		}
+	}
+
+	private ChunkedModel(File directory) throws IOException {
+		this.directory = directory;
+		String base = ".";
+		File index = new File(directory, ChunkedModelBuilder.INDEX);
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				switch (parts[0]) {
+					case "version":
+						if (Integer.parseInt(parts[1]) != ChunkedModelBuilder.VERSION) {
+							throw new IOException("Unsupported chunk version " + parts[1] + " in " + index);
+						}
+						break;
+					case "base":
+						base = line.substring(4).trim();
+						break;
+					case "mtllib":
+						mtlLoaders.add(new MtlLoader(resolve(base), line.substring(6).trim()));
+						break;
+					case "node":
+						int parent = Integer.parseInt(parts[2]);
+						Node node = new Node(Integer.parseInt(parts[1]), parent >= 0 ? nodes.get(parent) : null,
+							Integer.parseInt(parts[3]), Float.parseFloat(parts[4]), Integer.parseInt(parts[5]),
+							new float[]{Float.parseFloat(parts[6]), Float.parseFloat(parts[7]), Float.parseFloat(parts[8])},
+							new float[]{Float.parseFloat(parts[9]), Float.parseFloat(parts[10]), Float.parseFloat(parts[11])});
+						if (node.id != nodes.size()) {
+							throw new IOException("Nodes out of order in " + index);
+						}
+						nodes.add(node);
+						if (node.parent != null) {
+							node.parent.children.add(node);
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			throw new IOException("Malformed chunk index " + index, e);
+		}
+		this.basePath = resolve(base);
+		this.root = nodes.isEmpty() ? null : nodes.get(0);
+	}
+
+	// the base directory from the index, relative to the chunks if it is there
+	private String resolve(String base) {
+		File relative = new File(directory, base);
+		return relative.isDirectory() ? relative.getPath() : base;
+	}
+
+	/**
+	 * @return whether the model source is a directory written by ChunkedModelBuilder
+	 */
+	public static boolean isChunked(String modelSource) {
+		return modelSource.endsWith(ChunkedModelBuilder.SUFFIX);
+	}
+
+	/**
+	 * @return the model in the directory, opened on first use, or null if it cannot be read
+	 */
+	public static ChunkedModel get(String modelSource) {
+		synchronized (models) {
+			if (models.containsKey(modelSource)) {
+				return models.get(modelSource);
+			}
+			ChunkedModel model = null;
+			try {
+				model = new ChunkedModel(new File(modelSource));
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Could not open chunked model " + modelSource, e);
+			}
+			models.put(modelSource, model);
+			return model;
+		}
+	}
+
+	public static void reload() {
+		synchronized (models) {
+			models.clear();
+		}
+	}
+
+	public float getMaxDimension() {
+		if (root == null) {
+			return 1;
+		}
+		return Math.max(root.max[0] - root.min[0], Math.max(root.max[1] - root.min[1], root.max[2] - root.min[2]));
+	}
+
+	public int getNodeCount() {
+		return nodes.size();
+	}
+
+	public long getResidentBytes() {
+		synchronized (resident) {
+			return residentBytes;
+		}
+	}
+
+	public long getGpuBytes() {
+		return gpuBytes;
+	}
+
+	private List<MeshBatch> read(Node node) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(new File(directory, node.id + ChunkedModelBuilder.CHUNK_SUFFIX).toPath()));
+		if (b.getInt() != ChunkedModelBuilder.MAGIC || b.getInt() != ChunkedModelBuilder.VERSION) {
+			throw new IOException("Not a version " + ChunkedModelBuilder.VERSION + " chunk");
+		}
+		int count = b.getInt();
+		List<MeshBatch> batches = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[b.getInt()];
+			b.get(name);
+			batches.add(MeshBatch.read(b, getMaterial(new String(name, StandardCharsets.UTF_8))));
+		}
+		return batches;
+	}
+
+	private Material getMaterial(String name) {
+		synchronized (materials) {
+			Material mtl = materials.get(name);
+			if (mtl == null) {
+				for (MtlLoader mtlLoader : mtlLoaders) {
+					if (mtlLoader.materials != null && (mtl = mtlLoader.getMtl(name)) != null) {
+						break;
+					}
+				}
+				if (mtl == null) {
+					mtl = new Material();
+					mtl.name = name;
+					mtl.Kd = new float[]{0.8f, 0.8f, 0.8f};
+				}
+				materials.put(name, mtl);
+			}
+			return mtl;
+		}
+	}
+
+	private void decodeTextures(List<MeshBatch> batches) {
+		GLProfile profile = glProfile;
+		if (profile == null) {
+			return; // decoded when uploading instead
+		}
+		for (MeshBatch batch : batches) {
+			String map_Kd = batch.material.map_Kd;
+			if (map_Kd == null) {
+				continue;
+			}
+			synchronized (textureData) {
+				if (textureData.containsKey(map_Kd)) {
+					continue;
+				}
+				textureData.put(map_Kd, decodeTexture(profile, map_Kd));
+			}
+		}
+	}
+
+	private TextureData decodeTexture(GLProfile profile, String map_Kd) {
+		String[] tokens = map_Kd.split("\\.");
+		String suffix = tokens.length > 1 ? tokens[tokens.length - 1] : null;
+		try (InputStream is = getInputStream(map_Kd)) {
+			return is != null ? TextureIO.newTextureData(profile, is, false, suffix) : null;
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "Could not read texture " + map_Kd, e);
+			return null;
+		}
+	}
+
+	private InputStream getInputStream(String path) throws IOException {
+		return ModelSource.open(basePath + "/" + path);
+	}
+
+	private void evictResident() {
+		Iterator<Map.Entry<Node, List<MeshBatch>>> it = resident.entrySet().iterator();
+		while (residentBytes > maxResidentBytes && resident.size() > 1 && it.hasNext()) {
+			Map.Entry<Node, List<MeshBatch>> entry = it.next();
+			for (MeshBatch batch : entry.getValue()) {
+				residentBytes -= batch.getByteCount();
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Selects the nodes to draw for the view and draws them in the current model view, which must be the
+	 * transform.
+	 *
+	 * @param dc
+	 * @param transform from the model to World Wind model coordinates
+	 * @param scale the uniform scale in the transform
+	 * @param shader the shader to draw with, or null for display lists
+	 * @param lights the light directions, for the shader
+	 * @param useLighting
+	 * @param stats the stats to report into, or null
+	 */
+	void render(DrawContext dc, Matrix transform, double scale, ObjShader shader, Vec4[] lights, boolean useLighting,
+		RenderStats stats) {
+		if (root == null) {
+			return;
+		}
+		GL2 gl = dc.getGL().getGL2();
+		if (context != gl.getContext()) {
+			// the GPU copies of another context cannot be used or deleted here
+			gpu.clear();
+			gpuBytes = 0;
+			textures.clear();
+			context = gl.getContext();
+			glProfile = gl.getGLProfile();
+		}
+		if (dc.getFrameTimeStamp() != frameTimeStamp) {
+			frameTimeStamp = dc.getFrameTimeStamp();
+			frame++;
+			uploads = 0;
+		}
+		layer = dc.getCurrentLayer();
+
+		List<Node> selection = new ArrayList<>();
+		select(dc, gl, root, transform, scale, shader != null, selection);
+
+		int binds = 0, triangles = 0;
+		if (shader != null) {
+			shader.begin(gl, lights, useLighting);
+		}
+		for (Node node : selection) {
+			Chunk chunk = gpu.get(node);
+			if (shader != null) {
+				chunk.mesh.draw(gl, shader);
+				binds += chunk.mesh.getTextureBinds();
+			} else {
+				gl.glCallList(chunk.list);
+				binds += chunk.listTextureBinds;
+			}
+			triangles += chunk.triangles;
+		}
+		if (shader != null) {
+			shader.end(gl);
+		}
+		evictGpu(gl);
+		if (stats != null) {
+			stats.add(RenderStats.Counter.TRIANGLES, triangles);
+			stats.add(RenderStats.Counter.TEXTURE_BINDS, binds);
+		}
+	}
+
+	private void select(DrawContext dc, GL2 gl, Node node, Matrix transform, double scale, boolean shader,
+		List<Node> selection) {
+		Vec4 center = node.center.transformBy4(transform);
+		double radius = node.radius * scale;
+		if (!dc.getView().getFrustumInModelCoordinates().intersects(new Sphere(center, Math.max(radius, 1e-6)))) {
+			return;
+		}
+		node.lastUsed = frame;
+		double error = screenError(dc, node, center, radius, scale);
+		if (node.children.isEmpty() || error <= maxScreenError) {
+			if (ready(gl, node, shader)) {
+				selection.add(node);
+			} else {
+				request(node, error);
+			}
+			if (!node.children.isEmpty() && error * prefetchFactor > maxScreenError) {
+				for (Node child : node.children) {
+					child.lastUsed = frame;
+					request(child, error / prefetchFactor);
+				}
+			}
+			return;
+		}
+
+		// refine only when every visible child can be drawn, to not leave holes
+		boolean childrenReady = true;
+		for (Node child : node.children) {
+			Vec4 c = child.center.transformBy4(transform);
+			if (dc.getView().getFrustumInModelCoordinates().intersects(new Sphere(c, Math.max(child.radius * scale, 1e-6)))
+				&& !ready(gl, child, shader)) {
+				child.lastUsed = frame;
+				request(child, error);
+				childrenReady = false;
+			}
+		}
+		if (childrenReady) {
+			for (Node child : node.children) {
+				select(dc, gl, child, transform, scale, shader, selection);
+			}
+		} else if (ready(gl, node, shader)) {
+			selection.add(node);
+		} else {
+			request(node, error);
+		}
+	}
+
+	private static double screenError(DrawContext dc, Node node, Vec4 center, double radius, double scale) {
+		double distance = center.distanceTo3(dc.getView().getEyePoint()) - radius;
+		if (distance <= 0) {
+			return Double.MAX_VALUE;
+		}
+		double pixelSize = dc.getView().computePixelSizeAtDistance(distance);
+		return pixelSize > 0 ? node.error * scale / pixelSize : Double.MAX_VALUE;
+	}
+
+	/**
+	 * @return whether the node is on the GPU, uploading it if it is resident and the frame's uploads allow
+	 */
+	private boolean ready(GL2 gl, Node node, boolean shader) {
+		Chunk chunk = gpu.get(node);
+		if (chunk != null && (shader ? chunk.mesh != null : chunk.list != 0)) {
+			return true;
+		}
+		List<MeshBatch> batches;
+		synchronized (resident) {
+			batches = resident.get(node);
+		}
+		if (batches == null || uploads >= maxUploadsPerFrame) {
+			return false;
+		}
+		uploads++;
+		List<MeshBatch> textured = new ArrayList<>(batches.size());
+		for (MeshBatch batch : batches) {
+			textured.add(batch.withTexture(getTexture(batch.material.map_Kd)));
+		}
+		if (chunk == null) {
+			chunk = new Chunk();
+			gpu.put(node, chunk);
+		}
+		if (shader) {
+			chunk.mesh = new ShaderMesh(gl, textured);
+			chunk.triangles = chunk.mesh.getTriangleCount();
+			chunk.bytes += chunk.mesh.getByteCount();
+			gpuBytes += chunk.mesh.getByteCount();
+		} else {
+			chunk.list = gl.glGenLists(1);
+			gl.glNewList(chunk.list, GL2.GL_COMPILE);
+			int[] counts = ObjLoader.drawBatches(gl, textured);
+			gl.glEndList();
+			chunk.listTextureBinds = counts[0];
+			chunk.triangles = counts[1];
+			long bytes = 0;
+			for (MeshBatch batch : batches) {
+				bytes += batch.getByteCount();
+			}
+			chunk.bytes += bytes;
+			gpuBytes += bytes;
+		}
+		return true;
+	}
+
+	private Texture getTexture(String map_Kd) {
+		if (map_Kd == null) {
+			return null;
+		}
+		if (!textures.containsKey(map_Kd)) {
+			TextureData data;
+			synchronized (textureData) {
+				data = textureData.get(map_Kd);
+				if (data == null && !textureData.containsKey(map_Kd)) {
+					data = decodeTexture(glProfile, map_Kd);
+					textureData.put(map_Kd, data);
+				}
+			}
+			textures.put(map_Kd, data != null ? TextureIO.newTexture(data) : null);
+		}
+		return textures.get(map_Kd);
+	}
+
+	private void request(Node node, double priority) {
+		synchronized (resident) {
+			if (resident.containsKey(node)) {
+				return;
+			}
+		}
+		synchronized (pending) {
+			if (pending.size() >= MAX_PENDING || !pending.add(node)) {
+				return;
+			}
+		}
+		loader.execute(new Load(node, priority));
+	}
+
+	private void evictGpu(GL2 gl) {
+		Iterator<Map.Entry<Node, Chunk>> it = gpu.entrySet().iterator();
+		while (gpuBytes > maxGpuBytes && it.hasNext()) {
+			Map.Entry<Node, Chunk> entry = it.next();
+			if (entry.getKey().lastUsed == frame) {
+				continue; // in use
+			}
+			Chunk chunk = entry.getValue();
+			if (chunk.list != 0) {
+				gl.glDeleteLists(chunk.list, 1);
+			}
+			if (chunk.mesh != null) {
+				chunk.mesh.dispose(gl);
+			}
+			gpuBytes -= chunk.bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Draws the bounds of the whole model, for picking.
+	 */
+	void drawBounds(GL2 gl) {
+		if (root == null) {
+			return;
+		}
+		float[] a = root.min, b = root.max;
+		float[] corner = new float[3];
+		gl.glBegin(GL2.GL_QUADS);
+		for (int axis = 0; axis < 3; axis++) {
+			int u = (axis + 1) % 3, v = (axis + 2) % 3;
+			for (int side = 0; side < 2; side++) {
+				for (int k = 0; k < 4; k++) {
+					corner[axis] = side == 0 ? a[axis] : b[axis];
+					corner[u] = k == 1 || k == 2 ? b[u] : a[u];
+					corner[v] = k >= 2 ? b[v] : a[v];
+					gl.glVertex3f(corner[0], corner[1], corner[2]);
+				}
+			}
+		}
+		gl.glEnd();
+	}
+
+	/**
+	 * Sets the memory budgets of all chunked models, for decoded chunks on the heap and their GPU copies.
+	 */
+	public static void setBudgets(long maxResidentBytes, long maxGpuBytes) {
+		ChunkedModel.maxResidentBytes = maxResidentBytes;
+		ChunkedModel.maxGpuBytes = maxGpuBytes;
+	}
+
+	/**
+	 * Sets the screen-space error in pixels above which nodes are refined.
+	 */
+	public static void setMaxScreenError(double maxScreenError) {
+		ChunkedModel.maxScreenError = maxScreenError;
+	}
+
+	/**
+	 * Sets how early the children of drawn nodes are prefetched: when the node's screen error times the
+	 * factor exceeds the maximum.
+	 */
+	public static void setPrefetchFactor(double prefetchFactor) {
+		ChunkedModel.prefetchFactor = prefetchFactor;
+	}
+
+	/**
+	 * Sets how many chunks may be uploaded to the GPU per frame.
+	 */
+	public static void setMaxUploadsPerFrame(int maxUploadsPerFrame) {
+		ChunkedModel.maxUploadsPerFrame = maxUploadsPerFrame;
+	}
+
+}
@@ -0,0 +1,419 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import osm.map.worldwind.gl.obj.MtlLoader.Material;
+
+/**
+ * Splits a large OBJ model into an octree of chunks for streaming with ChunkedModel. Triangles go to the
+ * octant of their centroid until a node holds at most maxTriangles; every inner node gets a simplified copy
+ * of its subtree made by vertex clustering, with the size of a cluster cell as its geometric error.
+ *
+ * The output directory, whose name ends in .chunks, holds a text index of the nodes and one binary file per
+ * node. Materials and textures stay in the source directory and are referenced from the index. An
+ * ObjRenderable whose model source is the directory streams the model.
+ *
+ * Run with key=value arguments: obj, dir (default: next to the OBJ), centered, flip, maxTriangles, maxDepth.
+ */
+public class ChunkedModelBuilder {
+
+	static final String SUFFIX = ".chunks";
+	static final String INDEX = "index";
+	static final String CHUNK_SUFFIX = ".chunk";
+	static final int MAGIC = 0x4f424a43; // OBJC
+	static final int VERSION = 1;
+
+	private int maxTriangles = 32768;
+	private int maxDepth = 10;
+
+	// the triangles of the model, as a batch and the first of its three vertices there
+	private List<MeshBatch> batches;
+	private int[] triangleBatch;
+	private int[] triangleFirst;
+	private float[] centroids;
+	private int nodes;
+	private long bytes;
+
+	public void setMaxTriangles(int maxTriangles) {
+		this.maxTriangles = Math.max(1, maxTriangles);
+	}
+
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = Math.max(0, maxDepth);
+	}
+
+	/**
+	 * Builds the chunks of the model.
+	 *
+	 * @param objPath
+	 * @param directory where to write the chunks, must end in .chunks
+	 * @param centered centers and scales the model to unit size, as ObjRenderable's centerit does
+	 * @param flipTextureVertically
+	 * @return a summary of the output
+	 * @throws IOException
+	 */
+	public String build(String objPath, File directory, boolean centered, boolean flipTextureVertically) throws IOException {
+		if (!directory.getName().endsWith(SUFFIX)) {
+			throw new IllegalArgumentException("The directory name must end in " + SUFFIX + ": " + directory);
+		}
+		ObjLoader loader = ObjLoader.loadGeometry(objPath, centered, flipTextureVertically);
+		batches = loader.buildMeshBatches();
+		int count = 0;
+		for (MeshBatch batch : batches) {
+			count += batch.getTriangleCount();
+		}
+		triangleBatch = new int[count];
+		triangleFirst = new int[count];
+		centroids = new float[3 * count];
+		int[] all = new int[count];
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		int t = 0;
+		for (int b = 0; b < batches.size(); b++) {
+			MeshBatch batch = batches.get(b);
+			for (int v = 0; v + 2 < batch.vertexCount; v += 3) {
+				triangleBatch[t] = b;
+				triangleFirst[t] = v;
+				for (int i = 0; i < 3; i++) {
+					float sum = 0;
+					for (int k = 0; k < 3; k++) {
+						float p = batch.positions[3 * (v + k) + i];
+						sum += p;
+						min[i] = Math.min(min[i], p);
+						max[i] = Math.max(max[i], p);
+					}
+					centroids[3 * t + i] = sum / 3;
+				}
+				all[t] = t;
+				t++;
+			}
+		}
+		// octree cells are cubes
+		float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+		float[] cubeMax = {min[0] + size, min[1] + size, min[2] + size};
+
+		directory.mkdirs();
+		nodes = 0;
+		bytes = 0;
+		try (PrintWriter index = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(new File(directory, INDEX)), StandardCharsets.UTF_8))) {
+			index.println("# chunked OBJ model, see ChunkedModelBuilder");
+			index.println("version " + VERSION);
+			index.println("base " + basePath(loader.basePath, directory));
+			for (String mtlLib : loader.mtlLibs) {
+				index.println("mtllib " + mtlLib);
+			}
+			index.println("# node id parent level error triangles minx miny minz maxx maxy maxz");
+			if (count > 0) {
+				build(all, count, min, cubeMax, -1, 0, index, directory);
+			}
+		}
+		return String.format("%d triangles in %d nodes, %d bytes", count, nodes, bytes);
+	}
+
+	// the source directory relative to the chunks if it is a directory on disk, else as given
+	private static String basePath(String basePath, File directory) {
+		File base = new File(basePath.isEmpty() ? "." : basePath);
+		if (!base.isDirectory()) {
+			return basePath;
+		}
+		try {
+			return directory.getCanonicalFile().toPath().relativize(base.getCanonicalFile().toPath()).toString()
+				.replace('\\', '/');
+		} catch (IOException | IllegalArgumentException e) {
+			return base.getAbsolutePath().replace('\\', '/');
+		}
+	}
+
+	private void build(int[] triangles, int count, float[] cubeMin, float[] cubeMax, int parent, int level,
+		PrintWriter index, File directory) throws IOException {
+		int id = nodes++;
+		boolean leaf = count <= maxTriangles || level >= maxDepth;
+		List<MeshBatch> geometry;
+		float error = 0;
+		if (leaf) {
+			geometry = collect(triangles, count);
+		} else {
+			int cells = Math.max(1, (int) Math.sqrt(maxTriangles / 2.0));
+			while (true) {
+				geometry = cluster(triangles, count, cubeMin, cubeMax[0] - cubeMin[0], cells);
+				if (cells == 1 || triangleCount(geometry) <= maxTriangles) {
+					break;
+				}
+				cells = Math.max(1, cells * 2 / 3);
+			}
+			error = (float) ((cubeMax[0] - cubeMin[0]) / cells * Math.sqrt(3));
+		}
+
+		// the bounds of the subtree, which contain the simplified geometry too
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int n = 0; n < count; n++) {
+			MeshBatch batch = batches.get(triangleBatch[triangles[n]]);
+			int first = triangleFirst[triangles[n]];
+			for (int k = 0; k < 9; k++) {
+				float p = batch.positions[3 * first + k];
+				min[k % 3] = Math.min(min[k % 3], p);
+				max[k % 3] = Math.max(max[k % 3], p);
+			}
+		}
+		index.println(String.format("node %d %d %d %s %d %s %s %s %s %s %s", id, parent, level, error,
+			triangleCount(geometry), min[0], min[1], min[2], max[0], max[1], max[2]));
+		write(new File(directory, id + CHUNK_SUFFIX), geometry);
+		if (leaf) {
+			return;
+		}
+
+		float half = (cubeMax[0] - cubeMin[0]) / 2;
+		int[] octants = new int[count];
+		int[] sizes = new int[8];
+		for (int n = 0; n < count; n++) {
+			int t = triangles[n];
+			int octant = 0;
+			for (int i = 0; i < 3; i++) {
+				if (centroids[3 * t + i] >= cubeMin[i] + half) {
+					octant |= 1 << i;
+				}
+			}
+			octants[n] = octant;
+			sizes[octant]++;
+		}
+		for (int octant = 0; octant < 8; octant++) {
+			if (sizes[octant] == 0) {
+				continue;
+			}
+			int[] part = new int[sizes[octant]];
+			int p = 0;
+			for (int n = 0; n < count; n++) {
+				if (octants[n] == octant) {
+					part[p++] = triangles[n];
+				}
+			}
+			float[] min0 = new float[3];
+			float[] max0 = new float[3];
+			for (int i = 0; i < 3; i++) {
+				min0[i] = (octant & (1 << i)) != 0 ? cubeMin[i] + half : cubeMin[i];
+				max0[i] = min0[i] + half;
+			}
+			build(part, part.length, min0, max0, id, level + 1, index, directory);
+		}
+	}
+
+	private static int triangleCount(List<MeshBatch> geometry) {
+		int count = 0;
+		for (MeshBatch batch : geometry) {
+			count += batch.getTriangleCount();
+		}
+		return count;
+	}
+
+	// the triangles as they are, one batch per material
+	private List<MeshBatch> collect(int[] triangles, int count) {
+		Map<Material, MeshBatch> byMaterial = new LinkedHashMap<>();
+		Vertex vertex = new Vertex();
+		for (int n = 0; n < count; n++) {
+			MeshBatch source = batches.get(triangleBatch[triangles[n]]);
+			MeshBatch target = batchOf(byMaterial, source);
+			for (int k = 0; k < 3; k++) {
+				vertex.read(source, triangleFirst[triangles[n]] + k);
+				vertex.addTo(target);
+			}
+		}
+		return new ArrayList<>(byMaterial.values());
+	}
+
+	/**
+	 * Vertex clustering: snaps every vertex to the average of the vertices of its material in the same grid
+	 * cell, drops the triangles that collapse and duplicates.
+	 */
+	private List<MeshBatch> cluster(int[] triangles, int count, float[] origin, float size, int cells) {
+		float cell = size / cells;
+		Map<Material, Map<Long, Integer>> cellIndices = new IdentityHashMap<>();
+		Map<Material, List<Vertex>> representatives = new IdentityHashMap<>();
+		Map<Material, List<int[]>> clustered = new LinkedHashMap<>();
+		Map<Material, Set<List<Integer>>> seen = new IdentityHashMap<>();
+		int[] corner = new int[3];
+		for (int n = 0; n < count; n++) {
+			MeshBatch source = batches.get(triangleBatch[triangles[n]]);
+			Material mtl = source.material;
+			Map<Long, Integer> indices = cellIndices.get(mtl);
+			if (indices == null) {
+				indices = new HashMap<>();
+				cellIndices.put(mtl, indices);
+				representatives.put(mtl, new ArrayList<Vertex>());
+				clustered.put(mtl, new ArrayList<int[]>());
+				seen.put(mtl, new HashSet<List<Integer>>());
+			}
+			List<Vertex> vertices = representatives.get(mtl);
+			for (int k = 0; k < 3; k++) {
+				int v = triangleFirst[triangles[n]] + k;
+				long key = 0;
+				for (int i = 0; i < 3; i++) {
+					int c = (int) ((source.positions[3 * v + i] - origin[i]) / cell);
+					key = key * cells + Math.max(0, Math.min(cells - 1, c));
+				}
+				Integer index = indices.get(key);
+				if (index == null) {
+					index = vertices.size();
+					indices.put(key, index);
+					Vertex vertex = new Vertex();
+					vertex.read(source, v);
+					vertices.add(vertex);
+				} else {
+					vertices.get(index).accumulate(source, v);
+				}
+				corner[k] = index;
+			}
+			if (corner[0] == corner[1] || corner[1] == corner[2] || corner[0] == corner[2]) {
+				continue;
+			}
+			// both windings are kept, only exact duplicates are dropped
+			int lowest = corner[0] < corner[1] ? (corner[0] < corner[2] ? 0 : 2) : (corner[1] < corner[2] ? 1 : 2);
+			List<Integer> key = Arrays.asList(corner[lowest], corner[(lowest + 1) % 3], corner[(lowest + 2) % 3]);
+			if (seen.get(mtl).add(key)) {
+				clustered.get(mtl).add(new int[]{corner[0], corner[1], corner[2]});
+			}
+		}
+		List<MeshBatch> result = new ArrayList<>();
+		for (Map.Entry<Material, List<int[]>> entry : clustered.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				continue;
+			}
+			List<Vertex> vertices = representatives.get(entry.getKey());
+			MeshBatch batch = null;
+			for (int[] triangle : entry.getValue()) {
+				for (int index : triangle) {
+					Vertex vertex = vertices.get(index);
+					if (batch == null) {
+						batch = new MeshBatch(entry.getKey(), null);
+					}
+					vertex.addAveragedTo(batch);
+				}
+			}
+			result.add(batch);
+		}
+		return result;
+	}
+
+	private static MeshBatch batchOf(Map<Material, MeshBatch> byMaterial, MeshBatch source) {
+		MeshBatch batch = byMaterial.get(source.material);
+		if (batch == null) {
+			batch = new MeshBatch(source.material, null);
+			byMaterial.put(source.material, batch);
+		}
+		return batch;
+	}
+
+	private static class Vertex {
+
+		final float[] position = new float[3];
+		final float[] normal = new float[3];
+		final float[] texCoord = new float[2];
+		final float[] color = new float[4];
+		boolean hasNormal, hasTexCoord, hasColor;
+		int count;
+
+		void read(MeshBatch batch, int v) {
+			System.arraycopy(batch.positions, 3 * v, position, 0, 3);
+			hasNormal = batch.normals != null;
+			if (hasNormal) {
+				System.arraycopy(batch.normals, 3 * v, normal, 0, 3);
+			}
+			hasTexCoord = batch.texCoords != null;
+			if (hasTexCoord) {
+				System.arraycopy(batch.texCoords, 2 * v, texCoord, 0, 2);
+			}
+			hasColor = batch.colors != null;
+			if (hasColor) {
+				System.arraycopy(batch.colors, 4 * v, color, 0, 4);
+			}
+			count = 1;
+		}
+
+		// sums positions and normals, the texture coordinate and color of the first vertex are kept
+		void accumulate(MeshBatch batch, int v) {
+			for (int i = 0; i < 3; i++) {
+				position[i] += batch.positions[3 * v + i];
+				if (hasNormal && batch.normals != null) {
+					normal[i] += batch.normals[3 * v + i];
+				}
+			}
+			count++;
+		}
+
+		void addTo(MeshBatch batch) {
+			batch.add(position, hasNormal ? normal : null, hasTexCoord ? texCoord : null, hasColor ? color : null, false);
+		}
+
+		void addAveragedTo(MeshBatch batch) {
+			float[] p = {position[0] / count, position[1] / count, position[2] / count};
+			float[] n = null;
+			if (hasNormal) {
+				double length = Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+				n = length > 0 ? new float[]{(float) (normal[0] / length), (float) (normal[1] / length),
+					(float) (normal[2] / length)} : normal;
+			}
+			batch.add(p, n, hasTexCoord ? texCoord : null, hasColor ? color : null, false);
+		}
+	}
+
+	private void write(File file, List<MeshBatch> geometry) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(geometry.size());
+			for (MeshBatch batch : geometry) {
+				byte[] name = (batch.material.name != null ? batch.material.name : "").getBytes(StandardCharsets.UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+				batch.write(out);
+			}
+			bytes += out.size();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		ChunkedModelBuilder builder = new ChunkedModelBuilder();
+		String obj = null;
+		File dir = null;
+		boolean centered = false, flip = false;
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2) {
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			switch (kv[0]) {
+				case "obj": obj = kv[1]; break;
+				case "dir": dir = new File(kv[1]); break;
+				case "centered": centered = Boolean.parseBoolean(kv[1]); break;
+				case "flip": flip = Boolean.parseBoolean(kv[1]); break;
+				case "maxTriangles": builder.setMaxTriangles(Integer.parseInt(kv[1])); break;
+				case "maxDepth": builder.setMaxDepth(Integer.parseInt(kv[1])); break;
+				default: throw new IllegalArgumentException("Unknown option " + kv[0]);
+			}
+		}
+		if (obj == null) {
+			throw new IllegalArgumentException("Missing obj=<path of the model>");
+		}
+		if (dir == null) {
+			dir = new File(obj.replaceFirst("\\.[oO][bB][jJ]$", "") + SUFFIX);
+		}
+		System.out.println(builder.build(obj, dir, centered, flip));
+	}
+
+}
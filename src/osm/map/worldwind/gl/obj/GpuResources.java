@@ -0,0 +1,154 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
+import gov.nasa.worldwind.cache.GpuResourceCache;
+import gov.nasa.worldwind.render.DrawContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.media.opengl.GL2;
+
+/**
+ * The display list, shader mesh and textures of one model in one GpuResourceCache, i.e. in one set of shared
+ * GL contexts. They are stored in the cache, which deletes them when it evicts them or when World Wind
+ * replaces the GL context, and are rebuilt on next use from the batches and texture data the ObjLoader
+ * retains, or from the spill file of a released model (see ObjLoader.Residency), without reading the model
+ * again. A display list or mesh whose textures were evicted is rebuilt too, as it refers to the deleted
+ * texture ids, even once they are uploaded again, as each upload is stored under a new key. Must be used in
+ * the thread with the GL context.
+ */
+class GpuResources {
+
+	private final ObjLoader model;
+	private final Object listKey = new Object();
+	private final Object meshKey = new Object();
+	private final Map<String, Object> textureKeys = new HashMap<>();
+	private final List<Object> listTextures = new ArrayList<>(); // the texture keys the display list binds
+	private final List<Object> meshTextures = new ArrayList<>();
+	private ShaderMesh shaderMesh; // valid while its buffers are in the cache
+
+	GpuResources(ObjLoader model) {
+		this.model = model;
+	}
+
+	/**
+	 * @return the display list of the model, compiled if it is not in the cache
+	 */
+	int getDisplayList(DrawContext dc) {
+		GpuResourceCache cache = dc.getGpuResourceCache();
+		int[] list = (int[]) cache.get(listKey);
+		if (list != null && !isResident(cache, listTextures)) {
+			cache.remove(listKey);
+			list = null;
+		}
+		if (list == null) {
+			GL2 gl = dc.getGL().getGL2();
+			List<MeshBatch> batches = textured(dc, model.buildMeshBatches(), listTextures);
+			LoadMetrics.Span event = model.metrics.begin(LoadMetrics.Phase.DISPLAY_LIST);
+			list = new int[]{gl.glGenLists(1), 1}; // id and range, as the cache deletes display lists
+			gl.glNewList(list[0], GL2.GL_COMPILE);
+			int[] counts = ObjLoader.drawBatches(gl, batches);
+			gl.glEndList();
+			model.metrics.end(event);
+			model.listTextureBinds = counts[0];
+			model.listTriangles = counts[1];
+			long bytes = 0;
+			for (MeshBatch batch : batches) {
+				bytes += batch.getByteCount();
+			}
+			cache.put(listKey, list, GpuResourceCache.DISPLAY_LISTS, Math.max(1, bytes));
+			model.uploaded();
+		}
+		return list[0];
+	}
+
+	/**
+	 * @return the model in GPU buffers for ObjShader, uploaded if they are not in the cache
+	 */
+	ShaderMesh getShaderMesh(DrawContext dc) {
+		GpuResourceCache cache = dc.getGpuResourceCache();
+		if (shaderMesh != null && (!cache.contains(meshKey) || !isResident(cache, meshTextures))) {
+			cache.remove(meshKey);
+			shaderMesh = null;
+		}
+		if (shaderMesh == null) {
+			GL2 gl = dc.getGL().getGL2();
+			QuantizedMesh quantized = model.getQuantizedMesh();
+			if (quantized != null && ShaderMesh.supportsQuantized(gl)) {
+				List<Texture> textures = new ArrayList<>();
+				meshTextures.clear();
+				for (QuantizedMesh.Part part : quantized.parts) {
+					textures.add(getTexture(dc, part.material.map_Kd, meshTextures));
+				}
+				LoadMetrics.Span event = model.metrics.begin(LoadMetrics.Phase.DISPLAY_LIST);
+				shaderMesh = new ShaderMesh(gl, quantized, textures);
+				model.metrics.end(event);
+			} else {
+				List<MeshBatch> batches = textured(dc, model.buildMeshBatches(), meshTextures);
+				LoadMetrics.Span event = model.metrics.begin(LoadMetrics.Phase.DISPLAY_LIST);
+				shaderMesh = new ShaderMesh(gl, batches);
+				model.metrics.end(event);
+			}
+			cache.put(meshKey, shaderMesh.getBuffers(), GpuResourceCache.VBO_BUFFERS,
+				Math.max(1, shaderMesh.getByteCount()));
+			model.uploaded();
+		}
+		return shaderMesh;
+	}
+
+	/**
+	 * @return the texture of a map_Kd in the cache, created from the retained texture data if needed, or null
+	 * if it has none
+	 */
+	Texture getTexture(DrawContext dc, String map_Kd) {
+		return getTexture(dc, map_Kd, null);
+	}
+
+	private Texture getTexture(DrawContext dc, String map_Kd, List<Object> used) {
+		if (map_Kd == null) {
+			return null;
+		}
+		GpuResourceCache cache = dc.getGpuResourceCache();
+		Object key = textureKeys.get(map_Kd);
+		Texture texture = key != null ? cache.getTexture(key) : null;
+		if (texture == null) {
+			TextureData data = model.getTextureData(map_Kd);
+			if (data == null) {
+				return null;
+			}
+			LoadMetrics.Span event = model.metrics.begin(LoadMetrics.Phase.TEXTURE_UPLOAD);
+			texture = TextureIO.newTexture(data);
+			model.metrics.end(event);
+			// a new key per upload, see the class comment
+			key = new Object();
+			textureKeys.put(map_Kd, key);
+			cache.put(key, texture);
+		}
+		if (used != null && !used.contains(key)) {
+			used.add(key);
+		}
+		return texture;
+	}
+
+	private List<MeshBatch> textured(DrawContext dc, List<MeshBatch> batches, List<Object> used) {
+		used.clear();
+		List<MeshBatch> textured = new ArrayList<>(batches.size());
+		for (MeshBatch batch : batches) {
+			textured.add(batch.withTexture(getTexture(dc, batch.material.map_Kd, used)));
+		}
+		return textured;
+	}
+
+	private static boolean isResident(GpuResourceCache cache, List<Object> textures) {
+		for (Object key : textures) {
+			if (!cache.contains(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
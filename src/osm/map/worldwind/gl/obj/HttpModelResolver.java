@@ -0,0 +1,387 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the files of models from http and https URLs into a local disk cache.
+ *
+ * The cache is content addressed: a download is stored under the SHA-1 of its bytes, so files shared by
+ * models, e.g. common textures, are stored once, and a small index file per URL, named by the SHA-1 of the
+ * URL, records its content and validators. A cached URL is revalidated with a conditional request
+ * (If-None-Match with its ETag, If-Modified-Since with its Last-Modified) once it is older than the max age
+ * in this session; a 304 answer keeps the cached content, and so does a failed request, to work offline.
+ *
+ * At most maxConnections requests run at a time, prefetches (e.g. the textures of an MTL) in parallel on a
+ * pool of as many daemon threads. Once the request budget is spent, only cached content is served.
+ */
+public class HttpModelResolver implements ModelResolver {
+
+	private static final Logger logger = Logger.getLogger(HttpModelResolver.class.getName());
+	private static final String INDEX_SUFFIX = ".url";
+
+	private final File cacheDirectory;
+	private final ConcurrentHashMap<String, Fetch> fetches = new ConcurrentHashMap<>(); // by URL, this session
+	private final Semaphore connections;
+	private final ThreadPoolExecutor prefetcher;
+	private volatile long maxAge = 300000; // milliseconds a fetch is trusted before revalidating
+	private volatile long requestBudget = Long.MAX_VALUE;
+	private volatile int connectTimeout = 10000, readTimeout = 30000; // milliseconds
+	private final AtomicLong requests = new AtomicLong(), notModified = new AtomicLong(),
+		downloadedBytes = new AtomicLong(), cacheHits = new AtomicLong();
+
+	private static class Fetch {
+
+		final FutureTask<File> task;
+		final long started = System.currentTimeMillis();
+
+		Fetch(FutureTask<File> task) {
+			this.task = task;
+		}
+	}
+
+	/**
+	 * @param cacheDirectory created if needed
+	 * @param maxConnections requests at most running at a time
+	 */
+	public HttpModelResolver(File cacheDirectory, int maxConnections) {
+		this.cacheDirectory = cacheDirectory;
+		connections = new Semaphore(maxConnections, true);
+		prefetcher = new ThreadPoolExecutor(maxConnections, maxConnections, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HttpModelResolver prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		prefetcher.allowCoreThreadTimeOut(true);
+	}
+
+	public HttpModelResolver(File cacheDirectory) {
+		this(cacheDirectory, 4);
+	}
+
+	@Override
+	public InputStream open(String path) throws IOException {
+		File file = getFile(path);
+		return file != null ? new FileInputStream(file) : null;
+	}
+
+	@Override
+	public boolean exists(String path) throws IOException {
+		return getFile(path) != null;
+	}
+
+	@Override
+	public File getFile(String path) throws IOException {
+		String url = toUrl(path);
+		if (url == null) {
+			return null;
+		}
+		Fetch fetch = fetch(url);
+		fetch.task.run(); // unless a prefetch runs or ran it
+		try {
+			return fetch.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted fetching " + url, e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public void prefetch(Collection<String> paths) {
+		for (String path : paths) {
+			String url = toUrl(path);
+			if (url != null) {
+				Fetch fetch = fetch(url);
+				if (!fetch.task.isDone()) {
+					prefetcher.execute(fetch.task);
+				}
+			}
+		}
+	}
+
+	// the fetch of a URL in this session, a new one if there is none or it is too old
+	private Fetch fetch(final String url) {
+		while (true) {
+			Fetch fetch = fetches.get(url);
+			if (fetch != null && (!fetch.task.isDone() || System.currentTimeMillis() - fetch.started < maxAge
+				&& !isFailed(fetch))) {
+				return fetch;
+			}
+			Fetch next = new Fetch(new FutureTask<>(new Callable<File>() {
+				@Override
+				public File call() throws IOException {
+					return download(url);
+				}
+			}));
+			if (fetch == null ? fetches.putIfAbsent(url, next) == null : fetches.replace(url, fetch, next)) {
+				return next;
+			}
+		}
+	}
+
+	// failed fetches are retried rather than kept for the max age
+	private static boolean isFailed(Fetch fetch) {
+		try {
+			fetch.task.get();
+			return false;
+		} catch (InterruptedException | ExecutionException e) {
+			return true;
+		}
+	}
+
+	// the URL of a path, normalized, or null if it is not http
+	private static String toUrl(String path) {
+		String lower = path.toLowerCase();
+		if (!lower.startsWith("http://") && !lower.startsWith("https://")) {
+			return null;
+		}
+		try {
+			URL url = new URL(path);
+			return new URI(url.getProtocol(), url.getAuthority(), url.getPath(), url.getQuery(), null).normalize()
+				.toASCIIString();
+		} catch (IOException | URISyntaxException e) {
+			return null;
+		}
+	}
+
+	// validates or downloads the content of a URL, null if the server does not have it
+	private File download(String url) throws IOException {
+		File index = new File(cacheDirectory, sha1(url.getBytes(StandardCharsets.UTF_8)) + INDEX_SUFFIX);
+		Properties cached = new Properties();
+		File content = null;
+		if (index.isFile()) {
+			try (InputStream is = new FileInputStream(index)) {
+				cached.load(is);
+			}
+			content = new File(cacheDirectory, cached.getProperty("content", ""));
+			if (!url.equals(cached.getProperty("url")) || !content.isFile()) {
+				cached.clear();
+				content = null;
+			}
+		}
+		if (requests.incrementAndGet() > requestBudget) {
+			requests.decrementAndGet();
+			if (content != null) {
+				cacheHits.incrementAndGet();
+				return content;
+			}
+			throw new IOException("Request budget of " + requestBudget + " spent, not fetching " + url);
+		}
+
+		HttpURLConnection connection = null;
+		connections.acquireUninterruptibly();
+		try {
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			if (content != null) {
+				if (cached.getProperty("etag") != null) {
+					connection.setRequestProperty("If-None-Match", cached.getProperty("etag"));
+				}
+				if (cached.getProperty("modified") != null) {
+					connection.setIfModifiedSince(Long.parseLong(cached.getProperty("modified")));
+				}
+			}
+			int code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && content != null) {
+				notModified.incrementAndGet();
+				return content;
+			}
+			if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+				return null;
+			}
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("HTTP " + code + " fetching " + url);
+			}
+			content = store(connection);
+			Properties entry = new Properties();
+			entry.setProperty("url", url);
+			entry.setProperty("content", content.getName());
+			if (connection.getHeaderField("ETag") != null) {
+				entry.setProperty("etag", connection.getHeaderField("ETag"));
+			}
+			if (connection.getLastModified() > 0) {
+				entry.setProperty("modified", Long.toString(connection.getLastModified()));
+			}
+			File tmp = File.createTempFile("index", ".tmp", cacheDirectory);
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				entry.store(out, null);
+			}
+			Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return content;
+		} catch (IOException e) {
+			if (content != null && cached.getProperty("url") != null) {
+				logger.log(Level.WARNING, "Could not revalidate " + url + ", using the cached copy", e);
+				cacheHits.incrementAndGet();
+				return content;
+			}
+			throw e;
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			connections.release();
+		}
+	}
+
+	// writes a response body into the cache under the SHA-1 of its bytes
+	private File store(HttpURLConnection connection) throws IOException {
+		cacheDirectory.mkdirs();
+		File tmp = File.createTempFile("download", ".tmp", cacheDirectory);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			try (InputStream is = connection.getInputStream(); OutputStream out = new FileOutputStream(tmp)) {
+				byte[] buffer = new byte[1 << 16];
+				for (int n; (n = is.read(buffer)) > 0;) {
+					digest.update(buffer, 0, n);
+					out.write(buffer, 0, n);
+					downloadedBytes.addAndGet(n);
+				}
+			}
+			File content = new File(cacheDirectory, hex(digest.digest()));
+			if (content.isFile()) {
+				tmp.delete(); // the same bytes from another URL
+			} else {
+				Files.move(tmp.toPath(), content.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return content;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static String sha1(byte[] bytes) {
+		try {
+			return hex(MessageDigest.getInstance("SHA-1").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	public File getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Sets how long a fetched URL is used before it is revalidated, in milliseconds, 5 minutes by default.
+	 *
+	 * @param maxAge
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public long getRequestBudget() {
+		return requestBudget;
+	}
+
+	/**
+	 * Limits the requests this resolver makes in total, unlimited by default; beyond it only cached content is
+	 * served.
+	 *
+	 * @param requestBudget
+	 */
+	public void setRequestBudget(long requestBudget) {
+		this.requestBudget = requestBudget;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Forgets this session's fetches, so every URL is revalidated when next opened.
+	 */
+	public void expire() {
+		fetches.clear();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the requests answered 304 Not Modified
+	 */
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	public long getDownloadedBytes() {
+		return downloadedBytes.get();
+	}
+
+	/**
+	 * @return the cached copies served without a request, because the budget was spent or the server was
+	 * unreachable
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("HTTP models: %d requests, %d not modified, %d bytes downloaded, %d served from the cache only",
+			requests.get(), notModified.get(), downloadedBytes.get(), cacheHits.get());
+	}
+
+}
@@ -0,0 +1,23 @@
+package osm.map.worldwind.gl.obj;
+
+/**
+ * Reports LoadMetrics to Java Flight Recorder. Implemented by FlightRecorderLoadEvents in the jfr source
+ * root, which is only compiled where jdk.jfr exists, see build.xml; LoadMetrics loads it by name.
+ */
+interface LoadEvents {
+
+	/**
+	 * @return the event of a phase, begun
+	 */
+	Object beginPhase();
+
+	void endPhase(Object event, LoadMetrics metrics, LoadMetrics.Phase phase);
+
+	/**
+	 * @return the event of a whole load, begun
+	 */
+	Object beginLoad();
+
+	void commitLoad(Object event, LoadMetrics metrics);
+
+}
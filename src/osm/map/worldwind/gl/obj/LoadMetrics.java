@@ -0,0 +1,224 @@
+package osm.map.worldwind.gl.obj;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Where the time went while loading one model. Phases run on the loading thread (read through texture
+ * decode) and on the GL thread (texture upload onwards), possibly more than once, e.g. the display list is
+ * rebuilt when the GL context changes; times accumulate. Every phase is also reported as a
+ * ModelLoadPhaseEvent to Java Flight Recorder, and the loading part as a whole as a ModelLoadEvent. The
+ * event classes are only built by a JDK with jdk.jfr (Java 8u262 and later), and only used where the JRE has
+ * it, see LoadEvents; elsewhere loads are timed just the same.
+ *
+ * The metrics of the most recent loads are kept and can be read with getHistory().
+ */
+public class LoadMetrics {
+
+	public enum Phase {
+		READ, // waiting for bytes from the file or classpath
+		PARSE, // parsing OBJ text, excluding read and material time
+		MATERIALS, // reading the MTL file and resolving usemtl names
+		NORMALS, // generating normals for faces without vn records
+		SORT, // sorting faces by material
+		ATLAS, // packing textures into a MaterialAtlas, including decoding them
+		BOUNDS, // bounds and centering passes
+		TEXTURE_DECODE, // reading and decoding map_Kd images
+		TEXTURE_UPLOAD, // creating GL textures
+		DISPLAY_LIST, // building the batches and compiling the display list
+		COMPRESS, // quantizing the batches for vertex compression
+		BVH // building the MeshBVH for ray queries
+	}
+
+	/**
+	 * A phase being timed, from begin to end.
+	 */
+	static final class Span {
+
+		final Phase phase;
+		final long start = System.nanoTime();
+		final Object event; // a ModelLoadPhaseEvent, or null without the flight recorder
+
+		Span(Phase phase, Object event) {
+			this.phase = phase;
+			this.event = event;
+		}
+	}
+
+	private static final int HISTORY_SIZE = 64;
+	private static final Deque<LoadMetrics> history = new ArrayDeque<>();
+	private static final LoadEvents EVENTS = loadEvents(); // null without the flight recorder
+
+	private final String model;
+	private final long started = System.currentTimeMillis();
+	private final long[] nanos = new long[Phase.values().length];
+	private final String[] threads = new String[Phase.values().length];
+	private long bytes;
+	private int vertices;
+	private int faces;
+	private int materials;
+	private int textures;
+	private Object loadEvent; // a ModelLoadEvent from start to commit, or null without the flight recorder
+
+	LoadMetrics(String model) {
+		this.model = model;
+	}
+
+	private LoadMetrics(LoadMetrics other) {
+		this.model = other.model;
+	}
+
+	// the flight recorder events, if both the JRE and the build have them
+	private static LoadEvents loadEvents() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (LoadEvents) Class.forName("osm.map.worldwind.gl.obj.FlightRecorderLoadEvents")
+				.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts tracking a new load and adds it to the history, until commit.
+	 */
+	static LoadMetrics start(String model) {
+		LoadMetrics metrics = new LoadMetrics(model);
+		metrics.loadEvent = EVENTS != null ? EVENTS.beginLoad() : null;
+		synchronized (history) {
+			history.addLast(metrics);
+			if (history.size() > HISTORY_SIZE) {
+				history.removeFirst();
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return snapshots of the metrics of the most recent loads, oldest first
+	 */
+	public static List<LoadMetrics> getHistory() {
+		List<LoadMetrics> list = new ArrayList<>();
+		synchronized (history) {
+			for (LoadMetrics metrics : history) {
+				list.add(metrics.snapshot());
+			}
+		}
+		return list;
+	}
+
+	Span begin(Phase phase) {
+		return new Span(phase, EVENTS != null ? EVENTS.beginPhase() : null);
+	}
+
+	void end(Span span) {
+		add(span.phase, System.nanoTime() - span.start);
+		if (span.event != null) {
+			EVENTS.endPhase(span.event, this, span.phase);
+		}
+	}
+
+	synchronized void add(Phase phase, long duration) {
+		nanos[phase.ordinal()] += duration;
+		threads[phase.ordinal()] = Thread.currentThread().getName();
+	}
+
+	synchronized void setCounts(long bytes, int vertices, int faces, int materials, int textures) {
+		this.bytes = bytes;
+		this.vertices = vertices;
+		this.faces = faces;
+		this.materials = materials;
+		this.textures = textures;
+	}
+
+	synchronized void setTextures(int textures) {
+		this.textures = textures;
+	}
+
+	/**
+	 * Ends the load started by start.
+	 */
+	void commit() {
+		if (loadEvent != null) {
+			EVENTS.commitLoad(loadEvent, this);
+			loadEvent = null;
+		}
+	}
+
+	public synchronized LoadMetrics snapshot() {
+		LoadMetrics copy = new LoadMetrics(this);
+		System.arraycopy(nanos, 0, copy.nanos, 0, nanos.length);
+		System.arraycopy(threads, 0, copy.threads, 0, threads.length);
+		copy.bytes = bytes;
+		copy.vertices = vertices;
+		copy.faces = faces;
+		copy.materials = materials;
+		copy.textures = textures;
+		return copy;
+	}
+
+	public String getModel() {
+		return model;
+	}
+
+	/**
+	 * @return when the load started, in milliseconds since the epoch
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	public synchronized long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return the thread that last ran the phase, or null if it has not run
+	 */
+	public synchronized String getThread(Phase phase) {
+		return threads[phase.ordinal()];
+	}
+
+	public synchronized long getTotalNanos() {
+		long total = 0;
+		for (long n : nanos) {
+			total += n;
+		}
+		return total;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getVertices() {
+		return vertices;
+	}
+
+	public synchronized int getFaces() {
+		return faces;
+	}
+
+	public synchronized int getMaterials() {
+		return materials;
+	}
+
+	public synchronized int getTextures() {
+		return textures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(model);
+		sb.append(": ").append(bytes).append(" bytes, ").append(vertices).append(" vertices, ").append(faces)
+			.append(" faces, ").append(materials).append(" materials, ").append(textures).append(" textures;");
+		for (Phase phase : Phase.values()) {
+			sb.append(' ').append(phase.name().toLowerCase()).append(' ')
+				.append(String.format("%.1f", nanos[phase.ordinal()] / 1e6)).append(" ms");
+		}
+		return sb.toString();
+	}
+
+}
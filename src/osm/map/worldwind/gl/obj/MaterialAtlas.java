@@ -0,0 +1,428 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.media.opengl.GLProfile;
+import osm.map.worldwind.gl.obj.MtlLoader.Material;
+
+/**
+ * Packs the small map_Kd textures of a model into one or a few atlas pages, so whole models draw in very few
+ * batches. Faces of a packed material get their texture coordinates remapped into the page and the color of
+ * their material as a vertex attribute; untextured materials sample a white patch of the first page.
+ *
+ * Textures larger than the maximum size, that fail to decode, or whose faces use texture coordinates outside
+ * [0, 1] (i.e. rely on repeat wrapping) keep their own texture.
+ *
+ * With a cache directory set, the pages and the material regions are written there and read back on the
+ * next load of the same model and textures.
+ */
+public class MaterialAtlas {
+
+	private static final Logger logger = Logger.getLogger(MaterialAtlas.class.getName());
+	private static final float EPSILON = 1e-4f;
+	private static final int WHITE = 4; // size of the patch untextured materials sample
+
+	private static int pageSize = 2048;
+	private static int maxTextureSize = 512;
+	private static int padding = 2;
+	private static File cacheDirectory;
+
+	final List<Page> pages = new ArrayList<>();
+	final Map<Material, Region> regions = new IdentityHashMap<>();
+
+	static class Page {
+
+		final int index;
+		final BufferedImage image;
+		final Material material; // stands in for the packed materials in mesh batches
+		private TextureData textureData;
+
+		Page(int index, BufferedImage image) {
+			this.index = index;
+			this.image = image;
+			this.material = new Material();
+			material.name = "atlas#" + index;
+			material.map_Kd = material.name;
+			material.Kd = new float[]{1, 1, 1};
+			material.mtlnum = -1;
+		}
+
+		synchronized TextureData getTextureData(GLProfile profile) {
+			if (textureData == null) {
+				textureData = AWTTextureIO.newTextureData(profile, image, false);
+			}
+			return textureData;
+		}
+	}
+
+	/**
+	 * Where a material's texture ended up: texture coordinates map to u0 + u * du, v0 + v * dv.
+	 */
+	static class Region {
+
+		final Page page;
+		final float u0, v0, du, dv;
+		final float[] color; // the fixed-function color and alpha of the material
+
+		Region(Page page, float u0, float v0, float du, float dv, Material mtl) {
+			this.page = page;
+			this.u0 = u0;
+			this.v0 = v0;
+			this.du = du;
+			this.dv = dv;
+			float[] c = ObjLoader.getColor(mtl);
+			this.color = new float[]{c[0], c[1], c[2], mtl.d};
+		}
+
+		void map(float[] texCoord, boolean flipTextureVertically, float[] result) {
+			float u = texCoord != null ? texCoord[0] : 0;
+			float v = texCoord != null ? texCoord[1] : 0;
+			if (flipTextureVertically) {
+				v = 1 - v;
+			}
+			result[0] = u0 + u * du;
+			result[1] = v0 + v * dv;
+		}
+	}
+
+	private static class Rect {
+
+		final Material material; // null for the white patch
+		final BufferedImage image;
+		final int width, height; // including padding
+		Page page;
+		int x, y;
+
+		Rect(Material material, BufferedImage image, int width, int height) {
+			this.material = material;
+			this.image = image;
+			this.width = width + 2 * padding;
+			this.height = height + 2 * padding;
+		}
+	}
+
+	/**
+	 * Packs the materials of the loader's faces.
+	 *
+	 * @param loader
+	 * @return the atlas, or null if it would not save any batches
+	 */
+	static MaterialAtlas pack(ObjLoader loader) {
+		// the materials in use, and whether their faces need repeat wrapping
+		Map<Material, Boolean> materials = new LinkedHashMap<>();
+		for (ObjLoader.Face face : loader.faces) {
+			if (face.mtl == null) {
+				continue;
+			}
+			boolean wraps = materials.containsKey(face.mtl) && materials.get(face.mtl);
+			if (!wraps && face.mtl.map_Kd != null) {
+				for (int vt : face.vt) {
+					if (vt > 0 && !inUnitSquare(loader.vertexSetsTexs.get(vt - 1))) {
+						wraps = true;
+						break;
+					}
+				}
+			}
+			materials.put(face.mtl, wraps);
+		}
+
+		String key = cacheDirectory != null ? cacheKey(loader, materials) : null;
+		if (key != null) {
+			MaterialAtlas atlas = read(key, materials.keySet());
+			if (atlas != null) {
+				return atlas;
+			}
+		}
+
+		List<Rect> rects = new ArrayList<>();
+		boolean untextured = false;
+		Map<String, Rect> byTexture = new HashMap<>();
+		for (Map.Entry<Material, Boolean> entry : materials.entrySet()) {
+			Material mtl = entry.getKey();
+			if (mtl.map_Kd == null) {
+				untextured = true;
+			} else if (!entry.getValue() && !byTexture.containsKey(mtl.map_Kd)) {
+				BufferedImage image = decode(loader, mtl.map_Kd);
+				if (image != null && image.getWidth() <= maxTextureSize && image.getHeight() <= maxTextureSize) {
+					Rect rect = new Rect(mtl, image, image.getWidth(), image.getHeight());
+					byTexture.put(mtl.map_Kd, rect);
+					rects.add(rect);
+				}
+			}
+		}
+		if (untextured) {
+			rects.add(new Rect(null, null, WHITE, WHITE));
+		}
+		if (rects.size() < 2 && !(untextured && countUntextured(materials) > 1)) {
+			return null;
+		}
+
+		MaterialAtlas atlas = new MaterialAtlas();
+		atlas.place(rects);
+		Rect white = untextured ? rects.get(rects.size() - 1) : null;
+		for (Map.Entry<Material, Boolean> entry : materials.entrySet()) {
+			Material mtl = entry.getKey();
+			Rect rect = mtl.map_Kd == null ? white : byTexture.get(mtl.map_Kd);
+			if (rect == null || entry.getValue()) {
+				continue;
+			}
+			atlas.regions.put(mtl, atlas.region(rect, mtl));
+		}
+		if (key != null) {
+			try {
+				atlas.write(key);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not cache the texture atlas of " + loader.basePath, e);
+			}
+		}
+		return atlas;
+	}
+
+	private static boolean inUnitSquare(float[] texCoord) {
+		return texCoord[0] >= -EPSILON && texCoord[0] <= 1 + EPSILON
+			&& texCoord[1] >= -EPSILON && texCoord[1] <= 1 + EPSILON;
+	}
+
+	private static int countUntextured(Map<Material, Boolean> materials) {
+		int count = 0;
+		for (Material mtl : materials.keySet()) {
+			if (mtl.map_Kd == null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static BufferedImage decode(ObjLoader loader, String map_Kd) {
+		try (InputStream is = loader.getInputStream(loader.basePath, map_Kd)) {
+			return is != null ? ImageIO.read(is) : null;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not read texture " + map_Kd + " for the atlas", e);
+			return null;
+		}
+	}
+
+	// shelf packing, tallest first
+	private void place(List<Rect> rects) {
+		List<Rect> sorted = new ArrayList<>(rects);
+		Collections.sort(sorted, new Comparator<Rect>() {
+			@Override
+			public int compare(Rect a, Rect b) {
+				return b.height != a.height ? b.height - a.height : b.width - a.width;
+			}
+		});
+		List<List<Rect>> pageRects = new ArrayList<>();
+		List<int[]> pageHeights = new ArrayList<>();
+		int x = 0, y = 0, shelf = 0;
+		List<Rect> current = null;
+		for (Rect rect : sorted) {
+			if (current != null && x + rect.width > pageSize) {
+				x = 0;
+				y += shelf;
+				shelf = 0;
+			}
+			if (current == null || y + rect.height > pageSize) {
+				current = new ArrayList<>();
+				pageRects.add(current);
+				pageHeights.add(new int[1]);
+				x = 0;
+				y = 0;
+				shelf = 0;
+			}
+			rect.x = x;
+			rect.y = y;
+			current.add(rect);
+			x += rect.width;
+			shelf = Math.max(shelf, rect.height);
+			int[] height = pageHeights.get(pageHeights.size() - 1);
+			height[0] = Math.max(height[0], y + rect.height);
+		}
+		for (int p = 0; p < pageRects.size(); p++) {
+			int width = 0;
+			for (Rect rect : pageRects.get(p)) {
+				width = Math.max(width, rect.x + rect.width);
+			}
+			BufferedImage image = new BufferedImage(powerOfTwo(width), powerOfTwo(pageHeights.get(p)[0]),
+				BufferedImage.TYPE_INT_ARGB);
+			Page page = new Page(p, image);
+			pages.add(page);
+			for (Rect rect : pageRects.get(p)) {
+				rect.page = page;
+				blit(image, rect);
+			}
+		}
+	}
+
+	private static int powerOfTwo(int n) {
+		int p = 1;
+		while (p < n) {
+			p <<= 1;
+		}
+		return p;
+	}
+
+	// copies the texture with its border pixels extended into the padding, so filtering does not bleed
+	private static void blit(BufferedImage page, Rect rect) {
+		int w = rect.width - 2 * padding;
+		int h = rect.height - 2 * padding;
+		for (int j = -padding; j < h + padding; j++) {
+			int sy = Math.max(0, Math.min(h - 1, j));
+			for (int i = -padding; i < w + padding; i++) {
+				int sx = Math.max(0, Math.min(w - 1, i));
+				int argb = rect.image != null ? rect.image.getRGB(sx, sy) : 0xffffffff;
+				page.setRGB(rect.x + padding + i, rect.y + padding + j, argb);
+			}
+		}
+	}
+
+	private Region region(Rect rect, Material mtl) {
+		float width = rect.page.image.getWidth();
+		float height = rect.page.image.getHeight();
+		if (rect.image == null) {
+			// the center of the white patch, whatever the texture coordinates
+			return new Region(rect.page, (rect.x + rect.width / 2f) / width, (rect.y + rect.height / 2f) / height, 0, 0, mtl);
+		}
+		return new Region(rect.page, (rect.x + padding) / width, (rect.y + padding) / height,
+			(rect.width - 2 * padding) / width, (rect.height - 2 * padding) / height, mtl);
+	}
+
+	/**
+	 * @return the region of the material, or null if it is not in the atlas
+	 */
+	Region getRegion(Material mtl) {
+		return regions.get(mtl);
+	}
+
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	public int getMaterialCount() {
+		return regions.size();
+	}
+
+	// identifies the model, its materials and textures, and the packing settings
+	private static String cacheKey(ObjLoader loader, Map<Material, Boolean> materials) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder sb = new StringBuilder();
+			sb.append(loader.basePath).append('/').append(loader.getModelName()).append('|')
+				.append(pageSize).append('|').append(maxTextureSize).append('|').append(padding);
+			for (Map.Entry<Material, Boolean> entry : materials.entrySet()) {
+				Material mtl = entry.getKey();
+				sb.append('|').append(mtl.name).append(':').append(mtl.map_Kd).append(':').append(entry.getValue());
+				if (mtl.map_Kd != null) {
+					File file = new File(loader.basePath, mtl.map_Kd);
+					if (file.isFile()) {
+						sb.append(':').append(file.length()).append(':').append(file.lastModified());
+					}
+				}
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8))) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	private void write(String key) throws IOException {
+		cacheDirectory.mkdirs();
+		for (Page page : pages) {
+			ImageIO.write(page.image, "png", new File(cacheDirectory, key + "-" + page.index + ".png"));
+		}
+		try (PrintWriter w = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(new File(cacheDirectory, key + ".atlas")), StandardCharsets.UTF_8))) {
+			w.println("pages " + pages.size());
+			for (Map.Entry<Material, Region> entry : regions.entrySet()) {
+				Region r = entry.getValue();
+				w.println("region " + r.page.index + " " + r.u0 + " " + r.v0 + " " + r.du + " " + r.dv + " " + entry.getKey().name);
+			}
+		}
+	}
+
+	private static MaterialAtlas read(String key, Iterable<Material> materials) {
+		File index = new File(cacheDirectory, key + ".atlas");
+		if (!index.isFile()) {
+			return null;
+		}
+		Map<String, Material> byName = new HashMap<>();
+		for (Material mtl : materials) {
+			byName.put(mtl.name, mtl);
+		}
+		MaterialAtlas atlas = new MaterialAtlas();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] parts = line.split(" ", 7);
+				if (parts[0].equals("pages")) {
+					for (int p = 0; p < Integer.parseInt(parts[1]); p++) {
+						BufferedImage image = ImageIO.read(new File(cacheDirectory, key + "-" + p + ".png"));
+						if (image == null) {
+							return null;
+						}
+						atlas.pages.add(new Page(p, image));
+					}
+				} else if (parts[0].equals("region")) {
+					Material mtl = byName.get(parts[6]);
+					if (mtl != null) {
+						atlas.regions.put(mtl, new Region(atlas.pages.get(Integer.parseInt(parts[1])),
+							Float.parseFloat(parts[2]), Float.parseFloat(parts[3]),
+							Float.parseFloat(parts[4]), Float.parseFloat(parts[5]), mtl));
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "Ignoring unreadable texture atlas cache " + index, e);
+			return null;
+		}
+		return atlas;
+	}
+
+	/**
+	 * Sets the size of atlas pages and the largest texture packed into them.
+	 */
+	public static void setSizes(int pageSize, int maxTextureSize, int padding) {
+		MaterialAtlas.pageSize = pageSize;
+		MaterialAtlas.maxTextureSize = Math.min(maxTextureSize, pageSize - 2 * padding);
+		MaterialAtlas.padding = padding;
+	}
+
+	/**
+	 * Sets the directory atlases are cached in, or null to not cache them.
+	 */
+	public static void setCacheDirectory(File cacheDirectory) {
+		MaterialAtlas.cacheDirectory = cacheDirectory;
+	}
+
+	public static File getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+}
@@ -0,0 +1,476 @@
+package osm.map.worldwind.gl.obj;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounding volume hierarchy over the triangles of a model, for ray and segment queries on the CPU, e.g.
+ * precise picking and lines of sight. Needs no GL context.
+ *
+ * Built top down with binned SAH (the surface area heuristic evaluated at 16 centroid bins per axis), the
+ * subtrees of large nodes in parallel. The nodes and the triangles, reordered to leaf order, are stored flat
+ * in primitive arrays: per node its bounds and either the first triangle and count of a leaf or the index of
+ * the first of its two adjacent children.
+ */
+public class MeshBVH {
+
+	private static final int BINS = 16;
+	private static final int MAX_LEAF = 4; // triangles a leaf may hold when splitting is not worth it
+	private static final int PARALLEL_THRESHOLD = 1 << 16; // triangles below which subtrees are built sequentially
+	private static final int ALL_AXES = 1024; // triangles from which every axis is binned
+	private static final double TRAVERSAL_COST = 1; // relative to intersecting a triangle
+
+	/**
+	 * The nearest intersection of a query.
+	 */
+	public static class Hit {
+
+		public final double distance; // along the query direction, in units of its length
+		public final int triangle; // in the order of the model's mesh batches
+		public final MtlLoader.Material material;
+
+		Hit(double distance, int triangle, MtlLoader.Material material) {
+			this.distance = distance;
+			this.triangle = triangle;
+			this.material = material;
+		}
+
+		@Override
+		public String toString() {
+			return "Hit at " + distance + ", triangle " + triangle + ", material " + (material != null ? material.name : null);
+		}
+	}
+
+	private final float[] triangles; // 9 coordinates per triangle, in leaf order
+	private final int[] triangleIds; // the original index of each triangle in leaf order
+	private final int[] batchStarts; // the first original triangle of each batch
+	private final MtlLoader.Material[] materials; // of each batch
+	private float[] nodeBounds; // min x, y, z, max x, y, z per node
+	private int[] nodes; // per node: the first triangle and the count of a leaf, or the first child and 0
+	private int nodeCount;
+	private int depth;
+
+	private MeshBVH(int triangleCount, int batchCount) {
+		triangles = new float[9 * triangleCount];
+		triangleIds = new int[triangleCount];
+		batchStarts = new int[batchCount];
+		materials = new MtlLoader.Material[batchCount];
+	}
+
+	/**
+	 * Builds the hierarchy over the triangles of mesh batches, in model coordinates.
+	 */
+	public static MeshBVH build(List<MeshBatch> batches) {
+		int count = 0;
+		for (MeshBatch batch : batches) {
+			count += batch.vertexCount / 3;
+		}
+		MeshBVH bvh = new MeshBVH(count, batches.size());
+		float[] source = new float[9 * count];
+		int t = 0;
+		for (int b = 0; b < batches.size(); b++) {
+			MeshBatch batch = batches.get(b);
+			bvh.batchStarts[b] = t;
+			bvh.materials[b] = batch.material;
+			int n = batch.vertexCount / 3;
+			System.arraycopy(batch.positions, 0, source, 9 * t, 9 * n);
+			t += n;
+		}
+		bvh.build(source);
+		return bvh;
+	}
+
+	private void build(float[] source) {
+		int count = triangleIds.length;
+		if (count == 0) { // no root, queries miss
+			nodeBounds = new float[0];
+			nodes = new int[0];
+			return;
+		}
+		float[] centroids = new float[3 * count];
+		float[] bounds = new float[6 * count];
+		for (int i = 0; i < count; i++) {
+			triangleIds[i] = i;
+			for (int a = 0; a < 3; a++) {
+				float v0 = source[9 * i + a], v1 = source[9 * i + 3 + a], v2 = source[9 * i + 6 + a];
+				float min = Math.min(v0, Math.min(v1, v2)), max = Math.max(v0, Math.max(v1, v2));
+				bounds[6 * i + a] = min;
+				bounds[6 * i + 3 + a] = max;
+				centroids[3 * i + a] = (min + max) / 2;
+			}
+		}
+		int capacity = Math.max(1, 2 * count - 1); // leaves hold at least one triangle
+		nodeBounds = new float[6 * capacity];
+		nodes = new int[2 * capacity];
+		AtomicInteger allocated = new AtomicInteger(1);
+		Builder root = new Builder(0, 0, count, centroids, bounds, allocated, new Scratch());
+		if (count >= PARALLEL_THRESHOLD) {
+			ForkJoinPool.commonPool().invoke(root);
+		} else {
+			root.compute();
+		}
+		nodeCount = allocated.get();
+		nodeBounds = Arrays.copyOf(nodeBounds, 6 * nodeCount);
+		nodes = Arrays.copyOf(nodes, 2 * nodeCount);
+		int[] levels = new int[nodeCount]; // children are allocated after their parent
+		for (int node = 0; node < nodeCount; node++) {
+			levels[node] = Math.max(levels[node], 1);
+			depth = Math.max(depth, levels[node]);
+			if (nodes[2 * node + 1] == 0) {
+				levels[nodes[2 * node]] = levels[nodes[2 * node] + 1] = levels[node] + 1;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(source, 9 * triangleIds[i], triangles, 9 * i, 9);
+		}
+	}
+
+	// the working arrays of a builder thread, so that nodes allocate nothing
+	private static class Scratch {
+
+		final float[] box = new float[6];
+		final float[] centroidBox = new float[6];
+		final float[] sweep = new float[6];
+		final int[] binCounts = new int[BINS];
+		final float[] binBounds = new float[6 * BINS];
+		final double[] rightAreas = new double[BINS];
+		final int[] rightCounts = new int[BINS];
+	}
+
+	// builds the subtree of a node over the triangles in [start, end) of triangleIds, bounds and centroids
+	private class Builder extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int node, start, end;
+		private final float[] centroids, bounds;
+		private final AtomicInteger allocated;
+		private final Scratch scratch;
+
+		Builder(int node, int start, int end, float[] centroids, float[] bounds, AtomicInteger allocated, Scratch scratch) {
+			this.node = node;
+			this.start = start;
+			this.end = end;
+			this.centroids = centroids;
+			this.bounds = bounds;
+			this.allocated = allocated;
+			this.scratch = scratch;
+		}
+
+		@Override
+		protected void compute() {
+			int count = end - start;
+			float[] box = scratch.box, centroidBox = scratch.centroidBox;
+			resetBox(box, 0);
+			resetBox(centroidBox, 0);
+			for (int i = start; i < end; i++) {
+				for (int a = 0; a < 3; a++) {
+					box[a] = Math.min(box[a], bounds[6 * i + a]);
+					box[3 + a] = Math.max(box[3 + a], bounds[6 * i + 3 + a]);
+					centroidBox[a] = Math.min(centroidBox[a], centroids[3 * i + a]);
+					centroidBox[3 + a] = Math.max(centroidBox[3 + a], centroids[3 * i + a]);
+				}
+			}
+			System.arraycopy(box, 0, nodeBounds, 6 * node, 6);
+
+			int mid = count > 1 ? split(count, box, centroidBox) : -1;
+			if (mid < 0) {
+				nodes[2 * node] = start;
+				nodes[2 * node + 1] = count;
+				return;
+			}
+			int left = allocated.getAndAdd(2);
+			nodes[2 * node] = left;
+			nodes[2 * node + 1] = 0;
+			if (count >= PARALLEL_THRESHOLD) {
+				invokeAll(new Builder(left, start, mid, centroids, bounds, allocated, scratch),
+					new Builder(left + 1, mid, end, centroids, bounds, allocated, new Scratch()));
+			} else {
+				new Builder(left, start, mid, centroids, bounds, allocated, scratch).compute();
+				new Builder(left + 1, mid, end, centroids, bounds, allocated, scratch).compute();
+			}
+		}
+
+		// partitions the triangles at the cheapest SAH bin boundary, returns the middle or -1 for a leaf
+		private int split(int count, float[] box, float[] centroidBox) {
+			int bestAxis = -1, bestBin = -1;
+			double bestCost = Double.MAX_VALUE;
+			int[] binCounts = scratch.binCounts;
+			float[] binBounds = scratch.binBounds;
+			double[] rightAreas = scratch.rightAreas;
+			int[] rightCounts = scratch.rightCounts;
+			float[] sweep = scratch.sweep;
+			// large nodes try every axis, small ones, the most of the nodes, only the longest with fewer bins
+			int bins = Math.min(BINS, 2 * count);
+			int longest = 0;
+			for (int a = 1; a < 3; a++) {
+				if (centroidBox[3 + a] - centroidBox[a] > centroidBox[3 + longest] - centroidBox[longest]) {
+					longest = a;
+				}
+			}
+			for (int a = 0; a < 3; a++) {
+				float min = centroidBox[a], extent = centroidBox[3 + a] - min;
+				if (extent <= 0 || (count < ALL_AXES && a != longest)) {
+					continue;
+				}
+				Arrays.fill(binCounts, 0, bins, 0);
+				for (int b = 0; b < bins; b++) {
+					resetBox(binBounds, 6 * b);
+				}
+				float scale = bins / extent;
+				for (int i = start; i < end; i++) {
+					int b = Math.min(bins - 1, (int) ((centroids[3 * i + a] - min) * scale));
+					binCounts[b]++;
+					growBox(binBounds, 6 * b, bounds, 6 * i);
+				}
+				resetBox(sweep, 0);
+				int n = 0;
+				for (int b = bins - 1; b > 0; b--) {
+					growBox(sweep, 0, binBounds, 6 * b);
+					n += binCounts[b];
+					rightAreas[b] = area(sweep, 0);
+					rightCounts[b] = n;
+				}
+				resetBox(sweep, 0);
+				n = 0;
+				for (int b = 0; b < bins - 1; b++) {
+					growBox(sweep, 0, binBounds, 6 * b);
+					n += binCounts[b];
+					if (n == 0 || rightCounts[b + 1] == 0) {
+						continue;
+					}
+					double cost = n * area(sweep, 0) + rightCounts[b + 1] * rightAreas[b + 1];
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestAxis = a;
+						bestBin = b;
+					}
+				}
+			}
+
+			double leafCost = count;
+			double splitCost = TRAVERSAL_COST + bestCost / Math.max(area(box, 0), Float.MIN_VALUE);
+			if (bestAxis < 0) { // all centroids coincide
+				return count <= MAX_LEAF ? -1 : start + count / 2;
+			}
+			if (splitCost >= leafCost && count <= MAX_LEAF) {
+				return -1;
+			}
+			float min = centroidBox[bestAxis];
+			float scale = bins / (centroidBox[3 + bestAxis] - min);
+			int i = start, j = end - 1;
+			while (i <= j) {
+				int b = Math.min(bins - 1, (int) ((centroids[3 * i + bestAxis] - min) * scale));
+				if (b <= bestBin) {
+					i++;
+				} else {
+					swap(i, j--);
+				}
+			}
+			return i;
+		}
+
+		// swaps two triangles with their bounds and centroids
+		private void swap(int i, int j) {
+			int t = triangleIds[i];
+			triangleIds[i] = triangleIds[j];
+			triangleIds[j] = t;
+			for (int k = 0; k < 6; k++) {
+				float f = bounds[6 * i + k];
+				bounds[6 * i + k] = bounds[6 * j + k];
+				bounds[6 * j + k] = f;
+			}
+			for (int k = 0; k < 3; k++) {
+				float f = centroids[3 * i + k];
+				centroids[3 * i + k] = centroids[3 * j + k];
+				centroids[3 * j + k] = f;
+			}
+		}
+	}
+
+	private static void resetBox(float[] box, int offset) {
+		box[offset] = box[offset + 1] = box[offset + 2] = Float.MAX_VALUE;
+		box[offset + 3] = box[offset + 4] = box[offset + 5] = -Float.MAX_VALUE;
+	}
+
+	private static void growBox(float[] box, int offset, float[] other, int otherOffset) {
+		for (int a = 0; a < 3; a++) {
+			box[offset + a] = Math.min(box[offset + a], other[otherOffset + a]);
+			box[offset + 3 + a] = Math.max(box[offset + 3 + a], other[otherOffset + 3 + a]);
+		}
+	}
+
+	private static double area(float[] box, int offset) {
+		double dx = box[offset + 3] - box[offset], dy = box[offset + 4] - box[offset + 1], dz = box[offset + 5] - box[offset + 2];
+		return dx < 0 ? 0 : dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * @return the nearest triangle hit by the ray from the origin along the direction within maxDistance, in
+	 * units of the direction's length, or null
+	 */
+	public Hit intersect(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance) {
+		double[] distance = new double[1];
+		int found = traverse(ox, oy, oz, dx, dy, dz, maxDistance, false, distance);
+		if (found < 0) {
+			return null;
+		}
+		int id = triangleIds[found];
+		int batch = Arrays.binarySearch(batchStarts, id);
+		if (batch < 0) {
+			batch = -batch - 2;
+		}
+		while (batch + 1 < batchStarts.length && batchStarts[batch + 1] == id) {
+			batch++; // skip empty batches
+		}
+		return new Hit(distance[0], id, materials[batch]);
+	}
+
+	/**
+	 * @return the nearest triangle hit by the segment from a to b, or null; the distance is the fraction of the
+	 * way from a to b
+	 */
+	public Hit intersectSegment(double ax, double ay, double az, double bx, double by, double bz) {
+		return intersect(ax, ay, az, bx - ax, by - ay, bz - az, 1);
+	}
+
+	/**
+	 * @return whether any triangle is hit by the ray within maxDistance, e.g. whether a line of sight is
+	 * blocked; faster than intersect as it stops at the first hit
+	 */
+	public boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance) {
+		return traverse(ox, oy, oz, dx, dy, dz, maxDistance, true, null) >= 0;
+	}
+
+	private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[64];
+		}
+	};
+
+	// the leaf order index of the nearest triangle hit, or any if anyHit, or -1; its distance goes to distance
+	private int traverse(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance, boolean anyHit,
+		double[] distance) {
+		if (triangleIds.length == 0) {
+			return -1;
+		}
+		// a huge rather than an infinite inverse keeps 0 * inverse from turning into NaN on a box face
+		double ix = dx != 0 ? 1 / dx : 1e300, iy = dy != 0 ? 1 / dy : 1e300, iz = dz != 0 ? 1 / dz : 1e300;
+		int[] stack = stacks.get();
+		if (stack.length < depth + 1) {
+			stack = new int[depth + 1];
+			stacks.set(stack);
+		}
+		double nearest = maxDistance;
+		int found = -1;
+		int top = 0;
+		if (slab(0, ox, oy, oz, ix, iy, iz, nearest) == Double.MAX_VALUE) {
+			return -1;
+		}
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int count = nodes[2 * node + 1];
+			if (count > 0) {
+				int first = nodes[2 * node];
+				for (int i = first; i < first + count; i++) {
+					double t = triangle(i, ox, oy, oz, dx, dy, dz);
+					if (t >= 0 && t <= nearest) {
+						nearest = t;
+						found = i;
+						if (anyHit) {
+							return found;
+						}
+					}
+				}
+				continue;
+			}
+			int left = nodes[2 * node];
+			double tl = slab(left, ox, oy, oz, ix, iy, iz, nearest);
+			double tr = slab(left + 1, ox, oy, oz, ix, iy, iz, nearest);
+			// visit the nearer child first, so that the farther one is usually skipped
+			if (tl <= tr) {
+				if (tr != Double.MAX_VALUE) {
+					stack[top++] = left + 1;
+				}
+				if (tl != Double.MAX_VALUE) {
+					stack[top++] = left;
+				}
+			} else {
+				if (tl != Double.MAX_VALUE) {
+					stack[top++] = left;
+				}
+				stack[top++] = left + 1;
+			}
+		}
+		if (distance != null) {
+			distance[0] = nearest;
+		}
+		return found;
+	}
+
+	// the entry distance of the ray into the bounds of a node, or Double.MAX_VALUE if it misses within max
+	private double slab(int node, double ox, double oy, double oz, double ix, double iy, double iz, double max) {
+		int b = 6 * node;
+		double t0 = (nodeBounds[b] - ox) * ix, t1 = (nodeBounds[b + 3] - ox) * ix;
+		double near = Math.min(t0, t1), far = Math.max(t0, t1);
+		t0 = (nodeBounds[b + 1] - oy) * iy;
+		t1 = (nodeBounds[b + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		t0 = (nodeBounds[b + 2] - oz) * iz;
+		t1 = (nodeBounds[b + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		return far >= Math.max(near, 0) && near <= max ? near : Double.MAX_VALUE;
+	}
+
+	// Moller-Trumbore, both sides: the distance to a triangle in leaf order, or -1
+	private double triangle(int i, double ox, double oy, double oz, double dx, double dy, double dz) {
+		int v = 9 * i;
+		double ax = triangles[v], ay = triangles[v + 1], az = triangles[v + 2];
+		double e1x = triangles[v + 3] - ax, e1y = triangles[v + 4] - ay, e1z = triangles[v + 5] - az;
+		double e2x = triangles[v + 6] - ax, e2y = triangles[v + 7] - ay, e2z = triangles[v + 8] - az;
+		double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if (Math.abs(det) < 1e-20) {
+			return -1;
+		}
+		double inv = 1 / det;
+		double sx = ox - ax, sy = oy - ay, sz = oz - az;
+		double u = (sx * px + sy * py + sz * pz) * inv;
+		if (u < 0 || u > 1) {
+			return -1;
+		}
+		double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		double w = (dx * qx + dy * qy + dz * qz) * inv;
+		if (w < 0 || u + w > 1) {
+			return -1;
+		}
+		return (e2x * qx + e2y * qy + e2z * qz) * inv;
+	}
+
+	public int getTriangleCount() {
+		return triangleIds.length;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the heap the hierarchy holds, in bytes
+	 */
+	public long getByteCount() {
+		return 4L * (triangles.length + triangleIds.length + nodeBounds.length + nodes.length + batchStarts.length);
+	}
+
+}
@@ -0,0 +1,181 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.opengl.util.texture.Texture;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The faces of one material run of a model, triangulated into flat, unindexed vertex arrays. Built without
+ * a GL context, then compiled into the model's display list. Vertices without a normal or texture coordinate
+ * repeat the previous one, as immediate mode GL would. Batches of a MaterialAtlas page carry the colors of
+ * their original materials per vertex.
+ */
+public class MeshBatch {
+
+	static final int NORMALS = 1, TEX_COORDS = 2, COLORS = 4; // which arrays follow, see write
+
+	final MtlLoader.Material material;
+	final Texture texture;
+	int vertexCount;
+	float[] positions = new float[3 * 64];
+	float[] normals; // null if no face in the batch has normals
+	float[] texCoords; // null if no face in the batch has texture coordinates
+	float[] colors; // rgba, null unless the batch draws an atlas page
+
+	MeshBatch(MtlLoader.Material material, Texture texture) {
+		this.material = material;
+		this.texture = texture;
+	}
+
+	void add(float[] position, float[] normal, float[] texCoord, float[] color, boolean flipTextureVertically) {
+		int n = vertexCount;
+		if (3 * (n + 1) > positions.length) {
+			int capacity = positions.length * 2;
+			positions = Arrays.copyOf(positions, capacity);
+			if (normals != null) {
+				normals = Arrays.copyOf(normals, capacity);
+			}
+			if (texCoords != null) {
+				texCoords = Arrays.copyOf(texCoords, capacity / 3 * 2);
+			}
+			if (colors != null) {
+				colors = Arrays.copyOf(colors, capacity / 3 * 4);
+			}
+		}
+		positions[3 * n] = position[0];
+		positions[3 * n + 1] = position[1];
+		positions[3 * n + 2] = position[2];
+		if (normal != null) {
+			if (normals == null) {
+				normals = new float[positions.length];
+				fill(normals, 3, n, 0, 0, 1);
+			}
+			normals[3 * n] = normal[0];
+			normals[3 * n + 1] = normal[1];
+			normals[3 * n + 2] = normal[2];
+		} else if (normals != null && n > 0) {
+			System.arraycopy(normals, 3 * (n - 1), normals, 3 * n, 3);
+		}
+		if (texCoord != null) {
+			if (texCoords == null) {
+				texCoords = new float[positions.length / 3 * 2];
+				fill(texCoords, 2, n, 0, 0, 0);
+			}
+			texCoords[2 * n] = texCoord[0];
+			texCoords[2 * n + 1] = flipTextureVertically ? 1f - texCoord[1] : texCoord[1];
+		} else if (texCoords != null && n > 0) {
+			System.arraycopy(texCoords, 2 * (n - 1), texCoords, 2 * n, 2);
+		}
+		if (color != null) {
+			if (colors == null) {
+				colors = new float[positions.length / 3 * 4];
+				Arrays.fill(colors, 0, 4 * n, 1f);
+			}
+			System.arraycopy(color, 0, colors, 4 * n, 4);
+		} else if (colors != null) {
+			Arrays.fill(colors, 4 * n, 4 * n + 4, 1f);
+		}
+		vertexCount++;
+	}
+
+	private static void fill(float[] array, int size, int count, float a, float b, float c) {
+		for (int i = 0; i < count; i++) {
+			array[size * i] = a;
+			array[size * i + 1] = b;
+			if (size > 2) {
+				array[size * i + 2] = c;
+			}
+		}
+	}
+
+	/**
+	 * @return a batch sharing the vertex arrays of this one, drawn with the texture
+	 */
+	MeshBatch withTexture(Texture texture) {
+		MeshBatch batch = new MeshBatch(material, texture);
+		batch.vertexCount = vertexCount;
+		batch.positions = positions;
+		batch.normals = normals;
+		batch.texCoords = texCoords;
+		batch.colors = colors;
+		return batch;
+	}
+
+	/**
+	 * Shrinks the vertex arrays to the vertices in use, for batches that are kept.
+	 */
+	void trim() {
+		positions = Arrays.copyOf(positions, 3 * vertexCount);
+		normals = normals != null ? Arrays.copyOf(normals, 3 * vertexCount) : null;
+		texCoords = texCoords != null ? Arrays.copyOf(texCoords, 2 * vertexCount) : null;
+		colors = colors != null ? Arrays.copyOf(colors, 4 * vertexCount) : null;
+	}
+
+	/**
+	 * Writes the vertex count, flags for the arrays present and the arrays in use, but not the material.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(vertexCount);
+		out.writeInt((normals != null ? NORMALS : 0) | (texCoords != null ? TEX_COORDS : 0) | (colors != null ? COLORS : 0));
+		writeFloats(out, positions, 3 * vertexCount);
+		if (normals != null) {
+			writeFloats(out, normals, 3 * vertexCount);
+		}
+		if (texCoords != null) {
+			writeFloats(out, texCoords, 2 * vertexCount);
+		}
+		if (colors != null) {
+			writeFloats(out, colors, 4 * vertexCount);
+		}
+	}
+
+	/**
+	 * Reads a batch written by write.
+	 */
+	static MeshBatch read(ByteBuffer b, MtlLoader.Material material) {
+		MeshBatch batch = new MeshBatch(material, null);
+		int n = b.getInt();
+		int flags = b.getInt();
+		batch.vertexCount = n;
+		batch.positions = readFloats(b, 3 * n);
+		batch.normals = (flags & NORMALS) != 0 ? readFloats(b, 3 * n) : null;
+		batch.texCoords = (flags & TEX_COORDS) != 0 ? readFloats(b, 2 * n) : null;
+		batch.colors = (flags & COLORS) != 0 ? readFloats(b, 4 * n) : null;
+		return batch;
+	}
+
+	private static void writeFloats(DataOutputStream out, float[] values, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			out.writeFloat(values[i]);
+		}
+	}
+
+	private static float[] readFloats(ByteBuffer b, int count) {
+		float[] values = new float[count];
+		b.asFloatBuffer().get(values);
+		b.position(b.position() + 4 * count);
+		return values;
+	}
+
+	/**
+	 * @return the heap size of the vertex arrays in use
+	 */
+	long getByteCount() {
+		return 4L * vertexCount * (3 + (normals != null ? 3 : 0) + (texCoords != null ? 2 : 0) + (colors != null ? 4 : 0));
+	}
+
+	public MtlLoader.Material getMaterial() {
+		return material;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getTriangleCount() {
+		return vertexCount / 3;
+	}
+
+}
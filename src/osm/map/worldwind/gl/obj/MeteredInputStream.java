@@ -0,0 +1,41 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it and the time spent waiting for them.
+ */
+class MeteredInputStream extends FilterInputStream {
+
+	long bytes;
+	long nanos;
+
+	MeteredInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		long t0 = System.nanoTime();
+		int b = super.read();
+		nanos += System.nanoTime() - t0;
+		if (b >= 0) {
+			bytes++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long t0 = System.nanoTime();
+		int n = super.read(b, off, len);
+		nanos += System.nanoTime() - t0;
+		if (n > 0) {
+			bytes += n;
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,357 @@
+package osm.map.worldwind.gl.obj;
+
+import gov.nasa.worldwind.render.DrawContext;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads models in the background before they are drawn, so that ObjRenderables do not load them on the
+ * rendering thread. Models are queued by preload, e.g. from a manifest at startup, which returns at once,
+ * and loaded on a few daemon threads; once loaded, a model is put where ObjRenderable looks for it.
+ *
+ * The next model to load is chosen when a thread frees up, not in queue order: first the models
+ * ObjRenderables drew in the last frames (their drawGL asked for them, see request), nearest to the eye first,
+ * then those of ObjRenderables beyond their render distance or outside the view, nearest first, then the
+ * rest in the order queued. Until their model is loaded, ObjRenderables draw nothing.
+ *
+ * With load on demand, ObjRenderables whose model is neither loaded nor queued queue it themselves rather
+ * than loading it in the frame. Such models are dropped from the queue, and their load cancelled if it
+ * started, once no ObjRenderable has asked for them for the stale time; models queued by preload are kept.
+ */
+public class ModelPreloader {
+
+	private static final Logger logger = Logger.getLogger(ModelPreloader.class.getName());
+	private static final ModelPreloader defaultPreloader = new ModelPreloader();
+
+	private static class Entry {
+
+		final String modelSource;
+		final boolean flipTextureVertically;
+		final long order; // queue order
+		final boolean onDemand; // queued by an ObjRenderable rather than preload
+		ObjLoader.Residency residency; // of the ObjRenderable that last asked, null for the default
+		long frameTimeStamp = -1; // of the frame distance and visible are of
+		long lastRequested; // when an ObjRenderable last asked for the model, milliseconds
+		double distance = Double.MAX_VALUE; // eye distance of the nearest ObjRenderable asking
+		boolean visible; // drawn rather than culled by one of them
+		ObjLoader loader; // while loading
+
+		Entry(String modelSource, boolean flipTextureVertically, long order, boolean onDemand) {
+			this.modelSource = modelSource;
+			this.flipTextureVertically = flipTextureVertically;
+			this.order = order;
+			this.onDemand = onDemand;
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>(); // queued and loading, by model source
+	private int threads = 2;
+	private int workers; // running
+	private long queued;
+	private long frameTimeStamp = -1; // of the last frame requests came from
+	private boolean loadOnDemand = false;
+	private long staleTime = 2000; // milliseconds
+	private long loaded, cancelled;
+
+	/**
+	 * @return the preloader ObjRenderables ask for their models
+	 */
+	public static ModelPreloader getDefault() {
+		return defaultPreloader;
+	}
+
+	/**
+	 * Queues a model to load, unless it is loaded or queued already.
+	 *
+	 * @param modelSource as given to ObjRenderable
+	 * @param flipTextureVertically as given to ObjRenderable
+	 */
+	public synchronized void preload(String modelSource, boolean flipTextureVertically) {
+		queue(modelSource, flipTextureVertically, null, false);
+	}
+
+	/**
+	 * Queues the models listed in a manifest, one model source per line, followed by "flip" if its textures
+	 * are to be flipped vertically; empty lines and lines starting with # are skipped. Earlier models are
+	 * loaded first unless ObjRenderables ask for later ones.
+	 *
+	 * @param manifest
+	 * @throws IOException
+	 */
+	public void preload(File manifest) throws IOException {
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+			for (String line; (line = br.readLine()) != null;) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				boolean flip = line.endsWith(" flip");
+				preload(flip ? line.substring(0, line.length() - 5).trim() : line, flip);
+			}
+		}
+	}
+
+	/**
+	 * Drops a model from the queue, cancelling its load if it started.
+	 *
+	 * @param modelSource
+	 */
+	public synchronized void cancel(String modelSource) {
+		Entry entry = entries.remove(modelSource);
+		if (entry != null) {
+			cancel(entry);
+		}
+	}
+
+	public synchronized void cancelAll() {
+		for (Entry entry : entries.values()) {
+			cancel(entry);
+		}
+		entries.clear();
+	}
+
+	private void cancel(Entry entry) {
+		if (entry.loader != null) {
+			entry.loader.cancel();
+		}
+		cancelled++;
+	}
+
+	/**
+	 * Called by ObjRenderables whose model is not loaded, each frame they are drawn or culled.
+	 *
+	 * @param dc
+	 * @param modelSource
+	 * @param flipTextureVertically
+	 * @param residency of the ObjRenderable, null for the default, set on the model once loaded
+	 * @param distance from the eye to the ObjRenderable
+	 * @param visible whether it is drawn rather than culled
+	 * @return whether the model is being loaded here, so the ObjRenderable should not load it itself
+	 */
+	synchronized boolean request(DrawContext dc, String modelSource, boolean flipTextureVertically,
+		ObjLoader.Residency residency, double distance, boolean visible) {
+		long now = System.currentTimeMillis();
+		if (dc.getFrameTimeStamp() != frameTimeStamp) {
+			frameTimeStamp = dc.getFrameTimeStamp();
+			dropStale(now);
+		}
+		Entry entry = entries.get(modelSource);
+		if (entry == null) {
+			if (!loadOnDemand || isLoaded(modelSource)) {
+				return false;
+			}
+			entry = queue(modelSource, flipTextureVertically, residency, true);
+		}
+		if (residency != null) {
+			entry.residency = residency;
+		}
+		if (entry.frameTimeStamp != frameTimeStamp) {
+			entry.frameTimeStamp = frameTimeStamp;
+			entry.distance = distance;
+			entry.visible = visible;
+		} else {
+			entry.distance = Math.min(entry.distance, distance);
+			entry.visible |= visible;
+		}
+		entry.lastRequested = now;
+		dc.setRedrawRequested(100); // to draw the model once it is loaded
+		return true;
+	}
+
+	private static boolean isLoaded(String modelSource) {
+		return ObjRenderable.modelCache.containsKey(modelSource);
+	}
+
+	private Entry queue(String modelSource, boolean flipTextureVertically, ObjLoader.Residency residency,
+		boolean onDemand) {
+		Entry entry = entries.get(modelSource);
+		if (entry != null || isLoaded(modelSource)) {
+			return entry;
+		}
+		entry = new Entry(modelSource, flipTextureVertically, queued++, onDemand);
+		entry.residency = residency;
+		entries.put(modelSource, entry);
+		startWorkers();
+		return entry;
+	}
+
+	private void startWorkers() {
+		int queuedCount = getQueuedCount();
+		while (workers < threads && workers < queuedCount) {
+			workers++;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "ModelPreloader");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void dropStale(long now) {
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.onDemand && now - entry.lastRequested > staleTime) {
+				it.remove();
+				cancel(entry);
+			}
+		}
+	}
+
+	// loads models until none is queued
+	private void work() {
+		boolean idle = false;
+		try {
+			while (true) {
+				Entry entry;
+				ObjLoader loader;
+				synchronized (this) {
+					entry = next();
+					if (entry == null) {
+						idle = true;
+						workers--;
+						return;
+					}
+					loader = entry.loader = new ObjLoader(entry.flipTextureVertically);
+				}
+				boolean complete = false;
+				try {
+					loader.load(entry.modelSource);
+					complete = !loader.isCancelled();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Could not preload " + entry.modelSource, e);
+				} finally {
+					synchronized (this) {
+						if (entries.get(entry.modelSource) == entry) { // not cancelled meanwhile
+							entries.remove(entry.modelSource);
+							if (complete) {
+								if (entry.residency != null) {
+									loader.setResidency(entry.residency);
+								}
+								ObjRenderable.modelCache.putIfAbsent(entry.modelSource, loader);
+								loaded++;
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			if (!idle) { // an Error ended this thread
+				synchronized (this) {
+					workers--;
+					startWorkers();
+				}
+			}
+		}
+	}
+
+	// the queued model to load next, see the class comment
+	private Entry next() {
+		long now = System.currentTimeMillis();
+		Entry best = null;
+		int bestRank = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.loader != null) {
+				continue; // loading
+			}
+			int rank = now - entry.lastRequested > staleTime ? 2 : entry.visible ? 0 : 1;
+			if (best == null || rank < bestRank || rank == bestRank && (rank < 2 ? entry.distance < best.distance
+				: entry.order < best.order)) {
+				best = entry;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the models queued and not loading yet
+	 */
+	public synchronized int getQueuedCount() {
+		int count = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.loader == null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public synchronized int getLoadingCount() {
+		return entries.size() - getQueuedCount();
+	}
+
+	public synchronized long getLoadedCount() {
+		return loaded;
+	}
+
+	public synchronized long getCancelledCount() {
+		return cancelled;
+	}
+
+	/**
+	 * @return whether the model is queued or loading
+	 */
+	public synchronized boolean isPending(String modelSource) {
+		return entries.containsKey(modelSource);
+	}
+
+	public synchronized int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets how many models are loaded at a time, 2 by default.
+	 *
+	 * @param threads
+	 */
+	public synchronized void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public synchronized boolean isLoadOnDemand() {
+		return loadOnDemand;
+	}
+
+	/**
+	 * Makes ObjRenderables queue models that are not loaded or queued here rather than load them in the
+	 * frame, off by default.
+	 *
+	 * @param loadOnDemand
+	 */
+	public synchronized void setLoadOnDemand(boolean loadOnDemand) {
+		this.loadOnDemand = loadOnDemand;
+	}
+
+	public synchronized long getStaleTime() {
+		return staleTime;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a model is still prioritized by the ObjRenderables that last asked for
+	 * it, and kept if it was queued on demand, 2 seconds by default.
+	 *
+	 * @param staleTime
+	 */
+	public synchronized void setStaleTime(long staleTime) {
+		this.staleTime = staleTime;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Preloader: %d queued, %d loading, %d loaded, %d cancelled", getQueuedCount(),
+			getLoadingCount(), loaded, cancelled);
+	}
+
+}
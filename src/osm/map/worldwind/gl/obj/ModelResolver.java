@@ -0,0 +1,107 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collection;
+
+/**
+ * Where the OBJ, MTL and texture files of models come from. ObjLoader asks its resolvers in turn (see
+ * ObjLoader.getResolvers), by default Classpath, FileSystem and an HttpModelResolver, and takes the first
+ * file found; decompression and archives are handled above them, see ModelSource.
+ */
+public interface ModelResolver {
+
+	/**
+	 * @param path
+	 * @return the content of the file, or null if this resolver does not have it
+	 * @throws IOException if it has the file but could not read it
+	 */
+	InputStream open(String path) throws IOException;
+
+	/**
+	 * @param path
+	 * @return whether this resolver has the file
+	 * @throws IOException
+	 */
+	boolean exists(String path) throws IOException;
+
+	/**
+	 * @param path
+	 * @return a local file with the content, e.g. for reading an archive through its index, or null if there
+	 * is none
+	 * @throws IOException
+	 */
+	File getFile(String path) throws IOException;
+
+	/**
+	 * Starts fetching files that will be opened soon, e.g. the textures of an MTL, if that is worth it.
+	 *
+	 * @param paths
+	 */
+	void prefetch(Collection<String> paths);
+
+	/**
+	 * Resources on the classpath.
+	 */
+	public static class Classpath implements ModelResolver {
+
+		@Override
+		public InputStream open(String path) {
+			return ModelResolver.class.getResourceAsStream(path);
+		}
+
+		@Override
+		public boolean exists(String path) {
+			return ModelResolver.class.getResource(path) != null;
+		}
+
+		@Override
+		public File getFile(String path) {
+			URL url = ModelResolver.class.getResource(path);
+			if (url == null || !"file".equals(url.getProtocol())) {
+				return null;
+			}
+			try {
+				return new File(url.toURI());
+			} catch (URISyntaxException | IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void prefetch(Collection<String> paths) {
+		}
+	}
+
+	/**
+	 * Files, absolute or relative to the working directory.
+	 */
+	public static class FileSystem implements ModelResolver {
+
+		@Override
+		public InputStream open(String path) throws IOException {
+			File f = getFile(path);
+			return f != null ? new FileInputStream(f) : null;
+		}
+
+		@Override
+		public boolean exists(String path) {
+			return getFile(path) != null;
+		}
+
+		@Override
+		public File getFile(String path) {
+			File f = new File(path);
+			return f.isFile() ? f : null;
+		}
+
+		@Override
+		public void prefetch(Collection<String> paths) {
+		}
+	}
+
+}
@@ -0,0 +1,519 @@
+package osm.map.worldwind.gl.obj;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Opens the files of models, their OBJ, MTL and texture files, from the first of the resolvers that has them
+ * (see ModelResolver), also compressed or inside zip archives:
+ * <ul>
+ * <li>gzip streams are recognized by their magic bytes whatever their name, and a missing file is looked for
+ * with a .gz suffix too, so an OBJ referring to model.mtl finds model.mtl.gz;</li>
+ * <li>zstd streams likewise, with a .zst suffix, if zstd-jni (com.github.luben.zstd) is on the classpath, as
+ * the JDK has no zstd decoder;</li>
+ * <li>a path like models/tank.zip!/tank.obj is the entry tank.obj of the archive models/tank.zip, and the
+ * MTL and texture paths of that model resolve within the same archive. An archive a resolver has as a local
+ * file, also a downloaded one, is read through the index of its central directory, kept open for its next
+ * entries while any are read and for a few archives after; one only available as a stream is scanned.</li>
+ * </ul>
+ * Decompressing the OBJ, the bulk of a load, can run ahead of the parser on a separate thread (see
+ * readAhead).
+ */
+final class ModelSource {
+
+	static final String ARCHIVE_SEPARATOR = "!/";
+	private static final String[] SUFFIXES = {"", ".gz", ".zst"};
+	private static final int OPEN_ARCHIVES = 8; // archives kept open once idle
+	private static final int BLOCK_SIZE = 1 << 18; // bytes read ahead per block
+	private static final int BLOCKS = 4; // blocks read ahead at most
+
+	private static final List<ModelResolver> resolvers = new CopyOnWriteArrayList<ModelResolver>(Arrays.asList(
+		new ModelResolver.Classpath(), new ModelResolver.FileSystem(),
+		new HttpModelResolver(new File(System.getProperty("java.io.tmpdir"), "obj-model-cache"))));
+	private static final Map<File, Archive> archives = new LinkedHashMap<File, Archive>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, Archive> eldest) {
+			if (size() > OPEN_ARCHIVES) {
+				eldest.getValue().evict();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private ModelSource() {
+	}
+
+	/**
+	 * Opens a file of a model, decompressed.
+	 *
+	 * @param path a classpath resource or file path, possibly into an archive
+	 * @return the stream, or null if there is no such file
+	 * @throws IOException
+	 */
+	static InputStream open(String path) throws IOException {
+		path = path.replace('\\', '/');
+		for (String suffix : SUFFIXES) {
+			InputStream is = openRaw(path + suffix);
+			if (is != null) {
+				return decompress(is);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the resolvers files are looked for with, in order; modifiable
+	 */
+	static List<ModelResolver> getResolvers() {
+		return resolvers;
+	}
+
+	/**
+	 * @param path a classpath resource or file path, possibly into an archive
+	 * @return whether the file exists, also compressed
+	 * @throws IOException
+	 */
+	static boolean exists(String path) throws IOException {
+		path = path.replace('\\', '/');
+		for (String suffix : SUFFIXES) {
+			if (path.contains(ARCHIVE_SEPARATOR)) {
+				InputStream is = openRaw(path + suffix);
+				if (is != null) {
+					is.close();
+					return true;
+				}
+			} else {
+				for (ModelResolver resolver : resolvers) {
+					if (resolver.exists(path + suffix)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lets the resolvers start fetching files that will be opened soon, e.g. the textures of an MTL; those
+	 * inside archives are fetched with their archive.
+	 *
+	 * @param paths
+	 */
+	static void prefetch(Collection<String> paths) {
+		Set<String> files = new LinkedHashSet<>();
+		for (String path : paths) {
+			path = path.replace('\\', '/');
+			int separator = path.indexOf(ARCHIVE_SEPARATOR);
+			files.add(separator < 0 ? path : path.substring(0, separator));
+		}
+		for (ModelResolver resolver : resolvers) {
+			resolver.prefetch(files);
+		}
+	}
+
+	/**
+	 * @return whether the path is into an archive
+	 */
+	static boolean isArchived(String path) {
+		return path.contains(ARCHIVE_SEPARATOR);
+	}
+
+	/**
+	 * Finds the first entry of an archive with a suffix, e.g. the model of a zip with an OBJ, its MTL and
+	 * textures.
+	 *
+	 * @param archive a classpath resource or file path of a zip
+	 * @param suffix compared ignoring case, also before a .gz or .zst suffix
+	 * @return the entry name, or null if the archive or such an entry does not exist
+	 * @throws IOException
+	 */
+	static String findEntry(String archive, String suffix) throws IOException {
+		suffix = suffix.toLowerCase();
+		File file = toFile(archive);
+		if (file != null) {
+			Archive a = acquire(file);
+			try {
+				for (Enumeration<? extends ZipEntry> e = a.zip.entries(); e.hasMoreElements();) {
+					String name = e.nextElement().getName();
+					if (matches(name, suffix)) {
+						return name;
+					}
+				}
+			} finally {
+				a.release();
+			}
+			return null;
+		}
+		InputStream is = openResolved(archive);
+		if (is == null) {
+			return null;
+		}
+		try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is))) {
+			for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+				if (matches(entry.getName(), suffix)) {
+					return entry.getName();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(String name, String suffix) {
+		name = name.toLowerCase();
+		for (String s : SUFFIXES) {
+			if (name.endsWith(suffix + s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// opens a file or archive entry as stored
+	private static InputStream openRaw(String path) throws IOException {
+		int separator = path.indexOf(ARCHIVE_SEPARATOR);
+		if (separator < 0) {
+			return openResolved(path);
+		}
+		String archive = path.substring(0, separator);
+		String entry = normalize(path.substring(separator + ARCHIVE_SEPARATOR.length()));
+		File file = toFile(archive);
+		if (file != null) {
+			Archive a = acquire(file);
+			ZipEntry zipEntry = a.zip.getEntry(entry);
+			if (zipEntry == null || zipEntry.isDirectory()) {
+				a.release();
+				return null;
+			}
+			try {
+				return new EntryInputStream(a, zipEntry);
+			} catch (IOException e) {
+				a.release();
+				throw e;
+			}
+		}
+		InputStream is = openResolved(archive);
+		if (is == null) {
+			return null;
+		}
+		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is));
+		for (ZipEntry e = zis.getNextEntry(); e != null; e = zis.getNextEntry()) {
+			if (e.getName().equals(entry) && !e.isDirectory()) {
+				return zis; // positioned at the entry
+			}
+		}
+		zis.close();
+		return null;
+	}
+
+	// an entry of an archive on the file system
+	private static class EntryInputStream extends FilterInputStream {
+
+		private final Archive archive;
+		private final boolean deflated;
+		private boolean closed;
+
+		EntryInputStream(Archive archive, ZipEntry entry) throws IOException {
+			super(archive.zip.getInputStream(entry));
+			this.archive = archive;
+			deflated = entry.getMethod() == ZipEntry.DEFLATED;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					archive.release();
+				}
+			}
+		}
+	}
+
+	// the file from the first resolver that has it
+	private static InputStream openResolved(String path) throws IOException {
+		for (ModelResolver resolver : resolvers) {
+			InputStream is = resolver.open(path);
+			if (is != null) {
+				return is;
+			}
+		}
+		return null;
+	}
+
+	// the local file of an archive from the first resolver that has it, or null if that has no local file
+	private static File toFile(String archive) throws IOException {
+		for (ModelResolver resolver : resolvers) {
+			File file = resolver.getFile(archive);
+			if (file != null || resolver.exists(archive)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	// resolves . and .. of a path within an archive, as MTL and texture paths relative to the OBJ have them
+	private static String normalize(String entry) {
+		Deque<String> parts = new ArrayDeque<>();
+		for (String part : entry.split("/")) {
+			if (part.equals("..")) {
+				parts.pollLast();
+			} else if (!part.isEmpty() && !part.equals(".")) {
+				parts.addLast(part);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String part : parts) {
+			sb.append(sb.length() > 0 ? "/" : "").append(part);
+		}
+		return sb.toString();
+	}
+
+	// wraps a stream in a decoder if it starts with the magic bytes of gzip or zstd
+	private static InputStream decompress(InputStream is) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(is, 1 << 16);
+		in.mark(4);
+		byte[] magic = new byte[4];
+		int n = 0;
+		for (int r; n < 4 && (r = in.read(magic, n, 4 - n)) > 0;) {
+			n += r;
+		}
+		in.reset();
+		if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+			return new Decompressed(new GZIPInputStream(in, 1 << 16));
+		}
+		if (n == 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f
+			&& (magic[3] & 0xff) == 0xfd) {
+			try {
+				Class<?> zstd = Class.forName("com.github.luben.zstd.ZstdInputStream");
+				return new Decompressed((InputStream) zstd.getConstructor(InputStream.class).newInstance(in));
+			} catch (ReflectiveOperationException e) {
+				in.close();
+				throw new IOException("Reading zstd needs zstd-jni (com.github.luben.zstd) on the classpath", e);
+			}
+		}
+		if (is instanceof EntryInputStream && ((EntryInputStream) is).deflated || is instanceof ZipInputStream) {
+			return new Decompressed(in);
+		}
+		return in;
+	}
+
+	/**
+	 * Decodes a compressed stream on a separate thread, a few blocks ahead of the reader, so that the
+	 * reader, e.g. the OBJ parser, does not wait for the decoder. Streams that are not compressed are
+	 * returned as they are.
+	 *
+	 * @param is a stream from open
+	 * @param name names the thread
+	 * @return
+	 */
+	static InputStream readAhead(InputStream is, String name) {
+		return is instanceof Decompressed ? new ReadAheadInputStream(is, name) : is;
+	}
+
+	// marks streams worth reading ahead
+	private static class Decompressed extends FilterInputStream {
+
+		Decompressed(InputStream in) {
+			super(in);
+		}
+	}
+
+	private static Archive acquire(File file) throws IOException {
+		synchronized (archives) {
+			Archive a = archives.get(file);
+			if (a != null && a.modified != file.lastModified()) {
+				archives.remove(file);
+				a.evict();
+				a = null;
+			}
+			if (a == null) {
+				a = new Archive(file);
+				archives.put(file, a);
+			}
+			a.users++;
+			return a;
+		}
+	}
+
+	// an open zip, closed once evicted and no longer read
+	private static class Archive {
+
+		final ZipFile zip;
+		final long modified;
+		int users;
+		boolean evicted;
+
+		Archive(File file) throws IOException {
+			modified = file.lastModified();
+			zip = new ZipFile(file);
+		}
+
+		void release() throws IOException {
+			synchronized (archives) {
+				users--;
+				if (evicted && users == 0) {
+					zip.close();
+				}
+			}
+		}
+
+		void evict() {
+			evicted = true;
+			if (users == 0) {
+				try {
+					zip.close();
+				} catch (IOException e) {
+					// nothing left to read from it
+				}
+			}
+		}
+	}
+
+	private static class ReadAheadInputStream extends InputStream {
+
+		private static final byte[] END = new byte[0];
+
+		private final InputStream source;
+		private final BlockingQueue<byte[]> full = new ArrayBlockingQueue<>(BLOCKS + 1);
+		private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BLOCKS + 1);
+		private final Thread thread;
+		private volatile IOException error;
+		private byte[] block;
+		private int position, length;
+		private boolean ended;
+
+		ReadAheadInputStream(InputStream source, String name) {
+			this.source = source;
+			for (int i = 0; i < BLOCKS; i++) {
+				free.add(new byte[BLOCK_SIZE]);
+			}
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					fill();
+				}
+			}, "Read ahead " + name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void fill() {
+			try {
+				while (true) {
+					byte[] b = free.take();
+					int n = 0;
+					for (int r; n < b.length && (r = source.read(b, n, b.length - n)) > 0;) {
+						n += r;
+					}
+					if (n > 0) {
+						full.put(n == b.length ? b : Arrays.copyOf(b, n)); // the last block, trimmed
+					}
+					if (n < b.length) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				return; // closed
+			}
+			try {
+				full.put(END);
+			} catch (InterruptedException e) {
+				// closed
+			}
+		}
+
+		// the next block, false at the end
+		private boolean next() throws IOException {
+			if (ended) {
+				return false;
+			}
+			if (block != null && block.length == BLOCK_SIZE) {
+				free.offer(block);
+			}
+			try {
+				block = full.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			position = 0;
+			length = block.length;
+			if (block == END) {
+				ended = true;
+				if (error != null) {
+					throw error;
+				}
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == length && !next()) {
+				return -1;
+			}
+			return block[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position == length && !next()) {
+				return -1;
+			}
+			int n = Math.min(len, length - position);
+			System.arraycopy(block, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return length - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			ended = true;
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			source.close();
+		}
+	}
+
+}
@@ -2,11 +2,9 @@ package osm.map.worldwind.gl.obj;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -40,29 +38,15 @@ public class MtlLoader {
 	}
 
 	final InputStream getInputStream(String basePath, String mtlPath) throws IOException {
-		InputStream is = this.getClass().getResourceAsStream(basePath + "/" + mtlPath);
-		if (is == null) {
-			File mtlFile = new File(mtlPath);
-			if (!mtlFile.isAbsolute()) {
-				mtlFile = new File(new File(basePath), mtlPath);
-			}
-			if (mtlFile.exists() && mtlFile.canRead()) {
-				is = new FileInputStream(mtlFile);
-			}
+		InputStream is = ModelSource.open(basePath + "/" + mtlPath);
+		if (is == null && new File(mtlPath).isAbsolute()) {
+			is = ModelSource.open(mtlPath);
 		}
 		return is;
 	}
 
 	boolean exists(String basePath, String mtlPath) throws IOException {
-		URL url = this.getClass().getResource(basePath+"/"+mtlPath);
-		if (url == null) {
-			File mtlFile = new File(mtlPath);
-			if (!mtlFile.isAbsolute()) {
-				mtlFile = new File(new File(basePath), mtlPath);
-			}
-			url = mtlFile.toURI().toURL();
-		}
-		return url != null;
+		return ModelSource.exists(basePath + "/" + mtlPath) || new File(mtlPath).isAbsolute() && ModelSource.exists(mtlPath);
 	}
 
 	public Material getMtl(String namepass) {
@@ -131,16 +115,12 @@ public class MtlLoader {
 						matset.illum = getValue(newline);
 					}
 					if (newline.startsWith("map_Kd")) { //texture image
-						String map_Kd = newline.trim().substring(newline.indexOf(" ")).trim();
-						if (this.exists(basePath, map_Kd)) {
-							matset.map_Kd = map_Kd;
-						} else {
-							System.err.println("Error: unable to read texture " + map_Kd);
-						}
+						matset.map_Kd = newline.trim().substring(newline.indexOf(" ")).trim();
 					}
 				}
 			}
 			materials.add(matset);
+			checkTextures();
 
 		} catch (IOException e) {
 			System.out.println("Failed to read file: " + br.toString());
@@ -150,7 +130,24 @@ public class MtlLoader {
 		}
 	}
 
-	public class Material {
+	// fetches the textures in parallel where the resolver supports it, then drops the missing ones
+	private void checkTextures() throws IOException {
+		List<String> textures = new ArrayList<>();
+		for (Material mtl : materials) {
+			if (mtl.map_Kd != null) {
+				textures.add(basePath + "/" + mtl.map_Kd);
+			}
+		}
+		ModelSource.prefetch(textures);
+		for (Material mtl : materials) {
+			if (mtl.map_Kd != null && !exists(basePath, mtl.map_Kd)) {
+				System.err.println("Error: unable to read texture " + mtl.map_Kd);
+				mtl.map_Kd = null;
+			}
+		}
+	}
+
+	public static class Material {
 		public String name;
 		public int mtlnum;
 		public float Ns, Ni, Tr, illum;
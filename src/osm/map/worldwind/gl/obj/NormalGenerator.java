@@ -0,0 +1,258 @@
+package osm.map.worldwind.gl.obj;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates smooth vertex normals for the faces of a model that have none. The normal of a face corner is
+ * the sum of the unit normals of the faces around its vertex, weighted by their angles at the vertex, over
+ * the faces whose normals are within the crease angle of the corner's face; corners across a sharper edge
+ * get different normals, which splits the vertex there. Corners of a vertex with equal normals share one.
+ *
+ * The passes run in parallel on the fork/join pool, each over faces or vertices and writing only the slots
+ * of its own faces or vertices: face normals and corner angles per face, then normals per vertex, gathered
+ * from a vertex to corner index instead of accumulated into shared vertices, so no pass needs atomics or
+ * locks. The normals are computed twice to keep only the unique ones in memory.
+ */
+class NormalGenerator {
+
+	private static final int CHUNK = 1 << 14; // faces or vertices per task
+
+	private final float[] positions; // x, y, z per vertex
+	private final List<ObjLoader.Face> faces;
+	private final int[] faceStart; // the first corner of each face, and the corner count at the end
+	private final int[] cornerVertex;
+	private final int[] cornerFace;
+	private final float[] faceNormals; // unit, x, y, z per face, 0 if degenerate
+	private final float[] cornerAngles;
+	private final int[] vertexStart; // the first entry in vertexCorners of each vertex, and the count at the end
+	private final int[] vertexCorners; // the corners of each vertex
+	private final int[] uniqueCounts; // the normals of each vertex, then their first index in the output
+	private final float cosCrease;
+	private float[] normals; // the output, x, y, z per normal
+
+	private NormalGenerator(List<float[]> vertices, List<ObjLoader.Face> faces, double creaseAngle) {
+		this.faces = faces;
+		positions = new float[3 * vertices.size()];
+		for (int i = 0; i < vertices.size(); i++) {
+			System.arraycopy(vertices.get(i), 0, positions, 3 * i, 3);
+		}
+		faceStart = new int[faces.size() + 1];
+		for (int f = 0; f < faces.size(); f++) {
+			faceStart[f + 1] = faceStart[f] + faces.get(f).v.length;
+		}
+		int corners = faceStart[faces.size()];
+		cornerVertex = new int[corners];
+		cornerFace = new int[corners];
+		faceNormals = new float[3 * faces.size()];
+		cornerAngles = new float[corners];
+		vertexStart = new int[vertices.size() + 1];
+		vertexCorners = new int[corners];
+		uniqueCounts = new int[vertices.size() + 1];
+		cosCrease = (float) Math.cos(Math.toRadians(creaseAngle));
+	}
+
+	/**
+	 * Generates normals for the corners of the faces without one, appending them to normals and setting the
+	 * vn indices of those corners.
+	 *
+	 * @param creaseAngle the largest angle between faces, in degrees, across which normals are smoothed
+	 * @return the number of normals generated, 0 if every corner had one
+	 */
+	static int generate(List<float[]> vertices, List<ObjLoader.Face> faces, List<float[]> normals, double creaseAngle) {
+		boolean missing = false;
+		for (ObjLoader.Face face : faces) {
+			for (int vn : face.vn) {
+				missing |= vn == 0;
+			}
+		}
+		if (!missing) {
+			return 0;
+		}
+		NormalGenerator generator = new NormalGenerator(vertices, faces, creaseAngle);
+		generator.run(normals.size());
+		float[] generated = generator.normals;
+		for (int i = 0; i < generated.length; i += 3) {
+			normals.add(new float[]{generated[i], generated[i + 1], generated[i + 2]});
+		}
+		return generated.length / 3;
+	}
+
+	private void run(final int firstIndex) {
+		final int faceCount = faces.size(), vertexCount = vertexStart.length - 1;
+		parallel(faceCount, new Range() {
+			@Override
+			void run(int from, int to) {
+				faces(from, to);
+			}
+		});
+
+		// the vertex to corner index, a counting sort of the corners by vertex
+		for (int c = 0; c < cornerVertex.length; c++) {
+			vertexStart[cornerVertex[c] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			vertexStart[v + 1] += vertexStart[v];
+		}
+		int[] next = vertexStart.clone();
+		for (int c = 0; c < cornerVertex.length; c++) {
+			vertexCorners[next[cornerVertex[c]]++] = c;
+		}
+
+		parallel(vertexCount, new Range() {
+			@Override
+			void run(int from, int to) {
+				vertices(from, to, false, firstIndex);
+			}
+		});
+		int total = 0;
+		for (int v = 0; v < vertexCount; v++) {
+			int count = uniqueCounts[v];
+			uniqueCounts[v] = total;
+			total += count;
+		}
+		normals = new float[3 * total];
+		parallel(vertexCount, new Range() {
+			@Override
+			void run(int from, int to) {
+				vertices(from, to, true, firstIndex);
+			}
+		});
+	}
+
+	// the normals and corner angles of faces
+	private void faces(int from, int to) {
+		for (int f = from; f < to; f++) {
+			int[] v = faces.get(f).v;
+			int start = faceStart[f], n = v.length;
+			// Newell's method, for polygons too
+			double nx = 0, ny = 0, nz = 0;
+			for (int i = 0; i < n; i++) {
+				int a = 3 * (v[i] - 1), b = 3 * (v[(i + 1) % n] - 1);
+				nx += (positions[a + 1] - positions[b + 1]) * (positions[a + 2] + positions[b + 2]);
+				ny += (positions[a + 2] - positions[b + 2]) * (positions[a] + positions[b]);
+				nz += (positions[a] - positions[b]) * (positions[a + 1] + positions[b + 1]);
+				cornerVertex[start + i] = v[i] - 1;
+				cornerFace[start + i] = f;
+			}
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length > 0) {
+				faceNormals[3 * f] = (float) (nx / length);
+				faceNormals[3 * f + 1] = (float) (ny / length);
+				faceNormals[3 * f + 2] = (float) (nz / length);
+			}
+			for (int i = 0; i < n; i++) {
+				int o = 3 * (v[i] - 1), p = 3 * (v[(i + n - 1) % n] - 1), q = 3 * (v[(i + 1) % n] - 1);
+				double ax = positions[p] - positions[o], ay = positions[p + 1] - positions[o + 1], az = positions[p + 2] - positions[o + 2];
+				double bx = positions[q] - positions[o], by = positions[q + 1] - positions[o + 1], bz = positions[q + 2] - positions[o + 2];
+				double cx = ay * bz - az * by, cy = az * bx - ax * bz, cz = ax * by - ay * bx;
+				cornerAngles[start + i] = (float) Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), ax * bx + ay * by + az * bz);
+			}
+		}
+	}
+
+	// counts the unique normals of vertices, or writes them and the vn indices
+	private void vertices(int from, int to, boolean write, int firstIndex) {
+		float[] unique = new float[3 * 16];
+		for (int v = from; v < to; v++) {
+			int start = vertexStart[v], end = vertexStart[v + 1];
+			int count = 0;
+			for (int i = start; i < end; i++) {
+				int corner = vertexCorners[i];
+				int face = cornerFace[corner];
+				int w = corner - faceStart[face];
+				ObjLoader.Face f = faces.get(face);
+				if (f.vn[w] != 0 && !write || write && f.vn[w] > 0 && f.vn[w] <= firstIndex) {
+					continue; // read from the file
+				}
+				float nx = 0, ny = 0, nz = 0;
+				int o = 3 * face;
+				for (int j = start; j < end; j++) {
+					int other = cornerFace[vertexCorners[j]];
+					int p = 3 * other;
+					float dot = faceNormals[o] * faceNormals[p] + faceNormals[o + 1] * faceNormals[p + 1]
+						+ faceNormals[o + 2] * faceNormals[p + 2];
+					if (other == face || dot >= cosCrease) {
+						float weight = cornerAngles[vertexCorners[j]];
+						nx += weight * faceNormals[p];
+						ny += weight * faceNormals[p + 1];
+						nz += weight * faceNormals[p + 2];
+					}
+				}
+				float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length > 0) {
+					nx /= length;
+					ny /= length;
+					nz /= length;
+				} else {
+					nz = 1;
+				}
+				int k = 0;
+				while (k < count && (unique[3 * k] != nx || unique[3 * k + 1] != ny || unique[3 * k + 2] != nz)) {
+					k++;
+				}
+				if (k == count) {
+					if (3 * (count + 1) > unique.length) {
+						unique = Arrays.copyOf(unique, 2 * unique.length);
+					}
+					unique[3 * k] = nx;
+					unique[3 * k + 1] = ny;
+					unique[3 * k + 2] = nz;
+					count++;
+					if (write) {
+						int index = uniqueCounts[v] + k;
+						normals[3 * index] = nx;
+						normals[3 * index + 1] = ny;
+						normals[3 * index + 2] = nz;
+					}
+				}
+				if (write) {
+					f.vn[w] = firstIndex + uniqueCounts[v] + k + 1;
+				}
+			}
+			if (!write) {
+				uniqueCounts[v] = count;
+			}
+		}
+	}
+
+	private abstract static class Range {
+
+		abstract void run(int from, int to);
+	}
+
+	private static void parallel(int count, final Range range) {
+		if (count <= CHUNK) {
+			range.run(0, count);
+			return;
+		}
+		ForkJoinPool.commonPool().invoke(new Split(0, count, range));
+	}
+
+	private static class Split extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to;
+		private final Range range;
+
+		Split(int from, int to, Range range) {
+			this.from = from;
+			this.to = to;
+			this.range = range;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				range.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Split(from, mid, range), new Split(mid, to, range));
+			}
+		}
+	}
+
+}
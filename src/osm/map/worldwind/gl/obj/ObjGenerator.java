@@ -0,0 +1,318 @@
+package osm.map.worldwind.gl.obj;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes deterministic synthetic OBJ/MTL models for load and scalability testing: a wavy height field of the
+ * requested number of vertices, covered with a seeded mix of triangles, quads and n-gons. Vertex rows and
+ * faces are interleaved and streamed, so files of many gigabytes can be written in constant memory.
+ *
+ * Usable from code or the command line, e.g.
+ * <pre>
+ * java osm.map.worldwind.gl.obj.ObjGenerator dir=/tmp/big name=big vertices=50000000 tris=0.4 ngons=0.1 materials=16 textured=4 negative=true
+ * </pre>
+ */
+public class ObjGenerator {
+
+	private long seed = 42;
+	private long vertexCount = 10000;
+	private double triangleFraction = 0.5;
+	private double polygonFraction = 0; // the remainder after triangles and polygons are quads
+	private int polygonSides = 6;
+	private int materialCount = 4;
+	private int texturedMaterials = 0;
+	private int textureCount = 1;
+	private int textureSize = 64;
+	private int facesPerMaterial = 1000;
+	private boolean normals = true;
+	private boolean texCoords = true;
+	private boolean negativeIndices = false;
+
+	public static class Stats {
+
+		public long vertices;
+		public long faces;
+		public long triangles; // after triangulation
+		public long bytes;
+		public File obj;
+		public File mtl;
+
+		@Override
+		public String toString() {
+			return obj + ": " + vertices + " vertices, " + faces + " faces (" + triangles + " triangles), " + bytes + " bytes";
+		}
+	}
+
+	/**
+	 * Writes name.obj, name.mtl and any textures to dir.
+	 *
+	 * @param dir
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	public Stats write(File dir, String name) throws IOException {
+		dir.mkdirs();
+		Stats stats = new Stats();
+		stats.obj = new File(dir, name + ".obj");
+		stats.mtl = new File(dir, name + ".mtl");
+		writeMtl(dir, stats.mtl);
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stats.obj), StandardCharsets.US_ASCII), 1 << 16)) {
+			writeObj(w, name, stats);
+		}
+		stats.bytes = stats.obj.length();
+		return stats;
+	}
+
+	private void writeMtl(File dir, File mtl) throws IOException {
+		Random random = new Random(seed);
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mtl), StandardCharsets.US_ASCII))) {
+			w.write("# synthetic materials, seed " + seed + "\n");
+			for (int m = 0; m < materialCount; m++) {
+				w.write("\nnewmtl m" + m + "\n");
+				w.write("Ns 96.078431\n");
+				w.write("Ka " + random.nextFloat() + " " + random.nextFloat() + " " + random.nextFloat() + "\n");
+				w.write("Kd " + random.nextFloat() + " " + random.nextFloat() + " " + random.nextFloat() + "\n");
+				w.write("Ks 0.5 0.5 0.5\n");
+				w.write("d " + (m % 8 == 7 ? "0.5" : "1.0") + "\n");
+				w.write("illum 2\n");
+				if (m < texturedMaterials) {
+					w.write("map_Kd tex" + (m % textureCount) + ".png\n");
+				}
+			}
+		}
+		for (int t = 0; t < Math.min(textureCount, texturedMaterials); t++) {
+			writeTexture(new File(dir, "tex" + t + ".png"), new Random(seed + t));
+		}
+	}
+
+	private void writeTexture(File file, Random random) throws IOException {
+		BufferedImage image = new BufferedImage(textureSize, textureSize, BufferedImage.TYPE_INT_RGB);
+		Color a = new Color(random.nextInt(0x1000000));
+		Color b = new Color(random.nextInt(0x1000000));
+		int check = Math.max(1, textureSize / 8);
+		for (int y = 0; y < textureSize; y++) {
+			for (int x = 0; x < textureSize; x++) {
+				image.setRGB(x, y, ((x / check + y / check) % 2 == 0 ? a : b).getRGB());
+			}
+		}
+		ImageIO.write(image, "png", file);
+	}
+
+	private void writeObj(Writer w, String name, Stats stats) throws IOException {
+		Random random = new Random(seed);
+		int side = (int) Math.max(2, Math.ceil(Math.sqrt(vertexCount)));
+		int rows = (int) Math.max(2, (vertexCount + side - 1) / side);
+		StringBuilder sb = new StringBuilder(256);
+
+		w.write("# synthetic model, seed " + seed + "\n");
+		w.write("mtllib " + name + ".mtl\n");
+		int material = -1;
+		long facesInMaterial = 0;
+		for (int j = 0; j < rows; j++) {
+			writeRow(w, sb, j, side);
+			stats.vertices += side;
+			if (j == 0) {
+				continue;
+			}
+			// faces of the strip between rows j - 1 and j
+			long top = (long) j * side + 1; // 1 based index of the first vertex of row j
+			long bottom = top - side;
+			int cell = 0;
+			while (cell < side - 1) {
+				if (material < 0 || facesInMaterial >= facesPerMaterial) {
+					material = (material + 1) % materialCount;
+					w.write("usemtl m" + material + "\n");
+					facesInMaterial = 0;
+				}
+				double r = random.nextDouble();
+				int sides = r < triangleFraction ? 3 : r < triangleFraction + polygonFraction ? polygonSides : 4;
+				int cells = sides <= 4 ? 1 : Math.min((sides - 1) / 2, side - 1 - cell);
+				long a = bottom + cell;
+				long d = top + cell;
+				sb.setLength(0);
+				sb.append('f');
+				if (sides == 3) {
+					// two triangles covering the cell
+					index(sb, a, stats.vertices).index(sb, a + 1, stats.vertices).index(sb, d + 1, stats.vertices);
+					sb.append("\nf");
+					index(sb, a, stats.vertices).index(sb, d + 1, stats.vertices).index(sb, d, stats.vertices);
+					stats.faces++;
+					facesInMaterial++;
+					stats.triangles += 2;
+				} else {
+					// the boundary of a strip of cells: along the bottom row, then back along the top row,
+					// dropping one top vertex to get an odd number of sides
+					int count = 0;
+					for (int k = 0; k <= cells; k++, count++) {
+						index(sb, a + k, stats.vertices);
+					}
+					boolean odd = sides > 4 && sides % 2 == 1 && cells > 1;
+					for (int k = cells; k >= 0; k--) {
+						if (odd && k == 1) {
+							continue;
+						}
+						index(sb, d + k, stats.vertices);
+						count++;
+					}
+					stats.triangles += count - 2;
+				}
+				sb.append('\n');
+				w.append(sb);
+				stats.faces++;
+				facesInMaterial++;
+				cell += cells;
+			}
+		}
+	}
+
+	private void writeRow(Writer w, StringBuilder sb, int j, int side) throws IOException {
+		for (int i = 0; i < side; i++) {
+			float x = i;
+			float z = j;
+			float y = (float) (Math.sin(i * 0.05) * Math.cos(j * 0.05) * 4);
+			sb.setLength(0);
+			sb.append("v ");
+			decimal(sb, x).append(' ');
+			decimal(sb, y).append(' ');
+			decimal(sb, z).append('\n');
+			if (texCoords) {
+				sb.append("vt ");
+				decimal(sb, i / (float) side).append(' ');
+				decimal(sb, j / (float) side).append('\n');
+			}
+			if (normals) {
+				// normal of the height field
+				float dx = (float) (Math.cos(i * 0.05) * Math.cos(j * 0.05) * 0.2);
+				float dz = (float) (-Math.sin(i * 0.05) * Math.sin(j * 0.05) * 0.2);
+				float len = (float) Math.sqrt(dx * dx + 1 + dz * dz);
+				sb.append("vn ");
+				decimal(sb, -dx / len).append(' ');
+				decimal(sb, 1 / len).append(' ');
+				decimal(sb, -dz / len).append('\n');
+			}
+			w.append(sb);
+		}
+	}
+
+	// vertices, texture coordinates and normals are written in lock step, so they share an index
+	private ObjGenerator index(StringBuilder sb, long i, long written) {
+		long index = negativeIndices ? i - written - 1 : i;
+		sb.append(' ').append(index);
+		if (texCoords && normals) {
+			sb.append('/').append(index).append('/').append(index);
+		} else if (texCoords) {
+			sb.append('/').append(index);
+		} else if (normals) {
+			sb.append("//").append(index);
+		}
+		return this;
+	}
+
+	// fixed point with 5 decimals, much faster than Float.toString for multi gigabyte output
+	private static StringBuilder decimal(StringBuilder sb, float value) {
+		long scaled = Math.round(value * 100000.0);
+		if (scaled < 0) {
+			sb.append('-');
+			scaled = -scaled;
+		}
+		sb.append(scaled / 100000).append('.');
+		long fraction = scaled % 100000;
+		for (long p = 10000; p > fraction && p > 1; p /= 10) {
+			sb.append('0');
+		}
+		return sb.append(fraction);
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setVertexCount(long vertexCount) {
+		this.vertexCount = vertexCount;
+	}
+
+	/**
+	 * Sets the share of triangles and n-gons among the faces; the rest are quads.
+	 */
+	public void setFaceMix(double triangleFraction, double polygonFraction, int polygonSides) {
+		if (triangleFraction + polygonFraction > 1 || polygonSides < 5) {
+			throw new IllegalArgumentException("Invalid face mix");
+		}
+		this.triangleFraction = triangleFraction;
+		this.polygonFraction = polygonFraction;
+		this.polygonSides = polygonSides;
+	}
+
+	public void setMaterials(int materialCount, int facesPerMaterial) {
+		this.materialCount = Math.max(1, materialCount);
+		this.facesPerMaterial = Math.max(1, facesPerMaterial);
+	}
+
+	/**
+	 * The first texturedMaterials materials reference one of textureCount generated textures of the given size.
+	 */
+	public void setTextures(int texturedMaterials, int textureCount, int textureSize) {
+		this.texturedMaterials = texturedMaterials;
+		this.textureCount = Math.max(1, textureCount);
+		this.textureSize = textureSize;
+	}
+
+	public void setNormals(boolean normals) {
+		this.normals = normals;
+	}
+
+	public void setTexCoords(boolean texCoords) {
+		this.texCoords = texCoords;
+	}
+
+	public void setNegativeIndices(boolean negativeIndices) {
+		this.negativeIndices = negativeIndices;
+	}
+
+	public static void main(String[] args) throws IOException {
+		ObjGenerator g = new ObjGenerator();
+		File dir = new File(".");
+		String name = "synthetic";
+		double tris = g.triangleFraction, ngons = g.polygonFraction;
+		int materials = g.materialCount, textured = 0, textures = 1;
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2) {
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			switch (kv[0]) {
+				case "dir": dir = new File(kv[1]); break;
+				case "name": name = kv[1]; break;
+				case "seed": g.setSeed(Long.parseLong(kv[1])); break;
+				case "vertices": g.setVertexCount(Long.parseLong(kv[1])); break;
+				case "tris": tris = Double.parseDouble(kv[1]); break;
+				case "ngons": ngons = Double.parseDouble(kv[1]); break;
+				case "sides": g.polygonSides = Integer.parseInt(kv[1]); break;
+				case "materials": materials = Integer.parseInt(kv[1]); break;
+				case "facesPerMaterial": g.facesPerMaterial = Integer.parseInt(kv[1]); break;
+				case "textured": textured = Integer.parseInt(kv[1]); break;
+				case "textures": textures = Integer.parseInt(kv[1]); break;
+				case "normals": g.setNormals(Boolean.parseBoolean(kv[1])); break;
+				case "texcoords": g.setTexCoords(Boolean.parseBoolean(kv[1])); break;
+				case "negative": g.setNegativeIndices(Boolean.parseBoolean(kv[1])); break;
+				default: throw new IllegalArgumentException("Unknown option " + kv[0]);
+			}
+		}
+		g.setFaceMix(tris, ngons, g.polygonSides);
+		g.setMaterials(materials, g.facesPerMaterial);
+		g.setTextures(textured, textures, g.textureSize);
+		System.out.println(g.write(dir, name));
+	}
+
+}
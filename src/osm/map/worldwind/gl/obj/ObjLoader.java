@@ -4,18 +4,29 @@ import com.jogamp.opengl.util.texture.Texture;
 import com.jogamp.opengl.util.texture.TextureData;
 import com.jogamp.opengl.util.texture.TextureIO;
 import foxtrot.Task;
+import gov.nasa.worldwind.cache.GpuResourceCache;
+import gov.nasa.worldwind.render.DrawContext;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.media.opengl.GL2;
@@ -34,26 +45,65 @@ import osm.map.worldwind.gl.obj.MtlLoader.Material;
  * be prepared to re-create them if they do not exist in the <code>DrawContext</code>'s current
  * <code>GpuResourceCache</code> when needed. Examples of doing this can be found by searching for usages of the method
  * {@link GpuResourceCache#get(Object)} and {@link GpuResourceCache#getTexture(Object)}.
- * 
- * TODO: Need to migrate to this approach
+ *
+ * GpuResources does this for the models loaded here, rebuilding their display lists, buffers and textures from
+ * the mesh batches and texture data retained by createGraphics.
  */
 
 public class ObjLoader {
 
-	private static final Map<String, Integer> oldObjectListLookup = new HashMap<>();
+	private static volatile boolean atlasPacking = false;
+	private static volatile boolean vertexCompression = false;
+	private static volatile int progressiveBlockFaces = 10000;
+	private static volatile Residency defaultResidency = Residency.KEEP_ALL;
+	private static volatile boolean normalGeneration = true;
+	private static volatile double creaseAngle = 60; // degrees
+
+	/**
+	 * What a model keeps in the heap once createGraphics has run.
+	 */
+	public enum Residency {
+		KEEP_ALL, // the parsed vertex lists and faces too
+		COMPACT, // the mesh batches, or the QuantizedMesh, and the decoded textures
+		RELEASE // nothing once uploaded: the batches are spilled to a temporary file, textures are decoded again
+	}
 
 	private String modelName;
 	List<float[]> vertexSets = new ArrayList<>();
 	List<float[]> vertexSetsNorms = new ArrayList<>();
 	List<float[]> vertexSetsTexs = new ArrayList<>();
 	List<Face> faces = new ArrayList<>();
-	int objectlist;
+	List<String> mtlLibs = new ArrayList<>();
+	private boolean geometryOnly = false; // skip the atlas and textures, for preprocessing tools
+	private List<ProgressBlock> progressBlocks; // published by the parser of a progressive load, else null
+	private final List<int[]> progressLists = new ArrayList<>(); // display list, triangles per block
+	private float[] runningBounds; // min x, y, z and max x, y, z of the vertices parsed so far
+	private Thread loadThread;
+	private volatile boolean parsed = true;
+	private volatile boolean cancelled;
+	List<MeshBatch> batches; // retained by createGraphics to rebuild the GPU resources from
+	private Residency residency = defaultResidency;
+	private volatile boolean prepared; // createGraphics has run
+	private boolean uploaded; // GpuResources has uploaded the model at least once
+	private File spillFile; // the batches of a released model
+	private List<Material> spillMaterials;
+	private volatile MeshBVH bvh; // built on first query, see getBVH
+	private final Object bvhLock = new Object(); // held while building the BVH, rather than the model
+	private float[] occluderTriangles; // of the last getOccluderTriangles
+	private int occluderBudget;
+	private Thread bvhThread;
+	private final Map<GpuResourceCache, GpuResources> gpuResources = new WeakHashMap<>();
+	int listTextureBinds, listTriangles; // replayed by each glCallList of the display list
+	MaterialAtlas atlas;
+	QuantizedMesh quantizedMesh; // replaces the vertex lists and faces once compressed
+	QuantizedMesh.Accuracy compressionAccuracy;
+	int polygonCount;
 	float topPoint, bottomPoint, leftPoint, rightPoint, farPoint, nearPoint;
-	Map<String, Texture> textureCache = new HashMap<>();
 	Map<String, TextureData> textureDataCache = new HashMap<>();
 	BoundingBox bbox;
 	private final static Logger logger = Logger.getLogger(ObjLoader.class.getName());
 	private GLProfile glProfile;
+	LoadMetrics metrics = new LoadMetrics("");
 
 	String basePath;
 	boolean flipTextureVertically;
@@ -83,6 +133,107 @@ public class ObjLoader {
 		this.createGraphics(gl, centered);
 	}
 
+	ObjLoader(boolean flipTextureVertically) {
+		this.flipTextureVertically = flipTextureVertically;
+	}
+
+	/**
+	 * Loads the geometry and materials of a model without its textures and without a GL context, for
+	 * preprocessing tools such as ChunkedModelBuilder.
+	 *
+	 * @param objPath
+	 * @param centered centers and scales the model as createGraphics does
+	 * @param flipTextureVertically
+	 * @return
+	 */
+	static ObjLoader loadGeometry(String objPath, boolean centered, boolean flipTextureVertically) {
+		ObjLoader loader = new ObjLoader(flipTextureVertically);
+		loader.geometryOnly = true;
+		String parts[] = loader.parsePath(objPath);
+		loader.modelName = parts[1];
+		loader.loadData(parts[0], parts[1]);
+		if (centered) {
+			loader.centerit();
+		}
+		return loader;
+	}
+
+	/**
+	 * Starts loading a model in a background thread and returns at once. While the file is parsed, blocks of
+	 * faces are published for drawProgress to draw; once isParsed, createGraphics builds the final sorted
+	 * display list as usual.
+	 *
+	 * @param objPath
+	 * @param flipTextureVertically
+	 * @return
+	 */
+	static ObjLoader loadProgressively(String objPath, boolean flipTextureVertically) {
+		final ObjLoader loader = new ObjLoader(flipTextureVertically);
+		final String parts[] = loader.parsePath(objPath);
+		loader.modelName = parts[1];
+		loader.progressBlocks = new CopyOnWriteArrayList<>();
+		loader.runningBounds = new float[]{Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+			-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		loader.parsed = false;
+		loader.loadThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loader.loadData(parts[0], parts[1]);
+				} finally {
+					loader.parsed = true;
+				}
+			}
+		}, "ObjLoader " + parts[1]);
+		loader.loadThread.setDaemon(true);
+		loader.loadThread.start();
+		return loader;
+	}
+
+	/**
+	 * Loads the data of a model in the calling thread, as the constructor without a GL context does, into a
+	 * loader created beforehand so that another thread can cancel the load.
+	 *
+	 * @param objPath
+	 */
+	void load(String objPath) {
+		String parts[] = parsePath(objPath);
+		modelName = parts[1];
+		loadData(parts[0], parts[1]);
+	}
+
+	/**
+	 * Makes a load in progress stop reading the model, leaving it incomplete.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return false while a progressive load is still reading the model
+	 */
+	public boolean isParsed() {
+		return parsed;
+	}
+
+	/**
+	 * Waits for a progressive load to finish reading the model.
+	 */
+	void awaitParsed() {
+		Thread thread = loadThread;
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	private String[] parsePath(String objPath) {
 		String path = "";
 		objPath = objPath.replaceAll("\\\\", "/");
@@ -104,29 +255,47 @@ public class ObjLoader {
 			} else {
 				this.basePath = basePath;
 			}
+			if (objPath.toLowerCase().endsWith(".zip")) {
+				// the model is the first OBJ in the archive, its MTL and textures are resolved within it
+				String archive = this.basePath + "/" + objPath;
+				String entry = ModelSource.findEntry(archive, ".obj");
+				if (entry == null) {
+					throw new IOException("No OBJ file in " + archive);
+				}
+				int slash = entry.lastIndexOf('/');
+				basePath = this.basePath = archive + "!" + (slash < 0 ? "" : "/" + entry.substring(0, slash));
+				objPath = entry.substring(slash + 1);
+			}
+			metrics = LoadMetrics.start(this.basePath + "/" + objPath);
 			BufferedReader bufferedReader = null;
-			InputStream is;
 			try {
-				is = getInputStream(basePath, objPath);
+				InputStream source = getInputStream(basePath, objPath);
+				if (source == null) {
+					throw new IOException("No such file");
+				}
+				final MeteredInputStream is = new MeteredInputStream(ModelSource.readAhead(source, objPath));
 				bufferedReader = new BufferedReader(new InputStreamReader(is));
 				final BufferedReader bufferedReaderLocal = bufferedReader;
 				if (SwingUtilities.isEventDispatchThread()) {
 					foxtrot.ConcurrentWorker.post(new Task() {
 						@Override
 						public Object run() throws Exception {
-							loadObject(bufferedReaderLocal);
+							loadObject(bufferedReaderLocal, is);
+							packAtlas();
 							loadTextureData();
 							return null;
 						}
 					});
 				} else {
-					loadObject(bufferedReaderLocal);
+					loadObject(bufferedReaderLocal, is);
+					packAtlas();
 					loadTextureData();
 				}
 			} finally {
 				if (bufferedReader != null) {
 					bufferedReader.close();
 				}
+				metrics.commit();
 			}
 		} catch (Exception e) {
 			logger.log(Level.SEVERE, "Error: could not load " + basePath + "/" + objPath, e);
@@ -134,40 +303,357 @@ public class ObjLoader {
 	}
 
 	/**
-	 * Must be done in the thread with the GL context
+	 * Centers the model if asked to and builds the mesh batches its GPU resources are created from, then
+	 * frees the parsed vertex lists and faces. Does nothing once done, so the model can be shared by several
+	 * GL contexts. Must be done in the thread with the GL context
 	 *
 	 * @param gl
 	 * @param centered
 	 */
 	final public void createGraphics(GL2 gl, boolean centered) {
+		if (prepared) {
+			return;
+		}
 		try {
-			this.processFacesInEDT(); // this process depends on the GL context, which apparently can't be shared between threads
 			if (centered) {
+				LoadMetrics.Span bounds = metrics.begin(LoadMetrics.Phase.BOUNDS);
 				centerit();
+				metrics.end(bounds);
 			}
-			openGlDrawToList(gl);
+			LoadMetrics.Span event = metrics.begin(LoadMetrics.Phase.DISPLAY_LIST);
+			List<MeshBatch> built = buildMeshBatches();
+			for (MeshBatch batch : built) {
+				batch.trim();
+			}
+			polygonCount = faces.size();
+			batches = built;
+			prepared = true;
+			metrics.end(event);
+			disposeProgress(gl);
 			this.bbox = new BoundingBox(this.getXWidth(), this.getYHeight(), this.getZDepth(), this.bottomPoint, centered);
+			if (vertexCompression && quantizedMesh == null) {
+				compress();
+			}
+			applyResidency();
 		} catch (Exception e) {
 			logger.log(Level.SEVERE, "Error creating graphics for " + this.basePath, e);
 		}
 	}
 
-	private InputStream getInputStream(String basePath, String objPath) throws IOException {
-		String path = basePath + "/" + objPath;
-		InputStream is = this.getClass().getResourceAsStream(path);
-		if (is == null) {
-			File f = new File(path);
-			if (f.exists()) {
-				is = new FileInputStream(f);
-			}
-		}
-		return is;
+	/**
+	 * Opens a file of the model, decompressed if it is compressed, also inside a zip archive, see
+	 * ModelSource.
+	 */
+	InputStream getInputStream(String basePath, String objPath) throws IOException {
+		return ModelSource.open(basePath + "/" + objPath);
 	}
 
 	public BoundingBox getBoundingBox() {
 		return bbox;
 	}
 
+	String getModelName() {
+		return modelName;
+	}
+
+	/**
+	 * Generates smooth normals for the faces without vn records when enabled, so they are lit like the rest.
+	 */
+	private void generateNormals() {
+		if (!normalGeneration || geometryOnly || faces.isEmpty()) {
+			return;
+		}
+		LoadMetrics.Span event = metrics.begin(LoadMetrics.Phase.NORMALS);
+		int generated = NormalGenerator.generate(vertexSets, faces, vertexSetsNorms, creaseAngle);
+		metrics.end(event);
+		if (generated > 0) {
+			logger.log(Level.FINE, "Generated {0} normals for {1}", new Object[]{generated, modelName});
+		}
+	}
+
+	/**
+	 * @return the resolvers the files of models are looked for with, in order, by default on the classpath,
+	 * the file system and http(s) URLs cached in the temporary directory; modifiable, e.g. to add a resolver
+	 * or replace the HttpModelResolver by one with another cache directory
+	 */
+	public static List<ModelResolver> getResolvers() {
+		return ModelSource.getResolvers();
+	}
+
+	public static boolean isNormalGeneration() {
+		return normalGeneration;
+	}
+
+	/**
+	 * Enables generating smooth normals for the faces without vn records of models loaded from now on, on by
+	 * default. Without normals such faces are drawn unlit.
+	 *
+	 * @param normalGeneration
+	 */
+	public static void setNormalGeneration(boolean normalGeneration) {
+		ObjLoader.normalGeneration = normalGeneration;
+	}
+
+	public static double getCreaseAngle() {
+		return creaseAngle;
+	}
+
+	/**
+	 * Sets the largest angle between faces, in degrees, across which generated normals are smoothed, 60 by
+	 * default; sharper edges stay hard. 0 gives flat shading, 180 smooths every edge.
+	 *
+	 * @param creaseAngle
+	 */
+	public static void setCreaseAngle(double creaseAngle) {
+		ObjLoader.creaseAngle = creaseAngle;
+	}
+
+	/**
+	 * Packs small textures into a MaterialAtlas when enabled, then sorts the faces again to group the faces of
+	 * each atlas page.
+	 */
+	private void packAtlas() {
+		if (!atlasPacking || geometryOnly || cancelled || faces.isEmpty()) {
+			return;
+		}
+		LoadMetrics.Span event = metrics.begin(LoadMetrics.Phase.ATLAS);
+		atlas = MaterialAtlas.pack(this);
+		if (atlas != null) {
+			for (Face face : faces) {
+				face.region = atlas.getRegion(face.mtl);
+			}
+			Collections.sort(faces);
+		}
+		metrics.end(event);
+	}
+
+	/**
+	 * Quantizes the mesh within the error bounds of QuantizedMesh and, if that succeeds, keeps only the
+	 * quantized mesh instead of the parsed vertex lists and faces.
+	 */
+	private void compress() {
+		LoadMetrics.Span event = metrics.begin(LoadMetrics.Phase.COMPRESS);
+		compressionAccuracy = new QuantizedMesh.Accuracy();
+		QuantizedMesh mesh = QuantizedMesh.quantize(buildMeshBatches(),
+			new float[]{leftPoint, bottomPoint, farPoint}, new float[]{rightPoint, topPoint, nearPoint},
+			compressionAccuracy);
+		metrics.end(event);
+		if (mesh == null) {
+			logger.log(Level.INFO, "Not compressing {0}, it exceeds the error bounds: {1}",
+				new Object[]{modelName, compressionAccuracy});
+			return;
+		}
+		logger.log(Level.FINE, "Compressed {0}: {1}", new Object[]{modelName, compressionAccuracy});
+		quantizedMesh = mesh;
+		batches = null;
+	}
+
+	public static boolean isVertexCompression() {
+		return vertexCompression;
+	}
+
+	/**
+	 * Enables keeping models loaded from now on as QuantizedMesh, and drawing them from quantized vertex
+	 * buffers with shader rendering.
+	 *
+	 * @param vertexCompression
+	 */
+	public static void setVertexCompression(boolean vertexCompression) {
+		ObjLoader.vertexCompression = vertexCompression;
+	}
+
+	/**
+	 * @return the compressed mesh, or null if the model is not compressed
+	 */
+	public QuantizedMesh getQuantizedMesh() {
+		return quantizedMesh;
+	}
+
+	/**
+	 * @return the errors and sizes measured when compressing the model, also when it exceeded an error bound,
+	 * or null if compression was not attempted
+	 */
+	public QuantizedMesh.Accuracy getCompressionAccuracy() {
+		return compressionAccuracy;
+	}
+
+	public static boolean isAtlasPacking() {
+		return atlasPacking;
+	}
+
+	/**
+	 * Enables packing small textures of models loaded from now on into a MaterialAtlas, which lets a model
+	 * draw in a few batches rather than one per material.
+	 *
+	 * @param atlasPacking
+	 */
+	public static void setAtlasPacking(boolean atlasPacking) {
+		ObjLoader.atlasPacking = atlasPacking;
+	}
+
+	public static int getProgressiveBlockFaces() {
+		return progressiveBlockFaces;
+	}
+
+	/**
+	 * Sets how many faces a progressive load parses before publishing them as a block to draw. Smaller
+	 * blocks appear sooner but take more display lists until the load finishes.
+	 *
+	 * @param progressiveBlockFaces
+	 */
+	public static void setProgressiveBlockFaces(int progressiveBlockFaces) {
+		ObjLoader.progressiveBlockFaces = Math.max(1, progressiveBlockFaces);
+	}
+
+	/**
+	 * @return the atlas the model's textures were packed into, or null
+	 */
+	public MaterialAtlas getAtlas() {
+		return atlas;
+	}
+
+	/**
+	 * @return a snapshot of where the time went while loading this model so far
+	 */
+	public LoadMetrics getLoadMetrics() {
+		return metrics.snapshot();
+	}
+
+	public static Residency getDefaultResidency() {
+		return defaultResidency;
+	}
+
+	/**
+	 * Sets the residency of models loaded from now on, KEEP_ALL unless set.
+	 *
+	 * @param residency
+	 */
+	public static void setDefaultResidency(Residency residency) {
+		ObjLoader.defaultResidency = residency;
+	}
+
+	public Residency getResidency() {
+		return residency;
+	}
+
+	/**
+	 * Sets what the model keeps in the heap. Takes effect at once if the graphics were created; data already
+	 * released is not brought back by a less strict residency.
+	 *
+	 * @param residency
+	 */
+	public void setResidency(Residency residency) {
+		this.residency = residency;
+		applyResidency();
+	}
+
+	private void applyResidency() {
+		if (!prepared) {
+			return;
+		}
+		if (residency != Residency.KEEP_ALL) {
+			cleanup();
+		}
+		if (residency == Residency.RELEASE && uploaded) {
+			release();
+		}
+	}
+
+	/**
+	 * Called by GpuResources after creating a display list or shader mesh of the model.
+	 */
+	void uploaded() {
+		if (!uploaded) {
+			uploaded = true;
+			applyResidency();
+		}
+	}
+
+	// spills the batches to a temporary file and drops them and the texture data
+	private void release() {
+		if (spillFile == null) {
+			List<MeshBatch> list = buildMeshBatches();
+			List<Material> materials = new ArrayList<>(list.size());
+			try {
+				File file = File.createTempFile("obj", ".batches");
+				file.deleteOnExit();
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+					out.writeInt(list.size());
+					for (MeshBatch batch : list) {
+						batch.write(out);
+						materials.add(batch.material);
+					}
+				}
+				spillFile = file;
+				spillMaterials = materials;
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not spill " + modelName + ", keeping its batches", e);
+				return;
+			}
+		}
+		batches = null;
+		quantizedMesh = null;
+		bvh = null;
+		textureDataCache.clear();
+		for (Face face : faces) {
+			face.textureData = null;
+		}
+	}
+
+	/**
+	 * Deletes the temporary file a released model spilled its batches to, once the model is no longer used.
+	 */
+	public void dispose() {
+		File file = spillFile;
+		if (file != null && !file.delete() && file.exists()) {
+			logger.log(Level.WARNING, "Could not delete " + file);
+		}
+	}
+
+	private List<MeshBatch> readSpill() {
+		List<MeshBatch> list = new ArrayList<>(spillMaterials.size());
+		try {
+			ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(spillFile.toPath()));
+			int count = b.getInt();
+			for (int i = 0; i < count; i++) {
+				list.add(MeshBatch.read(b, spillMaterials.get(i)));
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not read the spilled batches of " + modelName, e);
+		}
+		return list;
+	}
+
+	/**
+	 * @return an estimate of the heap the model holds in parsed vertex lists and faces, mesh batches or the
+	 * QuantizedMesh, its MeshBVH and decoded textures
+	 */
+	public long getHeapBytes() {
+		long bytes = 40L * vertexSets.size() + 40L * vertexSetsNorms.size() + 32L * vertexSetsTexs.size();
+		for (Face face : faces) {
+			bytes += 56 + 3 * (16 + 4L * face.v.length);
+		}
+		if (batches != null) {
+			for (MeshBatch batch : batches) {
+				bytes += 48 + batch.getByteCount();
+			}
+		}
+		if (quantizedMesh != null) {
+			bytes += quantizedMesh.getByteCount();
+		}
+		MeshBVH built = bvh;
+		if (built != null) {
+			bytes += built.getByteCount();
+		}
+		Set<TextureData> counted = Collections.newSetFromMap(new IdentityHashMap<TextureData, Boolean>());
+		for (TextureData data : textureDataCache.values()) {
+			if (data != null && counted.add(data)) {
+				bytes += data.getEstimatedMemorySize();
+			}
+		}
+		return bytes;
+	}
+
 	private void cleanup() {
 		vertexSets.clear();
 		vertexSetsNorms.clear();
@@ -175,42 +661,52 @@ public class ObjLoader {
 		faces.clear();
 	}
 
-	private void loadObject(BufferedReader br) {
+	private void loadObject(BufferedReader br, MeteredInputStream is) {
 		String mtlID = null;
+		Material mtl = null; // resolved on the first face after usemtl rather than for every face
 		MtlLoader mtlLoader = null;
+		long materialNanos = 0;
+		long t0 = System.nanoTime();
+		int published = 0; // faces already handed to the renderer of a progressive load
 		try {
 			boolean firstpass = true;
 			String newline;
-			while ((newline = br.readLine()) != null) {
+			while (!cancelled && (newline = br.readLine()) != null) {
 				if (newline.length() > 0) {
 					newline = newline.trim();
 
 					//Loads vertex coordinates
 					if (newline.startsWith("v ")) {
-						float coords[] = new float[4];
+						float coords[] = new float[3]; // w and vertex colors are not used
 						newline = newline.substring(2, newline.length());
 						StringTokenizer st = new StringTokenizer(newline, " ");
-						for (int i = 0; st.hasMoreTokens(); i++) {
+						for (int i = 0; i < coords.length && st.hasMoreTokens(); i++) {
 							coords[i] = Float.parseFloat(st.nextToken());
 						}
 						vertexSets.add(coords);
+						if (runningBounds != null) {
+							for (int i = 0; i < 3; i++) {
+								runningBounds[i] = Math.min(runningBounds[i], coords[i]);
+								runningBounds[i + 3] = Math.max(runningBounds[i + 3], coords[i]);
+							}
+						}
 					} else //Loads vertex texture coordinates
 					{
 						if (newline.startsWith("vt")) {
-							float coords[] = new float[4];
+							float coords[] = new float[2];
 							newline = newline.substring(3, newline.length());
 							StringTokenizer st = new StringTokenizer(newline, " ");
-							for (int i = 0; st.hasMoreTokens(); i++) {
+							for (int i = 0; i < coords.length && st.hasMoreTokens(); i++) {
 								coords[i] = Float.parseFloat(st.nextToken());
 							}
 							vertexSetsTexs.add(coords);
 						} else //Loads vertex normals coordinates
 						{
 							if (newline.startsWith("vn")) {
-								float coords[] = new float[4];
+								float coords[] = new float[3];
 								newline = newline.substring(3, newline.length());
 								StringTokenizer st = new StringTokenizer(newline, " ");
-								for (int i = 0; st.hasMoreTokens(); i++) {
+								for (int i = 0; i < coords.length && st.hasMoreTokens(); i++) {
 									coords[i] = Float.parseFloat(st.nextToken());
 								}
 								vertexSetsNorms.add(coords);
@@ -245,12 +741,35 @@ public class ObjLoader {
 									} else {
 										vn[i] = 0;
 									}
+									// negative indices count back from the last element read so far
+									if (v[i] < 0) {
+										v[i] += vertexSets.size() + 1;
+									}
+									if (vt[i] < 0) {
+										vt[i] += vertexSetsTexs.size() + 1;
+									}
+									if (vn[i] < 0) {
+										vn[i] += vertexSetsNorms.size() + 1;
+									}
+								}
+								if (mtl == null) {
+									long t = System.nanoTime();
+									mtl = mtlLoader.getMtl(mtlID);
+									materialNanos += System.nanoTime() - t;
+								}
+								faces.add(new Face(mtl, v, vn, vt));
+								if (progressBlocks != null && faces.size() - published >= progressiveBlockFaces) {
+									published = publishBlock(published);
 								}
-								faces.add(new Face(mtlLoader.getMtl(mtlID), v, vn, vt));
 							} else if (newline.startsWith("mtllib")) { //Loads materials
+								long t = System.nanoTime();
 								mtlLoader = new MtlLoader(basePath, newline.substring(newline.indexOf(" ")).trim());
+								mtlLibs.add(newline.substring(newline.indexOf(" ")).trim());
+								materialNanos += System.nanoTime() - t;
+								mtl = null;
 							} else if (newline.startsWith("usemtl")) { //Uses materials
 								mtlID = newline.split("\\s+")[1];
+								mtl = null;
 							}
 						}
 					}
@@ -261,23 +780,120 @@ public class ObjLoader {
 		} catch (NumberFormatException e) {
 			System.out.println("Malformed OBJ file: " + br.toString() + "\r \r" + e.getMessage());
 		}
+		if (progressBlocks != null) {
+			publishBlock(published);
+		}
+		metrics.add(LoadMetrics.Phase.READ, is.nanos);
+		metrics.add(LoadMetrics.Phase.MATERIALS, materialNanos);
+		metrics.add(LoadMetrics.Phase.PARSE, System.nanoTime() - t0 - is.nanos - materialNanos);
+		metrics.setCounts(is.bytes, vertexSets.size(), faces.size(),
+			mtlLoader == null || mtlLoader.materials == null ? 0 : mtlLoader.materials.size(), 0);
+
+		if (cancelled) {
+			return;
+		}
+		generateNormals();
+
+		LoadMetrics.Span sort = metrics.begin(LoadMetrics.Phase.SORT);
 		Collections.sort(faces);
+		metrics.end(sort);
+		LoadMetrics.Span bounds = metrics.begin(LoadMetrics.Phase.BOUNDS);
 		this.calculateBounds();
+		metrics.end(bounds);
 	}
 
-	public void processFacesInEDT() {
-		for (Face face : this.faces) {
-			face.createTexture();
+	/**
+	 * Publishes the faces parsed since the last block, as batches in file order.
+	 *
+	 * @return the number of faces published so far
+	 */
+	private int publishBlock(int from) {
+		if (from < faces.size()) {
+			progressBlocks.add(new ProgressBlock(buildMeshBatches(faces.subList(from, faces.size())),
+				runningBounds.clone()));
+		}
+		return faces.size();
+	}
+
+	/**
+	 * Draws the blocks a progressive load has published so far, compiling the new ones into display lists.
+	 * The textures are not loaded yet, so the faces get their material colors. When centered, the blocks are
+	 * centered and scaled by the bounds of the vertices read so far. Must be done in the thread with the GL
+	 * context.
+	 *
+	 * @param gl
+	 * @param centered
+	 * @return the number of triangles drawn
+	 */
+	int drawProgress(GL2 gl, boolean centered) {
+		if (progressBlocks == null || progressBlocks.isEmpty()) {
+			return 0;
+		}
+		for (int i = progressLists.size(); i < progressBlocks.size(); i++) {
+			int list = gl.glGenLists(1);
+			gl.glNewList(list, GL2.GL_COMPILE);
+			int[] counts = drawBatches(gl, progressBlocks.get(i).batches);
+			gl.glEndList();
+			progressLists.add(new int[]{list, counts[1]});
+		}
+		int triangles = 0;
+		gl.glPushMatrix();
+		if (centered) {
+			float[] bounds = progressBlocks.get(progressLists.size() - 1).bounds;
+			float scale = Math.max(bounds[5] - bounds[2], Math.max(bounds[3] - bounds[0], bounds[4] - bounds[1]));
+			if (scale > 0) {
+				gl.glScalef(1 / scale, 1 / scale, 1 / scale);
+			}
+			gl.glTranslatef(-(bounds[0] + bounds[3]) / 2, -bounds[1], -(bounds[2] + bounds[5]) / 2);
+		}
+		for (int[] list : progressLists) {
+			gl.glCallList(list[0]);
+			triangles += list[1];
 		}
+		gl.glPopMatrix();
+		return triangles;
+	}
+
+	/**
+	 * @return the largest extent of the vertices a progressive load has read so far
+	 */
+	float getProgressMaxDimension() {
+		if (progressBlocks == null || progressBlocks.isEmpty()) {
+			return 0;
+		}
+		float[] bounds = progressBlocks.get(progressBlocks.size() - 1).bounds;
+		return Math.max(bounds[5] - bounds[2], Math.max(bounds[3] - bounds[0], bounds[4] - bounds[1]));
+	}
+
+	/**
+	 * Deletes the display lists of the published blocks once the final display list replaces them.
+	 */
+	private void disposeProgress(GL2 gl) {
+		if (progressBlocks == null) {
+			return;
+		}
+		for (int[] list : progressLists) {
+			gl.glDeleteLists(list[0], 1);
+		}
+		progressLists.clear();
+		progressBlocks = null;
+		runningBounds = null;
+		loadThread = null;
 	}
 
 	public void loadTextureData() {
+		if (geometryOnly || cancelled) {
+			return;
+		}
+		LoadMetrics.Span decode = metrics.begin(LoadMetrics.Phase.TEXTURE_DECODE);
 		for (Face face : this.faces) {
 			face.createTextureData();
 		}
+		metrics.end(decode);
+		metrics.setTextures(textureDataCache.size());
 	}
 
-	private void centerit() {
+	void centerit() {
 		float xshift = getXWidth() / 2.0F;
 		float yshift = getYHeight() / 2.0F;
 		float zshift = getZDepth() / 2.0F;
@@ -303,7 +919,7 @@ public class ObjLoader {
 		}
 	}
 
-	private void calculateBounds() {
+	void calculateBounds() {
 		boolean firstpass = true;
 		for (int i = 0; i < vertexSets.size(); i++) {
 			float coords[] = vertexSets.get(i);
@@ -323,11 +939,12 @@ public class ObjLoader {
 			nearPoint = Math.max(coords[2], nearPoint);
 			farPoint = Math.min(coords[2], farPoint);
 		}
-		System.out.println("Origin = " + 
-			(this.rightPoint+this.leftPoint)/2.0 + ", " +
-			(this.bottomPoint+this.topPoint)/2.0 + ", " +
-			(this.nearPoint+this.farPoint)/2.0
-		);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Origin = {0}, {1}, {2}", new Object[]{
+				(this.rightPoint+this.leftPoint)/2.0,
+				(this.bottomPoint+this.topPoint)/2.0,
+				(this.nearPoint+this.farPoint)/2.0});
+		}
 	}
 
 	public float getMaxDimension() {
@@ -347,115 +964,334 @@ public class ObjLoader {
 	}
 
 	public int getPolygonCount() {
-		return faces.size();
+		return prepared ? polygonCount : faces.size();
 	}
 
-	public void openGlDrawToList(GL2 gl) {
-		String lastMapKd = "";
-		Texture texture = null;
-
-		if (ObjLoader.oldObjectListLookup.get(modelName) != null) {
-			gl.glDeleteLists(ObjLoader.oldObjectListLookup.get(modelName), 1);
+	/**
+	 * Groups the sorted faces into one triangulated batch per material run, or returns the batches retained by
+	 * createGraphics or decodes them from the QuantizedMesh of a compressed model. The batches have no
+	 * textures, see GpuResources. Needs no GL context.
+	 *
+	 * @return
+	 */
+	public List<MeshBatch> buildMeshBatches() {
+		if (quantizedMesh != null) {
+			return quantizedMesh.toMeshBatches();
+		}
+		if (batches != null) {
+			return batches;
 		}
-		this.objectlist = gl.glGenLists(1);
-		ObjLoader.oldObjectListLookup.put(modelName, objectlist);
+		if (spillFile != null) {
+			return readSpill();
+		}
+		return buildMeshBatches(faces);
+	}
 
-		gl.glNewList(objectlist, GL2.GL_COMPILE);
-		Material mtl = null;
+	private List<MeshBatch> buildMeshBatches(List<Face> faces) {
+		List<MeshBatch> batches = new ArrayList<>();
+		MeshBatch batch = null;
 		for (Face face : faces) {
-			if (mtl == null || !mtl.name.equals(face.mtl.name)) { //has mtl changed?  if so, set up the new mtl
-				mtl = face.mtl;
-				if (mtl.map_Kd == null) { //no texture?
-					if (texture != null) { //disable previous texture if it's not null
-						texture.disable(gl);
-						texture = null;
-						lastMapKd = "";
-					}
-				} else if (!lastMapKd.equals(mtl.map_Kd.toString())) { //yes texture, and it changed?
-					if (texture != null) {
-						texture.disable(gl);
-					}
-					texture = face.texture;
-					texture.enable(gl);
-					texture.bind(gl);
-					gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_REPEAT);
-					gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_REPEAT);
-					gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
-					gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
-					lastMapKd = mtl.map_Kd.toString();
+			Material mtl = face.region != null ? face.region.page.material : face.mtl;
+			if (batch == null || !batch.material.name.equals(mtl.name)) {
+				batch = new MeshBatch(mtl, face.texture);
+				batches.add(batch);
+			}
+			// triangulate as a fan, which is what GL_POLYGON does for the convex faces it supports
+			for (int w = 2; w < face.v.length; w++) {
+				addVertex(batch, face, 0);
+				addVertex(batch, face, w - 1);
+				addVertex(batch, face, w);
+			}
+		}
+		return batches;
+	}
+
+	private final float[] atlasTexCoord = new float[2];
+
+	private void addVertex(MeshBatch batch, Face face, int w) {
+		float[] normal = face.vn[w] != 0 ? vertexSetsNorms.get(face.vn[w] - 1) : null;
+		float[] texCoord = face.vt[w] != 0 ? vertexSetsTexs.get(face.vt[w] - 1) : null;
+		if (face.region != null) {
+			face.region.map(texCoord, flipTextureVertically, atlasTexCoord);
+			batch.add(vertexSets.get(face.v[w] - 1), normal, atlasTexCoord, face.region.color, false);
+		} else {
+			batch.add(vertexSets.get(face.v[w] - 1), normal, texCoord, null, flipTextureVertically);
+		}
+	}
+
+	/**
+	 * Draws the batches in immediate mode, to be compiled into a display list.
+	 *
+	 * @param gl
+	 * @param batches
+	 * @return the number of texture binds and triangles
+	 */
+	static int[] drawBatches(GL2 gl, List<MeshBatch> batches) {
+		String lastMapKd = "";
+		Texture texture = null;
+		int binds = 0, triangles = 0;
+		for (MeshBatch batch : batches) {
+			Material mtl = batch.material;
+			if (mtl.map_Kd == null || batch.texture == null) { //no texture, or not loaded yet?
+				if (texture != null) { //disable previous texture if it's not null
+					texture.disable(gl);
+					texture = null;
+					lastMapKd = "";
 				}
+			} else if (!lastMapKd.equals(mtl.map_Kd.toString())) { //yes texture, and it changed?
+				if (texture != null) {
+					texture.disable(gl);
+				}
+				binds++;
+				texture = batch.texture;
+				texture.enable(gl);
+				texture.bind(gl);
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_REPEAT);
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_REPEAT);
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
+				lastMapKd = mtl.map_Kd.toString();
+			}
+
+			//determine color
+			gl.glEnable(GL2.GL_COLOR_MATERIAL);
+			gl.glBlendFunc(GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA); //enable alpha (transparency) channel
+			gl.glEnable(GL2.GL_BLEND); //and blending
+			float[] color = getColor(mtl);
+			gl.glColor4f(color[0], color[1], color[2], mtl.d);
 
-				//determine color
-				gl.glEnable(GL2.GL_COLOR_MATERIAL);
-				gl.glBlendFunc(GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA); //enable alpha (transparency) channel
-				gl.glEnable(GL2.GL_BLEND); //and blending
-				float[] color = lighten(new float[]{Math.min(1, mtl.Kd[0] + mtl.Ka[0]),
-					Math.min(1, mtl.Kd[1] + mtl.Ka[1]), Math.min(1, mtl.Kd[2] + mtl.Ka[2])}, 0.15f);
-				gl.glColor4f(color[0], color[1], color[2], mtl.d);
-			}
-
-			//draw the polygons for this face
-			gl.glBegin(face.polyType);
-			for (int w = 0; w < face.v.length; w++) {
-				if (face.vn[w] != 0) {
-					float[] floats = vertexSetsNorms.get(face.vn[w] - 1);
-					gl.glNormal3f(floats[0], floats[1], floats[2]);
+			//draw the triangles for this material
+			gl.glBegin(GL2.GL_TRIANGLES);
+			for (int i = 0; i < batch.vertexCount; i++) {
+				if (batch.colors != null) { // the original materials of an atlas page
+					gl.glColor4f(batch.colors[4 * i], batch.colors[4 * i + 1], batch.colors[4 * i + 2], batch.colors[4 * i + 3]);
 				}
-				if (face.vt[w] != 0) {
-					float[] floats = vertexSetsTexs.get(face.vt[w] - 1);
-					if (flipTextureVertically) {
-						gl.glTexCoord2f(floats[0], 1f - floats[1]);
-					} else {
-						gl.glTexCoord2f(floats[0], floats[1]);
-					}
+				if (batch.normals != null) {
+					gl.glNormal3f(batch.normals[3 * i], batch.normals[3 * i + 1], batch.normals[3 * i + 2]);
+				}
+				if (batch.texCoords != null) {
+					gl.glTexCoord2f(batch.texCoords[2 * i], batch.texCoords[2 * i + 1]);
 				}
-				float[] floats = vertexSets.get(face.v[w] - 1);
-				gl.glVertex3f(floats[0], floats[1], floats[2]);
+				gl.glVertex3f(batch.positions[3 * i], batch.positions[3 * i + 1], batch.positions[3 * i + 2]);
 			}
 			gl.glEnd();
+			triangles += batch.getTriangleCount();
 		}
 		gl.glDisable(GL2.GL_COLOR_MATERIAL);
 		if (texture != null) {
 			texture.disable(gl);
 		}
-		gl.glEndList();
+		return new int[]{binds, triangles};
+	}
+
+	/**
+	 * @return the color faces of the material are drawn with by the fixed-function pipeline
+	 */
+	static float[] getColor(Material mtl) {
+		return lighten(new float[]{Math.min(1, mtl.Kd[0] + mtl.Ka[0]),
+			Math.min(1, mtl.Kd[1] + mtl.Ka[1]), Math.min(1, mtl.Kd[2] + mtl.Ka[2])}, 0.15f);
 	}
 
-	private float[] lighten(float[] color, float amount) {
+	private static float[] lighten(float[] color, float amount) {
 		float r = Math.min(1, color[0] + amount);
 		float g = Math.min(1, color[1] + amount);
 		float b = Math.min(1, color[2] + amount);
 		return new float[]{r, g, b};
 	}
 
-	public void opengldraw(GL2 gl) {
-		gl.glCallList(objectlist);
+	/**
+	 * Draws the display list of the model in the current GL context, compiling it if the GpuResourceCache
+	 * does not hold it. createGraphics must have been called.
+	 *
+	 * @param dc
+	 */
+	public void opengldraw(DrawContext dc) {
+		dc.getGL().getGL2().glCallList(getGpuResources(dc).getDisplayList(dc));
 	}
 
-	private Texture getTexture(String map_Kd) throws IOException {
-		if (map_Kd == null) {
-			return null;
-		}
-		if (textureCache.get(map_Kd) == null) {
-			InputStream is = null;
+	/**
+	 * The model in GPU buffers for ObjShader, uploaded if the GpuResourceCache does not hold them.
+	 * createGraphics must have been called.
+	 *
+	 * @param dc
+	 * @return
+	 */
+	public ShaderMesh getShaderMesh(DrawContext dc) {
+		return getGpuResources(dc).getShaderMesh(dc);
+	}
+
+	/**
+	 * @return the texture of a map_Kd in the current GL context, or null if it has none
+	 */
+	Texture getTexture(DrawContext dc, String map_Kd) {
+		return getGpuResources(dc).getTexture(dc, map_Kd);
+	}
+
+	/**
+	 * @return the decoded texture of a map_Kd, decoded again if the model was released
+	 */
+	TextureData getTextureData(String map_Kd) {
+		TextureData data = textureDataCache.get(map_Kd);
+		if (data == null && spillFile != null) {
 			try {
-				is = this.getInputStream(basePath, map_Kd);
-				String suffix = null;
-				String tokens[] = map_Kd.split("\\.");
-				if (tokens != null) {
-					if (tokens.length > 1) {
-						suffix = tokens[tokens.length - 1];
+				if (glProfile == null) {
+					glProfile = GLProfile.getDefault();
+				}
+				if (atlas != null) {
+					for (MaterialAtlas.Page page : atlas.pages) {
+						if (page.material.map_Kd.equals(map_Kd)) {
+							return page.getTextureData(glProfile);
+						}
 					}
 				}
-				Texture t = TextureIO.newTexture(is, false, suffix);
-				textureCache.put(map_Kd, t);
-			} finally {
-				if (is != null) {
-					is.close();
+				data = decodeTextureData(map_Kd);
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Exception reading texture: " + map_Kd, e);
+			}
+		}
+		return data;
+	}
+
+	TextureData decodeTextureData(String map_Kd) throws IOException {
+		InputStream is = null;
+		TextureData t;
+		try {
+			is = getInputStream(basePath, map_Kd);
+			String suffix = null;
+			String tokens[] = map_Kd.split("\\.");
+			if (tokens != null) {
+				if (tokens.length > 1) {
+					suffix = tokens[tokens.length - 1];
+				}
+			}
+			if (glProfile == null) {
+				glProfile = GLProfile.getDefault();
+			}
+			t = TextureIO.newTextureData(glProfile, is, false, suffix);
+		} finally {
+			if (is != null) {
+				is.close();
+			}
+		}
+		return t;
+	}
+
+	private GpuResources getGpuResources(DrawContext dc) {
+		synchronized (gpuResources) {
+			GpuResources resources = gpuResources.get(dc.getGpuResourceCache());
+			if (resources == null) {
+				resources = new GpuResources(this);
+				gpuResources.put(dc.getGpuResourceCache(), resources);
+			}
+			return resources;
+		}
+	}
+
+	/**
+	 * @return the number of triangles drawn by opengldraw
+	 */
+	public int getTriangleCount() {
+		return listTriangles;
+	}
+
+	/**
+	 * Picks the triangles the model is drawn into an occlusion buffer with: its largest ones, which are true
+	 * surfaces of the model, so they hide nothing the model does not.
+	 *
+	 * @param maxTriangles
+	 * @return x, y, z per vertex of at most maxTriangles triangles, or null until createGraphics has run
+	 */
+	public synchronized float[] getOccluderTriangles(int maxTriangles) {
+		if (!prepared) {
+			return null;
+		}
+		if (occluderTriangles == null || occluderBudget != maxTriangles) {
+			List<MeshBatch> list = buildMeshBatches();
+			int count = 0;
+			int[] starts = new int[list.size()]; // the first triangle of each batch
+			for (int b = 0; b < list.size(); b++) {
+				starts[b] = count;
+				count += list.get(b).vertexCount / 3;
+			}
+			// sort by area, largest last: the bits of a positive float order as the float does
+			long[] keys = new long[count];
+			int t = 0;
+			for (MeshBatch batch : list) {
+				float[] p = batch.positions;
+				for (int o = 0; o + 9 <= 3 * batch.vertexCount; o += 9, t++) {
+					double ux = p[o + 3] - p[o], uy = p[o + 4] - p[o + 1], uz = p[o + 5] - p[o + 2];
+					double wx = p[o + 6] - p[o], wy = p[o + 7] - p[o + 1], wz = p[o + 8] - p[o + 2];
+					double cx = uy * wz - uz * wy, cy = uz * wx - ux * wz, cz = ux * wy - uy * wx;
+					float area = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+					keys[t] = (long) Float.floatToIntBits(area) << 32 | t;
+				}
+			}
+			Arrays.sort(keys);
+			int n = Math.min(maxTriangles, count);
+			float[] triangles = new float[9 * n];
+			for (int i = 0; i < n; i++) {
+				int k = (int) keys[count - 1 - i];
+				int b = Arrays.binarySearch(starts, k);
+				if (b < 0) {
+					b = -b - 2;
+				}
+				while (b + 1 < starts.length && starts[b + 1] == k) {
+					b++; // skip empty batches
+				}
+				System.arraycopy(list.get(b).positions, 9 * (k - starts[b]), triangles, 9 * i, 9);
+			}
+			occluderTriangles = triangles;
+			occluderBudget = maxTriangles;
+		}
+		return occluderTriangles;
+	}
+
+	/**
+	 * @return the bounding volume hierarchy over the triangles of the model, built now if needed, or null
+	 * until createGraphics has run
+	 */
+	public MeshBVH getBVH() {
+		MeshBVH built = bvh;
+		if (built == null && prepared) {
+			synchronized (bvhLock) {
+				built = bvh;
+				if (built == null) {
+					LoadMetrics.Span event = metrics.begin(LoadMetrics.Phase.BVH);
+					built = bvh = MeshBVH.build(buildMeshBatches());
+					metrics.end(event);
 				}
 			}
 		}
-		return textureCache.get(map_Kd);
+		return built;
+	}
+
+	/**
+	 * @return the bounding volume hierarchy if it is built, else null after starting to build it in a
+	 * background thread, for callers that must not wait such as picking
+	 */
+	MeshBVH getBVHOrBuild() {
+		MeshBVH built = bvh;
+		if (built == null) {
+			synchronized (this) {
+				if (bvhThread == null && prepared) {
+					bvhThread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								getBVH();
+							} finally {
+								synchronized (ObjLoader.this) {
+									bvhThread = null;
+								}
+							}
+						}
+					}, "MeshBVH " + modelName);
+					bvhThread.setDaemon(true);
+					bvhThread.start();
+				}
+			}
+		}
+		return built;
 	}
 
 	public class Face implements Comparable<Face> {
@@ -467,6 +1303,7 @@ public class ObjLoader {
 		int polyType;
 		Texture texture;
 		TextureData textureData;
+		MaterialAtlas.Region region; // where the texture and color of mtl are in the atlas, if packed
 
 		public Face(MtlLoader.Material mtl, int[] v, int[] vn, int[] vt) {
 			this.mtl = mtl;
@@ -486,63 +1323,34 @@ public class ObjLoader {
 			}
 		}
 
+		// the key of the texture the face is drawn with in textureCache and textureDataCache
+		private String getTextureKey() {
+			return region != null ? region.page.material.map_Kd : mtl.map_Kd;
+		}
+
 		public void createTextureData() {
-			if (mtl.map_Kd != null) {
-				if (textureDataCache.get(mtl.map_Kd) == null) {
+			String key = getTextureKey();
+			if (key != null) {
+				if (textureDataCache.get(key) == null) {
 					try {
-						textureData = getTextureData(mtl.map_Kd);
-						textureDataCache.put(mtl.map_Kd, textureData);
+						if (region != null) {
+							if (glProfile == null) {
+								glProfile = GLProfile.getDefault();
+							}
+							textureData = region.page.getTextureData(glProfile);
+						} else {
+							textureData = getTextureData(key);
+						}
+						textureDataCache.put(key, textureData);
 					} catch (Exception e) {
-						logger.log(Level.SEVERE, "Exception reading texture: " + mtl.map_Kd, e);
+						logger.log(Level.SEVERE, "Exception reading texture: " + key, e);
 					}
 				}
 			}
 		}
 
 		TextureData getTextureData(String map_Kd) throws IOException {
-			InputStream is = null;
-			TextureData t;
-			try {
-				is = getInputStream(basePath, map_Kd);
-				String suffix = null;
-				String tokens[] = map_Kd.split("\\.");
-				if (tokens != null) {
-					if (tokens.length > 1) {
-						suffix = tokens[tokens.length - 1];
-					}
-				}
-				if (glProfile == null) {
-					glProfile = GLProfile.getDefault();
-				}
-				t = TextureIO.newTextureData(glProfile, is, false, suffix);
-			} finally {
-				if (is != null) {
-					is.close();
-				}
-			}
-			return t;
-		}
-
-		private Texture getTextureFromTextureData(String map_Kd) {
-			if (map_Kd == null) {
-				return null;
-			}
-			if (textureCache.get(map_Kd) == null) {
-				Texture t = TextureIO.newTexture(textureData);
-				textureCache.put(map_Kd, t);
-			}
-			return textureCache.get(map_Kd);
-		}
-
-		public void createTexture() {
-			if (mtl.map_Kd != null) {
-				try {
-//					texture = getTexture(mtl.map_Kd);
-					texture = getTextureFromTextureData(mtl.map_Kd);
-				} catch (Exception e) {
-					logger.log(Level.SEVERE, "Exception reading texture: " + mtl.map_Kd, e);
-				}
-			}
+			return decodeTextureData(map_Kd);
 		}
 
 		@Override
@@ -556,6 +1364,17 @@ public class ObjLoader {
 				return 1;
 			}
 
+			if (this.region != null || face.region != null) { //atlas pages first, then by page
+				int page = this.region != null ? this.region.page.index : Integer.MAX_VALUE;
+				int otherPage = face.region != null ? face.region.page.index : Integer.MAX_VALUE;
+				if (page != otherPage) {
+					return page < otherPage ? -1 : 1;
+				}
+				if (this.region != null) {
+					return 0;
+				}
+			}
+
 			if (this.texture == null && face.texture != null) { //draw non-textured faces first
 				return -1;
 			} else if (this.texture != null && face.texture == null) {
@@ -568,4 +1387,19 @@ public class ObjLoader {
 
 	}
 
+	/**
+	 * Faces of a progressive load, published while the rest of the file is still being parsed.
+	 */
+	static class ProgressBlock {
+
+		final List<MeshBatch> batches;
+		final float[] bounds; // of all the vertices read when the block was published
+
+		ProgressBlock(List<MeshBatch> batches, float[] bounds) {
+			this.batches = batches;
+			this.bounds = bounds;
+		}
+
+	}
+
 }
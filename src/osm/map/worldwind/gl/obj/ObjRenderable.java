@@ -1,25 +1,33 @@
 package osm.map.worldwind.gl.obj;
 
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Line;
+import gov.nasa.worldwind.geom.Matrix;
 import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.geom.Vec4;
 
 import gov.nasa.worldwind.render.DrawContext;
 import java.awt.Toolkit;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.media.opengl.GL2;
 import osm.map.worldwind.gl.GLRenderable;
+import osm.map.worldwind.gl.RenderStats;
 
 public class ObjRenderable extends GLRenderable {
-	static final  Map<String, ObjLoader> modelCache = new HashMap<>();
-	static final Map<String, String> glModelCache = new HashMap<>();
+	static final  Map<String, ObjLoader> modelCache = new ConcurrentHashMap<>(); // also filled by ModelPreloader threads
 	String modelSource;
 	boolean centerit = false;
 	boolean flipTextureVertically = false;
 	boolean modelLoading = false;
+	boolean shaderRendering = false;
+	boolean progressiveLoading = false;
+	ObjLoader.Residency residency; // null for ObjLoader.getDefaultResidency
 
 	private String id;
 	private double minumumScale=100;
+	private String batchKey; // cached by getBatchKey
 
 	public ObjRenderable(Position pos, String modelSource) {
 		super(pos);
@@ -33,56 +41,113 @@ public class ObjRenderable extends GLRenderable {
 		this.flipTextureVertically = flipTextureVertically;
 	}
 
-	public String getModelKey(DrawContext dc) {
-		String key = modelSource + "#" + dc.hashCode();
-		return key;
-	}
-
-	public String getGlModelKey(DrawContext dc) {
-		String key = modelSource + "#" + dc.getGL().hashCode();
-		return key;
-	}
-
 	public void load() {
-		synchronized (modelCache) {
-			ObjLoader ol = new ObjLoader(modelSource,centerit,flipTextureVertically);
-			modelCache.put(modelSource, ol);
+		if (ChunkedModel.isChunked(modelSource)) {
+			ChunkedModel.get(modelSource);
+			return;
+		}
+		ModelPreloader.getDefault().cancel(modelSource); // loaded here instead
+		ObjLoader ol = progressiveLoading ? ObjLoader.loadProgressively(modelSource, flipTextureVertically)
+			: new ObjLoader(modelSource,centerit,flipTextureVertically);
+		if (residency != null) {
+			ol.setResidency(residency);
 		}
+		modelCache.put(modelSource, ol);
 	}
 
 	public boolean isModelLoaded() {
-		synchronized (modelCache) {
-			return modelCache.containsKey(modelSource);
-		}
+		ObjLoader model = modelCache.get(modelSource);
+		return model != null && model.isParsed();
 	}
 
+	/**
+	 * @return the model, with its graphics created, or null while a progressive load is parsing it. One
+	 * model serves all GL contexts; its GPU resources are kept per context by GpuResources.
+	 */
 	protected ObjLoader getModel(final DrawContext dc) {
-		String key = this.getModelKey(dc);
-		String glKey = this.getGlModelKey(dc);
 		ObjLoader model = modelCache.get(modelSource);
-		if (modelCache.get(key) == null) {
-			if(model == null) {
-				modelLoading = true;
-				modelCache.put(key, new ObjLoader(modelSource, dc.getGL().getGL2(), centerit, flipTextureVertically));
-			} else {
-				model.createGraphics(dc.getGL().getGL2(), centerit);
-				modelCache.put(key,model);
+		if (model == null && ModelPreloader.getDefault().request(dc, modelSource, flipTextureVertically, residency,
+			eyeDistance, true)) {
+			return null; // loading in the background
+		}
+		if(model == null && progressiveLoading) {
+			model = ObjLoader.loadProgressively(modelSource, flipTextureVertically);
+			if (residency != null) {
+				model.setResidency(residency);
 			}
-			glModelCache.put(key,glKey);
+			modelCache.put(modelSource, model);
+			return null;
+		} else if(model == null) {
+			modelLoading = true;
+			model = new ObjLoader(modelSource, centerit, flipTextureVertically);
+			if (residency != null) {
+				model.setResidency(residency);
+			}
+			model.createGraphics(dc.getGL().getGL2(), centerit);
+			modelCache.put(modelSource, model);
+		} else if(!model.isParsed()) {
+			return null;
+		} else {
+			model.createGraphics(dc.getGL().getGL2(), centerit);
 		}
-		model = modelCache.get(key);
 		eyeDistanceOffset = Math.max(Math.max(model.getXWidth(), model.getYHeight()), model.getZDepth());
-		String oldGlKey = glModelCache.get(key);
-		if(!oldGlKey.equals(glKey)) {
-			model.openGlDrawToList(dc.getGL().getGL2());
-			glModelCache.put(key, glKey);
-		}
 		modelLoading = false;
-		return modelCache.get(key);
+		return model;
+	}
+
+	/**
+	 * @return where the time went while loading the model, or null if it has not started loading
+	 */
+	public LoadMetrics getLoadMetrics() {
+		ObjLoader model = modelCache.get(modelSource);
+		return model == null ? null : model.getLoadMetrics();
+	}
+
+	/**
+	 * @return the estimated heap use of the model, or 0 if it is not loaded
+	 */
+	public long getModelHeapBytes() {
+		ObjLoader model = modelCache.get(modelSource);
+		return model == null ? 0 : model.getHeapBytes();
+	}
+
+	/**
+	 * @return the estimated heap use of every loaded model, by model source
+	 */
+	public static Map<String, Long> getHeapUsage() {
+		Map<String, Long> usage = new TreeMap<>();
+		for (Map.Entry<String, ObjLoader> entry : modelCache.entrySet()) {
+			usage.put(entry.getKey(), entry.getValue().getHeapBytes());
+		}
+		return usage;
+	}
+
+	public ObjLoader.Residency getResidency() {
+		return residency;
+	}
+
+	/**
+	 * Sets what the model of this object keeps in the heap, see ObjLoader.Residency. The model is shared by
+	 * all objects with the same model source, so the last setting wins.
+	 *
+	 * @param residency
+	 */
+	public void setResidency(ObjLoader.Residency residency) {
+		this.residency = residency;
+		ObjLoader model = modelCache.get(modelSource);
+		if (model != null && residency != null) {
+			model.setResidency(residency);
+		}
 	}
 
 	public static void reload() {
-		modelCache.clear();
+		for (String modelSource : modelCache.keySet()) {
+			ObjLoader model = modelCache.remove(modelSource);
+			if (model != null) {
+				model.dispose();
+			}
+		}
+		ChunkedModel.reload();
 	}
 
 	@Override
@@ -92,17 +157,246 @@ public class ObjRenderable extends GLRenderable {
 		}
 		GL2 gl = dc.getGL().getGL2();
 		gl.glRotated(90, 1, 0, 0);
+		if (ChunkedModel.isChunked(modelSource)) {
+			drawChunked(dc, ChunkedModel.get(modelSource));
+			return;
+		}
 		ObjLoader l = getModel(dc);
+		if (l == null) { // still being parsed by a progressive load
+			drawProgress(dc, modelCache.get(modelSource));
+			return;
+		}
 		if (dc.isPickingMode()) {
-			l.getBoundingBox().drawUnitCube(dc);
+			if (isPickHit(dc, l)) {
+				l.getBoundingBox().drawUnitCube(dc);
+			}
 		} else {
-			getModel(dc).opengldraw(gl);
+			ObjShader shader = shaderRendering ? ObjShader.get(dc) : null;
+			if (shader != null) {
+				ShaderMesh mesh = l.getShaderMesh(dc);
+				if (useLighting) {
+					gl.glEnable(GL2.GL_CULL_FACE); // as beginState does for fixed-function lighting
+				}
+				shader.begin(gl, getLightDirections(), useLighting);
+				mesh.draw(gl, shader);
+				shader.end(gl);
+				if (this.renderStats != null) {
+					this.renderStats.add(RenderStats.Counter.TRIANGLES, mesh.getTriangleCount());
+					this.renderStats.add(RenderStats.Counter.TEXTURE_BINDS, mesh.getTextureBinds());
+				}
+			} else {
+				l.opengldraw(dc);
+				if (this.renderStats != null) {
+					this.renderStats.add(RenderStats.Counter.TRIANGLES, l.listTriangles);
+					this.renderStats.add(RenderStats.Counter.TEXTURE_BINDS, l.listTextureBinds);
+				}
+			}
 			if (this.isHighlighted()) {
 				l.getBoundingBox().drawUnitCubeOutline(dc);
 			}
 		}
 	}
 
+	/**
+	 * @return whether the pick ray hits a triangle of the model, or true if the pick is not a single point or
+	 * the model's MeshBVH is still being built, so that the bounding box is drawn for the GPU pick as before
+	 */
+	private boolean isPickHit(DrawContext dc, ObjLoader model) {
+		if (dc.getPickPoint() == null || dc.getPickRectangle() != null) {
+			return true;
+		}
+		MeshBVH bvh = model.getBVHOrBuild();
+		if (bvh == null) {
+			return true;
+		}
+		Line ray = dc.getView().computeRayFromScreenPoint(dc.getPickPoint().getX(), dc.getPickPoint().getY());
+		return ray == null || intersect(computeModelTransform(dc), bvh, ray) != null;
+	}
+
+	/**
+	 * Intersects a line with the triangles of the model at its current position, attitude and size in the
+	 * view of the draw context. Builds the model's MeshBVH on first use.
+	 *
+	 * @param dc
+	 * @param line
+	 * @return the nearest hit in front of the line origin, with the distance in units of the line direction,
+	 * or null if the line misses or the model is not loaded or is chunked
+	 */
+	public MeshBVH.Hit intersect(DrawContext dc, Line line) {
+		ObjLoader model = modelCache.get(modelSource);
+		if (model == null || !model.isParsed()) {
+			return null;
+		}
+		MeshBVH bvh = model.getBVH();
+		return bvh != null ? intersect(computeModelTransform(dc), bvh, line) : null;
+	}
+
+	/**
+	 * @return the nearest hit of a line on a MeshBVH placed by a model transform, see computeModelTransform
+	 */
+	static MeshBVH.Hit intersect(Matrix modelTransform, MeshBVH bvh, Line line) {
+		Matrix inverse = modelTransform.getInverse();
+		if (inverse == null) {
+			return null;
+		}
+		// an affine transform keeps the line parameter, so hit distances need no conversion
+		Vec4 origin = line.getOrigin().transformBy4(inverse);
+		Vec4 direction = line.getDirection().transformBy3(inverse);
+		return bvh.intersect(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, Double.MAX_VALUE);
+	}
+
+	@Override
+	protected void culled(DrawContext dc) {
+		// loaded models need no request, which would take the preloader's lock for every culled object
+		if (!modelCache.containsKey(modelSource) && !ChunkedModel.isChunked(modelSource)) {
+			ModelPreloader.getDefault().request(dc, modelSource, flipTextureVertically, residency, eyeDistance,
+				false);
+		}
+	}
+
+	/**
+	 * Draws the faces a progressive load has parsed so far, until getModel swaps in the final display list.
+	 */
+	private void drawProgress(DrawContext dc, ObjLoader model) {
+		if (model == null || dc.isPickingMode()) {
+			return;
+		}
+		eyeDistanceOffset = centerit ? 1 : model.getProgressMaxDimension();
+		int triangles = model.drawProgress(dc.getGL().getGL2(), centerit);
+		if (this.renderStats != null) {
+			this.renderStats.add(RenderStats.Counter.TRIANGLES, triangles);
+		}
+	}
+
+	/**
+	 * Streams the chunks the view needs. The model was centered, if at all, when it was chunked.
+	 */
+	private void drawChunked(DrawContext dc, ChunkedModel model) {
+		if (model == null) {
+			return;
+		}
+		GL2 gl = dc.getGL().getGL2();
+		eyeDistanceOffset = model.getMaxDimension();
+		if (dc.isPickingMode()) {
+			model.drawBounds(gl);
+			return;
+		}
+		Vec4 loc = computeLocation(dc);
+		double localSize = computeSize(dc, loc);
+		Matrix transform = Matrix.fromTranslation(loc).multiply(computeOrientation(localSize));
+		ObjShader shader = shaderRendering ? ObjShader.get(dc) : null;
+		if (shader != null && useLighting) {
+			gl.glEnable(GL2.GL_CULL_FACE); // as beginState does for fixed-function lighting
+		}
+		model.render(dc, transform, localSize, shader, getLightDirections(), useLighting,
+			this.renderStats);
+	}
+
+	@Override
+	public Matrix computeOrientation(double localSize) {
+		return super.computeOrientation(localSize).multiply(Matrix.fromAxisAngle(Angle.POS90, 1, 0, 0));
+	}
+
+	/**
+	 * @return the model, loading it here rather than waiting for the preloader, and creating its graphics in
+	 * the current GL context if needed
+	 */
+	ObjLoader getLoadedModel(DrawContext dc) {
+		ObjLoader model = modelCache.get(modelSource);
+		if (model == null) {
+			load();
+			model = modelCache.get(modelSource);
+		}
+		model.awaitParsed(); // a progressive load
+		return getModel(dc);
+	}
+
+	/**
+	 * Sets up the GL state this object is drawn in, for drawing it as part of a StaticBatch.
+	 */
+	void beginBatchState(DrawContext dc) {
+		beginState(dc);
+	}
+
+	void endBatchState(DrawContext dc) {
+		endState(dc);
+	}
+
+	@Override
+	protected Object getBatchKey() {
+		if (batchKey == null) {
+			batchKey = modelSource + "#" + centerit + "#" + flipTextureVertically + "#" + shaderRendering;
+		}
+		return batchKey;
+	}
+
+	@Override
+	protected boolean isFixedFunctionLighting() {
+		return super.isFixedFunctionLighting() && !shaderRendering;
+	}
+
+	public boolean isShaderRendering() {
+		return shaderRendering;
+	}
+
+	/**
+	 * Draws the model with ObjShader from GPU buffers instead of the fixed-function display list, where the
+	 * GL supports it. The shader lights the model with the lights of the fixed-function path and the MTL Ka,
+	 * Kd, Ks, Ns and d parameters.
+	 *
+	 * @param shaderRendering
+	 */
+	public void setShaderRendering(boolean shaderRendering) {
+		this.shaderRendering = shaderRendering;
+		this.batchKey = null;
+		invalidateStateKey();
+	}
+
+	public boolean isProgressiveLoading() {
+		return progressiveLoading;
+	}
+
+	/**
+	 * Loads the model in a background thread and draws its faces in material colors as they are parsed,
+	 * instead of showing nothing until the whole file is loaded. The textured, sorted display list replaces
+	 * them once loading finishes.
+	 *
+	 * @param progressiveLoading
+	 */
+	public void setProgressiveLoading(boolean progressiveLoading) {
+		this.progressiveLoading = progressiveLoading;
+	}
+
+	/**
+	 * @return the largest triangles of the model, or null while it is not loaded or if it is chunked
+	 */
+	@Override
+	public float[] getOccluderTriangles(DrawContext dc, int maxTriangles) {
+		ObjLoader model = modelCache.get(modelSource);
+		if (model == null || !model.isParsed() || model.getBoundingBox() == null) {
+			return null;
+		}
+		return model.getOccluderTriangles(maxTriangles);
+	}
+
+	/**
+	 * @return the largest dimension of the model's bounding box, or 1 while it is not loaded
+	 */
+	@Override
+	protected double getModelExtent() {
+		double extent = 0;
+		if (ChunkedModel.isChunked(modelSource)) {
+			ChunkedModel model = ChunkedModel.get(modelSource);
+			extent = model != null ? model.getMaxDimension() : 0;
+		} else {
+			ObjLoader model = modelCache.get(modelSource);
+			if (model != null && model.isParsed()) {
+				extent = centerit ? 1 : model.getMaxDimension(); // centering scales the model to a unit size
+			}
+		}
+		return extent > 0 ? extent : 1;
+	}
+
 	private double getPixelsPerMeter() {
 		int dpi = Toolkit.getDefaultToolkit().getScreenResolution();
 		return dpi / .0254;
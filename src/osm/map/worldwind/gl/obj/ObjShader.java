@@ -0,0 +1,253 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL2ES2;
+import javax.media.opengl.GL2ES3;
+import javax.media.opengl.GLContext;
+
+/**
+ * The uber-shader for OBJ materials (mesh.vert, mesh.frag), one per GL context. Material parameters live in
+ * a uniform buffer per model (see ShaderMesh) and the lights in a uniform buffer shared by all models, which
+ * is only rewritten when the lights change, so drawing a material run costs one uniform update.
+ *
+ * Needs GLSL 1.20 and ARB_uniform_buffer_object; get returns null where they are missing and the caller
+ * falls back to the fixed-function display list.
+ */
+public class ObjShader {
+
+	static final int POSITION = 0;
+	static final int NORMAL = 1;
+	static final int TEX_COORD = 2;
+	static final int COLOR = 3;
+	static final int MATERIALS_BINDING = 0;
+	static final int LIGHTS_BINDING = 1;
+	static final int MAX_MATERIALS = 256; // per binding of the material buffer, as declared in mesh.frag
+	static final int MATERIAL_BYTES = 64; // std140 size of struct Material
+	private static final int LIGHTS_BYTES = 5 * 16;
+
+	private static final Logger logger = Logger.getLogger(ObjShader.class.getName());
+	private static final Map<GLContext, ObjShader> shaders = new WeakHashMap<>(); // null where unsupported
+	private static volatile float ambient = 0.3f;
+
+	private final int program;
+	private final int materialIndex;
+	private final int lighting;
+	private final int positionOffset;
+	private final int positionScale;
+	private final int octahedralScale;
+	private final int lightsBuffer;
+	private final float[] lights = new float[LIGHTS_BYTES / 4];
+	private final FloatBuffer lightsData = Buffers.newDirectFloatBuffer(LIGHTS_BYTES / 4);
+	private boolean lightsValid = false;
+
+	private ObjShader(GL2 gl) throws IOException {
+		int vertex = compile(gl, GL2ES2.GL_VERTEX_SHADER, "mesh.vert");
+		int fragment = compile(gl, GL2ES2.GL_FRAGMENT_SHADER, "mesh.frag");
+		program = gl.glCreateProgram();
+		gl.glAttachShader(program, vertex);
+		gl.glAttachShader(program, fragment);
+		gl.glBindAttribLocation(program, POSITION, "position");
+		gl.glBindAttribLocation(program, NORMAL, "normal");
+		gl.glBindAttribLocation(program, TEX_COORD, "texCoord");
+		gl.glBindAttribLocation(program, COLOR, "color");
+		gl.glLinkProgram(program);
+		gl.glDeleteShader(vertex);
+		gl.glDeleteShader(fragment);
+		int[] status = new int[1];
+		gl.glGetProgramiv(program, GL2ES2.GL_LINK_STATUS, status, 0);
+		if (status[0] == GL.GL_FALSE) {
+			String log = programLog(gl, program);
+			gl.glDeleteProgram(program);
+			throw new IOException("Linking the OBJ shader failed: " + log);
+		}
+		gl.glUniformBlockBinding(program, gl.glGetUniformBlockIndex(program, "Materials"), MATERIALS_BINDING);
+		gl.glUniformBlockBinding(program, gl.glGetUniformBlockIndex(program, "Lights"), LIGHTS_BINDING);
+		materialIndex = gl.glGetUniformLocation(program, "materialIndex");
+		lighting = gl.glGetUniformLocation(program, "lighting");
+		positionOffset = gl.glGetUniformLocation(program, "positionOffset");
+		positionScale = gl.glGetUniformLocation(program, "positionScale");
+		octahedralScale = gl.glGetUniformLocation(program, "octahedralScale");
+		gl.glUseProgram(program);
+		gl.glUniform1i(gl.glGetUniformLocation(program, "diffuseMap"), 0);
+		gl.glUseProgram(0);
+
+		int[] buffer = new int[1];
+		gl.glGenBuffers(1, buffer, 0);
+		lightsBuffer = buffer[0];
+		gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, lightsBuffer);
+		gl.glBufferData(GL2ES3.GL_UNIFORM_BUFFER, LIGHTS_BYTES, null, GL.GL_DYNAMIC_DRAW);
+		gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * @return the shader of the current GL context, or null if the context does not support it
+	 */
+	public static ObjShader get(DrawContext dc) {
+		GL2 gl = dc.getGL().getGL2();
+		synchronized (shaders) {
+			GLContext context = gl.getContext();
+			if (shaders.containsKey(context)) {
+				return shaders.get(context);
+			}
+			ObjShader shader = null;
+			if (!gl.hasGLSL() || !gl.isExtensionAvailable("GL_ARB_uniform_buffer_object")) {
+				logger.log(Level.WARNING, "No uniform buffer support, OBJ models are drawn with fixed-function GL");
+			} else {
+				try {
+					shader = new ObjShader(gl);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not create the OBJ shader, falling back to fixed-function GL", e);
+				}
+			}
+			shaders.put(context, shader);
+			return shader;
+		}
+	}
+
+	private static int compile(GL2 gl, int type, String resource) throws IOException {
+		String source = read(resource);
+		int shader = gl.glCreateShader(type);
+		gl.glShaderSource(shader, 1, new String[]{source}, new int[]{source.length()}, 0);
+		gl.glCompileShader(shader);
+		int[] status = new int[1];
+		gl.glGetShaderiv(shader, GL2ES2.GL_COMPILE_STATUS, status, 0);
+		if (status[0] == GL.GL_FALSE) {
+			int[] length = new int[1];
+			gl.glGetShaderiv(shader, GL2ES2.GL_INFO_LOG_LENGTH, length, 0);
+			byte[] log = new byte[Math.max(1, length[0])];
+			gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+			gl.glDeleteShader(shader);
+			throw new IOException("Compiling " + resource + " failed: " + new String(log, 0, length[0]));
+		}
+		return shader;
+	}
+
+	private static String programLog(GL2 gl, int program) {
+		int[] length = new int[1];
+		gl.glGetProgramiv(program, GL2ES2.GL_INFO_LOG_LENGTH, length, 0);
+		byte[] log = new byte[Math.max(1, length[0])];
+		gl.glGetProgramInfoLog(program, log.length, length, 0, log, 0);
+		return new String(log, 0, length[0]);
+	}
+
+	private static String read(String resource) throws IOException {
+		InputStream is = ObjShader.class.getResourceAsStream(resource);
+		if (is == null) {
+			throw new IOException("Missing shader source " + resource);
+		}
+		StringBuilder sb = new StringBuilder();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(is, "US-ASCII"))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Binds the program and the lights, rewriting the light buffer only if the lights differ from the ones
+	 * it holds.
+	 *
+	 * @param gl
+	 * @param lightDirections eye space directions towards the lights, at most 3, see
+	 * GLRenderable.getLightDirections
+	 * @param useLighting
+	 */
+	void begin(GL2 gl, Vec4[] lightDirections, boolean useLighting) {
+		gl.glUseProgram(program);
+		gl.glUniform1i(lighting, useLighting ? 1 : 0);
+		if (updateLights(lightDirections) || !lightsValid) {
+			lightsData.clear();
+			lightsData.put(lights).flip();
+			gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, lightsBuffer);
+			gl.glBufferSubData(GL2ES3.GL_UNIFORM_BUFFER, 0, LIGHTS_BYTES, lightsData);
+			gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+			lightsValid = true;
+		}
+		gl.glBindBufferBase(GL2ES3.GL_UNIFORM_BUFFER, LIGHTS_BINDING, lightsBuffer);
+	}
+
+	private boolean updateLights(Vec4[] lightDirections) {
+		boolean changed = false;
+		int count = Math.min(3, lightDirections.length);
+		for (int i = 0; i < 3; i++) {
+			Vec4 v = i < count ? lightDirections[i].normalize3() : Vec4.ZERO;
+			changed |= set(4 * i, (float) v.x) | set(4 * i + 1, (float) v.y) | set(4 * i + 2, (float) v.z);
+		}
+		changed |= set(12, ambient) | set(13, ambient) | set(14, ambient) | set(15, 1);
+		changed |= set(16, count);
+		return changed;
+	}
+
+	private boolean set(int index, float value) {
+		if (lights[index] == value) {
+			return false;
+		}
+		lights[index] = value;
+		return true;
+	}
+
+	/**
+	 * Sets how mesh.vert decodes the vertices of the mesh drawn next, see QuantizedMesh.
+	 *
+	 * @param gl
+	 * @param offset added to positions after scaling
+	 * @param scale
+	 * @param normalScale the largest octahedral normal component, or 0 for plain normals
+	 */
+	void setQuantization(GL2 gl, float[] offset, float[] scale, float normalScale) {
+		gl.glUniform3f(positionOffset, offset[0], offset[1], offset[2]);
+		gl.glUniform3f(positionScale, scale[0], scale[1], scale[2]);
+		gl.glUniform1f(octahedralScale, normalScale);
+	}
+
+	void setMaterial(GL2 gl, int index) {
+		gl.glUniform1i(materialIndex, index);
+	}
+
+	void end(GL2 gl) {
+		gl.glUseProgram(0);
+	}
+
+	/**
+	 * Sets the ambient light intensity of every shader, including those created later, 0.3 by default.
+	 */
+	public static void setAmbient(float ambient) {
+		ObjShader.ambient = ambient;
+	}
+
+	/**
+	 * Fills one std140 Material struct of mesh.frag.
+	 */
+	static void putMaterial(ByteBuffer buffer, MtlLoader.Material mtl, boolean textured) {
+		FloatBuffer f = buffer.asFloatBuffer();
+		f.put(mtl.Ka[0]).put(mtl.Ka[1]).put(mtl.Ka[2]).put(1);
+		f.put(mtl.Kd[0]).put(mtl.Kd[1]).put(mtl.Kd[2]).put(mtl.d);
+		f.put(mtl.Ks[0]).put(mtl.Ks[1]).put(mtl.Ks[2]).put(mtl.Ns);
+		f.put(textured ? 1 : 0).put(0).put(0).put(0);
+		buffer.position(buffer.position() + MATERIAL_BYTES);
+	}
+
+	static int getUniformBufferAlignment(GL2 gl) {
+		IntBuffer alignment = Buffers.newDirectIntBuffer(1);
+		gl.glGetIntegerv(GL2ES3.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, alignment);
+		return Math.max(1, alignment.get(0));
+	}
+
+}
@@ -0,0 +1,392 @@
+package osm.map.worldwind.gl.obj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import osm.map.worldwind.gl.obj.MtlLoader.Material;
+
+/**
+ * The mesh batches of a model with quantized vertex attributes, the form ObjLoader keeps a model in when
+ * vertex compression is enabled and the one ShaderMesh uploads as is. A vertex takes STRIDE bytes instead of
+ * the 48 of the float layout:
+ *
+ * - position: 3 unsigned shorts relative to the bounds of the model, and a short that is 0 for vertices
+ * without a normal
+ * - normal: octahedral, 2 signed bytes and 2 bytes of padding, or 2 signed shorts
+ * - texture coordinate: 2 half floats
+ * - color: 4 unsigned bytes
+ *
+ * The error bounds decide whether a model is compressed at all and whether 8 bit normals are precise enough;
+ * the accuracy of a compressed model is measured over all its vertices and reported by getAccuracy.
+ */
+public class QuantizedMesh {
+
+	static final int STRIDE = 20;
+	static final int NORMAL_OFFSET = 8;
+	static final int TEX_COORD_OFFSET = 12;
+	static final int COLOR_OFFSET = 16;
+	private static final int POSITION_STEPS = 65535;
+
+	private static double maxPositionError = 1e-4; // relative to the largest extent of the bounds
+	private static double maxNormalError = 1; // degrees
+	private static double maxTexCoordError = 1.0 / 4096;
+
+	final float[] offset = new float[3]; // the minimum corner of the bounds
+	final float[] scale = new float[3]; // model units per position step
+	final int normalBits;
+	final List<Part> parts = new ArrayList<>();
+	private Accuracy accuracy;
+
+	/**
+	 * One mesh batch, its vertices interleaved in native byte order.
+	 */
+	static class Part {
+
+		final Material material;
+		final int vertexCount;
+		final boolean normals, texCoords, colors; // what the batch had
+		final byte[] data;
+
+		Part(MeshBatch batch) {
+			material = batch.material;
+			vertexCount = batch.vertexCount;
+			normals = batch.normals != null;
+			texCoords = batch.texCoords != null;
+			colors = batch.colors != null;
+			data = new byte[vertexCount * STRIDE];
+		}
+
+		ByteBuffer buffer() {
+			return ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * The largest errors of the decoded attributes against the originals, and the memory saved.
+	 */
+	public static class Accuracy {
+
+		public double positionError; // model units, per axis
+		public double relativePositionError; // of the largest extent
+		public double normalError; // degrees
+		public double texCoordError;
+		public double colorError;
+		public int normalBits;
+		public long floatBytes; // of the mesh batches
+		public long quantizedBytes;
+
+		@Override
+		public String toString() {
+			return String.format("position %.3g (%.3g of extent), normal %.3g deg (%d bit), texcoord %.3g, color %.3g; "
+				+ "%d -> %d bytes (%.0f%%)", positionError, relativePositionError, normalError, normalBits,
+				texCoordError, colorError, floatBytes, quantizedBytes, 100.0 * quantizedBytes / Math.max(1, floatBytes));
+		}
+	}
+
+	private QuantizedMesh(float[] min, float[] max, int normalBits) {
+		for (int i = 0; i < 3; i++) {
+			offset[i] = min[i];
+			scale[i] = (max[i] - min[i]) / POSITION_STEPS;
+		}
+		this.normalBits = normalBits;
+	}
+
+	/**
+	 * Quantizes the batches relative to the bounds.
+	 *
+	 * @param batches
+	 * @param min the minimum corner of the bounds of all positions
+	 * @param max the maximum corner
+	 * @return the compressed mesh, or null if it would exceed an error bound; the accuracy is then in the
+	 * report
+	 */
+	static QuantizedMesh quantize(List<MeshBatch> batches, float[] min, float[] max, Accuracy report) {
+		double extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+		report.floatBytes = 0;
+		for (MeshBatch batch : batches) {
+			report.floatBytes += 4L * batch.vertexCount * (3 + (batch.normals != null ? 3 : 0)
+				+ (batch.texCoords != null ? 2 : 0) + (batch.colors != null ? 4 : 0));
+		}
+		// the worst case of rounding to the position grid, measured below
+		if (extent / POSITION_STEPS / 2 * Math.sqrt(3) > maxPositionError * extent) {
+			return null;
+		}
+		report.normalBits = 8;
+		report.normalError = normalError(batches, 8);
+		if (report.normalError > maxNormalError) {
+			report.normalBits = 16;
+			report.normalError = normalError(batches, 16);
+			if (report.normalError > maxNormalError) {
+				return null;
+			}
+		}
+		report.texCoordError = texCoordError(batches);
+		if (report.texCoordError > maxTexCoordError) {
+			return null;
+		}
+
+		QuantizedMesh mesh = new QuantizedMesh(min, max, report.normalBits);
+		int[] octahedral = new int[2];
+		for (MeshBatch batch : batches) {
+			Part part = new Part(batch);
+			ByteBuffer b = part.buffer();
+			for (int v = 0; v < batch.vertexCount; v++) {
+				int base = v * STRIDE;
+				for (int i = 0; i < 3; i++) {
+					float p = batch.positions[3 * v + i];
+					int q = mesh.scale[i] > 0 ? Math.round((p - mesh.offset[i]) / mesh.scale[i]) : 0;
+					q = Math.max(0, Math.min(POSITION_STEPS, q));
+					b.putShort(base + 2 * i, (short) q);
+					double error = Math.abs(mesh.offset[i] + q * mesh.scale[i] - p);
+					report.positionError = Math.max(report.positionError, error);
+				}
+				b.putShort(base + 6, (short) (part.normals ? 1 : 0));
+				if (part.normals) {
+					encodeOctahedral(batch.normals[3 * v], batch.normals[3 * v + 1], batch.normals[3 * v + 2],
+						mesh.normalBits, octahedral);
+					if (mesh.normalBits == 8) {
+						b.put(base + NORMAL_OFFSET, (byte) octahedral[0]);
+						b.put(base + NORMAL_OFFSET + 1, (byte) octahedral[1]);
+					} else {
+						b.putShort(base + NORMAL_OFFSET, (short) octahedral[0]);
+						b.putShort(base + NORMAL_OFFSET + 2, (short) octahedral[1]);
+					}
+				}
+				if (part.texCoords) {
+					b.putShort(base + TEX_COORD_OFFSET, toHalf(batch.texCoords[2 * v]));
+					b.putShort(base + TEX_COORD_OFFSET + 2, toHalf(batch.texCoords[2 * v + 1]));
+				}
+				for (int i = 0; i < 4; i++) {
+					float c = part.colors ? batch.colors[4 * v + i] : 1;
+					int q = Math.round(Math.max(0, Math.min(1, c)) * 255);
+					b.put(base + COLOR_OFFSET + i, (byte) q);
+					report.colorError = Math.max(report.colorError, Math.abs(q / 255f - c));
+				}
+			}
+			mesh.parts.add(part);
+			report.quantizedBytes += part.data.length;
+		}
+		report.relativePositionError = extent > 0 ? report.positionError / extent : 0;
+		mesh.accuracy = report;
+		return mesh;
+	}
+
+	private static double normalError(List<MeshBatch> batches, int bits) {
+		int[] octahedral = new int[2];
+		float[] decoded = new float[3];
+		double minDot = 1;
+		for (MeshBatch batch : batches) {
+			if (batch.normals == null) {
+				continue;
+			}
+			for (int v = 0; v < batch.vertexCount; v++) {
+				float x = batch.normals[3 * v], y = batch.normals[3 * v + 1], z = batch.normals[3 * v + 2];
+				double length = Math.sqrt(x * x + y * y + z * z);
+				if (length == 0) {
+					continue;
+				}
+				encodeOctahedral(x, y, z, bits, octahedral);
+				decodeOctahedral(octahedral[0], octahedral[1], bits, decoded);
+				minDot = Math.min(minDot, (x * decoded[0] + y * decoded[1] + z * decoded[2]) / length);
+			}
+		}
+		return Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, minDot))));
+	}
+
+	private static double texCoordError(List<MeshBatch> batches) {
+		double error = 0;
+		for (MeshBatch batch : batches) {
+			if (batch.texCoords == null) {
+				continue;
+			}
+			for (int i = 0; i < 2 * batch.vertexCount; i++) {
+				float t = batch.texCoords[i];
+				error = Math.max(error, Math.abs(fromHalf(toHalf(t)) - t));
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Encodes a normal in octahedral form, trying the four nearest grid points and keeping the one that
+	 * decodes closest to the normal.
+	 */
+	static void encodeOctahedral(float x, float y, float z, int bits, int[] result) {
+		double l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		if (l1 == 0) {
+			result[0] = 0;
+			result[1] = 0;
+			return;
+		}
+		double u = x / l1, v = y / l1;
+		if (z < 0) {
+			double wrappedU = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+			double wrappedV = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+			u = wrappedU;
+			v = wrappedV;
+		}
+		int max = (1 << (bits - 1)) - 1;
+		float[] decoded = new float[3];
+		double best = -2;
+		for (int i = 0; i < 4; i++) {
+			int a = (int) ((i & 1) == 0 ? Math.floor(u * max) : Math.ceil(u * max));
+			int b = (int) ((i & 2) == 0 ? Math.floor(v * max) : Math.ceil(v * max));
+			a = Math.max(-max, Math.min(max, a));
+			b = Math.max(-max, Math.min(max, b));
+			decodeOctahedral(a, b, bits, decoded);
+			double dot = x * decoded[0] + y * decoded[1] + z * decoded[2];
+			if (dot > best) {
+				best = dot;
+				result[0] = a;
+				result[1] = b;
+			}
+		}
+	}
+
+	/**
+	 * The inverse of encodeOctahedral, as done by mesh.vert.
+	 */
+	static void decodeOctahedral(int a, int b, int bits, float[] result) {
+		int max = (1 << (bits - 1)) - 1;
+		float u = (float) a / max, v = (float) b / max;
+		float z = 1 - Math.abs(u) - Math.abs(v);
+		if (z < 0) {
+			float wrappedU = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+			float wrappedV = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+			u = wrappedU;
+			v = wrappedV;
+		}
+		float length = (float) Math.sqrt(u * u + v * v + z * z);
+		result[0] = u / length;
+		result[1] = v / length;
+		result[2] = z / length;
+	}
+
+	/**
+	 * Converts to an IEEE 754 half float, rounding to nearest even.
+	 */
+	static short toHalf(float f) {
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (exponent == 0xff) { // infinity or NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		int e = exponent - 127 + 15;
+		if (e >= 0x1f) { // overflow
+			return (short) (sign | 0x7c00);
+		}
+		if (e <= 0) { // subnormal or zero
+			if (e < -10) {
+				return (short) sign;
+			}
+			mantissa |= 0x800000;
+			int shift = 14 - e;
+			int half = mantissa >> shift;
+			int rest = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+				half++;
+			}
+			return (short) (sign | half);
+		}
+		int half = (e << 10) | (mantissa >> 13);
+		int rest = mantissa & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+			half++; // may carry into the exponent, which rounds up correctly
+		}
+		return (short) (sign | half);
+	}
+
+	static float fromHalf(short h) {
+		int sign = (h & 0x8000) << 16;
+		int exponent = (h >>> 10) & 0x1f;
+		int mantissa = h & 0x3ff;
+		if (exponent == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if (exponent == 0) {
+			float value = mantissa / 16777216f; // 2^-24
+			return sign != 0 ? -value : value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Decodes the mesh into float batches, for the display list and StaticBatch.
+	 */
+	List<MeshBatch> toMeshBatches() {
+		List<MeshBatch> batches = new ArrayList<>(parts.size());
+		float[] normal = new float[3];
+		for (Part part : parts) {
+			MeshBatch batch = new MeshBatch(part.material, null);
+			int n = part.vertexCount;
+			batch.vertexCount = n;
+			batch.positions = new float[3 * n];
+			batch.normals = part.normals ? new float[3 * n] : null;
+			batch.texCoords = part.texCoords ? new float[2 * n] : null;
+			batch.colors = part.colors ? new float[4 * n] : null;
+			ByteBuffer b = part.buffer();
+			for (int v = 0; v < n; v++) {
+				int base = v * STRIDE;
+				for (int i = 0; i < 3; i++) {
+					batch.positions[3 * v + i] = offset[i] + (b.getShort(base + 2 * i) & 0xffff) * scale[i];
+				}
+				if (batch.normals != null) {
+					if (normalBits == 8) {
+						decodeOctahedral(b.get(base + NORMAL_OFFSET), b.get(base + NORMAL_OFFSET + 1), 8, normal);
+					} else {
+						decodeOctahedral(b.getShort(base + NORMAL_OFFSET), b.getShort(base + NORMAL_OFFSET + 2), 16, normal);
+					}
+					System.arraycopy(normal, 0, batch.normals, 3 * v, 3);
+				}
+				if (batch.texCoords != null) {
+					batch.texCoords[2 * v] = fromHalf(b.getShort(base + TEX_COORD_OFFSET));
+					batch.texCoords[2 * v + 1] = fromHalf(b.getShort(base + TEX_COORD_OFFSET + 2));
+				}
+				if (batch.colors != null) {
+					for (int i = 0; i < 4; i++) {
+						batch.colors[4 * v + i] = (b.get(base + COLOR_OFFSET + i) & 0xff) / 255f;
+					}
+				}
+			}
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	public int getVertexCount() {
+		int count = 0;
+		for (Part part : parts) {
+			count += part.vertexCount;
+		}
+		return count;
+	}
+
+	public long getByteCount() {
+		return (long) getVertexCount() * STRIDE;
+	}
+
+	/**
+	 * @return the largest errors measured when the mesh was quantized
+	 */
+	public Accuracy getAccuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * Sets the error bounds models are compressed within, models exceeding one stay uncompressed.
+	 *
+	 * @param position the largest position error relative to the largest extent of the model
+	 * @param normal the largest normal error in degrees, 8 bit normals are used where they are within it
+	 * @param texCoord the largest absolute texture coordinate error
+	 */
+	public static void setErrorBounds(double position, double normal, double texCoord) {
+		maxPositionError = position;
+		maxNormalError = normal;
+		maxTexCoordError = texCoord;
+	}
+
+}
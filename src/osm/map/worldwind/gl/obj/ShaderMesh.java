@@ -0,0 +1,251 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.util.texture.Texture;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL2ES3;
+
+/**
+ * The mesh batches of a model in GPU buffers for ObjShader: one interleaved vertex buffer holding all
+ * batches, and a uniform buffer with one std140 Material per distinct material. Each batch is drawn with one
+ * material index update, a texture bind when the texture changes and one glDrawArrays.
+ *
+ * The vertex buffer holds either floats or the layout of a QuantizedMesh, which mesh.vert decodes.
+ */
+public class ShaderMesh {
+
+	static final int VERTEX_FLOATS = 12; // position, normal, texture coordinate, color
+	static final int STRIDE = VERTEX_FLOATS * Buffers.SIZEOF_FLOAT;
+
+	private static final float[] NO_OFFSET = {0, 0, 0};
+	private static final float[] NO_SCALE = {1, 1, 1};
+
+	private int vertexBuffer;
+	private int materialBuffer;
+	private int materialStride; // bytes between the starts of consecutive blocks of MAX_MATERIALS
+	private final List<Range> ranges = new ArrayList<>();
+	private final Map<MtlLoader.Material, Integer> materials = new IdentityHashMap<>();
+	private final List<Range> firstUse = new ArrayList<>();
+	private final QuantizedMesh quantized; // null for the float layout
+	private long bytes;
+	private int triangles;
+
+	private static class Range {
+
+		int first;
+		int count;
+		int material;
+		MtlLoader.Material mtl;
+		Texture texture;
+	}
+
+	ShaderMesh(GL2 gl, List<MeshBatch> batches) {
+		quantized = null;
+		int vertices = 0;
+		for (MeshBatch batch : batches) {
+			addRange(vertices, batch.vertexCount, batch.material, batch.texture);
+			vertices += batch.vertexCount;
+		}
+
+		FloatBuffer data = Buffers.newDirectFloatBuffer(Math.max(1, vertices) * VERTEX_FLOATS);
+		for (MeshBatch batch : batches) {
+			for (int i = 0; i < batch.vertexCount; i++) {
+				data.put(batch.positions, 3 * i, 3);
+				if (batch.normals != null) {
+					data.put(batch.normals, 3 * i, 3);
+				} else {
+					data.put(0).put(0).put(0); // unlit, see mesh.frag
+				}
+				if (batch.texCoords != null) {
+					data.put(batch.texCoords, 2 * i, 2);
+				} else {
+					data.put(0).put(0);
+				}
+				if (batch.colors != null) {
+					data.put(batch.colors, 4 * i, 4);
+				} else {
+					data.put(1).put(1).put(1).put(1); // the material alone
+				}
+			}
+		}
+		data.flip();
+		upload(gl, data, (long) data.limit() * Buffers.SIZEOF_FLOAT);
+	}
+
+	/**
+	 * Uploads the quantized mesh as is. Needs half float vertex attributes, see supportsQuantized.
+	 *
+	 * @param textures the texture of each part, null for parts without one
+	 */
+	ShaderMesh(GL2 gl, QuantizedMesh mesh, List<Texture> textures) {
+		quantized = mesh;
+		int vertices = 0;
+		for (int i = 0; i < mesh.parts.size(); i++) {
+			QuantizedMesh.Part part = mesh.parts.get(i);
+			addRange(vertices, part.vertexCount, part.material, textures.get(i));
+			vertices += part.vertexCount;
+		}
+		ByteBuffer data = Buffers.newDirectByteBuffer(Math.max(1, vertices) * QuantizedMesh.STRIDE);
+		for (QuantizedMesh.Part part : mesh.parts) {
+			data.put(part.data);
+		}
+		data.flip();
+		upload(gl, data, data.limit());
+	}
+
+	static boolean supportsQuantized(GL2 gl) {
+		return gl.isGL3() || gl.isExtensionAvailable("GL_ARB_half_float_vertex");
+	}
+
+	private void addRange(int first, int count, MtlLoader.Material material, Texture texture) {
+		Range range = new Range();
+		range.first = first;
+		range.count = count;
+		range.mtl = material;
+		range.texture = material.map_Kd != null ? texture : null;
+		if (!materials.containsKey(material)) {
+			materials.put(material, materials.size());
+			firstUse.add(range);
+		}
+		range.material = materials.get(material);
+		ranges.add(range);
+		triangles += count / 3;
+	}
+
+	private void upload(GL2 gl, Buffer data, long size) {
+		int blockBytes = ObjShader.MAX_MATERIALS * ObjShader.MATERIAL_BYTES;
+		int alignment = ObjShader.getUniformBufferAlignment(gl);
+		materialStride = (blockBytes + alignment - 1) / alignment * alignment;
+		int blocks = Math.max(1, (materials.size() + ObjShader.MAX_MATERIALS - 1) / ObjShader.MAX_MATERIALS);
+		ByteBuffer materialData = Buffers.newDirectByteBuffer(blocks * materialStride);
+		for (int m = 0; m < firstUse.size(); m++) {
+			Range range = firstUse.get(m);
+			materialData.position(m / ObjShader.MAX_MATERIALS * materialStride
+				+ m % ObjShader.MAX_MATERIALS * ObjShader.MATERIAL_BYTES);
+			ObjShader.putMaterial(materialData, range.mtl, range.texture != null);
+		}
+		materialData.clear();
+		materials.clear();
+		firstUse.clear();
+
+		int[] buffers = new int[2];
+		gl.glGenBuffers(2, buffers, 0);
+		vertexBuffer = buffers[0];
+		materialBuffer = buffers[1];
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffer);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, size, data, GL.GL_STATIC_DRAW);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, materialBuffer);
+		gl.glBufferData(GL2ES3.GL_UNIFORM_BUFFER, materialData.limit(), materialData, GL.GL_STATIC_DRAW);
+		gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+		bytes = size + materialData.limit();
+	}
+
+	/**
+	 * Draws the mesh with the shader, which must have been begun.
+	 *
+	 * @param gl
+	 * @param shader
+	 */
+	void draw(GL2 gl, ObjShader shader) {
+		gl.glEnable(GL.GL_BLEND);
+		gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffer);
+		gl.glEnableVertexAttribArray(ObjShader.POSITION);
+		gl.glEnableVertexAttribArray(ObjShader.NORMAL);
+		gl.glEnableVertexAttribArray(ObjShader.TEX_COORD);
+		gl.glEnableVertexAttribArray(ObjShader.COLOR);
+		if (quantized != null) {
+			int stride = QuantizedMesh.STRIDE;
+			boolean byteNormals = quantized.normalBits == 8;
+			gl.glVertexAttribPointer(ObjShader.POSITION, 4, GL.GL_UNSIGNED_SHORT, false, stride, 0);
+			gl.glVertexAttribPointer(ObjShader.NORMAL, 2, byteNormals ? GL.GL_BYTE : GL.GL_SHORT, false, stride,
+				QuantizedMesh.NORMAL_OFFSET);
+			gl.glVertexAttribPointer(ObjShader.TEX_COORD, 2, GL.GL_HALF_FLOAT, false, stride, QuantizedMesh.TEX_COORD_OFFSET);
+			gl.glVertexAttribPointer(ObjShader.COLOR, 4, GL.GL_UNSIGNED_BYTE, true, stride, QuantizedMesh.COLOR_OFFSET);
+			shader.setQuantization(gl, quantized.offset, quantized.scale, (1 << (quantized.normalBits - 1)) - 1);
+		} else {
+			gl.glVertexAttribPointer(ObjShader.POSITION, 3, GL.GL_FLOAT, false, STRIDE, 0);
+			gl.glVertexAttribPointer(ObjShader.NORMAL, 3, GL.GL_FLOAT, false, STRIDE, 3 * Buffers.SIZEOF_FLOAT);
+			gl.glVertexAttribPointer(ObjShader.TEX_COORD, 2, GL.GL_FLOAT, false, STRIDE, 6 * Buffers.SIZEOF_FLOAT);
+			gl.glVertexAttribPointer(ObjShader.COLOR, 4, GL.GL_FLOAT, false, STRIDE, 8 * Buffers.SIZEOF_FLOAT);
+			shader.setQuantization(gl, NO_OFFSET, NO_SCALE, 0);
+		}
+
+		int block = -1;
+		Texture texture = null;
+		for (Range range : ranges) {
+			int b = range.material / ObjShader.MAX_MATERIALS;
+			if (b != block) {
+				gl.glBindBufferRange(GL2ES3.GL_UNIFORM_BUFFER, ObjShader.MATERIALS_BINDING, materialBuffer,
+					(long) b * materialStride, ObjShader.MAX_MATERIALS * ObjShader.MATERIAL_BYTES);
+				block = b;
+			}
+			if (range.texture != null && range.texture != texture) {
+				range.texture.bind(gl);
+				texture = range.texture;
+			}
+			shader.setMaterial(gl, range.material % ObjShader.MAX_MATERIALS);
+			gl.glDrawArrays(GL.GL_TRIANGLES, range.first, range.count);
+		}
+
+		gl.glDisableVertexAttribArray(ObjShader.POSITION);
+		gl.glDisableVertexAttribArray(ObjShader.NORMAL);
+		gl.glDisableVertexAttribArray(ObjShader.TEX_COORD);
+		gl.glDisableVertexAttribArray(ObjShader.COLOR);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * @return the number of texture binds in the last draw
+	 */
+	int getTextureBinds() {
+		int binds = 0;
+		Texture texture = null;
+		for (Range range : ranges) {
+			if (range.texture != null && range.texture != texture) {
+				texture = range.texture;
+				binds++;
+			}
+		}
+		return binds;
+	}
+
+	public int getTriangleCount() {
+		return triangles;
+	}
+
+	/**
+	 * @return the size of the vertex and material buffers
+	 */
+	public long getByteCount() {
+		return bytes;
+	}
+
+	public boolean isQuantized() {
+		return quantized != null;
+	}
+
+	/**
+	 * @return the vertex and material buffers
+	 */
+	int[] getBuffers() {
+		return new int[]{vertexBuffer, materialBuffer};
+	}
+
+	/**
+	 * Deletes the buffers, must be called with the context the mesh was created in current.
+	 */
+	void dispose(GL2 gl) {
+		gl.glDeleteBuffers(2, new int[]{vertexBuffer, materialBuffer}, 0);
+	}
+
+}
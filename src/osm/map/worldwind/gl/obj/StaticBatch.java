@@ -0,0 +1,468 @@
+package osm.map.worldwind.gl.obj;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.util.texture.Texture;
+import gov.nasa.worldwind.cache.GpuResourceCache;
+import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.geom.Matrix;
+import gov.nasa.worldwind.geom.Sphere;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.layers.Layer;
+import gov.nasa.worldwind.pick.PickSupport;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.OrderedRenderable;
+import gov.nasa.worldwind.render.PreRenderable;
+import gov.nasa.worldwind.render.Renderable;
+import java.awt.Color;
+import java.awt.Point;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import osm.map.worldwind.gl.GLCallCounter;
+import osm.map.worldwind.gl.RenderStats;
+import osm.map.worldwind.gl.TerrainElevationCache;
+import osm.map.worldwind.gl.obj.MtlLoader.Material;
+
+/**
+ * Draws a set of ObjRenderables that never move as combined geometry. Their meshes are transformed once into
+ * a local frame around a reference center and merged per material into one vertex buffer each, so the whole
+ * set takes one draw per material instead of a full draw pass per object.
+ *
+ * Each object keeps a sub-range of every material buffer, so objects beyond their render distance or outside
+ * the view are still culled individually, and picking resolves to the original ObjRenderable. Objects are
+ * merged at their getSize(), as if drawn with keepConstantSize. Call rebuild after moving, adding or removing
+ * objects.
+ *
+ * Add the batch to a layer instead of the objects themselves.
+ */
+public class StaticBatch implements Renderable, PreRenderable {
+
+	private final List<ObjRenderable> objects = new ArrayList<>();
+	private final PickSupport pickSupport = new PickSupport();
+	private Layer layer;
+
+	// built on the first render after a rebuild
+	private boolean built = false;
+	private double verticalExaggeration;
+	private Vec4 referenceCenter;
+	private Vec4[] centers; // of the objects, in model coordinates
+	private double[] radii;
+	private final List<Group> groups = new ArrayList<>();
+	private final Map<GpuResourceCache, Object> bufferKeys = new WeakHashMap<>(); // of the group buffers in each cache
+	private boolean[] visible = new boolean[0];
+	private int[] firsts = new int[0];
+	private int[] counts = new int[0];
+	private double eyeDistance;
+
+	private static class Group {
+
+		Material material;
+		ObjLoader model; // of the first object with the material, which provides its texture
+		FloatBuffer vertices;
+		int[] first; // per object
+		int[] count; // per object, 0 if the object has no faces of this material
+	}
+
+	public StaticBatch() {
+	}
+
+	public StaticBatch(Iterable<? extends ObjRenderable> objects) {
+		for (ObjRenderable object : objects) {
+			this.objects.add(object);
+		}
+	}
+
+	public void add(ObjRenderable object) {
+		objects.add(object);
+		rebuild();
+	}
+
+	public void remove(ObjRenderable object) {
+		objects.remove(object);
+		rebuild();
+	}
+
+	public List<ObjRenderable> getObjects() {
+		return Collections.unmodifiableList(objects);
+	}
+
+	/**
+	 * Merges the meshes again on the next render, e.g. after objects were moved.
+	 */
+	public void rebuild() {
+		built = false;
+	}
+
+	@Override
+	public void preRender(DrawContext dc) {
+		if (dc.getCurrentLayer() != null) {
+			this.layer = dc.getCurrentLayer();
+		}
+	}
+
+	@Override
+	public void render(DrawContext dc) {
+		if (objects.isEmpty()) {
+			return;
+		}
+		if (!built || verticalExaggeration != dc.getVerticalExaggeration()) {
+			build(dc);
+		}
+		if (referenceCenter == null) {
+			return;
+		}
+		eyeDistance = referenceCenter.distanceTo3(dc.getView().getEyePoint());
+		dc.addOrderedRenderable(new OrderedRenderable() {
+			@Override
+			public double getDistanceFromEye() {
+				return eyeDistance;
+			}
+
+			@Override
+			public void pick(DrawContext dc, Point pickPoint) {
+				pickSupport.clearPickList();
+				try {
+					pickSupport.beginPicking(dc);
+					draw(dc);
+				} finally {
+					pickSupport.endPicking(dc);
+					pickSupport.resolvePick(dc, pickPoint, layer);
+				}
+			}
+
+			@Override
+			public void render(DrawContext dc) {
+				draw(dc);
+			}
+		});
+	}
+
+	// reads the terrain under the clamped objects in one batch per cache
+	private void prefetchElevations(DrawContext dc) {
+		Map<TerrainElevationCache, List<LatLon>> locations = new IdentityHashMap<>();
+		for (ObjRenderable object : objects) {
+			TerrainElevationCache cache = object.getElevationCache();
+			if (object.isClamped() && cache != null) {
+				List<LatLon> list = locations.get(cache);
+				if (list == null) {
+					list = new ArrayList<>();
+					locations.put(cache, list);
+				}
+				list.add(object.getPosition());
+			}
+		}
+		for (Map.Entry<TerrainElevationCache, List<LatLon>> entry : locations.entrySet()) {
+			entry.getKey().getElevations(dc.getGlobe(), entry.getValue(), null);
+		}
+	}
+
+	private void build(DrawContext dc) {
+		release(dc);
+		groups.clear();
+		verticalExaggeration = dc.getVerticalExaggeration();
+		int n = objects.size();
+		centers = new Vec4[n];
+		radii = new double[n];
+		referenceCenter = null;
+
+		// per material, per object: the mesh batches to merge, keeping materials in first use order
+		Map<Material, List<List<MeshBatch>>> parts = new LinkedHashMap<>(); // the batches of each object, by material
+		Map<Material, ObjLoader> models = new IdentityHashMap<>();
+		Matrix[] transforms = new Matrix[n];
+		prefetchElevations(dc);
+		for (int i = 0; i < n; i++) {
+			ObjRenderable object = objects.get(i);
+			ObjLoader model = object.getLoadedModel(dc);
+			Vec4 loc = object.computeLocation(dc);
+			if (referenceCenter == null) {
+				referenceCenter = loc;
+			}
+			transforms[i] = Matrix.fromTranslation(loc.subtract3(referenceCenter))
+				.multiply(object.computeOrientation(object.getSize()));
+			centers[i] = loc;
+			radii[i] = object.getSize() * Math.max(model.getMaxDimension(), 1e-6) * Math.sqrt(3) / 2;
+			for (MeshBatch batch : model.buildMeshBatches()) {
+				List<List<MeshBatch>> perObject = parts.get(batch.material);
+				if (perObject == null) {
+					perObject = new ArrayList<>(Collections.nCopies(n, (List<MeshBatch>) null));
+					parts.put(batch.material, perObject);
+					models.put(batch.material, model);
+				}
+				if (perObject.get(i) == null) {
+					perObject.set(i, new ArrayList<MeshBatch>());
+				}
+				perObject.get(i).add(batch);
+			}
+		}
+
+		for (Map.Entry<Material, List<List<MeshBatch>>> entry : parts.entrySet()) {
+			Group group = new Group();
+			group.material = entry.getKey();
+			group.model = models.get(group.material);
+			group.first = new int[n];
+			group.count = new int[n];
+			int vertices = 0;
+			for (int i = 0; i < n; i++) {
+				group.first[i] = vertices;
+				if (entry.getValue().get(i) != null) {
+					for (MeshBatch batch : entry.getValue().get(i)) {
+						group.count[i] += batch.vertexCount;
+					}
+				}
+				vertices += group.count[i];
+			}
+			group.vertices = Buffers.newDirectFloatBuffer(Math.max(1, vertices) * ShaderMesh.VERTEX_FLOATS);
+			for (int i = 0; i < n; i++) {
+				if (entry.getValue().get(i) != null) {
+					for (MeshBatch batch : entry.getValue().get(i)) {
+						put(group.vertices, batch, transforms[i]);
+					}
+				}
+			}
+			group.vertices.flip();
+			groups.add(group);
+		}
+		built = true;
+	}
+
+	// appends the batch transformed by m, normals by its rotation only as the scaling is uniform
+	private static void put(FloatBuffer b, MeshBatch batch, Matrix m) {
+		float[] color = ObjLoader.getColor(batch.material);
+		for (int v = 0; v < batch.vertexCount; v++) {
+			double x = batch.positions[3 * v], y = batch.positions[3 * v + 1], z = batch.positions[3 * v + 2];
+			b.put((float) (m.m11 * x + m.m12 * y + m.m13 * z + m.m14));
+			b.put((float) (m.m21 * x + m.m22 * y + m.m23 * z + m.m24));
+			b.put((float) (m.m31 * x + m.m32 * y + m.m33 * z + m.m34));
+			if (batch.normals != null) {
+				x = batch.normals[3 * v];
+				y = batch.normals[3 * v + 1];
+				z = batch.normals[3 * v + 2];
+			} else {
+				x = 0;
+				y = 0;
+				z = 1;
+			}
+			double nx = m.m11 * x + m.m12 * y + m.m13 * z;
+			double ny = m.m21 * x + m.m22 * y + m.m23 * z;
+			double nz = m.m31 * x + m.m32 * y + m.m33 * z;
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length > 0) {
+				nx /= length;
+				ny /= length;
+				nz /= length;
+			}
+			b.put((float) nx).put((float) ny).put((float) nz);
+			if (batch.texCoords != null) {
+				b.put(batch.texCoords[2 * v]).put(batch.texCoords[2 * v + 1]);
+			} else {
+				b.put(0).put(0);
+			}
+			if (batch.colors != null) {
+				b.put(batch.colors, 4 * v, 4);
+			} else {
+				b.put(color).put(batch.material.d);
+			}
+		}
+	}
+
+	// the group buffers in the GpuResourceCache of the context, uploaded from the retained vertices if needed
+	private int[] getBuffers(DrawContext dc) {
+		GpuResourceCache cache = dc.getGpuResourceCache();
+		Object key = bufferKeys.get(cache);
+		if (key == null) {
+			key = new Object();
+			bufferKeys.put(cache, key);
+		}
+		int[] buffers = (int[]) cache.get(key);
+		if (buffers == null) {
+			GL2 gl = dc.getGL().getGL2();
+			buffers = new int[groups.size()];
+			gl.glGenBuffers(buffers.length, buffers, 0);
+			long bytes = 0;
+			for (int g = 0; g < groups.size(); g++) {
+				Group group = groups.get(g);
+				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[g]);
+				gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) group.vertices.limit() * Buffers.SIZEOF_FLOAT,
+					group.vertices, GL.GL_STATIC_DRAW);
+				bytes += (long) group.vertices.limit() * Buffers.SIZEOF_FLOAT;
+			}
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			cache.put(key, buffers, GpuResourceCache.VBO_BUFFERS, Math.max(1, bytes));
+		}
+		return buffers;
+	}
+
+	// deletes the buffers of the previous build in the current context; the cache evicts those of others
+	private void release(DrawContext dc) {
+		Object key = bufferKeys.get(dc.getGpuResourceCache());
+		if (key != null) {
+			dc.getGpuResourceCache().remove(key);
+		}
+		bufferKeys.clear();
+	}
+
+	private void draw(DrawContext dc) {
+		int[] buffers = getBuffers(dc);
+		RenderStats stats = RenderStats.get(dc, layer);
+		int n = objects.size();
+		if (visible.length < n) {
+			visible = new boolean[n];
+			firsts = new int[n];
+			counts = new int[n];
+		}
+		int drawn = 0;
+		Vec4 eye = dc.getView().getEyePoint();
+		for (int i = 0; i < n; i++) {
+			ObjRenderable object = objects.get(i);
+			visible[i] = object.isVisible()
+				&& centers[i].distanceTo3(eye) - radii[i] <= object.getRenderDistance()
+				&& dc.getView().getFrustumInModelCoordinates().intersects(new Sphere(centers[i], radii[i]));
+			if (visible[i]) {
+				drawn++;
+			}
+		}
+		if (stats != null) {
+			stats.add(RenderStats.Counter.CONSIDERED, n);
+			stats.add(RenderStats.Counter.CULLED, n - drawn);
+			stats.add(RenderStats.Counter.DRAWN, drawn);
+		}
+		if (drawn == 0) {
+			return;
+		}
+
+		GLCallCounter counter = stats != null && RenderStats.isCountGLCalls() ? GLCallCounter.install(dc) : null;
+		GL2 gl = dc.getGL().getGL2();
+		ObjRenderable first = objects.get(0);
+		first.beginBatchState(dc);
+		int binds = 0, triangles = 0;
+		try {
+			dc.getView().pushReferenceCenter(dc, referenceCenter);
+			gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+			gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+			if (dc.isPickingMode()) {
+				drawPicking(dc, gl, buffers, n);
+			} else {
+				gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+				gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+				gl.glEnable(GL2.GL_COLOR_MATERIAL);
+				gl.glBlendFunc(GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA);
+				gl.glEnable(GL2.GL_BLEND);
+				Texture texture = null;
+				for (int g = 0; g < groups.size(); g++) {
+					Group group = groups.get(g);
+					int runs = visibleRuns(group, n);
+					if (runs == 0) {
+						continue;
+					}
+					Texture groupTexture = group.model.getTexture(dc, group.material.map_Kd);
+					if (groupTexture != texture) {
+						if (texture != null) {
+							texture.disable(gl);
+						}
+						texture = groupTexture;
+						if (texture != null) {
+							texture.enable(gl);
+							texture.bind(gl);
+							gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_REPEAT);
+							gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_REPEAT);
+							binds++;
+						}
+					}
+					bind(gl, buffers[g], true);
+					gl.glMultiDrawArrays(GL.GL_TRIANGLES, firsts, 0, counts, 0, runs);
+					for (int r = 0; r < runs; r++) {
+						triangles += counts[r] / 3;
+					}
+				}
+				if (texture != null) {
+					texture.disable(gl);
+				}
+				gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+				gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+			}
+			gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+			gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			dc.getView().popReferenceCenter(dc);
+		} finally {
+			first.endBatchState(dc);
+			if (counter != null) {
+				stats.add(RenderStats.Counter.GL_CALLS, counter.uninstall());
+			}
+		}
+		if (stats != null) {
+			stats.add(RenderStats.Counter.TRIANGLES, triangles);
+			stats.add(RenderStats.Counter.TEXTURE_BINDS, binds);
+		}
+	}
+
+	// each visible object in its own pick color, drawn from every material buffer it has faces in
+	private void drawPicking(DrawContext dc, GL2 gl, int[] buffers, int n) {
+		for (int i = 0; i < n; i++) {
+			if (!visible[i]) {
+				continue;
+			}
+			ObjRenderable object = objects.get(i);
+			Color color = dc.getUniquePickColor();
+			pickSupport.addPickableObject(color.getRGB(), object, object.getPosition());
+			gl.glColor3ub((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
+			for (int g = 0; g < groups.size(); g++) {
+				Group group = groups.get(g);
+				if (group.count[i] > 0) {
+					bind(gl, buffers[g], false);
+					gl.glDrawArrays(GL.GL_TRIANGLES, group.first[i], group.count[i]);
+				}
+			}
+		}
+	}
+
+	private static void bind(GL2 gl, int buffer, boolean colors) {
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+		gl.glVertexPointer(3, GL.GL_FLOAT, ShaderMesh.STRIDE, 0);
+		gl.glNormalPointer(GL.GL_FLOAT, ShaderMesh.STRIDE, 3 * Buffers.SIZEOF_FLOAT);
+		gl.glTexCoordPointer(2, GL.GL_FLOAT, ShaderMesh.STRIDE, 6 * Buffers.SIZEOF_FLOAT);
+		if (colors) {
+			gl.glColorPointer(4, GL.GL_FLOAT, ShaderMesh.STRIDE, 8 * Buffers.SIZEOF_FLOAT);
+		}
+	}
+
+	// fills firsts and counts with the ranges of the visible objects, merging adjacent ones
+	private int visibleRuns(Group group, int n) {
+		int runs = 0;
+		int end = -1;
+		for (int i = 0; i < n; i++) {
+			if (!visible[i] || group.count[i] == 0) {
+				continue;
+			}
+			if (runs > 0 && group.first[i] == end) {
+				counts[runs - 1] += group.count[i];
+			} else {
+				firsts[runs] = group.first[i];
+				counts[runs] = group.count[i];
+				runs++;
+			}
+			end = group.first[i] + group.count[i];
+		}
+		return runs;
+	}
+
+	/**
+	 * @return the number of draw calls a frame with every object visible takes
+	 */
+	public int getDrawCount() {
+		return groups.size();
+	}
+
+	@Override
+	public String toString() {
+		return "StaticBatch of " + objects.size() + " objects in " + groups.size() + " material groups";
+	}
+
+}
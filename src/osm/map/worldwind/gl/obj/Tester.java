@@ -12,6 +12,7 @@ import static gov.nasa.worldwindx.examples.ApplicationTemplate.insertBeforeCompa
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import javax.swing.Timer;
+import osm.map.worldwind.gl.RenderStatsLayer;
 
 public class Tester extends ApplicationTemplate {
 
@@ -49,6 +50,7 @@ public class Tester extends ApplicationTemplate {
 			this.renderable.load();
 			long t1 = System.currentTimeMillis();
 			System.out.println("Time to load model (seconds): " + (t1-t0)/1000.0);
+			System.out.println(this.renderable.getLoadMetrics());
 			this.renderable.setSize(200);
 			this.renderable.setMinimumScaleSize(20);
 			this.renderable.setKeepConstantSize(false);
@@ -73,6 +75,9 @@ public class Tester extends ApplicationTemplate {
 
 			this.getWwd().setView(mybv);
 			insertBeforeCompass(getWwd(), layer);
+			RenderStatsLayer statsLayer = new RenderStatsLayer(); // enable from the layer panel
+			statsLayer.setEnabled(false);
+			insertBeforeCompass(getWwd(), statsLayer);
 
 			this.timer = new Timer(1000, new ActionListener() {
 				boolean first = true;
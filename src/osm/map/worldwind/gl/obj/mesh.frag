@@ -0,0 +1,60 @@
+#version 120
+#extension GL_ARB_uniform_buffer_object : require
+
+// Blinn-Phong shading of the MTL parameters Ka, Kd, Ks, Ns, d and map_Kd, see ObjShader and ShaderMesh for
+// the layout of the uniform blocks.
+
+struct Material {
+	vec4 ambient; // Ka
+	vec4 diffuse; // Kd, d
+	vec4 specular; // Ks, Ns
+	vec4 flags; // x: 1 if map_Kd is bound
+};
+
+layout(std140) uniform Materials {
+	Material materials[256];
+};
+
+layout(std140) uniform Lights {
+	vec4 lightDirections[3]; // eye space, towards the light
+	vec4 lightAmbient;
+	vec4 lightCount; // x
+};
+
+uniform int materialIndex;
+uniform bool lighting;
+uniform sampler2D diffuseMap;
+
+varying vec3 eyePosition;
+varying vec3 eyeNormal;
+varying vec2 uv;
+varying vec4 vertexColor;
+
+void main() {
+	Material m = materials[materialIndex];
+	vec4 kd = vec4(m.diffuse.rgb, 1.0) * vertexColor;
+	if (m.flags.x > 0.5) {
+		kd *= texture2D(diffuseMap, uv);
+	}
+	vec3 color;
+	if (!lighting || dot(eyeNormal, eyeNormal) == 0.0) {
+		color = kd.rgb; // no normals to light
+	} else {
+		vec3 n = normalize(eyeNormal);
+		vec3 v = normalize(-eyePosition);
+		color = (m.ambient.rgb + kd.rgb) * lightAmbient.rgb;
+		for (int i = 0; i < 3; i++) {
+			if (float(i) >= lightCount.x) {
+				break;
+			}
+			vec3 l = normalize(lightDirections[i].xyz);
+			float diffuse = max(dot(n, l), 0.0);
+			color += kd.rgb * diffuse;
+			if (diffuse > 0.0) {
+				vec3 h = normalize(l + v);
+				color += m.specular.rgb * pow(max(dot(n, h), 0.0), max(m.specular.a, 1.0));
+			}
+		}
+	}
+	gl_FragColor = vec4(min(color, vec3(1.0)), kd.a * m.diffuse.a);
+}
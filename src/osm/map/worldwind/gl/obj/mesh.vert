@@ -0,0 +1,44 @@
+#version 120
+
+// Per-vertex part of the OBJ material shader, see ObjShader. The model view and projection come from the
+// fixed-function matrix stacks World Wind maintains.
+
+attribute vec4 position; // w is 0 for vertices without a normal of a QuantizedMesh, 1 otherwise
+attribute vec3 normal;
+attribute vec2 texCoord;
+attribute vec4 color; // the material of atlas packed faces, see MaterialAtlas, white otherwise
+
+// decoding of QuantizedMesh vertices, the identity for float vertices
+uniform vec3 positionOffset;
+uniform vec3 positionScale;
+uniform float octahedralScale; // 0 if the normals are not octahedral
+
+varying vec3 eyePosition;
+varying vec3 eyeNormal;
+varying vec2 uv;
+varying vec4 vertexColor;
+
+vec3 decodeNormal() {
+	if (octahedralScale == 0.0) {
+		return normal;
+	}
+	if (position.w == 0.0) {
+		return vec3(0.0); // unlit, see mesh.frag
+	}
+	vec2 e = normal.xy / octahedralScale;
+	vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+	if (n.z < 0.0) {
+		vec2 s = vec2(e.x >= 0.0 ? 1.0 : -1.0, e.y >= 0.0 ? 1.0 : -1.0);
+		n.xy = (1.0 - abs(e.yx)) * s;
+	}
+	return normalize(n);
+}
+
+void main() {
+	vec4 eye = gl_ModelViewMatrix * vec4(position.xyz * positionScale + positionOffset, 1.0);
+	eyePosition = eye.xyz;
+	eyeNormal = gl_NormalMatrix * decodeNormal();
+	uv = texCoord;
+	vertexColor = color;
+	gl_Position = gl_ProjectionMatrix * eye;
+}
@@ -0,0 +1,83 @@
+package osm.map.worldwind.gl.particle;
+
+/**
+ * A value over a particle's normalized age (0 at birth, 1 at death), precomputed into a lookup table so the
+ * per particle evaluation is a single array read. Values are stored interleaved, channels per sample.
+ */
+public class Curve {
+
+	public static final int DEFAULT_RESOLUTION = 64;
+
+	final int channels;
+	final int resolution;
+	final float[] table;
+
+	private Curve(int channels, int resolution) {
+		this.channels = channels;
+		this.resolution = resolution;
+		this.table = new float[channels * resolution];
+	}
+
+	public static Curve constant(float... value) {
+		Curve c = new Curve(value.length, 1);
+		System.arraycopy(value, 0, c.table, 0, value.length);
+		return c;
+	}
+
+	/**
+	 * Piecewise linear curve through the given keyframes.
+	 *
+	 * @param times increasing keyframe times in [0, 1]
+	 * @param values one value array per keyframe, all of the same length
+	 * @return
+	 */
+	public static Curve linear(float[] times, float[]... values) {
+		return linear(DEFAULT_RESOLUTION, times, values);
+	}
+
+	public static Curve linear(int resolution, float[] times, float[]... values) {
+		if (times.length == 0 || times.length != values.length) {
+			throw new IllegalArgumentException("Need one value per keyframe time");
+		}
+		int channels = values[0].length;
+		Curve c = new Curve(channels, resolution);
+		int k = 0;
+		for (int i = 0; i < resolution; i++) {
+			float t = resolution == 1 ? 0 : i / (float) (resolution - 1);
+			while (k < times.length - 1 && times[k + 1] < t) {
+				k++;
+			}
+			float[] a = values[k];
+			float[] b = values[Math.min(k + 1, times.length - 1)];
+			float span = k + 1 < times.length ? times[k + 1] - times[k] : 0;
+			float f = span > 0 ? Math.max(0, Math.min(1, (t - times[k]) / span)) : 0;
+			for (int j = 0; j < channels; j++) {
+				c.table[i * channels + j] = a[j] + (b[j] - a[j]) * f;
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * @param t normalized age
+	 * @return offset of the sample for t in the table
+	 */
+	final int offset(float t) {
+		int i = (int) (t * (resolution - 1) + 0.5f);
+		if (i < 0) {
+			i = 0;
+		} else if (i >= resolution) {
+			i = resolution - 1;
+		}
+		return i * channels;
+	}
+
+	public float get(float t, int channel) {
+		return table[offset(t) + channel];
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+}
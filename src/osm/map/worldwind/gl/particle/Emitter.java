@@ -0,0 +1,97 @@
+package osm.map.worldwind.gl.particle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spawns particles of one type at a given rate from a shape around its origin, with initial velocity, life
+ * and size drawn uniformly from the configured ranges.
+ */
+public class Emitter {
+
+	ParticleType type;
+	EmitterShape shape;
+	float rate; // particles per unit of simulation time
+	float[] origin = {0, 0, 0};
+	float[] velocityMin = {0, 0, 0};
+	float[] velocityMax = {0, 0, 0};
+	float radialMin = 0, radialMax = 0; // horizontal speed away from the origin
+	float lifeMin = 1, lifeMax = 1;
+	float sizeMin = 1, sizeMax = 1;
+	float[] tint = {1, 1, 1, 1};
+	final List<ForceModule> forces = new ArrayList<>();
+
+	public Emitter(ParticleType type, EmitterShape shape, float rate) {
+		this.type = type;
+		this.shape = shape;
+		this.rate = rate;
+	}
+
+	public ParticleType getType() {
+		return type;
+	}
+
+	public EmitterShape getShape() {
+		return shape;
+	}
+
+	public void setShape(EmitterShape shape) {
+		this.shape = shape;
+	}
+
+	public float getRate() {
+		return rate;
+	}
+
+	public void setRate(float rate) {
+		this.rate = rate;
+	}
+
+	public void setOrigin(float x, float y, float z) {
+		this.origin = new float[]{x, y, z};
+	}
+
+	public void setVelocity(float[] min, float[] max) {
+		this.velocityMin = min;
+		this.velocityMax = max;
+	}
+
+	/**
+	 * Adds a horizontal velocity pointing away from the emitter origin through the spawn point, e.g. for
+	 * rotor wash or blast rings.
+	 */
+	public void setRadialVelocity(float min, float max) {
+		this.radialMin = min;
+		this.radialMax = max;
+	}
+
+	public void setLife(float min, float max) {
+		this.lifeMin = min;
+		this.lifeMax = max;
+	}
+
+	public float getLifeMax() {
+		return lifeMax;
+	}
+
+	public void setSize(float min, float max) {
+		this.sizeMin = min;
+		this.sizeMax = max;
+	}
+
+	/**
+	 * Color multiplied with the type's color curve.
+	 */
+	public void setTint(float r, float g, float b, float a) {
+		this.tint = new float[]{r, g, b, a};
+	}
+
+	public void addForce(ForceModule force) {
+		this.forces.add(force);
+	}
+
+	public void removeForce(ForceModule force) {
+		this.forces.remove(force);
+	}
+
+}
@@ -0,0 +1,87 @@
+package osm.map.worldwind.gl.particle;
+
+import java.util.Random;
+
+/**
+ * The region new particles are spawned in, relative to the emitter origin (y is up).
+ */
+public interface EmitterShape {
+
+	void sample(Random random, float[] out);
+
+	public static class Point implements EmitterShape {
+
+		@Override
+		public void sample(Random random, float[] out) {
+			out[0] = 0;
+			out[1] = 0;
+			out[2] = 0;
+		}
+	}
+
+	/**
+	 * Uniformly distributed over a horizontal disc.
+	 */
+	public static class Disc implements EmitterShape {
+
+		float radius;
+
+		public Disc(float radius) {
+			this.radius = radius;
+		}
+
+		@Override
+		public void sample(Random random, float[] out) {
+			float r = (float) Math.sqrt(random.nextFloat()) * radius;
+			double angle = random.nextFloat() * Math.PI * 2;
+			out[0] = (float) Math.cos(angle) * r;
+			out[1] = 0;
+			out[2] = (float) Math.sin(angle) * r;
+		}
+
+		public void setRadius(float radius) {
+			this.radius = radius;
+		}
+	}
+
+	/**
+	 * Uniformly distributed over a horizontal ring between an inner and outer radius.
+	 */
+	public static class Ring implements EmitterShape {
+
+		float inner, outer;
+
+		public Ring(float inner, float outer) {
+			this.inner = inner;
+			this.outer = outer;
+		}
+
+		@Override
+		public void sample(Random random, float[] out) {
+			float r = (float) Math.sqrt(inner * inner + random.nextFloat() * (outer * outer - inner * inner));
+			double angle = random.nextFloat() * Math.PI * 2;
+			out[0] = (float) Math.cos(angle) * r;
+			out[1] = 0;
+			out[2] = (float) Math.sin(angle) * r;
+		}
+	}
+
+	public static class Box implements EmitterShape {
+
+		float dx, dy, dz;
+
+		public Box(float dx, float dy, float dz) {
+			this.dx = dx;
+			this.dy = dy;
+			this.dz = dz;
+		}
+
+		@Override
+		public void sample(Random random, float[] out) {
+			out[0] = (random.nextFloat() - 0.5f) * dx;
+			out[1] = random.nextFloat() * dy;
+			out[2] = (random.nextFloat() - 0.5f) * dz;
+		}
+	}
+
+}
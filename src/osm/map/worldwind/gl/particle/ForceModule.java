@@ -0,0 +1,64 @@
+package osm.map.worldwind.gl.particle;
+
+import java.util.Random;
+
+/**
+ * A force acting on all particles of an emitter. Forces are evaluated once per emitter per step into an
+ * acceleration (x, y, z) and a linear drag coefficient (index 3), which the simulation then applies to every
+ * particle in one pass.
+ */
+public interface ForceModule {
+
+	void apply(Random random, float dt, float[] force);
+
+	public static class Gravity implements ForceModule {
+
+		final float x, y, z;
+
+		public Gravity(float x, float y, float z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public void apply(Random random, float dt, float[] force) {
+			force[0] += x;
+			force[1] += y;
+			force[2] += z;
+		}
+	}
+
+	/**
+	 * Horizontal gusts of random direction, redrawn every step.
+	 */
+	public static class RandomWind implements ForceModule {
+
+		final float strength;
+
+		public RandomWind(float strength) {
+			this.strength = strength;
+		}
+
+		@Override
+		public void apply(Random random, float dt, float[] force) {
+			force[0] += (random.nextFloat() * 2 - 1) * strength;
+			force[2] += (random.nextFloat() * 2 - 1) * strength;
+		}
+	}
+
+	public static class Drag implements ForceModule {
+
+		final float coefficient;
+
+		public Drag(float coefficient) {
+			this.coefficient = coefficient;
+		}
+
+		@Override
+		public void apply(Random random, float dt, float[] force) {
+			force[3] += coefficient;
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+package osm.map.worldwind.gl.particle;
+
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.OGLUtil;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+/**
+ * A set of emitters simulated and drawn together in one local frame (y up). Particles are grouped by the
+ * texture atlas of their type, so e.g. fire, smoke and sparks sharing an atlas are updated in one pass and
+ * drawn with one call.
+ */
+public class ParticleEffect {
+
+	final List<Emitter> emitters = new ArrayList<>();
+	final Map<TextureAtlas, ParticleSystem> systems = new LinkedHashMap<>();
+	final Random random = new Random();
+	float spawnScale = 1f;
+	int capacity = Integer.MAX_VALUE;
+	private float[] forces = new float[0];
+	private final float[] force = new float[4];
+	private final float[] sample = new float[3];
+	private int drawnParticles, drawCalls; // of the last draw
+
+	public void addEmitter(Emitter emitter) {
+		emitters.add(emitter);
+		getSystem(emitter.type.atlas);
+	}
+
+	public void removeEmitter(Emitter emitter) {
+		int index = emitters.indexOf(emitter);
+		if (index < 0) {
+			return;
+		}
+		for (ParticleSystem system : systems.values()) {
+			system.removeEmitter(index);
+		}
+		emitters.remove(index);
+	}
+
+	public List<Emitter> getEmitters() {
+		return Collections.unmodifiableList(emitters);
+	}
+
+	private ParticleSystem getSystem(TextureAtlas atlas) {
+		ParticleSystem system = systems.get(atlas);
+		if (system == null) {
+			system = new ParticleSystem(atlas);
+			systems.put(atlas, system);
+		}
+		return system;
+	}
+
+	public void update(float dt) {
+		int n = emitters.size();
+		if (forces.length < n * 4) {
+			forces = new float[n * 4];
+		}
+		for (int e = 0; e < n; e++) {
+			Arrays.fill(force, 0);
+			for (ForceModule module : emitters.get(e).forces) {
+				module.apply(random, dt, force);
+			}
+			System.arraycopy(force, 0, forces, e * 4, 4);
+		}
+		for (ParticleSystem system : systems.values()) {
+			system.step(dt, forces);
+		}
+
+		// over capacity: thin every system out in proportion to its size
+		int total = getParticleCount();
+		if (total > capacity) {
+			int excess = total - capacity;
+			for (ParticleSystem system : systems.values()) {
+				system.thin((int) Math.ceil((double) excess * system.count / total), random);
+			}
+		}
+		spawn(dt);
+	}
+
+	/**
+	 * Spawns the particles due from every emitter over dt, without moving the existing ones.
+	 */
+	public void spawn(float dt) {
+		int room = capacity - getParticleCount();
+		for (int e = 0; e < emitters.size() && room > 0; e++) {
+			Emitter emitter = emitters.get(e);
+			float n = dt * emitter.rate * spawnScale;
+			int k = (int) n;
+			if (random.nextFloat() < n - k) {
+				k++;
+			}
+			k = Math.min(k, room);
+			room -= k;
+			ParticleSystem system = getSystem(emitter.type.atlas);
+			for (int i = 0; i < k; i++) {
+				emitter.shape.sample(random, sample);
+				float vx = between(emitter.velocityMin[0], emitter.velocityMax[0]);
+				float vy = between(emitter.velocityMin[1], emitter.velocityMax[1]);
+				float vz = between(emitter.velocityMin[2], emitter.velocityMax[2]);
+				if (emitter.radialMax > 0) {
+					float d = (float) Math.sqrt(sample[0] * sample[0] + sample[2] * sample[2]);
+					if (d > 0) {
+						float radial = between(emitter.radialMin, emitter.radialMax) / d;
+						vx += sample[0] * radial;
+						vz += sample[2] * radial;
+					}
+				}
+				system.add(e,
+					emitter.origin[0] + sample[0], emitter.origin[1] + sample[1], emitter.origin[2] + sample[2],
+					vx, vy, vz,
+					between(emitter.lifeMin, emitter.lifeMax),
+					between(emitter.sizeMin, emitter.sizeMax),
+					(float) (random.nextFloat() * Math.PI * 2));
+			}
+		}
+	}
+
+	private float between(float min, float max) {
+		return min + random.nextFloat() * (max - min);
+	}
+
+	public void draw(DrawContext dc) {
+		GL2 gl = dc.getGL().getGL2();
+		gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_COLOR_BUFFER_BIT | GL2.GL_TEXTURE_BIT);
+		try {
+			gl.glEnable(GL.GL_BLEND);
+			OGLUtil.applyBlending(gl, false);
+			gl.glDisable(GL2.GL_LIGHTING);
+			drawnParticles = drawCalls = 0;
+			for (ParticleSystem system : systems.values()) {
+				if (system.draw(dc, emitters)) {
+					drawnParticles += system.count;
+					drawCalls++;
+				}
+			}
+		} finally {
+			gl.glPopAttrib();
+		}
+	}
+
+	/**
+	 * @return the number of particles submitted by the last draw
+	 */
+	public int getDrawnParticles() {
+		return drawnParticles;
+	}
+
+	/**
+	 * @return the number of draw calls, each with one texture bind, issued by the last draw
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	public int getParticleCount() {
+		int count = 0;
+		for (ParticleSystem system : systems.values()) {
+			count += system.count;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the largest horizontal or vertical reach of the live particles from the origin
+	 */
+	public float getExtent() {
+		float extent = 0;
+		for (ParticleSystem system : systems.values()) {
+			extent = Math.max(extent, system.extent);
+		}
+		return extent;
+	}
+
+	/**
+	 * @return the longest possible particle life of any emitter
+	 */
+	public float getSettleTime() {
+		float time = 0;
+		for (Emitter emitter : emitters) {
+			time = Math.max(time, emitter.lifeMax);
+		}
+		return time;
+	}
+
+	public void setSpawnScale(float spawnScale) {
+		this.spawnScale = spawnScale;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Seeds the random numbers of spawning and forces, so that the same updates simulate the same
+	 * particles, e.g. in benchmarks.
+	 *
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	public void clear() {
+		for (ParticleSystem system : systems.values()) {
+			system.count = 0;
+		}
+	}
+
+}
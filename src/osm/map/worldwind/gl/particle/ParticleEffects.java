@@ -0,0 +1,96 @@
+package osm.map.worldwind.gl.particle;
+
+import java.awt.Color;
+
+/**
+ * Ready made emitters. All of them use the smoke atlas, so any combination added to one ParticleEffect is
+ * simulated and drawn as a single batch.
+ */
+public class ParticleEffects {
+
+	/**
+	 * The emitter behind Fire: flames rising from a disc, shading from the given color towards yellow while
+	 * fading, and turning to faint smoke for the last tenth of their life.
+	 */
+	public static Emitter fire(float radius, float height, float lifespan, float genRate, Color color) {
+		ParticleType type = new ParticleType(TextureAtlas.SMOKE, 0, fireColor(color), Curve.constant(1));
+		Emitter e = new Emitter(type, new EmitterShape.Disc(radius), genRate);
+		e.setVelocity(new float[]{-1, 0, -1}, new float[]{1, height * 6, 1});
+		e.setLife(1, height * lifespan + 1);
+		e.setSize(10, 25);
+		e.addForce(new ForceModule.RandomWind(5));
+		return e;
+	}
+
+	public static Curve fireColor(Color color) {
+		float r = color.getRed() / 255f;
+		float g = color.getGreen() / 255f;
+		float b = color.getBlue() / 255f;
+		return Curve.linear(new float[]{0, .9f, .9f, 1},
+			new float[]{r, g, b, 1},
+			new float[]{r, Math.max(g, .9f), b, .1f},
+			new float[]{.1f, .1f, .1f, .1f},
+			new float[]{.1f, .1f, .1f, .1f});
+	}
+
+	/**
+	 * Slowly rising, spreading grey smoke.
+	 */
+	public static Emitter smoke(float radius, float height, float rate) {
+		ParticleType type = new ParticleType(TextureAtlas.SMOKE, 0,
+			Curve.linear(new float[]{0, .2f, 1}, new float[]{.3f, .3f, .3f, 0}, new float[]{.35f, .35f, .35f, .4f}, new float[]{.5f, .5f, .5f, 0}),
+			Curve.linear(new float[]{0, 1}, new float[]{1}, new float[]{4}));
+		Emitter e = new Emitter(type, new EmitterShape.Disc(radius), rate);
+		e.setOrigin(0, height * 2, 0);
+		e.setVelocity(new float[]{-1, height, -1}, new float[]{1, height * 3, 1});
+		e.setLife(height * 4, height * 10);
+		e.setSize(15, 30);
+		e.addForce(new ForceModule.RandomWind(2));
+		e.addForce(new ForceModule.Drag(.05f));
+		return e;
+	}
+
+	/**
+	 * Small, fast embers thrown up and falling back.
+	 */
+	public static Emitter sparks(float radius, float height, float rate) {
+		ParticleType type = new ParticleType(TextureAtlas.SMOKE, 0,
+			Curve.linear(new float[]{0, 1}, new float[]{1, 1, .6f, 1}, new float[]{1, .2f, 0, 0}),
+			Curve.constant(1));
+		Emitter e = new Emitter(type, new EmitterShape.Disc(radius), rate);
+		e.setVelocity(new float[]{-height * 2, height * 8, -height * 2}, new float[]{height * 2, height * 16, height * 2});
+		e.setLife(2, 6);
+		e.setSize(1, 3);
+		e.addForce(new ForceModule.Gravity(0, -height * 4, 0));
+		return e;
+	}
+
+	/**
+	 * Low brown dust kicked up over an area, e.g. behind vehicles.
+	 */
+	public static Emitter dust(float radius, float rate) {
+		ParticleType type = new ParticleType(TextureAtlas.SMOKE, 0,
+			Curve.linear(new float[]{0, .3f, 1}, new float[]{.6f, .5f, .35f, 0}, new float[]{.6f, .5f, .35f, .5f}, new float[]{.6f, .5f, .35f, 0}),
+			Curve.linear(new float[]{0, 1}, new float[]{1}, new float[]{3}));
+		Emitter e = new Emitter(type, new EmitterShape.Disc(radius), rate);
+		e.setVelocity(new float[]{-2, 0, -2}, new float[]{2, 3, 2});
+		e.setLife(5, 15);
+		e.setSize(5, 15);
+		e.addForce(new ForceModule.Drag(.2f));
+		e.addForce(new ForceModule.Gravity(0, -.2f, 0));
+		return e;
+	}
+
+	/**
+	 * Dust blown outwards along the ground from under a rotor of the given radius.
+	 */
+	public static Emitter rotorWash(float radius, float rate) {
+		Emitter e = dust(radius, rate);
+		e.setShape(new EmitterShape.Ring(radius * .5f, radius));
+		e.setVelocity(new float[]{0, 0, 0}, new float[]{0, 2, 0});
+		e.setRadialVelocity(radius, radius * 3);
+		e.setLife(3, 8);
+		return e;
+	}
+
+}
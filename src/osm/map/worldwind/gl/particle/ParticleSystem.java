@@ -0,0 +1,223 @@
+package osm.map.worldwind.gl.particle;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.util.texture.Texture;
+import gov.nasa.worldwind.render.DrawContext;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+/**
+ * The live particles of every emitter of an effect that draw from the same texture atlas, stored as one
+ * array per attribute so the simulation is a few tight loops and the whole set is drawn with one call.
+ * Dead particles are removed by moving the last particle into their slot, so the order is not stable.
+ */
+class ParticleSystem {
+
+	// x, y, z, u, v, r, g, b, a per vertex, two crossed triangles per particle
+	static final int VERTEX_FLOATS = 9;
+	static final int VERTICES = 6;
+
+	final TextureAtlas atlas;
+	int count;
+	float[] px, py, pz;
+	float[] vx, vy, vz;
+	float[] age, life, size;
+	float[] cos, sin; // rotation about the vertical axis
+	int[] emitter; // index into the effect's emitter list
+	float extent;
+	private FloatBuffer vertices;
+
+	ParticleSystem(TextureAtlas atlas) {
+		this.atlas = atlas;
+		this.allocate(64);
+	}
+
+	private void allocate(int capacity) {
+		px = Arrays.copyOf(px == null ? new float[0] : px, capacity);
+		py = Arrays.copyOf(py == null ? new float[0] : py, capacity);
+		pz = Arrays.copyOf(pz == null ? new float[0] : pz, capacity);
+		vx = Arrays.copyOf(vx == null ? new float[0] : vx, capacity);
+		vy = Arrays.copyOf(vy == null ? new float[0] : vy, capacity);
+		vz = Arrays.copyOf(vz == null ? new float[0] : vz, capacity);
+		age = Arrays.copyOf(age == null ? new float[0] : age, capacity);
+		life = Arrays.copyOf(life == null ? new float[0] : life, capacity);
+		size = Arrays.copyOf(size == null ? new float[0] : size, capacity);
+		cos = Arrays.copyOf(cos == null ? new float[0] : cos, capacity);
+		sin = Arrays.copyOf(sin == null ? new float[0] : sin, capacity);
+		emitter = Arrays.copyOf(emitter == null ? new int[0] : emitter, capacity);
+	}
+
+	void add(int e, float x, float y, float z, float velx, float vely, float velz, float lifeTime, float s, float angle) {
+		if (count == px.length) {
+			allocate(count * 2);
+		}
+		int i = count++;
+		emitter[i] = e;
+		px[i] = x;
+		py[i] = y;
+		pz[i] = z;
+		vx[i] = velx;
+		vy[i] = vely;
+		vz[i] = velz;
+		age[i] = 0;
+		life[i] = lifeTime;
+		size[i] = s;
+		cos[i] = (float) Math.cos(angle);
+		sin[i] = (float) Math.sin(angle);
+	}
+
+	/**
+	 * Integrates all particles over dt and removes the ones that died.
+	 *
+	 * @param dt
+	 * @param forces acceleration x, y, z and drag per emitter
+	 */
+	void step(float dt, float[] forces) {
+		for (int i = 0; i < count; i++) {
+			int f = emitter[i] * 4;
+			float drag = forces[f + 3];
+			vx[i] += (forces[f] - drag * vx[i]) * dt;
+			vy[i] += (forces[f + 1] - drag * vy[i]) * dt;
+			vz[i] += (forces[f + 2] - drag * vz[i]) * dt;
+			px[i] += vx[i] * dt;
+			py[i] += vy[i] * dt;
+			pz[i] += vz[i] * dt;
+			age[i] += dt;
+		}
+		float reach = 0;
+		for (int i = 0; i < count; i++) {
+			while (i < count && age[i] > life[i]) {
+				remove(i);
+			}
+			if (i < count) {
+				reach = Math.max(reach, Math.max(py[i] + size[i], 2 * Math.max(Math.abs(px[i]), Math.abs(pz[i])) + size[i]));
+			}
+		}
+		this.extent = reach;
+	}
+
+	/**
+	 * Removes n particles picked at random, which thins the effect out evenly.
+	 */
+	void thin(int n, Random random) {
+		for (int k = 0; k < n && count > 0; k++) {
+			remove(random.nextInt(count));
+		}
+	}
+
+	/**
+	 * Removes all particles of the given emitter and renumbers the emitters after it.
+	 */
+	void removeEmitter(int e) {
+		for (int i = 0; i < count; i++) {
+			while (i < count && emitter[i] == e) {
+				remove(i);
+			}
+			if (i < count && emitter[i] > e) {
+				emitter[i]--;
+			}
+		}
+	}
+
+	private void remove(int i) {
+		int last = --count;
+		emitter[i] = emitter[last];
+		px[i] = px[last];
+		py[i] = py[last];
+		pz[i] = pz[last];
+		vx[i] = vx[last];
+		vy[i] = vy[last];
+		vz[i] = vz[last];
+		age[i] = age[last];
+		life[i] = life[last];
+		size[i] = size[last];
+		cos[i] = cos[last];
+		sin[i] = sin[last];
+	}
+
+	/**
+	 * Fills the vertex array for the current particles.
+	 *
+	 * @param emitters
+	 * @return the vertex data, positioned at 0
+	 */
+	FloatBuffer buildVertices(List<Emitter> emitters) {
+		int floats = count * VERTICES * VERTEX_FLOATS;
+		if (vertices == null || vertices.capacity() < floats) {
+			vertices = Buffers.newDirectFloatBuffer(Math.max(floats, px.length * VERTICES * VERTEX_FLOATS));
+		}
+		FloatBuffer b = vertices;
+		b.clear();
+		for (int i = 0; i < count; i++) {
+			Emitter e = emitters.get(emitter[i]);
+			ParticleType type = e.type;
+			float t = age[i] / life[i];
+			float[] ct = type.color.table;
+			int co = type.color.offset(t);
+			float r = ct[co] * e.tint[0];
+			float g = ct[co + 1] * e.tint[1];
+			float bl = ct[co + 2] * e.tint[2];
+			float a = ct[co + 3] * e.tint[3];
+			float s = size[i] * type.size.table[type.size.offset(t)];
+			float hc = cos[i] * s / 2;
+			float hs = sin[i] * s / 2;
+			float x = px[i], y = py[i], z = pz[i];
+			float u0 = type.cell[0], v0 = type.cell[1], u1 = type.cell[2], v1 = type.cell[3];
+
+			vertex(b, x - hc, y, z + hs, u0, v0, r, g, bl, a);
+			vertex(b, x, y + s, z, u0, v1, r, g, bl, a);
+			vertex(b, x + hc, y, z - hs, u1, v0, r, g, bl, a);
+			vertex(b, x - hs, y, z - hc, u0, v0, r, g, bl, a);
+			vertex(b, x, y + s, z, u0, v1, r, g, bl, a);
+			vertex(b, x + hs, y, z + hc, u1, v0, r, g, bl, a);
+		}
+		b.position(0);
+		return b;
+	}
+
+	private static void vertex(FloatBuffer b, float x, float y, float z, float u, float v, float r, float g, float bl, float a) {
+		b.put(x).put(y).put(z).put(u).put(v).put(r).put(g).put(bl).put(a);
+	}
+
+	/**
+	 * @return whether the particles were drawn, i.e. there are some and the atlas texture is loaded
+	 */
+	boolean draw(DrawContext dc, List<Emitter> emitters) {
+		if (count == 0) {
+			return false;
+		}
+		Texture texture = atlas.getTexture(dc);
+		if (texture == null) {
+			return false;
+		}
+		GL2 gl = dc.getGL().getGL2();
+		FloatBuffer b = buildVertices(emitters);
+		int stride = VERTEX_FLOATS * Buffers.SIZEOF_FLOAT;
+
+		texture.enable(gl);
+		texture.bind(gl);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP);
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+		b.position(0);
+		gl.glVertexPointer(3, GL.GL_FLOAT, stride, b);
+		b.position(3);
+		gl.glTexCoordPointer(2, GL.GL_FLOAT, stride, b);
+		b.position(5);
+		gl.glColorPointer(4, GL.GL_FLOAT, stride, b);
+		b.position(0);
+		gl.glDrawArrays(GL.GL_TRIANGLES, 0, count * VERTICES);
+		gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+		gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+		texture.disable(gl);
+		return true;
+	}
+
+}
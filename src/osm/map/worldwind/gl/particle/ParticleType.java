@@ -0,0 +1,36 @@
+package osm.map.worldwind.gl.particle;
+
+/**
+ * What a particle looks like over its life: its image in a texture atlas and its color (r, g, b, a) and
+ * size multiplier over normalized age.
+ */
+public class ParticleType {
+
+	final TextureAtlas atlas;
+	final float[] cell;
+	Curve color;
+	Curve size;
+
+	public ParticleType(TextureAtlas atlas, int cell, Curve color, Curve size) {
+		if (color.getChannels() != 4 || size.getChannels() != 1) {
+			throw new IllegalArgumentException("Color curve needs 4 channels and size curve 1");
+		}
+		this.atlas = atlas;
+		this.cell = atlas.getCell(cell);
+		this.color = color;
+		this.size = size;
+	}
+
+	public TextureAtlas getAtlas() {
+		return atlas;
+	}
+
+	public void setColor(Curve color) {
+		this.color = color;
+	}
+
+	public void setSize(Curve size) {
+		this.size = size;
+	}
+
+}
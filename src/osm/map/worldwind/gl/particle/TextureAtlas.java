@@ -0,0 +1,72 @@
+package osm.map.worldwind.gl.particle;
+
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureIO;
+import gov.nasa.worldwind.cache.GpuResourceCache;
+import gov.nasa.worldwind.render.DrawContext;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A texture divided into a grid of equally sized cells, one per particle image. All particles whose types
+ * share an atlas are simulated together and drawn with a single call. The texture is kept in the
+ * GpuResourceCache of each context it is drawn in, keyed by the atlas.
+ */
+public class TextureAtlas {
+
+	public static final TextureAtlas SMOKE = new TextureAtlas("/osm/map/worldwind/gl/fire/smoke3.png", 1, 1);
+
+	private final static Logger logger = Logger.getLogger(TextureAtlas.class.getName());
+
+	final String resource;
+	final int columns;
+	final int rows;
+	private boolean failed = false;
+
+	public TextureAtlas(String resource, int columns, int rows) {
+		this.resource = resource;
+		this.columns = columns;
+		this.rows = rows;
+	}
+
+	/**
+	 * @param cell cell index, row major from the top left
+	 * @return the texture coordinates u0, v0, u1, v1 of the cell
+	 */
+	public float[] getCell(int cell) {
+		int col = cell % columns;
+		int row = cell / columns;
+		float du = 1f / columns;
+		float dv = 1f / rows;
+		float v0 = 1f - (row + 1) * dv;
+		return new float[]{col * du, v0, (col + 1) * du, v0 + dv};
+	}
+
+	/**
+	 * Must be called in the thread with the GL context.
+	 *
+	 * @param dc
+	 * @return the atlas texture in the context's GpuResourceCache, loaded if it is not there, or null if it
+	 * could not be loaded
+	 */
+	Texture getTexture(DrawContext dc) {
+		GpuResourceCache cache = dc.getGpuResourceCache();
+		Texture texture = cache.getTexture(this);
+		if (texture == null && !failed) {
+			try {
+				String suffix = resource.substring(resource.lastIndexOf('.'));
+				texture = TextureIO.newTexture(getClass().getResource(resource), false, suffix);
+				cache.put(this, texture);
+			} catch (Exception e) {
+				failed = true;
+				logger.log(Level.SEVERE, "Could not load particle atlas " + resource, e);
+			}
+		}
+		return texture;
+	}
+
+	public String getResource() {
+		return resource;
+	}
+
+}
@@ -0,0 +1,96 @@
+package osm.map.worldwind.gl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rasterizes occluders into a HiZBuffer and tests boxes against them, with the eye at the origin looking down
+ * -z and a projection that only divides by the depth, w = -z.
+ */
+public class HiZBufferTest {
+
+	private static final double[] PROJECTION = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -1, 0};
+
+	// the rectangle [x0, x1] by [y0, y1] at z, split into n by n cells of two triangles
+	private static float[] quad(float x0, float y0, float x1, float y1, float z, int n) {
+		float[] vertices = new float[18 * n * n];
+		int i = 0;
+		for (int row = 0; row < n; row++) {
+			for (int column = 0; column < n; column++) {
+				float ax = x0 + (x1 - x0) * column / n, bx = x0 + (x1 - x0) * (column + 1) / n;
+				float ay = y0 + (y1 - y0) * row / n, by = y0 + (y1 - y0) * (row + 1) / n;
+				float[] cell = {ax, ay, z, bx, ay, z, bx, by, z, ax, ay, z, bx, by, z, ax, by, z};
+				System.arraycopy(cell, 0, vertices, i, cell.length);
+				i += cell.length;
+			}
+		}
+		return vertices;
+	}
+
+	private static HiZBuffer render(float[] vertices) {
+		HiZBuffer buffer = new HiZBuffer();
+		buffer.clear(64, 32);
+		buffer.addTriangles(vertices, vertices.length / 9, PROJECTION);
+		buffer.render();
+		return buffer;
+	}
+
+	// a box of half size 1 around x, y, from z0 back to z1
+	private static boolean isOccluded(HiZBuffer buffer, double x, double y, double z0, double z1) {
+		return buffer.isOccluded(PROJECTION, x - 1, y - 1, z1, x + 1, y + 1, z0);
+	}
+
+	@Test
+	public void occludesWhatIsBehindTheOccluders() {
+		HiZBuffer buffer = render(quad(-100, -100, 100, 100, -10, 1));
+		assertEquals(2, buffer.getTriangleCount());
+		assertTrue(isOccluded(buffer, 0, 0, -20, -30));
+		assertTrue(isOccluded(buffer, 5, -3, -50, -60));
+		assertFalse("in front of the occluder", isOccluded(buffer, 0, 0, -4, -5));
+		assertFalse("through the occluder", isOccluded(buffer, 0, 0, -5, -30));
+		assertFalse("reaching the eye", isOccluded(buffer, 0, 0, 1, -30));
+	}
+
+	@Test
+	public void occludesOnlyWhereTheOccludersAre() {
+		HiZBuffer buffer = render(quad(-100, -100, 0, 100, -10, 1)); // the left half of the screen
+		assertTrue(isOccluded(buffer, -10, 0, -20, -30));
+		assertFalse(isOccluded(buffer, 10, 0, -20, -30));
+		assertFalse("partly behind the occluder", isOccluded(buffer, 0, 0, -20, -30));
+	}
+
+	@Test
+	public void occludesNothingWithoutOccluders() {
+		HiZBuffer buffer = render(new float[0]);
+		assertEquals(0, buffer.getTriangleCount());
+		assertFalse(isOccluded(buffer, 0, 0, -1000, -2000));
+	}
+
+	@Test
+	public void clipsTrianglesAtTheEye() {
+		// a slope from z = -20 at the bottom to z = 5, behind the eye, at the top, 7.5 in front of the eye
+		float[] slope = {-100, -100, -20, 100, -100, -20, 100, 100, 5, -100, -100, -20, 100, 100, 5, -100, 100, 5};
+		HiZBuffer buffer = render(slope);
+		assertTrue("the parts in front of the eye are kept", buffer.getTriangleCount() >= 2);
+		assertTrue(isOccluded(buffer, 0, 0, -25, -30));
+		assertFalse(isOccluded(buffer, 0, 0, -3, -4));
+	}
+
+	@Test
+	public void rasterizesManyTrianglesLikeFew() {
+		HiZBuffer few = render(quad(-100, -100, 0, 100, -10, 1));
+		HiZBuffer many = render(quad(-100, -100, 0, 100, -10, 40));
+		assertEquals(3200, many.getTriangleCount());
+		for (int x = -20; x <= 20; x += 2) {
+			for (int y = -10; y <= 10; y += 2) {
+				assertEquals(isOccluded(few, x, y, -20, -30), isOccluded(many, x, y, -20, -30));
+				assertEquals(isOccluded(few, x, y, -5, -30), isOccluded(many, x, y, -5, -30));
+			}
+		}
+		assertTrue(isOccluded(many, -10, 0, -20, -30));
+	}
+
+}
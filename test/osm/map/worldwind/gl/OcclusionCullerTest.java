@@ -0,0 +1,90 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.render.DrawContext;
+import javax.media.opengl.GLContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Culls GLRenderables behind a wall, drawn through the Stubs view, which projects as if looking down -z from
+ * the origin, and positions map to x = longitude, y = latitude and z = elevation.
+ */
+public class OcclusionCullerTest {
+
+	private static class Box extends GLRenderable {
+
+		Box(double elevation) {
+			super(Position.fromDegrees(0, 0, elevation));
+			setSize(1);
+		}
+
+		@Override
+		protected void drawGL(DrawContext dc) {
+		}
+	}
+
+	// a 100 by 100 square facing the eye
+	private static class Wall extends Box {
+
+		Wall(double elevation) {
+			super(elevation);
+		}
+
+		@Override
+		public float[] getOccluderTriangles(DrawContext dc, int maxTriangles) {
+			return new float[]{-50, -50, 0, 50, -50, 0, 50, 50, 0, -50, -50, 0, 50, 50, 0, -50, 50, 0};
+		}
+	}
+
+	private GLContext context;
+	private OcclusionCuller culler;
+	private Wall wall;
+
+	@Before
+	public void setUp() throws Exception {
+		context = Stubs.newContext(Stubs.newGL());
+		culler = new OcclusionCuller();
+		wall = new Wall(-10);
+		culler.addOccluder(wall);
+	}
+
+	@Test
+	public void cullsWhatIsBehindTheOccluders() {
+		DrawContext dc = Stubs.newDrawContext(context, 1);
+		culler.preRender(dc);
+		assertTrue(culler.isOccluded(dc, new Box(-30)));
+		assertFalse(culler.isOccluded(dc, new Box(-5)));
+		assertFalse("occluders are not culled", culler.isOccluded(dc, wall));
+	}
+
+	@Test
+	public void cullsNothingInFramesItDidNotDraw() {
+		culler.preRender(Stubs.newDrawContext(context, 1));
+		assertFalse(culler.isOccluded(Stubs.newDrawContext(context, 2), new Box(-30)));
+	}
+
+	@Test
+	public void cullsNothingWhileDisabled() {
+		culler.setEnabled(false);
+		DrawContext dc = Stubs.newDrawContext(context, 1);
+		culler.preRender(dc);
+		assertFalse(culler.isOccluded(dc, new Box(-30)));
+	}
+
+	@Test
+	public void countsTheLastFrame() {
+		DrawContext dc = Stubs.newDrawContext(context, 1);
+		culler.preRender(dc);
+		culler.isOccluded(dc, new Box(-30));
+		culler.isOccluded(dc, new Box(-40));
+		culler.isOccluded(dc, new Box(-5));
+		culler.preRender(Stubs.newDrawContext(context, 2));
+		assertArrayEquals(new long[]{3, 2}, culler.getLastFrameCounts());
+	}
+
+}
@@ -0,0 +1,116 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.render.DrawContext;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL4bc;
+import javax.media.opengl.GLContext;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Draws GLRenderables headlessly into a GL stub that counts its calls, and checks RenderStats against it.
+ */
+public class RenderStatsTest {
+
+	// draws a triangle, 5 GL calls
+	private static class Triangle extends GLRenderable {
+
+		GLContext drawnWith;
+
+		Triangle() {
+			super(Position.ZERO);
+		}
+
+		@Override
+		protected void drawGL(DrawContext dc) {
+			drawnWith = dc.getGLContext();
+			GL2 gl = dc.getGL().getGL2();
+			gl.glBegin(GL2.GL_TRIANGLES);
+			gl.glVertex3f(0, 0, 0);
+			gl.glVertex3f(1, 0, 0);
+			gl.glVertex3f(0, 1, 0);
+			gl.glEnd();
+		}
+	}
+
+	@After
+	public void disable() {
+		RenderStats.setEnabled(false);
+		RenderStats.setCountGLCalls(false);
+	}
+
+	@Test
+	public void countsTheCallsTheGLReceives() throws Exception {
+		RenderStats.setEnabled(true);
+		RenderStats.setCountGLCalls(true);
+		GL4bc gl = Stubs.newGL();
+		GLContext context = Stubs.newContext(gl);
+		Triangle triangle = new Triangle();
+		triangle.myRender(Stubs.newDrawContext(context, 1));
+		long calls = Stubs.getCalls(gl);
+		triangle.myRender(Stubs.newDrawContext(context, 2)); // completes the first frame
+
+		RenderStats total = RenderStats.getTotal();
+		assertTrue("beginDraw, the transform, drawGL and endDraw issue more than drawGL alone", calls > 5);
+		assertEquals(calls, total.getLastFrame(RenderStats.Counter.GL_CALLS));
+		assertEquals(1, total.getLastFrame(RenderStats.Counter.DRAWN));
+		assertSame("the counter is removed after drawing", gl, context.getGL());
+		assertEquals("frames whose calls are counted are not timed", 0,
+			total.getLastFrame(RenderStats.Counter.DRAW_NANOS));
+	}
+
+	@Test
+	public void timesWithoutCounting() throws Exception {
+		RenderStats.setEnabled(true);
+		GL4bc gl = Stubs.newGL();
+		GLContext context = Stubs.newContext(gl);
+		Triangle triangle = new Triangle();
+		triangle.myRender(Stubs.newDrawContext(context, 1));
+		triangle.myRender(Stubs.newDrawContext(context, 2));
+
+		RenderStats total = RenderStats.getTotal();
+		assertSame("drawn with the GL itself", gl, triangle.drawnWith.getGL());
+		assertEquals(0, total.getLastFrame(RenderStats.Counter.GL_CALLS));
+		assertTrue(total.getLastFrame(RenderStats.Counter.DRAW_NANOS) > 0);
+	}
+
+	@Test
+	public void leavesTheGLAloneWhileDisabled() throws Exception {
+		GL4bc gl = Stubs.newGL();
+		GLContext context = Stubs.newContext(gl);
+		Triangle triangle = new Triangle();
+		triangle.myRender(Stubs.newDrawContext(context, 1));
+		assertSame(gl, triangle.drawnWith.getGL());
+	}
+
+	@Test
+	public void countsOnlyGLFunctions() throws Exception {
+		GL4bc gl = Stubs.newGL();
+		GLCallCounter counter = GLCallCounter.wrap(gl);
+		GL2 counted = counter.getGL2();
+		counted.glEnable(GL2.GL_BLEND);
+		counted.glDisable(GL2.GL_BLEND);
+		counted.isExtensionAvailable("GL_ARB_vertex_buffer_object");
+		assertEquals(2, counter.getCalls());
+		assertEquals(2, Stubs.getCalls(gl));
+	}
+
+	@Test
+	public void installsOnce() throws Exception {
+		GL4bc gl = Stubs.newGL();
+		GLContext context = Stubs.newContext(gl);
+		DrawContext dc = Stubs.newDrawContext(context, 1);
+		GLCallCounter counter = GLCallCounter.install(dc);
+		assertSame(counter, context.getGL());
+		assertEquals(null, GLCallCounter.install(dc));
+		dc.getGL().glFlush();
+		assertEquals(1, counter.uninstall());
+		assertSame(gl, context.getGL());
+	}
+
+}
@@ -0,0 +1,243 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.View;
+import gov.nasa.worldwind.geom.Frustum;
+import gov.nasa.worldwind.geom.Matrix;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.render.DrawContext;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL4bc;
+import javax.media.opengl.GLContext;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Headless stand-ins for the GL and World Wind objects renderers draw with. The GL and the GL context are
+ * compiled when first needed, from their JOGL types, as GL4bc has too many methods to stub by hand or to
+ * proxy: every method does nothing and returns 0, false or null, except that the GL reports itself as a
+ * GL2, counts its GL function calls (read through LongSupplier) and the context holds a settable GL.
+ */
+final class Stubs {
+
+	private static Class<?> glClass, contextClass;
+
+	private Stubs() {
+	}
+
+	/**
+	 * @return a new GL that counts its calls, a LongSupplier of the count
+	 */
+	static GL4bc newGL() throws Exception {
+		compile();
+		return (GL4bc) glClass.getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * @return a new GL context whose GL is gl
+	 */
+	static GLContext newContext(GL gl) throws Exception {
+		compile();
+		GLContext context = (GLContext) contextClass.getDeclaredConstructor().newInstance();
+		context.setGL(gl);
+		return context;
+	}
+
+	static long getCalls(GL gl) {
+		return ((LongSupplier) gl).getAsLong();
+	}
+
+	/**
+	 * @return a draw context of one frame, drawing with the context's GL, whose globe puts a position at x =
+	 * longitude, y = latitude in degrees and z = elevation, and whose view is 10 units away from the origin on
+	 * the z axis, 200 by 100 pixels, with an eye space equal to model space and a projection that only divides
+	 * by the depth, w = -z
+	 */
+	static DrawContext newDrawContext(final GLContext context, final long frameTimeStamp) {
+		final Globe globe = proxy(Globe.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("computePointFromPosition") && args[0] instanceof Position) {
+					Position p = (Position) args[0];
+					return new Vec4(p.longitude.degrees, p.latitude.degrees,
+						args.length > 1 ? (Double) args[1] : p.elevation);
+				}
+				return defaultValue(method);
+			}
+		});
+		final View view = proxy(View.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+					case "getEyePoint":
+						return new Vec4(0, 0, 10);
+					case "getFrustumInModelCoordinates":
+						return new Frustum();
+					case "computePixelSizeAtDistance":
+						return 1.0;
+					case "getViewport":
+						return new Rectangle(0, 0, 200, 100);
+					case "getModelviewMatrix":
+						return Matrix.IDENTITY;
+					case "getProjectionMatrix":
+						return new Matrix(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -1, 0);
+					default:
+						return defaultValue(method);
+				}
+			}
+		});
+		return proxy(DrawContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+					case "getGL":
+						return context.getGL();
+					case "getGLContext":
+						return context;
+					case "getGlobe":
+						return globe;
+					case "getView":
+						return view;
+					case "getFrameTimeStamp":
+						return frameTimeStamp;
+					case "getVerticalExaggeration":
+						return 1.0;
+					default:
+						return defaultValue(method);
+				}
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, handler));
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		} else if (type == char.class) {
+			return '\0';
+		} else if (type == double.class) {
+			return 0.0;
+		} else if (type == float.class) {
+			return 0f;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == short.class) {
+			return (short) 0;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		}
+		return null;
+	}
+
+	private static synchronized void compile() throws IOException, ClassNotFoundException {
+		if (glClass != null) {
+			return;
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("The stubs are compiled at run time, which needs a JDK");
+		}
+		File dir = Files.createTempDirectory("stubs").toFile();
+		try {
+			File gl = write(dir, "StubGL", "implements " + GL4bc.class.getName() + ", " + LongSupplier.class.getName(),
+				GL4bc.class, "private long calls;\npublic long getAsLong() { return calls; }\n");
+			File context = write(dir, "StubGLContext", "extends " + GLContext.class.getName(), GLContext.class,
+				"private " + GL.class.getName() + " gl;\n");
+			// the stubs implement deprecated methods, the notes saying so are kept out of the test output
+			ByteArrayOutputStream messages = new ByteArrayOutputStream();
+			if (compiler.run(null, messages, messages, "-nowarn", "-classpath", System.getProperty("java.class.path"),
+				"-d", dir.getPath(), gl.getPath(), context.getPath()) != 0) {
+				throw new IllegalStateException("Could not compile the stubs:\n" + messages);
+			}
+			try (URLClassLoader loader = new URLClassLoader(new URL[]{dir.toURI().toURL()}, Stubs.class.getClassLoader())) {
+				glClass = loader.loadClass("StubGL");
+				contextClass = loader.loadClass("StubGLContext");
+			}
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	// a class implementing the abstract methods of type
+	private static File write(File dir, String name, String declaration, Class<?> type, String members)
+		throws IOException {
+		File file = new File(dir, name + ".java");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			out.write("public class " + name + " " + declaration + " {\n" + members);
+			for (Method method : abstractMethods(type).values()) {
+				out.write(implement(method));
+			}
+			out.write("}\n");
+		}
+		return file;
+	}
+
+	private static Map<String, Method> abstractMethods(Class<?> type) {
+		Map<String, Method> methods = new LinkedHashMap<>();
+		for (Method method : type.getMethods()) {
+			if (Modifier.isAbstract(method.getModifiers())) {
+				methods.put(method.getName() + Arrays.toString(method.getParameterTypes()), method);
+			}
+		}
+		return methods;
+	}
+
+	private static String implement(Method method) {
+		StringBuilder sb = new StringBuilder("public ").append(method.getReturnType().getCanonicalName())
+			.append(' ').append(method.getName()).append('(');
+		Class<?>[] parameters = method.getParameterTypes();
+		for (int i = 0; i < parameters.length; i++) {
+			sb.append(i > 0 ? ", " : "").append(parameters[i].getCanonicalName()).append(" a").append(i);
+		}
+		sb.append(") {");
+		String name = method.getName();
+		Class<?> type = method.getReturnType();
+		if (name.startsWith("gl") && method.getDeclaringClass() != GLContext.class) {
+			sb.append(" calls++;");
+		}
+		if (name.equals("getGL") && method.getDeclaringClass() == GLContext.class) {
+			sb.append(" return gl;");
+		} else if (name.equals("setGL")) {
+			sb.append(" javax.media.opengl.GL old = gl; gl = a0; return old;");
+		} else if (type == boolean.class) {
+			sb.append(" return ").append(Arrays.asList("isGL", "isGL2", "isGL2GL3", "isGL2ES1", "isGL2ES2", "isGL3bc",
+				"isGL4bc").contains(name)).append(';');
+		} else if (type.isPrimitive() && type != void.class) {
+			sb.append(" return (").append(type.getName()).append(") 0;");
+		} else if (type != void.class) {
+			sb.append(" return ").append(!type.isAssignableFrom(GL4bc.class)
+				|| method.getDeclaringClass() == GLContext.class ? "null" : "this").append(';');
+		}
+		return sb.append(" }\n").toString();
+	}
+
+}
@@ -0,0 +1,64 @@
+package osm.map.worldwind.gl;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.render.DrawContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds updates into a TrackStore and publishes them, with slots reused by later objects.
+ */
+public class TrackStoreTest {
+
+	private static class Track extends GLRenderable {
+
+		Track() {
+			super(Position.ZERO);
+		}
+
+		@Override
+		protected void drawGL(DrawContext dc) {
+		}
+	}
+
+	@Test
+	public void publishesTheLatestUpdate() {
+		TrackStore store = new TrackStore(4);
+		Track track = new Track();
+		int slot = store.register("a", track);
+		assertTrue(store.update("a", 1, 2, 3, 0, 0, 0));
+		assertTrue(store.update(slot, 4, 5, 6, 0, 0, 0));
+		assertEquals(1, store.publish(0));
+		assertEquals(4, track.getPosition().latitude.degrees, 0);
+		assertEquals(6, track.getPosition().elevation, 0);
+		assertEquals(0, store.publish(0));
+		assertFalse(store.update("b", 1, 2, 3, 0, 0, 0));
+	}
+
+	@Test
+	public void dropsUpdatesOfUnregisteredObjects() {
+		TrackStore store = new TrackStore(1);
+		Track first = new Track(), second = new Track();
+		int firstSlot = store.register("a", first);
+		assertTrue(store.update(firstSlot, 10, 10, 10, 0, 0, 0)); // in flight when a is unregistered
+		store.unregister("a");
+		int secondSlot = store.register("b", second);
+		assertTrue("the slot number changes with the object", firstSlot != secondSlot);
+		assertEquals(0, store.publish(0));
+		assertEquals(Position.ZERO, second.getPosition());
+
+		assertFalse("a slot number of an unregistered object", store.update(firstSlot, 20, 20, 20, 0, 0, 0));
+		store.update(new int[]{firstSlot}, new double[]{20, 20, 20, 0, 0, 0}, 1);
+		assertEquals(0, store.publish(0));
+		assertEquals(Position.ZERO, second.getPosition());
+
+		assertTrue(store.update(secondSlot, 30, 30, 30, 0, 0, 0));
+		assertEquals(1, store.publish(0));
+		assertEquals(30, second.getPosition().latitude.degrees, 0);
+		assertEquals(2, store.getUpdateCount());
+	}
+
+}
@@ -0,0 +1,176 @@
+package osm.map.worldwind.gl.obj;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Fetches models from an in-process HTTP server that answers If-None-Match with 304 Not Modified.
+ */
+public class HttpModelResolverTest {
+
+	private final Map<String, String> files = new ConcurrentHashMap<>(); // served, by path
+	private final AtomicInteger requests = new AtomicInteger(), notModified = new AtomicInteger();
+	private HttpServer server;
+	private File cacheDirectory;
+	private HttpModelResolver resolver;
+	private Level logLevel;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				String body = files.get(exchange.getRequestURI().getPath());
+				String etag = body != null ? "\"" + Integer.toHexString(body.hashCode()) + "\"" : null;
+				if (body == null) {
+					exchange.sendResponseHeaders(404, -1);
+				} else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+				} else {
+					byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("ETag", etag);
+					exchange.sendResponseHeaders(200, bytes.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(bytes);
+					}
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		cacheDirectory = Files.createTempDirectory("obj-model-cache").toFile();
+		resolver = new HttpModelResolver(cacheDirectory, 2);
+		files.put("/cube.obj", "v 0 0 0\n");
+		// the offline test logs a warning
+		Logger logger = Logger.getLogger(HttpModelResolver.class.getName());
+		logLevel = logger.getLevel();
+		logger.setLevel(Level.SEVERE);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		for (File file : cacheDirectory.listFiles()) {
+			file.delete();
+		}
+		cacheDirectory.delete();
+		Logger.getLogger(HttpModelResolver.class.getName()).setLevel(logLevel);
+	}
+
+	private String url(String path) {
+		return "http://localhost:" + server.getAddress().getPort() + path;
+	}
+
+	private String read(String path) throws IOException {
+		return read(resolver.getFile(url(path)));
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void fetchesOncePerSession() throws IOException {
+		assertEquals("v 0 0 0\n", read("/cube.obj"));
+		assertEquals("v 0 0 0\n", read("/cube.obj"));
+		assertEquals(1, requests.get());
+		assertEquals(8, resolver.getDownloadedBytes());
+	}
+
+	@Test
+	public void revalidatesWithTheETag() throws IOException {
+		File first = resolver.getFile(url("/cube.obj"));
+		resolver.expire();
+		assertEquals(first, resolver.getFile(url("/cube.obj")));
+		assertEquals(1, notModified.get());
+		assertEquals(1, resolver.getNotModified());
+
+		// a later session revalidates what an earlier one cached
+		resolver = new HttpModelResolver(cacheDirectory, 2);
+		assertEquals(first, resolver.getFile(url("/cube.obj")));
+		assertEquals(2, notModified.get());
+		assertEquals(3, requests.get());
+	}
+
+	@Test
+	public void downloadsChangedContent() throws IOException {
+		read("/cube.obj");
+		files.put("/cube.obj", "v 1 1 1\n");
+		resolver.expire();
+		assertEquals("v 1 1 1\n", read("/cube.obj"));
+		assertEquals(0, notModified.get());
+	}
+
+	@Test
+	public void storesTheSameContentOnce() throws IOException {
+		files.put("/copy.obj", "v 0 0 0\n");
+		assertEquals(resolver.getFile(url("/cube.obj")), resolver.getFile(url("/copy.obj")));
+	}
+
+	@Test
+	public void answersNullForMissingFiles() throws IOException {
+		assertNull(resolver.getFile(url("/missing.obj")));
+		assertFalse(resolver.exists(url("/missing.obj")));
+		assertNull("other schemes are left to other resolvers", resolver.getFile("/cube.obj"));
+	}
+
+	@Test
+	public void servesOnlyCachedContentOnceTheBudgetIsSpent() throws IOException {
+		resolver.setRequestBudget(1);
+		read("/cube.obj");
+		resolver.expire();
+		assertEquals("v 0 0 0\n", read("/cube.obj"));
+		assertEquals(1, requests.get());
+		assertEquals(1, resolver.getRequests());
+		assertEquals(1, resolver.getCacheHits());
+		files.put("/sphere.obj", "v 1 0 0\n");
+		try {
+			resolver.getFile(url("/sphere.obj"));
+			fail("not cached and no request left");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void servesCachedContentOffline() throws IOException {
+		read("/cube.obj");
+		server.stop(0);
+		resolver.setConnectTimeout(1000);
+		resolver.expire();
+		assertEquals("v 0 0 0\n", read("/cube.obj"));
+		assertEquals(1, resolver.getCacheHits());
+		try {
+			resolver.getFile(url("/sphere.obj"));
+			fail("not cached and offline");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package osm.map.worldwind.gl.obj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks MeshBVH queries against testing every triangle.
+ */
+public class MeshBVHTest {
+
+	private static MtlLoader.Material material(String name) {
+		MtlLoader.Material material = new MtlLoader.Material();
+		material.name = name;
+		return material;
+	}
+
+	// small random triangles in a 100 unit cube, split over a few batches, one of them empty
+	private static List<MeshBatch> randomBatches(int triangles, long seed) {
+		Random random = new Random(seed);
+		List<MeshBatch> batches = new ArrayList<>();
+		batches.add(new MeshBatch(material("empty"), null));
+		for (int b = 0; b < 3; b++) {
+			MeshBatch batch = new MeshBatch(material("m" + b), null);
+			for (int t = 0; t < triangles / 3; t++) {
+				float x = random.nextFloat() * 100, y = random.nextFloat() * 100, z = random.nextFloat() * 100;
+				for (int v = 0; v < 3; v++) {
+					batch.add(new float[]{x + random.nextFloat() * 5, y + random.nextFloat() * 5, z + random.nextFloat() * 5},
+						null, null, null, false);
+				}
+			}
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	// the nearest triangle hit, testing every one: distance, original index
+	private static double[] bruteForce(List<MeshBatch> batches, double[] o, double[] d, double max) {
+		double nearest = max;
+		int found = -1, index = 0;
+		for (MeshBatch batch : batches) {
+			float[] p = batch.positions;
+			for (int v = 0; v + 3 <= batch.vertexCount; v += 3, index++) {
+				double t = intersect(p, 3 * v, o, d);
+				if (t >= 0 && t <= nearest) {
+					nearest = t;
+					found = index;
+				}
+			}
+		}
+		return new double[]{nearest, found};
+	}
+
+	private static double intersect(float[] p, int v, double[] o, double[] d) {
+		double[] e1 = {p[v + 3] - p[v], p[v + 4] - p[v + 1], p[v + 5] - p[v + 2]};
+		double[] e2 = {p[v + 6] - p[v], p[v + 7] - p[v + 1], p[v + 8] - p[v + 2]};
+		double[] h = cross(d, e2);
+		double det = dot(e1, h);
+		if (Math.abs(det) < 1e-20) {
+			return -1;
+		}
+		double[] s = {o[0] - p[v], o[1] - p[v + 1], o[2] - p[v + 2]};
+		double u = dot(s, h) / det;
+		double[] q = cross(s, e1);
+		double w = dot(d, q) / det;
+		return u < 0 || u > 1 || w < 0 || u + w > 1 ? -1 : dot(e2, q) / det;
+	}
+
+	private static double[] cross(double[] a, double[] b) {
+		return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+	}
+
+	private static double dot(double[] a, double[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	private static void assertMatchesBruteForce(int triangles, int rays) {
+		List<MeshBatch> batches = randomBatches(triangles, 42);
+		MeshBVH bvh = MeshBVH.build(batches);
+		assertEquals(triangles / 3 * 3, bvh.getTriangleCount());
+		assertTrue(bvh.getDepth() > 1);
+		Random random = new Random(7);
+		int hits = 0;
+		for (int r = 0; r < rays; r++) {
+			double[] o = {random.nextDouble() * 140 - 20, random.nextDouble() * 140 - 20, -50};
+			double[] d = {random.nextDouble() - 0.5, random.nextDouble() - 0.5, 1};
+			double[] expected = bruteForce(batches, o, d, 1000);
+			MeshBVH.Hit hit = bvh.intersect(o[0], o[1], o[2], d[0], d[1], d[2], 1000);
+			assertEquals(expected[1] >= 0, bvh.isOccluded(o[0], o[1], o[2], d[0], d[1], d[2], 1000));
+			if (expected[1] < 0) {
+				assertNull(hit);
+				continue;
+			}
+			hits++;
+			assertNotNull(hit);
+			assertEquals(expected[0], hit.distance, 1e-6);
+			assertEquals((int) expected[1], hit.triangle);
+			assertSame(batches.get(1 + hit.triangle / (triangles / 3)).material, hit.material);
+		}
+		assertTrue("the rays should hit something", hits > rays / 10);
+	}
+
+	@Test
+	public void findsTheNearestHit() {
+		assertMatchesBruteForce(3000, 2000);
+	}
+
+	@Test
+	public void findsTheNearestHitInAHierarchyBuiltInParallel() {
+		assertMatchesBruteForce(70000, 300);
+	}
+
+	@Test
+	public void measuresSegmentsInFractionsOfTheirLength() {
+		MeshBatch batch = new MeshBatch(material("quad"), null);
+		batch.add(new float[]{-1, -1, 5}, null, null, null, false);
+		batch.add(new float[]{1, -1, 5}, null, null, null, false);
+		batch.add(new float[]{0, 1, 5}, null, null, null, false);
+		List<MeshBatch> batches = new ArrayList<>();
+		batches.add(batch);
+		MeshBVH bvh = MeshBVH.build(batches);
+		MeshBVH.Hit hit = bvh.intersectSegment(0, 0, 0, 0, 0, 10);
+		assertNotNull(hit);
+		assertEquals(0.5, hit.distance, 1e-12);
+		assertEquals(0, hit.triangle);
+		assertNull("the segment ends before the triangle", bvh.intersectSegment(0, 0, 0, 0, 0, 4));
+		assertFalse("the ray misses beside the triangle", bvh.isOccluded(2, 0, 0, 0, 0, 1, 100));
+		assertTrue("both sides are hit", bvh.isOccluded(0, 0, 10, 0, 0, -1, 100));
+	}
+
+	@Test
+	public void answersNothingWithoutTriangles() {
+		MeshBVH bvh = MeshBVH.build(new ArrayList<MeshBatch>());
+		assertEquals(0, bvh.getTriangleCount());
+		assertNull(bvh.intersect(0, 0, 0, 0, 0, 1, 100));
+	}
+
+}